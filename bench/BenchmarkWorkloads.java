@@ -0,0 +1,323 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The workloads measured by the JMH benchmarks in {@code bench/benchmarks}.
+ * JMH refuses benchmark classes in the default package, and classes in a named
+ * package cannot refer to the ones of this project, so the benchmarks look up
+ * these factories by name and only see {@link DoubleSupplier}s. All data is
+ * synthetic and generated from fixed seeds.
+ */
+public final class BenchmarkWorkloads {
+	private static final long SEED = 298L;
+
+	private static final int NUM_CLASSES = 8;
+
+	private static final double ALPHA = 0.85;
+
+	private static final double BETA = 0.15;
+
+	private BenchmarkWorkloads() {
+	}
+
+	public static DoubleSupplier euclideanDistance(int dimension, double density) {
+		Random random = new Random(SEED);
+		final List<Double> instance1 = toList(randomVector(random, dimension, density));
+		final List<Double> instance2 = toList(randomVector(random, dimension, density));
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return MathUtil.calculateEuclideanDistance(instance1, instance2);
+			}
+		};
+	}
+
+	public static DoubleSupplier cosineDistance(int dimension, double density) {
+		Random random = new Random(SEED);
+		final List<Double> instance1 = toList(randomVector(random, dimension, density));
+		final List<Double> instance2 = toList(randomVector(random, dimension, density));
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return MathUtil.calculateCosineSimilarity(instance1, instance2, true);
+			}
+		};
+	}
+
+	public static DoubleSupplier maskedEuclideanDistance(int dimension, double density,
+			double maskDensity) {
+		Random random = new Random(SEED);
+		final double[] instance1 = randomVector(random, dimension, density);
+		final double[] instance2 = randomVector(random, dimension, density);
+		final int[] featureIndices = randomFeatureIndices(random, dimension, maskDensity);
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return MathUtil.calculateSquaredEuclideanDistance(instance1, instance2,
+						featureIndices);
+			}
+		};
+	}
+
+	public static DoubleSupplier maskedCosineDistance(int dimension, double density,
+			double maskDensity) {
+		Random random = new Random(SEED);
+		final double[] instance1 = randomVector(random, dimension, density);
+		final double[] instance2 = randomVector(random, dimension, density);
+		final int[] featureIndices = randomFeatureIndices(random, dimension, maskDensity);
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return MathUtil.calculateCosineSimilarity(instance1, instance2, featureIndices,
+						true);
+			}
+		};
+	}
+
+	/**
+	 * One call of a {@link DistanceKernels} kernel of the given kernels
+	 * ({@code scalar} or {@code vector}) on dense rows: {@code dot},
+	 * {@code squaredEuclidean}, their {@code masked} variants over a random
+	 * mask, or {@code sparseDot} of the masked features against a dense row.
+	 */
+	public static DoubleSupplier kernel(String kernelsName, String kernel, int dimension,
+			double maskDensity) {
+		final DistanceKernels kernels = DistanceKernels.forName(kernelsName);
+		Random random = new Random(SEED);
+		final double[] instance1 = randomVector(random, dimension, 1.0);
+		final double[] instance2 = randomVector(random, dimension, 1.0);
+		final FeatureMask mask = new FeatureMask(dimension, randomFeatureIndices(random,
+				dimension, maskDensity));
+		final int[] indices = mask.getIndices();
+		final double[] values = new double[indices.length];
+		for (int k = 0; k < indices.length; k++) {
+			values[k] = instance1[indices[k]];
+		}
+		switch (kernel) {
+		case "dot":
+			return new DoubleSupplier() {
+
+				@Override
+				public double getAsDouble() {
+					return kernels.dotProduct(instance1, instance2);
+				}
+			};
+		case "squaredEuclidean":
+			return new DoubleSupplier() {
+
+				@Override
+				public double getAsDouble() {
+					return kernels.squaredEuclideanDistance(instance1, instance2);
+				}
+			};
+		case "maskedDot":
+			return new DoubleSupplier() {
+
+				@Override
+				public double getAsDouble() {
+					return kernels.dotProduct(instance1, instance2, mask);
+				}
+			};
+		case "maskedSquaredEuclidean":
+			return new DoubleSupplier() {
+
+				@Override
+				public double getAsDouble() {
+					return kernels.squaredEuclideanDistance(instance1, instance2, mask);
+				}
+			};
+		case "sparseDot":
+			return new DoubleSupplier() {
+
+				@Override
+				public double getAsDouble() {
+					return kernels.sparseDotProduct(indices, values, indices.length, instance2);
+				}
+			};
+		default:
+			throw new IllegalArgumentException("Unknown kernel: " + kernel);
+		}
+	}
+
+	/**
+	 * Prepares an evaluator on a synthetic data set stored in the given
+	 * precision and storage once, and calculates the fitness of one random
+	 * mask per call. Off-heap values stay allocated until the fork exits.
+	 */
+	public static DoubleSupplier fitness(String evaluator, String precision, String storage,
+			int numInstances, int dimension, double maskDensity) {
+		final Random random = new Random(SEED);
+		final EvaluatorContext context = EvaluatorContext.prepare(evaluator, new FeatureMatrix(
+				randomDataSet(random, numInstances, dimension, 0.1)).withPrecision(
+				FeatureMatrix.Precision.parse(precision)).withStorage(
+				FeatureMatrix.Storage.parse(storage)));
+		final List<Integer> mask = randomMask(random, dimension, maskDensity);
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return context.newEvaluator(mask).calcFitness(ALPHA, BETA, -1);
+			}
+		};
+	}
+
+	/**
+	 * Prepares an evaluator on a synthetic data set of doubles once, and counts
+	 * the correctly classified instances under a swarm of random masks in one
+	 * call, as {@code -batch true} does; returns the count of the first mask.
+	 */
+	public static DoubleSupplier batchFitness(String evaluator, int numInstances,
+			int dimension, double maskDensity, int numMasks) {
+		final Random random = new Random(SEED);
+		final EvaluatorContext context = EvaluatorContext.prepare(evaluator, new FeatureMatrix(
+				randomDataSet(random, numInstances, dimension, 0.1)));
+		final List<List<Integer>> masks = new ArrayList<>();
+		for (int m = 0; m < numMasks; m++) {
+			masks.add(randomMask(random, dimension, maskDensity));
+		}
+		final List<Integer> instanceIndices = MathUtil.range(numInstances);
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return context.countCorrectlyClassified(masks, instanceIndices)[0];
+			}
+		};
+	}
+
+	public static DoubleSupplier kdTreeBuild(int numInstances, int dimension) {
+		final DataSet dataSet = new DataSet(dimension);
+		dataSet.addAllInstances(randomDataSet(new Random(SEED), numInstances, dimension, 1.0));
+		return new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return KdTree.build(dataSet).getRootNode().getSplitFeatureIndex();
+			}
+		};
+	}
+
+	public static DoubleSupplier kdTreeFindKNearestNodes(int numInstances, int dimension,
+			final int numK) {
+		final Random random = new Random(SEED);
+		DataSet dataSet = new DataSet(dimension);
+		dataSet.addAllInstances(randomDataSet(random, numInstances, dimension, 1.0));
+		final KdTree tree = KdTree.build(dataSet);
+		final List<DataPoint> queries = randomDataSet(random, 1024, dimension, 1.0);
+		return new DoubleSupplier() {
+			private int next = 0;
+
+			@Override
+			public double getAsDouble() {
+				DataPoint query = queries.get(next++ & 1023);
+				return tree.findKNearestNodes(query, numK).getMaxDistance();
+			}
+		};
+	}
+
+	/**
+	 * Writes a synthetic corpus once; each call runs {@link TfidfCalculator} on
+	 * it and returns the number of documents processed.
+	 */
+	public static DoubleSupplier tfidf(final int numDocs, int vocabularySize, int docLength) {
+		try {
+			final File input = File.createTempFile("bench-corpus", ".txt");
+			final File output = File.createTempFile("bench-corpus", ".csv");
+			input.deleteOnExit();
+			output.deleteOnExit();
+			Random random = new Random(SEED);
+			try (PrintWriter out = new PrintWriter(input)) {
+				for (int i = 0; i < numDocs; i++) {
+					StringBuilder sb = new StringBuilder("class" + random.nextInt(NUM_CLASSES));
+					sb.append('\t');
+					for (int j = 0; j < docLength; j++) {
+						// Squaring a uniform number skews the term distribution.
+						double u = random.nextDouble();
+						sb.append(j == 0 ? "" : " ").append("t").append(
+								(int) (u * u * vocabularySize));
+					}
+					out.println(sb);
+				}
+			}
+			return new DoubleSupplier() {
+
+				@Override
+				public double getAsDouble() {
+					new TfidfCalculator().calculate(input.getPath(), output.getPath(), true);
+					return numDocs;
+				}
+			};
+		} catch (FileNotFoundException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static double[] randomVector(Random random, int dimension, double density) {
+		double[] result = new double[dimension];
+		double length = 0.0;
+		for (int i = 0; i < dimension; i++) {
+			if (random.nextDouble() < density) {
+				result[i] = random.nextDouble();
+				length += result[i] * result[i];
+			}
+		}
+		length = Math.sqrt(length);
+		for (int i = 0; length > 0.0 && i < dimension; i++) {
+			result[i] /= length;
+		}
+		return result;
+	}
+
+	private static List<Double> toList(double[] values) {
+		List<Double> result = new ArrayList<>(values.length);
+		for (double value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	private static int[] randomFeatureIndices(Random random, int dimension, double maskDensity) {
+		List<Integer> mask = randomMask(random, dimension, maskDensity);
+		int numSelected = 0;
+		for (int bit : mask) {
+			numSelected += bit;
+		}
+		int[] result = new int[numSelected];
+		for (int i = 0, j = 0; i < dimension; i++) {
+			if (mask.get(i) == 1) {
+				result[j++] = i;
+			}
+		}
+		return result;
+	}
+
+	private static List<Integer> randomMask(Random random, int dimension, double maskDensity) {
+		List<Integer> mask = new ArrayList<>(dimension);
+		for (int i = 0; i < dimension; i++) {
+			mask.add(random.nextDouble() < maskDensity ? 1 : 0);
+		}
+		return mask;
+	}
+
+	private static List<DataPoint> randomDataSet(Random random, int numInstances, int dimension,
+			double density) {
+		List<DataPoint> result = new ArrayList<>(numInstances);
+		for (int i = 0; i < numInstances; i++) {
+			result.add(new DataPoint("class" + (i % NUM_CLASSES), toList(randomVector(random,
+					dimension, density))));
+		}
+		return result;
+	}
+}
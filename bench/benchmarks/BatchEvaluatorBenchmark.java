@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The evaluation of a swarm of masks with the given density in one pass, on one thread. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class BatchEvaluatorBenchmark {
+	@Param({ "rocchio" })
+	public String evaluator;
+
+	@Param({ "1000" })
+	public int numInstances;
+
+	@Param({ "1000" })
+	public int dimension;
+
+	@Param({ "0.1", "0.5", "0.9" })
+	public double maskDensity;
+
+	@Param({ "16" })
+	public int numMasks;
+
+	private DoubleSupplier fitness;
+
+	@Setup
+	public void setUp() {
+		fitness = Workloads.create("batchFitness", evaluator, numInstances, dimension,
+				maskDensity, numMasks);
+	}
+
+	@Benchmark
+	public double countCorrectlyClassified() {
+		return fitness.getAsDouble();
+	}
+}
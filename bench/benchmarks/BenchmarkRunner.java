@@ -0,0 +1,32 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like {@code org.openjdk.jmh.Main}, taking the same
+ * command line options, but always exports the results as JSON (to
+ * {@code jmh-result.json} unless {@code -rff} is given) for regression
+ * tracking.
+ */
+public final class BenchmarkRunner {
+	private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	private BenchmarkRunner() {
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions)
+				.resultFormat(ResultFormatType.JSON);
+		if (!commandLineOptions.getResult().hasValue()) {
+			options.result(DEFAULT_RESULT_FILE);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Euclidean and cosine kernels, on boxed lists and on masked primitive rows. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DistanceKernelBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int dimension;
+
+	@Param({ "0.01", "0.1", "1.0" })
+	public double density;
+
+	private DoubleSupplier euclidean;
+
+	private DoubleSupplier cosine;
+
+	private DoubleSupplier maskedEuclidean;
+
+	private DoubleSupplier maskedCosine;
+
+	@Setup
+	public void setUp() {
+		euclidean = Workloads.create("euclideanDistance", dimension, density);
+		cosine = Workloads.create("cosineDistance", dimension, density);
+		maskedEuclidean = Workloads.create("maskedEuclideanDistance", dimension, density, 0.5);
+		maskedCosine = Workloads.create("maskedCosineDistance", dimension, density, 0.5);
+	}
+
+	@Benchmark
+	public double euclidean() {
+		return euclidean.getAsDouble();
+	}
+
+	@Benchmark
+	public double cosine() {
+		return cosine.getAsDouble();
+	}
+
+	@Benchmark
+	public double maskedEuclidean() {
+		return maskedEuclidean.getAsDouble();
+	}
+
+	@Benchmark
+	public double maskedCosine() {
+		return maskedCosine.getAsDouble();
+	}
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** One fitness evaluation of a mask with the given density of selected features. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class EvaluatorBenchmark {
+	@Param({ "rocchio", "knn:5" })
+	public String evaluator;
+
+	@Param({ "double", "float", "int16", "int8" })
+	public String precision;
+
+	@Param({ "heap" })
+	public String storage;
+
+	@Param({ "1000" })
+	public int numInstances;
+
+	@Param({ "1000" })
+	public int dimension;
+
+	@Param({ "0.1", "0.5", "0.9" })
+	public double maskDensity;
+
+	private DoubleSupplier fitness;
+
+	@Setup
+	public void setUp() {
+		fitness = Workloads.create("fitness", evaluator, precision, storage, numInstances,
+				dimension, maskDensity);
+	}
+
+	@Benchmark
+	public double calcFitness() {
+		return fitness.getAsDouble();
+	}
+}
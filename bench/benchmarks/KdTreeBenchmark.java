@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KdTreeBenchmark {
+	@Param({ "1000", "10000" })
+	public int numInstances;
+
+	@Param({ "2", "8" })
+	public int dimension;
+
+	@Param({ "5" })
+	public int numK;
+
+	private DoubleSupplier build;
+
+	private DoubleSupplier findKNearestNodes;
+
+	@Setup
+	public void setUp() {
+		build = Workloads.create("kdTreeBuild", numInstances, dimension);
+		findKNearestNodes = Workloads.create("kdTreeFindKNearestNodes", numInstances, dimension,
+				numK);
+	}
+
+	@Benchmark
+	public double build() {
+		return build.getAsDouble();
+	}
+
+	@Benchmark
+	public double findKNearestNodes() {
+		return findKNearestNodes.getAsDouble();
+	}
+}
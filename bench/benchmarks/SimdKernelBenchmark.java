@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The scalar and vector DistanceKernels side by side, on dense rows. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class SimdKernelBenchmark {
+	@Param({ "scalar", "vector" })
+	public String kernels;
+
+	@Param({ "dot", "squaredEuclidean", "maskedDot", "maskedSquaredEuclidean", "sparseDot" })
+	public String kernel;
+
+	@Param({ "100", "1000", "10000" })
+	public int dimension;
+
+	@Param({ "0.1", "0.5", "0.9" })
+	public double maskDensity;
+
+	private DoubleSupplier call;
+
+	@Setup
+	public void setUp() {
+		call = Workloads.create("kernel", kernels, kernel, dimension, maskDensity);
+	}
+
+	@Benchmark
+	public double call() {
+		return call.getAsDouble();
+	}
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TfidfCalculator} on a synthetic corpus, input file to output file;
+ * documents per second is numDocs divided by the reported time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TfidfBenchmark {
+	@Param({ "1000", "5000" })
+	public int numDocs;
+
+	@Param({ "5000" })
+	public int vocabularySize;
+
+	@Param({ "100" })
+	public int docLength;
+
+	private DoubleSupplier tfidf;
+
+	@Setup
+	public void setUp() {
+		tfidf = Workloads.create("tfidf", numDocs, vocabularySize, docLength);
+	}
+
+	@Benchmark
+	public double calculate() {
+		return tfidf.getAsDouble();
+	}
+}
@@ -0,0 +1,30 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Looks up the workload factories of the default-package class
+ * {@code BenchmarkWorkloads}, which cannot be referred to from this package.
+ */
+final class Workloads {
+	private Workloads() {
+	}
+
+	static DoubleSupplier create(String name, Object... args) {
+		try {
+			Class<?> workloads = Class.forName("BenchmarkWorkloads");
+			for (Method method : workloads.getMethods()) {
+				if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+					return (DoubleSupplier) method.invoke(null, args);
+				}
+			}
+			throw new IllegalArgumentException("No such workload: " + name);
+		} catch (ClassNotFoundException | IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
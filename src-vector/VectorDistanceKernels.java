@@ -0,0 +1,208 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The distance kernels on SIMD vectors of the widest shape of the CPU. It is
+ * compiled apart from the other sources, for Java 17 with
+ * {@code --add-modules jdk.incubator.vector}, and only loaded by
+ * {@link DistanceKernels#get()} if the module is enabled.
+ * <p>
+ * Masked kernels multiply whole vectors by the 0/1 weights of the mask, which
+ * beats gathering the selected features unless few of them are selected; a
+ * sparse mask is visited by index as in the scalar kernels.
+ */
+public final class VectorDistanceKernels extends DistanceKernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	// below this mask density, visiting the selected features one by one is
+	// faster than whole vectors; measured at 8 lanes, where it is 1/4
+	private static final double MIN_WEIGHTED_DENSITY = 2.0 / SPECIES.length();
+
+	private final ScalarDistanceKernels scalarKernels = new ScalarDistanceKernels();
+
+	@Override
+	public String getName() {
+		return "vector (" + SPECIES.vectorBitSize() + "-bit)";
+	}
+
+	@Override
+	public double dotProduct(double[] instance1, double[] instance2) {
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(instance1.length); i < bound; i += SPECIES.length()) {
+			sums = DoubleVector.fromArray(SPECIES, instance1, i).fma(
+					DoubleVector.fromArray(SPECIES, instance2, i), sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < instance1.length; i++) {
+			sum += instance1[i] * instance2[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredEuclideanDistance(double[] instance1, double[] instance2) {
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(instance1.length); i < bound; i += SPECIES.length()) {
+			DoubleVector diff = DoubleVector.fromArray(SPECIES, instance1, i).sub(
+					DoubleVector.fromArray(SPECIES, instance2, i));
+			sums = diff.fma(diff, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < instance1.length; i++) {
+			double diff = instance1[i] - instance2[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(double[] instance1, double[] instance2, FeatureMask mask) {
+		if (mask.getDensity() < MIN_WEIGHTED_DENSITY) {
+			return scalarKernels.dotProduct(instance1, instance2, mask);
+		}
+		double[] weights = mask.getWeights();
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(weights.length); i < bound; i += SPECIES.length()) {
+			sums = DoubleVector.fromArray(SPECIES, instance1, i).mul(
+					DoubleVector.fromArray(SPECIES, weights, i)).fma(
+					DoubleVector.fromArray(SPECIES, instance2, i), sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < weights.length; i++) {
+			sum += instance1[i] * weights[i] * instance2[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double sum(double[] instance, FeatureMask mask) {
+		if (mask.getDensity() < MIN_WEIGHTED_DENSITY) {
+			return scalarKernels.sum(instance, mask);
+		}
+		double[] weights = mask.getWeights();
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(weights.length); i < bound; i += SPECIES.length()) {
+			sums = DoubleVector.fromArray(SPECIES, instance, i).fma(
+					DoubleVector.fromArray(SPECIES, weights, i), sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < weights.length; i++) {
+			sum += instance[i] * weights[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredEuclideanDistance(double[] instance1, double[] instance2,
+			FeatureMask mask) {
+		if (mask.getDensity() < MIN_WEIGHTED_DENSITY) {
+			return scalarKernels.squaredEuclideanDistance(instance1, instance2, mask);
+		}
+		double[] weights = mask.getWeights();
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(weights.length); i < bound; i += SPECIES.length()) {
+			DoubleVector diff = DoubleVector.fromArray(SPECIES, instance1, i).sub(
+					DoubleVector.fromArray(SPECIES, instance2, i)).mul(
+					DoubleVector.fromArray(SPECIES, weights, i));
+			sums = diff.fma(diff, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < weights.length; i++) {
+			double diff = (instance1[i] - instance2[i]) * weights[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredEuclideanDistance(ByteBuffer instance1, int offset1,
+			double[] instance2, FeatureMask mask) {
+		if (mask.getDensity() < MIN_WEIGHTED_DENSITY) {
+			return scalarKernels.squaredEuclideanDistance(instance1, offset1, instance2, mask);
+		}
+		double[] weights = mask.getWeights();
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(weights.length); i < bound; i += SPECIES.length()) {
+			DoubleVector diff = DoubleVector.fromByteBuffer(SPECIES, instance1, offset1 + (i << 3),
+					ByteOrder.nativeOrder()).sub(DoubleVector.fromArray(SPECIES, instance2, i)).mul(
+					DoubleVector.fromArray(SPECIES, weights, i));
+			sums = diff.fma(diff, sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < weights.length; i++) {
+			double diff = (instance1.getDouble(offset1 + (i << 3)) - instance2[i]) * weights[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(ByteBuffer instance1, int offset1, ByteBuffer instance2,
+			int offset2, FeatureMask mask) {
+		if (mask.getDensity() < MIN_WEIGHTED_DENSITY) {
+			return scalarKernels.dotProduct(instance1, offset1, instance2, offset2, mask);
+		}
+		double[] weights = mask.getWeights();
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(weights.length); i < bound; i += SPECIES.length()) {
+			sums = DoubleVector.fromByteBuffer(SPECIES, instance1, offset1 + (i << 3),
+					ByteOrder.nativeOrder()).mul(DoubleVector.fromArray(SPECIES, weights, i)).fma(
+					DoubleVector.fromByteBuffer(SPECIES, instance2, offset2 + (i << 3),
+							ByteOrder.nativeOrder()), sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < weights.length; i++) {
+			sum += instance1.getDouble(offset1 + (i << 3)) * weights[i]
+					* instance2.getDouble(offset2 + (i << 3));
+		}
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(double[] instance1, ByteBuffer instance2, int offset2,
+			FeatureMask mask) {
+		if (mask.getDensity() < MIN_WEIGHTED_DENSITY) {
+			return scalarKernels.dotProduct(instance1, instance2, offset2, mask);
+		}
+		double[] weights = mask.getWeights();
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int bound = SPECIES.loopBound(weights.length); i < bound; i += SPECIES.length()) {
+			sums = DoubleVector.fromArray(SPECIES, instance1, i).mul(
+					DoubleVector.fromArray(SPECIES, weights, i)).fma(
+					DoubleVector.fromByteBuffer(SPECIES, instance2, offset2 + (i << 3),
+							ByteOrder.nativeOrder()), sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < weights.length; i++) {
+			sum += instance1[i] * weights[i] * instance2.getDouble(offset2 + (i << 3));
+		}
+		return sum;
+	}
+
+	@Override
+	public double sparseDotProduct(int[] indices, double[] values, int length, double[] dense) {
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int k = 0;
+		for (int bound = SPECIES.loopBound(length); k < bound; k += SPECIES.length()) {
+			sums = DoubleVector.fromArray(SPECIES, values, k).fma(
+					DoubleVector.fromArray(SPECIES, dense, 0, indices, k), sums);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; k < length; k++) {
+			sum += values[k] * dense[indices[k]];
+		}
+		return sum;
+	}
+}
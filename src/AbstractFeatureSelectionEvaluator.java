@@ -1,44 +1,200 @@
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
 
 public abstract class AbstractFeatureSelectionEvaluator {
-	/** Number of instances. */ 
+	private static final LongAdder kernelCalls = MetricsRegistry.get().counter(
+			"kernel.distance.calls");
+
+	private static final LongAdder kernelElements = MetricsRegistry.get().counter(
+			"kernel.distance.elements");
+
+	private static final LongAdder forkedSubtasks = MetricsRegistry.get().counter(
+			"evaluation.subtasks");
+
+	// the kernel elements below which a subtask costs more to fork than it saves
+	private static final long MIN_SUBTASK_ELEMENTS = 1L << 16;
+
+	// the forked subtasks a worker may have left untaken before it stops splitting
+	private static final int MAX_SURPLUS_SUBTASKS = 2;
+
+	/** Number of instances. */
 	protected final int numInstances;
 
 	/** Number of original features. */
 	protected final int numFeatures;
 
-	/** Number of filtered data set with only selected features. */
-	protected final ArrayList<DataPoint> selectedDataSet;
+	/**
+	 * The shared data set with all the original features, or null for an
+	 * evaluator over {@link KnnShard}s.
+	 */
+	protected final FeatureMatrix data;
+
+	/** The selected features. */
+	protected final FeatureMask selectedFeatures;
+
+	/** Indices of the selected features, in ascending order. */
+	protected final int[] selectedFeatureIndices;
 
 	/** Number of selected features. */
 	protected final int numSelectedFeatures;
 
-	public AbstractFeatureSelectionEvaluator(ArrayList<Integer> featureSelectionResult,
-			ArrayList<DataPoint> dataSet) {
-		this.numInstances = dataSet.size();
-		this.selectedDataSet = createSelectedDataSet(featureSelectionResult, dataSet);
-		this.numFeatures = dataSet.get(0).getFeatureValues().size();
-		this.numSelectedFeatures = this.selectedDataSet.get(0).getFeatureValues().size();
-	}
-
-	private ArrayList<DataPoint> createSelectedDataSet(ArrayList<Integer> featureSelectionResult,
-			ArrayList<DataPoint> originalDataSet) {
-		ArrayList<DataPoint> result = new ArrayList<>();
-		int numFeatures = featureSelectionResult.size();
-		for (int i = 0; i < numInstances; i++) {
-			DataPoint dataPoint = new DataPoint();
-			dataPoint.setClassName(originalDataSet.get(i).getClassName());
-			ArrayList<Double> selectedFeatureValues = new ArrayList<>();
-			for (int j = 0; j < numFeatures; j++) {
-				if (featureSelectionResult.get(j) == 1) {
-					selectedFeatureValues.add(originalDataSet.get(i).getFeatureValues().get(j));
+	public AbstractFeatureSelectionEvaluator(List<Integer> featureSelectionResult,
+			FeatureMatrix data) {
+		this(featureSelectionResult, data, data.getNumRows(), data.getNumColumns());
+	}
+
+	/** An evaluator of a data set that is not in this process. */
+	protected AbstractFeatureSelectionEvaluator(List<Integer> featureSelectionResult,
+			int numInstances, int numFeatures) {
+		this(featureSelectionResult, null, numInstances, numFeatures);
+	}
+
+	private AbstractFeatureSelectionEvaluator(List<Integer> featureSelectionResult,
+			FeatureMatrix data, int numInstances, int numFeatures) {
+		Preconditions.checkArgument(featureSelectionResult.size() == numFeatures,
+				"Invalid feature selection result size: %s", featureSelectionResult.size());
+		this.numInstances = numInstances;
+		this.numFeatures = numFeatures;
+		this.data = data;
+		this.selectedFeatures = FeatureMask.of(featureSelectionResult);
+		this.selectedFeatureIndices = selectedFeatures.getIndices();
+		this.numSelectedFeatures = this.selectedFeatureIndices.length;
+	}
+
+	/**
+	 * Accounts for distance kernel calls on vectors of the selected features;
+	 * evaluators call it in bulk rather than once per kernel call.
+	 */
+	protected void recordKernelCalls(long numCalls) {
+		recordKernelCalls(numCalls, numCalls * numSelectedFeatures);
+	}
+
+	/** Accounts for distance kernel calls on vectors of any lengths. */
+	static void recordKernelCalls(long numCalls, long numElements) {
+		kernelCalls.add(numCalls);
+		kernelElements.add(numElements);
+	}
+
+	/**
+	 * Counts the instances that {@link #classify(int)} classifies correctly,
+	 * in subtasks as {@link #countInSubtasks(RangeCounter, int, long)} does.
+	 *
+	 * @param elementsPerInstance
+	 *            the kernel elements of classifying an instance
+	 */
+	protected int countCorrectlyClassifiedInSubtasks(final List<Integer> instanceIndices,
+			long elementsPerInstance) {
+		return countInSubtasks(new RangeCounter() {
+
+			@Override
+			public int[] count(int from, int to) {
+				int result = 0;
+				for (int k = from; k < to; k++) {
+					int index = instanceIndices.get(k);
+					if (data.getLabel(index) == classify(index)) {
+						result++;
+					}
 				}
+				return new int[] { result };
 			}
-			dataPoint.setFeatureValues(selectedFeatureValues);
-			result.add(dataPoint);
+		}, instanceIndices.size(), elementsPerInstance)[0];
+	}
+
+	/** Counts the correct classes of a range of the instances, one count per mask. */
+	interface RangeCounter {
+		int[] count(int from, int to);
+	}
+
+	/**
+	 * Counts the correct classes of the instances {@code [0, numInstances)}.
+	 * Run in a {@link ForkJoinPool}, the instances are split in halves as long
+	 * as the other workers take the halves, and each half costs at least
+	 * {@value #MIN_SUBTASK_ELEMENTS} kernel elements: a small swarm then
+	 * spreads over the idle workers, while the evaluations of a large one stay
+	 * one per worker. Elsewhere, they are counted in one piece.
+	 *
+	 * @param elementsPerInstance
+	 *            the kernel elements of classifying an instance
+	 */
+	static int[] countInSubtasks(RangeCounter counter, int numInstances,
+			long elementsPerInstance) {
+		if (!ForkJoinTask.inForkJoinPool()) {
+			return counter.count(0, numInstances);
+		}
+		int minSubtaskSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, MIN_SUBTASK_ELEMENTS
+				/ Math.max(1, elementsPerInstance)));
+		return new CountTask(counter, 0, numInstances, minSubtaskSize).invoke();
+	}
+
+	/** Counts the correct classes of a range of the instances, forking half of it. */
+	private static class CountTask extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final RangeCounter counter;
+
+		private final int from;
+
+		private final int to;
+
+		private final int minSubtaskSize;
+
+		CountTask(RangeCounter counter, int from, int to, int minSubtaskSize) {
+			this.counter = counter;
+			this.from = from;
+			this.to = to;
+			this.minSubtaskSize = minSubtaskSize;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (to - from < 2 * minSubtaskSize
+					|| getSurplusQueuedTaskCount() > MAX_SURPLUS_SUBTASKS) {
+				return counter.count(from, to);
+			}
+			int middle = (from + to) >>> 1;
+			CountTask upper = new CountTask(counter, middle, to, minSubtaskSize);
+			upper.fork();
+			forkedSubtasks.increment();
+			int[] result = new CountTask(counter, from, middle, minSubtaskSize).compute();
+			int[] upperResult = upper.join();
+			for (int m = 0; m < result.length; m++) {
+				result[m] += upperResult[m];
+			}
+			return result;
 		}
-		return result;
 	}
 
 	public abstract double calcFitness(double alpha, double beta, int samplingFolders);
+
+	/**
+	 * Classifies the given instances, each of them against the whole data set,
+	 * and returns how many of them were classified correctly.
+	 */
+	public abstract int countCorrectlyClassified(List<Integer> instanceIndices);
+
+	/** Returns the label predicted for an instance of the data set. */
+	public abstract int classify(int instanceIndex);
+
+	public int getNumInstances() {
+		return numInstances;
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public int getNumSelectedFeatures() {
+		return numSelectedFeatures;
+	}
+
+	/** The fitness of a feature selection result with the given accuracy. */
+	public double fitness(double alpha, double beta, double accuracy) {
+		return alpha * accuracy + beta
+				* (((double) (numFeatures - numSelectedFeatures)) / numFeatures);
+	}
 }
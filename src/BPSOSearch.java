@@ -1,17 +1,24 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class BPSOSearch {
@@ -27,67 +34,244 @@ public class BPSOSearch {
 	private static final double C2 = 1.49;
 	private static final double ALPHA = 0.85;
 	private static final double BETA = 0.15;
+	// the fraction of instances the first racing stage is evaluated on
+	static final double RACING_INITIAL_FRACTION = 0.125;
 
 	private final ExecutorService pool;
 
+	// where the evaluations run, split in subtasks; null if each runs on its particle's thread
+	private final ForkJoinPool evaluationPool;
+
+	// whether all the positions of a swarm are evaluated in one batch
+	private final boolean batchEvaluations;
+
 	private final int numIterations;
 	private final int numParticles;
-	private int dimension;
+	private final int dimension;
 
 	private ArrayList<ArrayList<Integer>> pbests = new ArrayList<ArrayList<Integer>>();
 	private ArrayList<ArrayList<Integer>> currentPositions = new ArrayList<ArrayList<Integer>>();
 	private ArrayList<ArrayList<Double>> velocities = new ArrayList<ArrayList<Double>>();
 	private ArrayList<Integer> gbest = new ArrayList<Integer>();
+	private double fitnessGbest = -1.0;
+
+	private final EvaluatorContext evaluatorContext;
+
+	private final ConvergenceMonitor convergenceMonitor;
+
+	// where the best-so-far gbest position is flushed to; null means stdout only
+	private final String gbestOutputFilePath;
+
+	// null if every particle is evaluated on the whole data set
+	private final RacingFitnessEvaluator racingEvaluator;
+
+	// the data set the search closes when it ends, or null
+	private final FeatureMatrix ownedData;
 
-	private final ArrayList<DataPoint> dataSets;
+	// null if the positions are evaluated by the local pool
+	private final RemoteFitnessEvaluator remoteEvaluator;
+
+	// the evaluator context if KNN runs over shards of the data set, or null
+	private final ShardedKNN.Context shardedKnnContext;
 
 	public BPSOSearch(int numIterations, int numParticles, String inputFilePath) {
+		this(numIterations, numParticles, inputFilePath, new Options());
+	}
+
+	/**
+	 * Loads the data set from the file, unless the positions are evaluated by
+	 * {@link FitnessWorker}s or KNN runs over {@link KnnShardServer}s, which
+	 * load it themselves.
+	 */
+	public BPSOSearch(int numIterations, int numParticles, String inputFilePath, Options options) {
+		this(numIterations, numParticles, options.workerAddresses.isEmpty()
+				&& options.shardAddresses.isEmpty() ? loadData(inputFilePath, options.storage)
+				: null, readNumFeatures(inputFilePath), options, true);
+	}
+
+	public BPSOSearch(int numIterations, int numParticles, FeatureMatrix data, Options options) {
+		this(numIterations, numParticles, data, data.getNumColumns(), options, false);
+	}
+
+	/**
+	 * @param data
+	 *            the data set, or null if the positions are evaluated by
+	 *            workers or KNN runs over shard servers
+	 * @param ownsData
+	 *            whether the search closes the data set when it ends; a copy
+	 *            in another precision or storage is always closed
+	 */
+	private BPSOSearch(int numIterations, int numParticles, FeatureMatrix data, int dimension,
+			Options options, boolean ownsData) {
 		this.numIterations = numIterations;
 		this.numParticles = numParticles;
-		this.dataSets = readFiles(inputFilePath);
-		this.pool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactoryBuilder()
-				.setNameFormat("search-worker-%s").build());
-		log.info("POOL_SIZE=" + POOL_SIZE);
+		this.dimension = dimension;
+		this.convergenceMonitor = new ConvergenceMonitor(options.stagnationWindow,
+				options.minDiversity, options.timeBudgetMillis);
+		this.gbestOutputFilePath = options.gbestOutputFilePath;
+		if (!options.workerAddresses.isEmpty()) {
+			// a data set given anyway is only used for its dimension
+			this.ownedData = null;
+			this.evaluatorContext = null;
+			this.racingEvaluator = null;
+			this.pool = null;
+			this.evaluationPool = null;
+			this.batchEvaluations = false;
+			this.remoteEvaluator = new RemoteFitnessEvaluator(options.workerAddresses, dimension,
+					options.workerTimeoutMillis);
+			this.shardedKnnContext = null;
+			log.info("evaluating on workers " + options.workerAddresses);
+			List<String> ignoredOptions = new ArrayList<>();
+			if (!options.evaluator.equals(EvaluatorContext.DEFAULT_EVALUATOR)) {
+				ignoredOptions.add("-evaluator");
+			}
+			if (options.precision != FeatureMatrix.Precision.DOUBLE) {
+				ignoredOptions.add("-precision");
+			}
+			if (options.racingDelta > 0.0) {
+				ignoredOptions.add("-racing");
+			}
+			if (!ignoredOptions.isEmpty()) {
+				log.warning(Joiner.on(", ").join(ignoredOptions) + " ignored: the workers"
+						+ " evaluate with the options they were started with");
+			}
+			return;
+		}
+		if (data != null) {
+			FeatureMatrix converted = data.withPrecision(options.precision).withStorage(
+					options.storage);
+			if (converted != data) {
+				log.info("dataset stored as " + options.precision + " " + options.storage + ": "
+						+ converted.getNumValueBytes() + " bytes of values");
+				if (ownsData) {
+					data.close();
+				}
+				data = converted;
+				ownsData = true;
+			}
+		}
+		this.ownedData = ownsData ? data : null;
+		if (!options.shardAddresses.isEmpty() || options.numLocalShards > 0) {
+			List<KnnShard> shards = options.shardAddresses.isEmpty() ? LocalKnnShard.partition(
+					data, options.numLocalShards) : RemoteKnnShard.connectAll(
+					options.shardAddresses, options.workerTimeoutMillis);
+			this.shardedKnnContext = EvaluatorContext.prepareSharded(options.evaluator, shards);
+			this.evaluatorContext = shardedKnnContext;
+			if (options.racingDelta > 0.0) {
+				log.warning("racing needs the labels of the data set; disabled over shards");
+			}
+			this.racingEvaluator = null;
+			log.info("KNN over " + shards.size() + " shards of "
+					+ shardedKnnContext.getNumInstances() + " instances");
+		} else {
+			this.shardedKnnContext = null;
+			this.evaluatorContext = prepareEvaluatorContext(options, data);
+			this.racingEvaluator = options.racingDelta > 0.0 ? new RacingFitnessEvaluator(data,
+					RACING_INITIAL_FRACTION, options.racingDelta) : null;
+		}
+		this.remoteEvaluator = null;
+		this.pool = new InstrumentedThreadPoolExecutor("pool", POOL_SIZE, new ThreadFactoryBuilder()
+				.setNameFormat("search-worker-%s").build(), MetricsRegistry.get());
+		this.evaluationPool = options.splitEvaluations ? newEvaluationPool() : null;
+		if (options.batchEvaluations && racingEvaluator != null) {
+			log.warning("racing evaluates each position on its own subsets; batches disabled");
+		}
+		this.batchEvaluations = options.batchEvaluations && racingEvaluator == null;
+		log.info("POOL_SIZE=" + POOL_SIZE + ", split evaluations: " + options.splitEvaluations
+				+ ", batch evaluations: " + batchEvaluations);
 	}
 
-	private ArrayList<DataPoint> readFiles(String inputFilePath) {
-		stopwatch.reset().start();
-		BufferedReader in = null;
-		ArrayList<DataPoint> dataPoints = new ArrayList<>();
+	/**
+	 * Evaluates positions in one batch, with
+	 * {@link EvaluatorContext#calcFitness(List, double, double)}, on the pool
+	 * if there is one, and otherwise on the calling thread.
+	 */
+	static List<Double> calcFitnessInBatch(final EvaluatorContext evaluatorContext,
+			final List<? extends List<Integer>> positions, ForkJoinPool evaluationPool) {
+		Callable<List<Double>> evaluation = new Callable<List<Double>>() {
+
+			@Override
+			public List<Double> call() {
+				return evaluatorContext.calcFitness(positions, ALPHA, BETA);
+			}
+		};
+		if (evaluationPool != null) {
+			return evaluationPool.invoke(ForkJoinTask.adapt(evaluation));
+		}
 		try {
-			in = new BufferedReader(new FileReader(inputFilePath));
-			String line = null;
-			String[] terms = null;
-			DataPoint dataPoint = null;
-			ArrayList<Double> featureValues = null;
-			// read the first line which is feature names in order to get rid of it
-			in.readLine();
-			while ((line = in.readLine()) != null) {
-				terms = line.split(",");
-				dataPoint = new DataPoint();
-				dataPoint.setClassName(terms[0]);
-				featureValues = new ArrayList<Double>(terms.length - 1);
-				for (int i = 1; i < terms.length; i++) {
-					featureValues.add(Double.parseDouble(terms[i]));
-				}
-				dataPoint.setFeatureValues(featureValues);
-				dataPoints.add(dataPoint);
+			return evaluation.call();
+		} catch (Exception e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	/**
+	 * A fork-join pool of a worker per CPU for the evaluations and their
+	 * subtasks; the threads of the particles only wait for them, so the CPUs
+	 * are never oversubscribed. Its metrics, under {@code evaluation}, are
+	 * those of the CPU work, while those of {@code pool} mostly measure the
+	 * particles waiting.
+	 */
+	static ForkJoinPool newEvaluationPool() {
+		return new InstrumentedForkJoinPool("evaluation", POOL_SIZE, MetricsRegistry.get());
+	}
+
+	/**
+	 * Prepares the evaluator of the options over the data set: knn over
+	 * candidate neighbors or over a Gram matrix cache if they ask for it.
+	 */
+	static EvaluatorContext prepareEvaluatorContext(Options options, FeatureMatrix data) {
+		if (options.candidatesFilePath != null) {
+			if (options.gramCacheBytes > 0) {
+				log.warning("knn runs over candidate neighbors; no Gram matrix cache");
 			}
-			this.dimension = terms.length - 1;
-		} catch (IOException x) {
-			System.err.format("IOException: %s%n", x);
-		} finally {
 			try {
-				if (in != null) {
-					in.close();
-				}
-			} catch (IOException ex) {
-				ex.printStackTrace();
+				return EvaluatorContext.prepareCandidates(options.evaluator, data,
+						options.candidatesFilePath);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
 		}
+		if (options.gramCacheBytes > 0) {
+			return EvaluatorContext.prepareBlockGram(options.evaluator, data,
+					options.gramCacheBytes);
+		}
+		return EvaluatorContext.prepare(options.evaluator, data);
+	}
+
+	private static int readNumFeatures(String inputFilePath) {
+		try {
+			return ColumnProjector.readHeader(inputFilePath).size() - 1;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Loads the data set, in parallel; fails if the file cannot be read or is malformed. */
+	private static FeatureMatrix loadData(String inputFilePath, FeatureMatrix.Storage storage) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		JfrEvents.DataLoad event = new JfrEvents.DataLoad();
+		event.begin();
+		FeatureMatrix data;
+		try {
+			data = FeatureMatrixLoader.load(inputFilePath, POOL_SIZE, storage);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 		stopwatch.stop();
 		log.info("dataset read. " + stopwatch);
-		return dataPoints;
+		MetricsRegistry.get().histogram("data.load.nanos").record(
+				stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		MetricsRegistry.get().counter("data.load.rows").add(data.getNumRows());
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = inputFilePath;
+			event.numRows = data.getNumRows();
+			event.numColumns = data.getNumColumns();
+			event.numBytes = new File(inputFilePath).length();
+			event.commit();
+		}
+		return data;
 	}
 
 	private void initialization() {
@@ -117,12 +301,26 @@ public class BPSOSearch {
 		return 1 / (1 + Math.exp(-x));
 	}
 
+	/**
+	 * @param fitnessesToBeat
+	 *            the fitness each position competes with (its pbest); with
+	 *            racing enabled a position is evaluated on the whole data set
+	 *            only if it may beat that fitness
+	 */
 	private ArrayList<Double> calcFitnessForPositions(ArrayList<ArrayList<Integer>> positions,
-			String taskNamePrefix) {
+			List<Double> fitnessesToBeat, String taskNamePrefix) {
+		if (remoteEvaluator != null) {
+			return new ArrayList<>(remoteEvaluator.calcFitness(positions, fitnessesToBeat));
+		}
+		if (batchEvaluations) {
+			return new ArrayList<>(calcFitnessInBatch(evaluatorContext, positions,
+					evaluationPool));
+		}
 		List<Callable<Double>> calcFitnessTasks = new ArrayList<>();
 		for (int i = 0; i < positions.size(); i++) {
 			ArrayList<Integer> position = positions.get(i);
-			calcFitnessTasks.add(new CalcFitnessTask(dataSets, position, taskNamePrefix + i));
+			calcFitnessTasks.add(new CalcFitnessTask(evaluatorContext, position, taskNamePrefix + i,
+					racingEvaluator, fitnessesToBeat.get(i), evaluationPool));
 		}
 		ArrayList<Double> result = new ArrayList<>();
 		try {
@@ -142,15 +340,29 @@ public class BPSOSearch {
 		initialization();
 
 		log.info(">>>> start PSO iterations");
-		double fitnessGbest = -1.0;
 		ArrayList<Double> fitnessPbests = new ArrayList<Double>();
-		for (int i = 0; i < numIterations; i++) {
+		ConvergenceMonitor.StopReason stopReason = ConvergenceMonitor.StopReason.NONE;
+		convergenceMonitor.start();
+		int i = 0;
+		for (; i < numIterations && stopReason == ConvergenceMonitor.StopReason.NONE; i++) {
 			log.info(">>>> start iteration: " + i + "/" + numIterations);
 			stopwatch.reset().start();
+			JfrEvents.Iteration iterationEvent = new JfrEvents.Iteration();
+			iterationEvent.begin();
 
 			// Calculate fitness of all particles on current positions.
+			List<Double> fitnessesToBeat = fitnessPbests;
+			if (i == 0) {
+				// There are no pbests yet, so every particle is evaluated fully.
+				fitnessesToBeat = Collections.nCopies(numParticles, Double.NEGATIVE_INFINITY);
+			}
 			ArrayList<Double> fitnessValues = calcFitnessForPositions(currentPositions,
-					"iteration-" + i + "-");
+					fitnessesToBeat, "iteration-" + i + "-");
+			if (racingEvaluator != null) {
+				log.info("racing: " + racingEvaluator.getNumFullEvaluations() + "/"
+						+ racingEvaluator.getNumEvaluations()
+						+ " full evaluations so far, work ratio=" + racingEvaluator.getWorkRatio());
+			}
 
 			if (i == 0) {
 				for (int j = 0; j < numParticles; j++) {
@@ -163,8 +375,7 @@ public class BPSOSearch {
 					fitnessPbests.add(fitnessValues.get(j));
 					// Initialize gbest.
 					if (fitnessValue > fitnessGbest) {
-						gbest = new ArrayList<>(currentPosition);
-						fitnessGbest = fitnessValue;
+						updateGbest(currentPosition, fitnessValue);
 					}
 				}
 			} else {
@@ -180,8 +391,7 @@ public class BPSOSearch {
 						fitnessPbests.set(j, fitnessValue);
 						// Update gbest.
 						if (fitnessValue > fitnessGbest) {
-							gbest = new ArrayList<>(currentPosition);
-							fitnessGbest = fitnessValue;
+							updateGbest(currentPosition, fitnessValue);
 						}
 					}
 				}
@@ -209,6 +419,17 @@ public class BPSOSearch {
 			}
 			stopwatch.stop();
 			log.info("iteration " + i + " done. " + stopwatch);
+			MetricsRegistry.get().histogram("bpso.iteration.nanos").record(
+					stopwatch.elapsed(TimeUnit.NANOSECONDS));
+			MetricsRegistry.get().counter("bpso.iterations").increment();
+			iterationEvent.end();
+			if (iterationEvent.shouldCommit()) {
+				iterationEvent.iteration = i;
+				iterationEvent.numParticles = numParticles;
+				iterationEvent.gbestFitness = fitnessGbest;
+				iterationEvent.gbestNumSelectedFeatures = numberOfSelectedFeatures(gbest);
+				iterationEvent.commit();
+			}
 
 			System.out.println("ITERATIONS: " + i);
 			System.out.println("GBEST (position): " + gbest);
@@ -230,6 +451,96 @@ public class BPSOSearch {
 				System.out.println("CURRENT_POSITION#" + j + " (fitness): " + fitnessValues.get(j));
 			}
 			System.out.println();
+
+			stopReason = convergenceMonitor.update(fitnessGbest, currentPositions, gbest,
+					stopwatch.elapsed(TimeUnit.MILLISECONDS));
+		}
+		// NONE when every iteration ran
+		String reason = stopReason == ConvergenceMonitor.StopReason.NONE ? "COMPLETED"
+				: stopReason.toString();
+		log.info(">>>> PSO stopped after " + i + " iterations, reason: " + reason);
+		flushBestSoFar(reason);
+	}
+
+	/**
+	 * Runs the search and then releases the worker threads; returns the best
+	 * position found.
+	 */
+	public List<Integer> search() {
+		try {
+			BPSO();
+		} finally {
+			shutdown();
+		}
+		return getGbest();
+	}
+
+	public synchronized List<Integer> getGbest() {
+		return new ArrayList<>(gbest);
+	}
+
+	public synchronized double getGbestFitness() {
+		return fitnessGbest;
+	}
+
+	private synchronized void updateGbest(ArrayList<Integer> position, double fitness) {
+		gbest = new ArrayList<>(position);
+		fitnessGbest = fitness;
+	}
+
+	/**
+	 * Prints the best-so-far result and, if an output file was given, writes
+	 * the gbest position in the format read by
+	 * {@link FeatureSelectedDocGenerator}.
+	 */
+	private synchronized void flushBestSoFar(String reason) {
+		if (gbest.isEmpty()) {
+			log.warning("no gbest found yet; nothing to flush.");
+			return;
+		}
+		System.out.println("STOPPED: " + reason);
+		System.out.println("GBEST (position): " + gbest);
+		System.out.println("GBEST (#selected features): " + numberOfSelectedFeatures(gbest));
+		System.out.println("GBEST (fitness): " + fitnessGbest);
+		System.out.flush();
+		if (gbestOutputFilePath == null) {
+			return;
+		}
+		try (PrintWriter out = new PrintWriter(gbestOutputFilePath)) {
+			out.println(Joiner.on(", ").join(gbest));
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		}
+		log.info("gbest (fitness=" + fitnessGbest + ") written to " + gbestOutputFilePath);
+	}
+
+	private void shutdown() {
+		if (remoteEvaluator != null) {
+			remoteEvaluator.close();
+			return;
+		}
+		pool.shutdownNow();
+		if (evaluationPool != null) {
+			evaluationPool.shutdownNow();
+		}
+		if (ownedData == null && shardedKnnContext == null) {
+			return;
+		}
+		try {
+			// off-heap rows must not be freed, nor shards closed, under a running task
+			if (pool.awaitTermination(1, TimeUnit.MINUTES) && (evaluationPool == null
+					|| evaluationPool.awaitTermination(1, TimeUnit.MINUTES))) {
+				if (shardedKnnContext != null) {
+					shardedKnnContext.close();
+				}
+				if (ownedData != null) {
+					ownedData.close();
+				}
+			} else {
+				log.warning("tasks still running; the dataset is not closed");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -244,48 +555,259 @@ public class BPSOSearch {
 	}
 
 	public static void main(String[] args) {
-		if (args.length == 3) {
+		if (args.length >= 3) {
 			final int numIterations = Integer.parseInt(args[0]);
 			final int numParticles = Integer.parseInt(args[1]);
 			final String filePath = args[2];
+			Options options = Options.parse(args, 3);
+			if (options == null) {
+				printUsage();
+				return;
+			}
 			log.info("numIterations: " + numIterations + ", numParticles: " + numParticles
-					+ ", filePath: " + filePath);
-			BPSOSearch bs = new BPSOSearch(numIterations, numParticles, filePath);
-			bs.BPSO();
+					+ ", filePath: " + filePath + ", " + options);
+			MetricsRegistry.get().registerMBean();
+			final String metricsOutputFilePath = options.metricsOutputFilePath;
+			final BPSOSearch bs = new BPSOSearch(numIterations, numParticles, filePath, options);
+			// Flush the best-so-far result if the job gets killed before the
+			// search stops by itself.
+			Thread flushOnKill = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					bs.flushBestSoFar("KILLED");
+					if (metricsOutputFilePath != null) {
+						MetricsRegistry.get().writeJson(metricsOutputFilePath);
+					}
+				}
+			}, "flush-gbest");
+			Runtime.getRuntime().addShutdownHook(flushOnKill);
+			bs.search();
+			Runtime.getRuntime().removeShutdownHook(flushOnKill);
+			if (metricsOutputFilePath != null) {
+				MetricsRegistry.get().writeJson(metricsOutputFilePath);
+			}
 			log.info("exit");
 		} else {
-			System.err.println("Usage:");
-			System.err.println("BPSOSearch <numIterations> <numParticles> <filePath>");
+			printUsage();
+		}
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("BPSOSearch <numIterations> <numParticles> <filePath> [options]");
+		System.err.println("options:");
+		System.err.println("\t-evaluator <rocchio|knn|knn:K>: the fitness evaluator"
+				+ " (default: " + EvaluatorContext.DEFAULT_EVALUATOR + ").");
+		System.err.println("\t-stagnation <n>: stop if gbest does not improve for n iterations.");
+		System.err.println("\t-diversity <d>: stop if the average Hamming distance to gbest"
+				+ " (fraction of the dimension) is below d.");
+		System.err.println("\t-deadline <seconds>: stop before the time budget is exceeded.");
+		System.err.println("\t-o <file>: write the best-so-far gbest position to file.");
+		System.err.println("\t-racing <delta>: evaluate particles on growing subsets and stop"
+				+ " once they cannot beat their pbest with confidence 1 - delta.");
+		System.err.println("\t-metrics <file>: dump the metrics as JSON at exit.");
+		System.err.println("\t-precision <double|float|int16|int8>: store the feature values"
+				+ " with less precision (default: double); see PrecisionDriftReport.");
+		System.err.println("\t-workers <host:port,...>: evaluate the positions on FitnessWorker"
+				+ " processes, which load the data set themselves.");
+		System.err.println("\t-workerTimeout <seconds>: resubmit a batch a worker has not"
+				+ " answered in time (default: 1800).");
+		System.err.println("\t-storage <heap|off-heap>: where the feature values are stored"
+				+ " (default: heap); off-heap needs -XX:MaxDirectMemorySize if the data"
+				+ " is larger than the heap.");
+		System.err.println("\t-split <true|false>: split an evaluation into fork-join subtasks"
+				+ " while CPUs are idle, as with fewer particles than CPUs (default: true).");
+		System.err.println("\t-batch <true|false>: evaluate all the positions of a swarm in one"
+				+ " batch, which rocchio does in one pass over the data set (default: false);"
+				+ " not with -racing.");
+		System.err.println("\t-gramCache <megabytes>: run the knn evaluator over partial Gram"
+				+ " matrices of blocks of features, cached off the heap within that size"
+				+ " (default: off); plain knn if a single matrix does not fit.");
+		System.err.println("\t-candidates <file>: run the knn evaluator over the candidate"
+				+ " neighbors of each instance written by KnnCandidates, approximately.");
+		System.err.println("\t-shards <n|host:port,...>: run the knn evaluator over n shards of"
+				+ " the data set in this process, or over KnnShardServer processes, in shard"
+				+ " order, which load their shard themselves; -workerTimeout applies.");
+	}
+
+	/** Optional settings of a search; the defaults run a plain BPSO. */
+	public static class Options {
+		String evaluator = EvaluatorContext.DEFAULT_EVALUATOR;
+		int stagnationWindow = 0;
+		double minDiversity = -1.0;
+		long timeBudgetMillis = 0L;
+		String gbestOutputFilePath = null;
+		double racingDelta = -1.0;
+		String metricsOutputFilePath = null;
+		FeatureMatrix.Precision precision = FeatureMatrix.Precision.DOUBLE;
+		FeatureMatrix.Storage storage = FeatureMatrix.Storage.HEAP;
+		List<String> workerAddresses = Collections.emptyList();
+		int workerTimeoutMillis = 30 * 60 * 1000;
+		int numLocalShards = 0;
+		boolean splitEvaluations = true;
+		boolean batchEvaluations = false;
+		long gramCacheBytes = 0L;
+		String candidatesFilePath = null;
+		List<String> shardAddresses = Collections.emptyList();
+
+		/**
+		 * Parses {@code -name value} pairs starting from {@code args[offset]};
+		 * returns {@code null} if an option is unknown or has no value.
+		 */
+		public static Options parse(String[] args, int offset) {
+			Options options = new Options();
+			if ((args.length - offset) % 2 != 0) {
+				return null;
+			}
+			for (int i = offset; i < args.length; i += 2) {
+				String value = args[i + 1];
+				switch (args[i]) {
+				case "-evaluator":
+					options.evaluator = value;
+					break;
+				case "-stagnation":
+					options.stagnationWindow = Integer.parseInt(value);
+					break;
+				case "-diversity":
+					options.minDiversity = Double.parseDouble(value);
+					break;
+				case "-deadline":
+					options.timeBudgetMillis = (long) (Double.parseDouble(value) * 1000);
+					break;
+				case "-o":
+					options.gbestOutputFilePath = value;
+					break;
+				case "-racing":
+					options.racingDelta = Double.parseDouble(value);
+					break;
+				case "-metrics":
+					options.metricsOutputFilePath = value;
+					break;
+				case "-precision":
+					options.precision = FeatureMatrix.Precision.parse(value);
+					break;
+				case "-storage":
+					options.storage = FeatureMatrix.Storage.parse(value);
+					break;
+				case "-workers":
+					options.workerAddresses = RemoteFitnessEvaluator.parseAddresses(value);
+					break;
+				case "-split":
+					options.splitEvaluations = Boolean.parseBoolean(value);
+					break;
+				case "-batch":
+					options.batchEvaluations = Boolean.parseBoolean(value);
+					break;
+				case "-gramCache":
+					options.gramCacheBytes = (long) (Double.parseDouble(value) * (1 << 20));
+					break;
+				case "-candidates":
+					options.candidatesFilePath = value;
+					break;
+				case "-shards":
+					if (value.matches("\\d+")) {
+						options.numLocalShards = Integer.parseInt(value);
+					} else {
+						options.shardAddresses = RemoteFitnessEvaluator.parseAddresses(value);
+					}
+					break;
+				case "-workerTimeout":
+					options.workerTimeoutMillis = (int) (Double.parseDouble(value) * 1000);
+					break;
+				default:
+					return null;
+				}
+			}
+			return options;
+		}
+
+		@Override
+		public String toString() {
+			return "evaluator: " + evaluator + ", stagnationWindow: " + stagnationWindow
+					+ ", minDiversity: " + minDiversity + ", timeBudgetMillis: "
+					+ timeBudgetMillis + ", gbestOutputFilePath: " + gbestOutputFilePath
+					+ ", racingDelta: " + racingDelta + ", metricsOutputFilePath: "
+					+ metricsOutputFilePath + ", precision: " + precision + ", storage: "
+					+ storage + ", workerAddresses: " + workerAddresses + ", numLocalShards: "
+					+ numLocalShards + ", shardAddresses: " + shardAddresses
+					+ ", splitEvaluations: " + splitEvaluations + ", batchEvaluations: "
+					+ batchEvaluations + ", gramCacheBytes: " + gramCacheBytes
+					+ ", candidatesFilePath: " + candidatesFilePath;
 		}
 	}
 
-	private static class CalcFitnessTask implements Callable<Double> {
+	/** Calculates the fitness of one position, locally; also run by {@link FitnessWorker}. */
+	static class CalcFitnessTask implements Callable<Double> {
 		private static final Logger log = Logger.getLogger(CalcFitnessTask.class.getName());
 
 		private final ArrayList<Integer> position;
 
-		private final ArrayList<DataPoint> dataSets;
+		private final EvaluatorContext evaluatorContext;
 
 		private final String taskName;
 
-		public CalcFitnessTask(ArrayList<DataPoint> dataSets, ArrayList<Integer> position,
-				String taskName) {
-			this.dataSets = dataSets;
+		private final RacingFitnessEvaluator racingEvaluator;
+
+		private final double fitnessToBeat;
+
+		// null to evaluate on the calling thread
+		private final ForkJoinPool evaluationPool;
+
+		public CalcFitnessTask(EvaluatorContext evaluatorContext, ArrayList<Integer> position,
+				String taskName, RacingFitnessEvaluator racingEvaluator, double fitnessToBeat) {
+			this(evaluatorContext, position, taskName, racingEvaluator, fitnessToBeat, null);
+		}
+
+		/**
+		 * @param evaluationPool
+		 *            the pool the evaluation runs on, where it may split into
+		 *            subtasks, or null to evaluate on the calling thread
+		 */
+		public CalcFitnessTask(EvaluatorContext evaluatorContext, ArrayList<Integer> position,
+				String taskName, RacingFitnessEvaluator racingEvaluator, double fitnessToBeat,
+				ForkJoinPool evaluationPool) {
+			this.evaluatorContext = evaluatorContext;
 			this.position = position;
 			this.taskName = taskName;
+			this.racingEvaluator = racingEvaluator;
+			this.fitnessToBeat = fitnessToBeat;
+			this.evaluationPool = evaluationPool;
 		}
 
 		@Override
 		public Double call() throws Exception {
 			Stopwatch stopwatch = Stopwatch.createStarted();
+			JfrEvents.FitnessTask event = new JfrEvents.FitnessTask();
+			event.begin();
+
+			final AbstractFeatureSelectionEvaluator evaluator = evaluatorContext.newEvaluator(
+					position);
 
-			// Change the following line for different fitness evaluator.
-			//AbstractFeatureSelectionEvaluator evaluator = new KNN(5, position, dataSets);
-			AbstractFeatureSelectionEvaluator evaluator = new Rocchio(position, dataSets);
+			Callable<Double> evaluation = new Callable<Double>() {
 
-			double result = evaluator.calcFitness(ALPHA, BETA, -1 /* no sampling */);
+				@Override
+				public Double call() {
+					if (racingEvaluator != null) {
+						return racingEvaluator.calcFitness(evaluator, ALPHA, BETA, fitnessToBeat);
+					}
+					return evaluator.calcFitness(ALPHA, BETA, -1 /* no sampling */);
+				}
+			};
+			double result = evaluationPool == null ? evaluation.call() : evaluationPool.invoke(
+					ForkJoinTask.adapt(evaluation));
 			stopwatch.stop();
 			log.info("CalcFitnessTask #" + taskName + " finished in " + stopwatch);
+			MetricsRegistry.get().histogram("fitness." + evaluatorContext.getName() + ".nanos")
+					.record(stopwatch.elapsed(TimeUnit.NANOSECONDS));
+			event.end();
+			if (event.shouldCommit()) {
+				event.taskName = taskName;
+				event.evaluator = evaluatorContext.getName();
+				event.numSelectedFeatures = evaluator.getNumSelectedFeatures();
+				event.fitness = result;
+				event.commit();
+			}
 			return result;
 		}
 	}
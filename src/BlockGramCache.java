@@ -0,0 +1,359 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Partial Gram matrices of a data set, one per block of {@link #BLOCK_SIZE}
+ * consecutive features and pattern of selected features within the block:
+ * entry {@code (i, j)} is the dot product of rows {@code i} and {@code j}
+ * over those features. The dot product of two rows under a mask is the sum of
+ * the entries of the blocks it selects features of, so masks that select the
+ * same features in a block share its matrix.
+ * <p>
+ * A matrix costs half the dot products of an evaluation over its block, so
+ * it is only computed for a block the mask selects wholly, or for a pattern
+ * that an earlier mask already selected, as converging particles do; the
+ * dot products over the features of the other blocks are computed pair by
+ * pair. Random masks therefore cost about what {@link KNN} does.
+ * <p>
+ * The matrices are stored square, row by row, in direct buffers the GC does
+ * not scan. The least recently used are evicted to keep them within a number
+ * of bytes, and none is computed if a single one does not fit, or has more
+ * entries than a buffer holds, as past about 16k instances. An evicted
+ * matrix is freed as soon as no evaluation reads a row of it, so the direct
+ * memory only exceeds the cache by the matrices evicted while being read.
+ */
+public class BlockGramCache {
+	private static final Logger log = Logger.getLogger(BlockGramCache.class.getName());
+
+	/** The features of a block, at most as many as the bits of a pattern. */
+	public static final int BLOCK_SIZE = 64;
+
+	// the patterns selected once, which a second selection caches
+	private static final int MAX_SEEN_PATTERNS = 1 << 16;
+
+	private final FeatureMatrix data;
+
+	private final int numInstances;
+
+	private final boolean canCache;
+
+	private final LoadingCache<Key, Matrix> matrices;
+
+	private final Cache<Key, Boolean> seenPatterns = CacheBuilder.newBuilder().maximumSize(
+			MAX_SEEN_PATTERNS).build();
+
+	private final AtomicLong numCachedBytes = new AtomicLong();
+
+	/** The block and the selected features within it, a bit per feature. */
+	private static final class Key {
+		final int block;
+
+		final long pattern;
+
+		Key(int block, long pattern) {
+			this.block = block;
+			this.pattern = pattern;
+		}
+
+		/** The ascending indices of the selected features. */
+		int[] getIndices() {
+			int[] indices = new int[Long.bitCount(pattern)];
+			int k = 0;
+			for (int b = 0; b < BLOCK_SIZE; b++) {
+				if ((pattern & (1L << b)) != 0) {
+					indices[k++] = block * BLOCK_SIZE + b;
+				}
+			}
+			return indices;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return block == other.block && pattern == other.pattern;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * block + Long.hashCode(pattern);
+		}
+	}
+
+	/**
+	 * The entries of a matrix, freed once it is evicted and no evaluation
+	 * reads them.
+	 */
+	private static final class Matrix {
+		final ByteBuffer buffer;
+
+		final DoubleBuffer entries;
+
+		// the evaluations reading it, and one while it is cached
+		private final AtomicInteger numReferences = new AtomicInteger(1);
+
+		Matrix(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.entries = buffer.asDoubleBuffer();
+		}
+
+		/** Whether it can be read, until {@link #release()}; false once freed. */
+		boolean acquire() {
+			while (true) {
+				int n = numReferences.get();
+				if (n == 0) {
+					return false;
+				}
+				if (numReferences.compareAndSet(n, n + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			if (numReferences.decrementAndGet() == 0) {
+				DirectBuffers.free(buffer);
+			}
+		}
+	}
+
+	/**
+	 * The blocks of a mask: those whose matrices were cached when it was
+	 * split, and the selected features of the others.
+	 */
+	public static final class MaskBlocks {
+		private final List<Key> cachedBlocks;
+
+		private final FeatureMask uncachedFeatures;
+
+		private MaskBlocks(List<Key> cachedBlocks, FeatureMask uncachedFeatures) {
+			this.cachedBlocks = cachedBlocks;
+			this.uncachedFeatures = uncachedFeatures;
+		}
+
+		public int getNumCachedBlocks() {
+			return cachedBlocks.size();
+		}
+
+		/** The selected features of the blocks without a cached matrix. */
+		public FeatureMask getUncachedFeatures() {
+			return uncachedFeatures;
+		}
+	}
+
+	/**
+	 * Caches the matrices of the rows of the data set, within
+	 * {@code maxBytes} bytes; each takes 8 bytes per pair of rows.
+	 */
+	public BlockGramCache(FeatureMatrix data, long maxBytes) {
+		Preconditions.checkArgument(maxBytes > 0, "Invalid cache size: %s", maxBytes);
+		this.data = data;
+		this.numInstances = data.getNumRows();
+		this.canCache = canCache(numInstances, maxBytes);
+		if (!canCache) {
+			log.warning("a block matrix of " + numInstances + " instances takes "
+					+ getMatrixBytes() + " bytes, more than a buffer or the " + maxBytes
+					+ " of the cache; every dot product will be computed pair by pair");
+		}
+		// one segment, so that the whole size is available to any matrix
+		this.matrices = CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(maxBytes)
+				.weigher(new Weigher<Key, Matrix>() {
+
+					@Override
+					public int weigh(Key key, Matrix value) {
+						return value.buffer.capacity();
+					}
+				}).removalListener(new RemovalListener<Key, Matrix>() {
+
+					@Override
+					public void onRemoval(RemovalNotification<Key, Matrix> notification) {
+						numCachedBytes.addAndGet(-notification.getValue().buffer.capacity());
+						MetricsRegistry.get().counter("knn.gram.evictions").add(1);
+						notification.getValue().release();
+					}
+				}).build(new CacheLoader<Key, Matrix>() {
+
+					@Override
+					public Matrix load(Key key) {
+						return computeMatrix(key);
+					}
+				});
+		MetricsRegistry.get().gauge("knn.gram.bytes", new Supplier<Long>() {
+
+			@Override
+			public Long get() {
+				return numCachedBytes.get();
+			}
+		});
+	}
+
+	/**
+	 * Whether a matrix of {@code numInstances} rows fits in a buffer and a
+	 * cache of {@code maxBytes} bytes.
+	 */
+	public static boolean canCache(int numInstances, long maxBytes) {
+		long matrixBytes = ((long) numInstances) * numInstances * 8;
+		return matrixBytes <= Math.min(maxBytes, Integer.MAX_VALUE);
+	}
+
+	public int getNumInstances() {
+		return numInstances;
+	}
+
+	/** The bytes of the matrix of a block. */
+	public long getMatrixBytes() {
+		return ((long) numInstances) * numInstances * 8;
+	}
+
+	/** The bytes of the matrices the cache holds. */
+	public long getNumCachedBytes() {
+		return numCachedBytes.get();
+	}
+
+	/**
+	 * Splits the mask into its blocks with a cached matrix and the features
+	 * of the others, first computing the matrices of the blocks it selects
+	 * wholly and of the patterns selected before.
+	 */
+	public MaskBlocks split(FeatureMask mask) {
+		Preconditions.checkArgument(mask.getNumFeatures() == data.getNumColumns(),
+				"Mask of %s features for %s", mask.getNumFeatures(), data.getNumColumns());
+		List<Key> cachedBlocks = new ArrayList<>();
+		int[] uncachedIndices = new int[mask.getNumSelected()];
+		int numUncached = 0;
+		int[] indices = mask.getIndices();
+		for (int k = 0; k < indices.length;) {
+			int block = indices[k] / BLOCK_SIZE;
+			int blockStart = k;
+			long pattern = 0L;
+			for (; k < indices.length && indices[k] / BLOCK_SIZE == block; k++) {
+				pattern |= 1L << (indices[k] % BLOCK_SIZE);
+			}
+			Key key = new Key(block, pattern);
+			if (matrices.getIfPresent(key) != null) {
+				MetricsRegistry.get().counter("knn.gram.hits").add(1);
+				cachedBlocks.add(key);
+				continue;
+			}
+			MetricsRegistry.get().counter("knn.gram.misses").add(1);
+			int blockSize = Math.min(BLOCK_SIZE, data.getNumColumns() - block * BLOCK_SIZE);
+			if (canCache && (k - blockStart == blockSize || seenPatterns.asMap().putIfAbsent(key,
+					Boolean.TRUE) != null)) {
+				matrices.getUnchecked(key);
+				cachedBlocks.add(key);
+			} else {
+				System.arraycopy(indices, blockStart, uncachedIndices, numUncached, k - blockStart);
+				numUncached += k - blockStart;
+			}
+		}
+		return new MaskBlocks(cachedBlocks, new FeatureMask(data.getNumColumns(), Arrays
+				.copyOf(uncachedIndices, numUncached)));
+	}
+
+	/**
+	 * Adds the dot product of row {@code row} and each row {@code j} under the
+	 * mask of the blocks to {@code dotProducts[j]}, but for the row itself:
+	 * the entries of the cached matrices, and the dot products over the
+	 * uncached features pair by pair, with those of any matrix evicted since
+	 * the mask was split.
+	 */
+	public void addDotProducts(int row, MaskBlocks blocks, double[] dotProducts) {
+		double[] matrixRow = new double[numInstances];
+		FeatureMask uncachedFeatures = blocks.uncachedFeatures;
+		List<Key> evictedBlocks = Collections.emptyList();
+		for (Key key : blocks.cachedBlocks) {
+			Matrix matrix = matrices.getIfPresent(key);
+			if (matrix == null || !matrix.acquire()) {
+				if (evictedBlocks.isEmpty()) {
+					evictedBlocks = new ArrayList<>();
+				}
+				evictedBlocks.add(key);
+				continue;
+			}
+			try {
+				DoubleBuffer view = matrix.entries.duplicate();
+				view.position(row * numInstances);
+				view.get(matrixRow);
+			} finally {
+				matrix.release();
+			}
+			for (int j = 0; j < numInstances; j++) {
+				dotProducts[j] += matrixRow[j];
+			}
+		}
+		if (!evictedBlocks.isEmpty()) {
+			uncachedFeatures = withBlocks(uncachedFeatures, evictedBlocks);
+		}
+		if (uncachedFeatures.getNumSelected() == 0) {
+			return;
+		}
+		for (int j = 0; j < numInstances; j++) {
+			if (j != row) {
+				dotProducts[j] += data.dotProduct(row, j, uncachedFeatures);
+			}
+		}
+	}
+
+	/** The features of the mask and of the blocks. */
+	private FeatureMask withBlocks(FeatureMask mask, List<Key> blocks) {
+		int[] indices = mask.getIndices();
+		for (Key key : blocks) {
+			int[] blockIndices = key.getIndices();
+			int numIndices = indices.length;
+			indices = Arrays.copyOf(indices, numIndices + blockIndices.length);
+			System.arraycopy(blockIndices, 0, indices, numIndices, blockIndices.length);
+		}
+		Arrays.sort(indices);
+		return new FeatureMask(mask.getNumFeatures(), indices);
+	}
+
+	/** The dot products of all the pairs of rows over the features of the key. */
+	private Matrix computeMatrix(Key key) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		int[] indices = key.getIndices();
+		FeatureMask blockMask = new FeatureMask(data.getNumColumns(), indices);
+		Matrix result = new Matrix(ByteBuffer.allocateDirect((int) getMatrixBytes()).order(
+				ByteOrder.nativeOrder()));
+		// the diagonal is left 0: an instance is never its own neighbor
+		for (int i = 0; i < numInstances; i++) {
+			for (int j = i + 1; j < numInstances; j++) {
+				double dotProduct = data.dotProduct(i, j, blockMask);
+				result.entries.put(i * numInstances + j, dotProduct);
+				result.entries.put(j * numInstances + i, dotProduct);
+			}
+		}
+		numCachedBytes.addAndGet(getMatrixBytes());
+		long numPairs = ((long) numInstances) * (numInstances - 1) / 2;
+		AbstractFeatureSelectionEvaluator.recordKernelCalls(numPairs, numPairs * indices.length);
+		MetricsRegistry.get().histogram("knn.gram.block.nanos").record(
+				stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		return result;
+	}
+
+	/** Drops all the matrices, each freed once no evaluation reads it. */
+	public void clear() {
+		matrices.invalidateAll();
+	}
+}
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link KNN} that adds up the dot products of the instances under its mask
+ * from the partial Gram matrices of a {@link BlockGramCache} for the blocks it
+ * has cached, and computes those over the features of the other blocks pair
+ * by pair, into the same row of dot products. The evaluations of masks that
+ * share most of their blocks, as converging particles do, then compute few
+ * dot products.
+ * <p>
+ * The classes are those of {@link KNN}, but for distances that only differ in
+ * the rounding of their sums.
+ */
+public class BlockGramKNN extends KNN {
+	private final BlockGramCache cache;
+
+	// the blocks of the mask, split once per evaluator; it holds no matrix
+	private volatile BlockGramCache.MaskBlocks blocks;
+
+	public BlockGramKNN(Context context, List<Integer> featureSelectionResult) {
+		super(context.numK, featureSelectionResult, context.getData());
+		this.cache = context.cache;
+	}
+
+	private BlockGramCache.MaskBlocks getBlocks() {
+		BlockGramCache.MaskBlocks result = blocks;
+		if (result == null) {
+			synchronized (this) {
+				result = blocks;
+				if (result == null) {
+					result = cache.split(selectedFeatures);
+					blocks = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int countCorrectlyClassified(List<Integer> instanceIndices) {
+		// split before the subtasks, so that they do not wait for the matrices
+		BlockGramCache.MaskBlocks maskBlocks = getBlocks();
+		int numUncached = maskBlocks.getUncachedFeatures().getNumSelected();
+		int numCorrectClassification = countCorrectlyClassifiedInSubtasks(instanceIndices,
+				((long) numInstances - 1) * (maskBlocks.getNumCachedBlocks() + numUncached));
+		long numCalls = ((long) instanceIndices.size()) * (numInstances - 1);
+		if (numUncached > 0) {
+			recordKernelCalls(numCalls, numCalls * numUncached);
+		}
+		return numCorrectClassification;
+	}
+
+	@Override
+	public int classify(int instanceIndex) {
+		double[] dotProducts = new double[numInstances];
+		cache.addDotProducts(instanceIndex, getBlocks(), dotProducts);
+		int[] indices = new int[numK];
+		double[] distances = new double[numK];
+		int size = 0;
+		for (int j = 0; j < numInstances; j++) {
+			if (j == instanceIndex) {
+				continue;
+			}
+			// cosine distance; the rows are already normalized
+			double distance = 1.0 - dotProducts[j];
+			if (size == numK && Double.compare(distance, distances[size - 1]) >= 0) {
+				continue;
+			}
+			// insertion after the neighbors as near, which have lower indices, as KNN sorts them
+			int k = size == numK ? size - 1 : size++;
+			for (; k > 0 && Double.compare(distances[k - 1], distance) > 0; k--) {
+				indices[k] = indices[k - 1];
+				distances[k] = distances[k - 1];
+			}
+			indices[k] = j;
+			distances[k] = distance;
+		}
+		List<Integer> labelsOfNearestPoints = new ArrayList<>(numK);
+		List<Double> distancesOfNearestPoints = new ArrayList<>(numK);
+		for (int k = 0; k < numK; k++) {
+			labelsOfNearestPoints.add(data.getLabel(indices[k]));
+			distancesOfNearestPoints.add(distances[k]);
+		}
+		return findDominantClass(labelsOfNearestPoints, distancesOfNearestPoints);
+	}
+
+	/** The cache of the partial Gram matrices of the data set, shared by the evaluators. */
+	public static class Context extends EvaluatorContext {
+		private final int numK;
+
+		private final BlockGramCache cache;
+
+		/** Keeps the matrices within {@code maxCacheBytes} bytes. */
+		public Context(FeatureMatrix data, int numK, long maxCacheBytes) {
+			super(data);
+			this.numK = numK;
+			this.cache = new BlockGramCache(data, maxCacheBytes);
+		}
+
+		public BlockGramCache getCache() {
+			return cache;
+		}
+
+		@Override
+		public String getName() {
+			return "knn:" + numK;
+		}
+
+		@Override
+		public BlockGramKNN newEvaluator(List<Integer> featureSelectionResult) {
+			return new BlockGramKNN(this, featureSelectionResult);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Reports how closely {@link CandidateKNN} follows the exact {@link KNN} on a
+ * data set, to choose M before running a search with it.
+ * <p>
+ * The same random masks are evaluated by both on the same sample of
+ * instances. A row of the report has, per mask, the selected features, both
+ * accuracies and their absolute difference, the fraction of instances both
+ * classify alike, and the classification time of each; a last row has the
+ * means over the masks.
+ */
+public class CandidateAgreementReport {
+	private static final Logger log = Logger.getLogger(CandidateAgreementReport.class.getName());
+
+	private static final String[] REPORT_COLUMNS = { "mask", "numSelected", "exactAccuracy",
+			"candidateAccuracy", "accuracyDrift", "agreement", "exactMillis", "candidateMillis",
+			"speedup" };
+
+	private final FeatureMatrix data;
+
+	private final KnnCandidates candidates;
+
+	private int numK = KNN.DEFAULT_K;
+
+	private int numMasks = 10;
+
+	private double maskDensity = 0.5;
+
+	private int numSamples = 500;
+
+	private long seed = 298L;
+
+	public CandidateAgreementReport(FeatureMatrix data, KnnCandidates candidates) {
+		this.data = data;
+		this.candidates = candidates;
+	}
+
+	/** Returns one row per mask and a row of means, keyed by the report columns. */
+	public List<Map<String, String>> run() {
+		Random random = new Random(seed);
+		List<Integer> sampleIndices = new ArrayList<>(MathUtil.range(data.getNumRows()));
+		if (numSamples < sampleIndices.size()) {
+			Collections.shuffle(sampleIndices, random);
+			sampleIndices = sampleIndices.subList(0, numSamples);
+		}
+		KNN.Context exactContext = new KNN.Context(data, numK);
+		CandidateKNN.Context candidateContext = new CandidateKNN.Context(data, numK, candidates);
+		List<Map<String, String>> results = new ArrayList<>();
+		double[] sums = new double[REPORT_COLUMNS.length];
+		for (int m = 0; m < numMasks; m++) {
+			List<Integer> mask = new ArrayList<>(data.getNumColumns());
+			for (int j = 0; j < data.getNumColumns(); j++) {
+				mask.add(random.nextDouble() < maskDensity ? 1 : 0);
+			}
+			KNN exact = exactContext.newEvaluator(mask);
+			CandidateKNN candidate = candidateContext.newEvaluator(mask);
+			int numExactCorrect = 0;
+			int numCandidateCorrect = 0;
+			int numAgreements = 0;
+			long exactNanos = 0;
+			long candidateNanos = 0;
+			for (int index : sampleIndices) {
+				Stopwatch stopwatch = Stopwatch.createStarted();
+				int exactLabel = exact.classify(index);
+				exactNanos += stopwatch.elapsed(TimeUnit.NANOSECONDS);
+				stopwatch.reset().start();
+				int candidateLabel = candidate.classify(index);
+				candidateNanos += stopwatch.elapsed(TimeUnit.NANOSECONDS);
+				numExactCorrect += exactLabel == data.getLabel(index) ? 1 : 0;
+				numCandidateCorrect += candidateLabel == data.getLabel(index) ? 1 : 0;
+				numAgreements += exactLabel == candidateLabel ? 1 : 0;
+			}
+			double[] values = { m, exact.getNumSelectedFeatures(),
+					((double) numExactCorrect) / sampleIndices.size(),
+					((double) numCandidateCorrect) / sampleIndices.size(),
+					Math.abs(numExactCorrect - numCandidateCorrect) / (double) sampleIndices.size(),
+					((double) numAgreements) / sampleIndices.size(), exactNanos / 1e6,
+					candidateNanos / 1e6, (double) exactNanos / Math.max(1, candidateNanos) };
+			Map<String, String> result = new LinkedHashMap<>();
+			for (int c = 0; c < REPORT_COLUMNS.length; c++) {
+				result.put(REPORT_COLUMNS[c], c < 2 ? String.valueOf((int) values[c])
+						: format(values[c]));
+				sums[c] += values[c];
+			}
+			results.add(result);
+			log.info("mask " + m + ": agreement " + result.get("agreement"));
+		}
+		Map<String, String> means = new LinkedHashMap<>();
+		means.put(REPORT_COLUMNS[0], "mean");
+		for (int c = 1; c < REPORT_COLUMNS.length; c++) {
+			means.put(REPORT_COLUMNS[c], format(sums[c] / numMasks));
+		}
+		results.add(means);
+		return results;
+	}
+
+	private static String format(double value) {
+		return String.format("%.6f", value);
+	}
+
+	public void writeReport(List<Map<String, String>> results, String reportFilePath)
+			throws IOException {
+		try (PrintWriter out = new PrintWriter(reportFilePath)) {
+			out.println(Joiner.on(',').join(REPORT_COLUMNS));
+			System.out.println(Joiner.on('\t').join(REPORT_COLUMNS));
+			for (Map<String, String> result : results) {
+				List<String> values = new ArrayList<>();
+				for (String column : REPORT_COLUMNS) {
+					values.add(result.get(column));
+				}
+				out.println(Joiner.on(',').join(values));
+				System.out.println(Joiner.on('\t').join(values));
+			}
+		}
+		log.info("report written to " + reportFilePath);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || args.length % 2 != 1) {
+			printUsage();
+			return;
+		}
+		FeatureMatrix data = FeatureMatrixLoader.load(args[0]);
+		CandidateAgreementReport report = new CandidateAgreementReport(data, KnnCandidates.open(
+				args[1], data));
+		for (int i = 3; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-k":
+				report.numK = Integer.parseInt(value);
+				break;
+			case "-masks":
+				report.numMasks = Integer.parseInt(value);
+				break;
+			case "-density":
+				report.maskDensity = Double.parseDouble(value);
+				break;
+			case "-samples":
+				report.numSamples = Integer.parseInt(value);
+				break;
+			case "-seed":
+				report.seed = Long.parseLong(value);
+				break;
+			default:
+				printUsage();
+				return;
+			}
+		}
+		report.writeReport(report.run(), args[2]);
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("CandidateAgreementReport <data.csv> <candidates file> <report.csv>"
+				+ " [options]");
+		System.err.println("options:");
+		System.err.println("\t-k <n>: K (default: " + KNN.DEFAULT_K + ").");
+		System.err.println("\t-masks <n>: the number of random masks (default: 10).");
+		System.err.println("\t-density <d>: the fraction of features a mask selects"
+				+ " (default: 0.5).");
+		System.err.println("\t-samples <n>: the number of instances classified per mask"
+				+ " (default: 500).");
+		System.err.println("\t-seed <n>: the seed of the masks and samples (default: 298).");
+	}
+}
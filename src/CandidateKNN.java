@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An approximate {@link KNN} that looks for the K nearest neighbors of an
+ * instance under its mask only among the M nearest under all the features,
+ * read from {@link KnnCandidates}: an evaluation costs O(n M d) instead of
+ * O(n^2 d). The classes are those of {@link KNN} whenever the K nearest are
+ * among the candidates; {@link CandidateAgreementReport} measures how often
+ * that holds on a data set.
+ */
+public class CandidateKNN extends KNN {
+	private final KnnCandidates candidates;
+
+	public CandidateKNN(Context context, List<Integer> featureSelectionResult) {
+		super(context.numK, featureSelectionResult, context.getData());
+		this.candidates = context.candidates;
+	}
+
+	@Override
+	public int countCorrectlyClassified(List<Integer> instanceIndices) {
+		int numCorrectClassification = countCorrectlyClassifiedInSubtasks(instanceIndices,
+				((long) candidates.getNumCandidates()) * numSelectedFeatures);
+		recordKernelCalls(((long) instanceIndices.size()) * candidates.getNumCandidates());
+		return numCorrectClassification;
+	}
+
+	/** Classifies an instance by the K nearest of its candidates under the mask. */
+	@Override
+	public int classify(int instanceIndex) {
+		int[] indices = new int[numK];
+		double[] distances = new double[numK];
+		int size = 0;
+		for (int c = 0; c < candidates.getNumCandidates(); c++) {
+			int j = candidates.getCandidate(instanceIndex, c);
+			// cosine distance; the rows are already normalized
+			double distance = 1.0 - data.dotProduct(instanceIndex, j, selectedFeatures);
+			if (size == numK && !isNearer(distance, j, distances[size - 1], indices[size - 1])) {
+				continue;
+			}
+			// the candidates are not in index order, so ties are broken explicitly
+			int k = size == numK ? size - 1 : size++;
+			for (; k > 0 && isNearer(distance, j, distances[k - 1], indices[k - 1]); k--) {
+				indices[k] = indices[k - 1];
+				distances[k] = distances[k - 1];
+			}
+			indices[k] = j;
+			distances[k] = distance;
+		}
+		List<Integer> labelsOfNearestPoints = new ArrayList<>(numK);
+		List<Double> distancesOfNearestPoints = new ArrayList<>(numK);
+		for (int k = 0; k < numK; k++) {
+			labelsOfNearestPoints.add(data.getLabel(indices[k]));
+			distancesOfNearestPoints.add(distances[k]);
+		}
+		return findDominantClass(labelsOfNearestPoints, distancesOfNearestPoints);
+	}
+
+	/** Nearest first, then lowest instance index first, as {@link KNN} sorts them. */
+	private static boolean isNearer(double distance1, int index1, double distance2, int index2) {
+		int result = Double.compare(distance1, distance2);
+		return result < 0 || result == 0 && index1 < index2;
+	}
+
+	/** The candidates of the instances of the data set, shared by the evaluators. */
+	public static class Context extends EvaluatorContext {
+		private final int numK;
+
+		private final KnnCandidates candidates;
+
+		public Context(FeatureMatrix data, int numK, KnnCandidates candidates) {
+			super(data);
+			Preconditions.checkArgument(candidates.getNumInstances() == data.getNumRows(),
+					"Candidates of %s instances for %s", candidates.getNumInstances(), data
+							.getNumRows());
+			Preconditions.checkArgument(numK <= candidates.getNumCandidates(),
+					"K=%s is more than the %s candidates", numK, candidates.getNumCandidates());
+			this.numK = numK;
+			this.candidates = candidates;
+		}
+
+		/** {@code knn:K:M}, for the K nearest of M candidates. */
+		@Override
+		public String getName() {
+			return "knn:" + numK + ":" + candidates.getNumCandidates();
+		}
+
+		@Override
+		public CandidateKNN newEvaluator(List<Integer> featureSelectionResult) {
+			return new CandidateKNN(this, featureSelectionResult);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Keeps the class and the selected feature columns of a tf-idf file written by
+ * {@link TfidfRowWriter}, in the same format.
+ * <p>
+ * A CSV file is memory-mapped in line-aligned chunks that are projected in
+ * parallel and written in order. Lines are scanned for delimiters and the
+ * bytes of the selected fields are copied as they are; values are only parsed
+ * if the selected features are to be normalized. A binary file is read
+ * sequentially, since its rows are not delimited.
+ */
+public class ColumnProjector {
+	// the size of the chunks mapped and projected at a time
+	private static final long CHUNK_SIZE = 8L << 20;
+
+	// the CSV columns of the selected features in ascending order; the class is
+	// column 0
+	private final int[] featureColumns;
+
+	private final boolean isNormalizeVector;
+
+	private final int parallelism;
+
+	public ColumnProjector(List<Integer> featureColumns, boolean isNormalizeVector) {
+		this(featureColumns, isNormalizeVector, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ColumnProjector(List<Integer> featureColumns, boolean isNormalizeVector,
+			int parallelism) {
+		Preconditions.checkArgument(parallelism > 0);
+		this.featureColumns = new int[featureColumns.size()];
+		for (int i = 0; i < this.featureColumns.length; i++) {
+			this.featureColumns[i] = featureColumns.get(i);
+			Preconditions.checkArgument(this.featureColumns[i] > (i == 0 ? 0
+					: this.featureColumns[i - 1]), "Feature columns must be ascending and > 0: %s",
+					featureColumns);
+		}
+		this.isNormalizeVector = isNormalizeVector;
+		this.parallelism = parallelism;
+	}
+
+	/** Returns the names of the columns of a CSV or binary tf-idf file. */
+	public static List<String> readHeader(String inputFilePath) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(inputFilePath), 1 << 16))) {
+			List<String> names = new ArrayList<>();
+			if (isBinary(inputFilePath)) {
+				in.readInt();
+				int numFeatures = in.readInt();
+				names.add("class_unique");
+				for (int i = 0; i < numFeatures; i++) {
+					names.add(in.readUTF());
+				}
+				return names;
+			}
+		}
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFilePath),
+				StandardOpenOption.READ)) {
+			long headerEnd = LineChunks.nextLineStart(channel, 0);
+			byte[] header = new LineChunks.Chunk(0, 0, headerEnd).read(channel);
+			int length = header.length;
+			while (length > 0 && (header[length - 1] == '\n' || header[length - 1] == '\r')) {
+				length--;
+			}
+			return Arrays.asList(new String(header, 0, length, StandardCharsets.UTF_8).split(",",
+					-1));
+		}
+	}
+
+	private static boolean isBinary(String inputFilePath) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(inputFilePath))) {
+			return in.readInt() == TfidfRowWriter.BINARY_MAGIC;
+		} catch (EOFException e) {
+			// shorter than the magic number
+			return false;
+		}
+	}
+
+	/**
+	 * Whether another binary row follows; the stream must support marks. A
+	 * row is read in whole, so a file cut short within one fails.
+	 */
+	static boolean hasNextRow(DataInputStream in) throws IOException {
+		in.mark(1);
+		if (in.read() < 0) {
+			return false;
+		}
+		in.reset();
+		return true;
+	}
+
+	public void project(String inputFilePath, String outputFilePath) throws IOException {
+		if (isBinary(inputFilePath)) {
+			projectBinary(inputFilePath, outputFilePath);
+		} else {
+			projectCsv(inputFilePath, outputFilePath);
+		}
+	}
+
+	private void projectCsv(String inputFilePath, String outputFilePath) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try (final FileChannel channel = FileChannel.open(Paths.get(inputFilePath),
+				StandardOpenOption.READ);
+				OutputStream out = new FileOutputStream(outputFilePath)) {
+			long headerEnd = LineChunks.nextLineStart(channel, 0);
+			final int numColumns = readHeader(inputFilePath).size();
+			Preconditions.checkArgument(featureColumns.length == 0
+					|| featureColumns[featureColumns.length - 1] < numColumns,
+					"%s has %s columns, column %s is selected", inputFilePath, numColumns,
+					featureColumns.length == 0 ? 0 : featureColumns[featureColumns.length - 1]);
+			// the header is projected like a row, but never normalized
+			ByteSink header = new ByteSink((int) headerEnd);
+			projectLines(channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd), numColumns,
+					false, header);
+			header.writeTo(out);
+
+			ArrayDeque<Future<ByteSink>> pending = new ArrayDeque<>();
+			for (final LineChunks.Chunk chunk : LineChunks.split(channel, headerEnd,
+					parallelism * 4, CHUNK_SIZE)) {
+				pending.add(pool.submit(new Callable<ByteSink>() {
+
+					@Override
+					public ByteSink call() throws IOException {
+						ByteSink sink = new ByteSink(Math.max(64, chunk.size() / 4));
+						projectLines(channel.map(FileChannel.MapMode.READ_ONLY, chunk.start,
+								chunk.size()), numColumns, isNormalizeVector, sink);
+						return sink;
+					}
+				}));
+				if (pending.size() >= 2 * parallelism) {
+					get(pending.poll()).writeTo(out);
+				}
+			}
+			while (!pending.isEmpty()) {
+				get(pending.poll()).writeTo(out);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	/** Projects the lines of the buffer, which holds whole lines. */
+	private void projectLines(MappedByteBuffer buffer, int numColumns, boolean isNormalizeVector,
+			ByteSink out) {
+		int limit = buffer.limit();
+		double[] values = new double[featureColumns.length];
+		byte[] field = new byte[64];
+		int pos = 0;
+		while (pos < limit) {
+			int column = 0;
+			int next = 0;
+			int fieldStart = pos;
+			int i = pos;
+			while (true) {
+				byte b = i < limit ? buffer.get(i) : (byte) '\n';
+				if (b == ',' || b == '\n') {
+					int fieldEnd = i;
+					if (b == '\n' && fieldEnd > fieldStart && buffer.get(fieldEnd - 1) == '\r') {
+						fieldEnd--;
+					}
+					if (column == 0) {
+						out.write(buffer, fieldStart, fieldEnd - fieldStart);
+					} else if (next < featureColumns.length && featureColumns[next] == column) {
+						if (isNormalizeVector) {
+							int length = fieldEnd - fieldStart;
+							if (field.length < length) {
+								field = new byte[length * 2];
+							}
+							buffer.position(fieldStart);
+							buffer.get(field, 0, length);
+							values[next] = DoubleParser.parse(field, 0, length);
+						} else {
+							out.write((byte) ',');
+							out.write(buffer, fieldStart, fieldEnd - fieldStart);
+						}
+						next++;
+					}
+					column++;
+					fieldStart = i + 1;
+					if (b == '\n') {
+						break;
+					}
+				}
+				i++;
+			}
+			Preconditions.checkState(column == numColumns, "A line has %s columns instead of %s: %s",
+					column, numColumns, lineToString(buffer, pos, i));
+			if (isNormalizeVector) {
+				TfidfCalculator.normalizeVector(values, values.length);
+				for (double value : values) {
+					out.write((byte) ',');
+					out.writeAscii(Double.toString(value));
+				}
+			}
+			out.write((byte) '\n');
+			pos = i + 1;
+		}
+	}
+
+	private static String lineToString(MappedByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[Math.min(end - start, 200)];
+		buffer.position(start);
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8) + (end - start > bytes.length ? "..." : "");
+	}
+
+	private void projectBinary(String inputFilePath, String outputFilePath) throws IOException {
+		List<String> names = readHeader(inputFilePath);
+		int numFeatures = names.size() - 1;
+		// the projected index of each feature, or -1
+		int[] projectedIndices = new int[numFeatures];
+		Arrays.fill(projectedIndices, -1);
+		List<String> projectedNames = new ArrayList<>();
+		for (int i = 0; i < featureColumns.length; i++) {
+			Preconditions.checkArgument(featureColumns[i] <= numFeatures,
+					"%s has %s columns, column %s is selected", inputFilePath, numFeatures + 1,
+					featureColumns[i]);
+			projectedIndices[featureColumns[i] - 1] = i;
+			projectedNames.add(names.get(featureColumns[i]));
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(inputFilePath), 1 << 16));
+				TfidfRowWriter out = TfidfRowWriter.open(TfidfRowWriter.Format.BINARY,
+						outputFilePath, projectedNames)) {
+			in.readInt();
+			in.readInt();
+			for (int i = 0; i < numFeatures; i++) {
+				in.readUTF();
+			}
+			int[] ids = new int[64];
+			int[] projectedIds = new int[featureColumns.length];
+			double[] values = new double[featureColumns.length];
+			while (hasNextRow(in)) {
+				String className = in.readUTF();
+				int numNonZeros = in.readInt();
+				if (ids.length < numNonZeros) {
+					ids = new int[numNonZeros];
+				}
+				for (int k = 0; k < numNonZeros; k++) {
+					ids[k] = in.readInt();
+				}
+				int length = 0;
+				for (int k = 0; k < numNonZeros; k++) {
+					double value = in.readDouble();
+					int projectedId = projectedIndices[ids[k]];
+					if (projectedId >= 0) {
+						projectedIds[length] = projectedId;
+						values[length++] = value;
+					}
+				}
+
+				if (isNormalizeVector) {
+					TfidfCalculator.normalizeVector(values, length);
+				}
+
+				out.writeRow(className, projectedIds, values, length);
+			}
+		}
+	}
+
+	/** A growable byte array. */
+	private static class ByteSink {
+		private byte[] bytes;
+
+		private int size = 0;
+
+		ByteSink(int capacity) {
+			this.bytes = new byte[capacity];
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (bytes.length < capacity) {
+				bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+			}
+		}
+
+		void write(byte b) {
+			ensureCapacity(size + 1);
+			bytes[size++] = b;
+		}
+
+		void write(MappedByteBuffer buffer, int start, int length) {
+			ensureCapacity(size + length);
+			buffer.position(start);
+			buffer.get(bytes, size, length);
+			size += length;
+		}
+
+		void writeAscii(String s) {
+			ensureCapacity(size + s.length());
+			for (int i = 0; i < s.length(); i++) {
+				bytes[size++] = (byte) s.charAt(i);
+			}
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(bytes, 0, size);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("-n"))) {
+			System.err.printf("usage: %s inputFilePath outputFilePath columns [-n]\n",
+					ColumnProjector.class.getName());
+			System.err.printf("\tcolumns: comma separated CSV columns of the kept features;"
+					+ " the class is column 0 and always kept.\n");
+			System.err.printf("\t-n: normalize the kept features to unit-vectors.\n");
+			System.exit(1);
+		}
+		List<Integer> columns = new ArrayList<>();
+		for (String column : args[2].split(",")) {
+			columns.add(Integer.parseInt(column.trim()));
+		}
+		new ColumnProjector(columns, args.length == 4).project(args[0], args[1]);
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Decides whether a BPSO search should stop before running all of its
+ * iterations. Three criteria are supported, each of them can be disabled
+ * independently:
+ * <ul>
+ * <li>stagnation: gbest fitness has not improved for a number of iterations.
+ * <li>diversity: the average Hamming distance from the particles to gbest
+ * (as a fraction of the dimension) dropped below a threshold.
+ * <li>deadline: the time budget would be exceeded by running another
+ * iteration.
+ * </ul>
+ */
+public class ConvergenceMonitor {
+	private static final Logger log = Logger.getLogger(ConvergenceMonitor.class.getName());
+
+	/** Improvements smaller than this are not counted as progress. */
+	private static final double MIN_IMPROVEMENT = 1e-9;
+
+	public enum StopReason {
+		NONE, STAGNATION, LOW_DIVERSITY, DEADLINE
+	}
+
+	private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+
+	private final int stagnationWindow;
+
+	private final double minDiversity;
+
+	private final long timeBudgetMillis;
+
+	private double bestFitness = Double.NEGATIVE_INFINITY;
+
+	private int numIterationsWithoutImprovement = 0;
+
+	private double lastDiversity = 1.0;
+
+	/**
+	 * @param stagnationWindow
+	 *            stop after this many iterations without gbest improvement; 0
+	 *            or less disables the criterion
+	 * @param minDiversity
+	 *            stop when the average normalized Hamming distance to gbest
+	 *            falls below this value; negative disables the criterion
+	 * @param timeBudgetMillis
+	 *            wall-clock budget of the whole search; 0 or less disables the
+	 *            criterion
+	 */
+	public ConvergenceMonitor(int stagnationWindow, double minDiversity, long timeBudgetMillis) {
+		Preconditions.checkArgument(minDiversity <= 1.0, "Invalid diversity: %s", minDiversity);
+		this.stagnationWindow = stagnationWindow;
+		this.minDiversity = minDiversity;
+		this.timeBudgetMillis = timeBudgetMillis;
+	}
+
+	/** A monitor that never stops the search early. */
+	public static ConvergenceMonitor disabled() {
+		return new ConvergenceMonitor(0, -1.0, 0L);
+	}
+
+	public void start() {
+		stopwatch.reset().start();
+	}
+
+	public long getElapsedMillis() {
+		return stopwatch.elapsed(TimeUnit.MILLISECONDS);
+	}
+
+	public double getLastDiversity() {
+		return lastDiversity;
+	}
+
+	public int getNumIterationsWithoutImprovement() {
+		return numIterationsWithoutImprovement;
+	}
+
+	/**
+	 * Records the state at the end of an iteration and tells whether the search
+	 * should stop.
+	 *
+	 * @param gbestFitness
+	 *            the fitness of gbest after the iteration
+	 * @param positions
+	 *            the current positions of all particles
+	 * @param gbest
+	 *            the gbest position
+	 * @param lastIterationMillis
+	 *            how long the iteration took; used to predict whether the next
+	 *            one still fits in the time budget
+	 */
+	public StopReason update(double gbestFitness, List<? extends List<Integer>> positions,
+			List<Integer> gbest, long lastIterationMillis) {
+		if (gbestFitness > bestFitness + MIN_IMPROVEMENT) {
+			bestFitness = gbestFitness;
+			numIterationsWithoutImprovement = 0;
+		} else {
+			numIterationsWithoutImprovement++;
+		}
+		lastDiversity = diversity(positions, gbest);
+		log.info("convergence: diversity=" + lastDiversity + ", iterationsWithoutImprovement="
+				+ numIterationsWithoutImprovement + ", elapsedMillis=" + getElapsedMillis());
+
+		if (stagnationWindow > 0 && numIterationsWithoutImprovement >= stagnationWindow) {
+			return StopReason.STAGNATION;
+		}
+		if (minDiversity >= 0.0 && lastDiversity < minDiversity) {
+			return StopReason.LOW_DIVERSITY;
+		}
+		if (timeBudgetMillis > 0 && getElapsedMillis() + lastIterationMillis > timeBudgetMillis) {
+			return StopReason.DEADLINE;
+		}
+		return StopReason.NONE;
+	}
+
+	/**
+	 * Average Hamming distance from each position to gbest, divided by the
+	 * dimension; 0.0 means every particle sits on gbest.
+	 */
+	public static double diversity(List<? extends List<Integer>> positions, List<Integer> gbest) {
+		Preconditions.checkArgument(!positions.isEmpty());
+		int dimension = gbest.size();
+		long sum = 0;
+		for (List<Integer> position : positions) {
+			Preconditions.checkArgument(position.size() == dimension);
+			for (int i = 0; i < dimension; i++) {
+				if (!position.get(i).equals(gbest.get(i))) {
+					sum++;
+				}
+			}
+		}
+		return ((double) sum) / positions.size() / dimension;
+	}
+}
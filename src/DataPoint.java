@@ -7,6 +7,8 @@ import com.google.common.base.Objects;
 public class DataPoint {
 	private String className;
 	private List<Double> featureValues;
+	// the feature values unboxed, for the distance kernels
+	private double[] featureValueArray;
 
 	public DataPoint() {
 	}
@@ -28,8 +30,17 @@ public class DataPoint {
 		return Collections.unmodifiableList(featureValues);
 	}
 
+	/** Returns the array itself, not a copy; callers must not modify it. */
+	public double[] getFeatureValueArray() {
+		return featureValueArray;
+	}
+
 	public void setFeatureValues(List<Double> featureValues) {
 		this.featureValues = new ArrayList<>(featureValues);
+		this.featureValueArray = new double[featureValues.size()];
+		for (int i = 0; i < featureValueArray.length; i++) {
+			featureValueArray[i] = this.featureValues.get(i);
+		}
 	}
 
 	public boolean equalsIgnoringClassName(DataPoint other) {
@@ -0,0 +1,58 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Frees direct buffers before they are collected, through
+ * {@code sun.misc.Unsafe.invokeCleaner}, where the JVM allows it; elsewhere
+ * they are freed when collected, as usual.
+ */
+public final class DirectBuffers {
+	private static final Logger log = Logger.getLogger(DirectBuffers.class.getName());
+
+	// sun.misc.Unsafe and its invokeCleaner(ByteBuffer), or null if not accessible
+	private static final Object UNSAFE;
+
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.info("cannot free direct buffers explicitly (" + e
+					+ "); they are freed when collected");
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private DirectBuffers() {
+	}
+
+	/**
+	 * Frees the memory of a direct buffer, which must not be read again, nor
+	 * any view of it; returns false if it is left to the GC.
+	 */
+	public static boolean free(ByteBuffer buffer) {
+		Preconditions.checkArgument(buffer.isDirect(), "Not a direct buffer");
+		if (INVOKE_CLEANER == null) {
+			return false;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * The distance kernels on double rows used by the evaluators and
+ * {@link KdTree}. {@link #get()} returns the SIMD implementation, built on the
+ * {@code jdk.incubator.vector} module, if the JVM was started with
+ * {@code --add-modules jdk.incubator.vector} and the class was compiled (see
+ * {@code src-vector}); otherwise, or if the system property
+ * {@value #KERNELS_PROPERTY} is {@code scalar}, the scalar one. Both give the
+ * same results up to the order in which the products are summed.
+ */
+public abstract class DistanceKernels {
+	private static final Logger log = Logger.getLogger(DistanceKernels.class.getName());
+
+	/** The system property that selects the kernels: vector (default) or scalar. */
+	public static final String KERNELS_PROPERTY = "cs298.kernels";
+
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+	private static final DistanceKernels INSTANCE = forName(System.getProperty(KERNELS_PROPERTY,
+			"vector"));
+
+	/** The kernels of this JVM. */
+	public static DistanceKernels get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the kernels of the given name, {@code vector} or {@code scalar};
+	 * {@code vector} falls back to scalar if the SIMD kernels cannot be loaded.
+	 */
+	public static DistanceKernels forName(String name) {
+		switch (name) {
+		case "scalar":
+			return new ScalarDistanceKernels();
+		case "vector":
+			DistanceKernels kernels = loadVectorKernels();
+			if (kernels == null) {
+				return new ScalarDistanceKernels();
+			}
+			log.info("using " + kernels.getName() + " distance kernels");
+			return kernels;
+		default:
+			throw new IllegalArgumentException("Unknown kernels: " + name);
+		}
+	}
+
+	private static DistanceKernels loadVectorKernels() {
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+			log.info(VECTOR_MODULE + " is not enabled (--add-modules " + VECTOR_MODULE
+					+ "); using scalar distance kernels");
+			return null;
+		}
+		try {
+			return (DistanceKernels) Class.forName("VectorDistanceKernels").getConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			log.info("cannot load the vector distance kernels (" + e + "); using scalar ones");
+			return null;
+		}
+	}
+
+	public abstract String getName();
+
+	/** Dot product of two rows of the same length. */
+	public abstract double dotProduct(double[] instance1, double[] instance2);
+
+	/** Squared Euclidean distance between two rows of the same length. */
+	public abstract double squaredEuclideanDistance(double[] instance1, double[] instance2);
+
+	/** Dot product of two rows, only over the features of the mask. */
+	public abstract double dotProduct(double[] instance1, double[] instance2, FeatureMask mask);
+
+	/** Sum of the values of a row, only over the features of the mask. */
+	public abstract double sum(double[] instance, FeatureMask mask);
+
+	/** Squared Euclidean distance between two rows, only over the features of the mask. */
+	public abstract double squaredEuclideanDistance(double[] instance1, double[] instance2,
+			FeatureMask mask);
+
+	/**
+	 * Squared Euclidean distance between a row of doubles in a buffer of the
+	 * native order, from the byte {@code offset1}, and a row, only over the
+	 * features of the mask.
+	 */
+	public abstract double squaredEuclideanDistance(ByteBuffer instance1, int offset1,
+			double[] instance2, FeatureMask mask);
+
+	/**
+	 * Dot product of two rows of doubles in buffers of the native order, from
+	 * the byte offsets, only over the features of the mask.
+	 */
+	public abstract double dotProduct(ByteBuffer instance1, int offset1, ByteBuffer instance2,
+			int offset2, FeatureMask mask);
+
+	/**
+	 * Dot product of a row and a row of doubles in a buffer of the native
+	 * order, from the byte {@code offset2}, only over the features of the mask.
+	 */
+	public abstract double dotProduct(double[] instance1, ByteBuffer instance2, int offset2,
+			FeatureMask mask);
+
+	/**
+	 * Dot product of a sparse row, given as its first {@code length} indices
+	 * and values, and a dense one.
+	 */
+	public abstract double sparseDotProduct(int[] indices, double[] values, int length,
+			double[] dense);
+}
@@ -0,0 +1,50 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits bytes holding whole lines into documents, one per line, with the
+ * class name first and the terms separated by white space; blank lines are
+ * skipped. Subclasses receive the tokens through the callbacks.
+ */
+public abstract class DocumentTokenizer {
+
+	/** The same white space as the regular expression \s. */
+	public static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+
+	public void tokenize(byte[] bytes) {
+		int n = bytes.length;
+		int i = 0;
+		while (i < n) {
+			// a line; the first word is the "class"
+			boolean isInDocument = false;
+			while (i < n && bytes[i] != '\n') {
+				if (isWhitespace(bytes[i])) {
+					i++;
+					continue;
+				}
+				int start = i;
+				while (i < n && !isWhitespace(bytes[i])) {
+					i++;
+				}
+				String token = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+				if (isInDocument) {
+					addTerm(token);
+				} else {
+					startDocument(token);
+					isInDocument = true;
+				}
+			}
+			if (isInDocument) {
+				endDocument();
+			}
+			i++;
+		}
+	}
+
+	protected abstract void startDocument(String className);
+
+	protected abstract void addTerm(String term);
+
+	protected abstract void endDocument();
+}
@@ -0,0 +1,227 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal doubles from ASCII bytes without allocating, with the same
+ * result as {@link Double#parseDouble(String)} (correctly rounded).
+ * <p>
+ * The digits are read into a 64-bit decimal mantissa and a power of ten. The
+ * result is exact in double arithmetic if the mantissa has at most 53 bits and
+ * the power at most 22 (Clinger's fast path); otherwise the Eisel-Lemire
+ * algorithm multiplies the mantissa by a 128-bit approximation of the power of
+ * ten. The rare inputs neither can round with certainty (more than 19
+ * significant digits, exact halfway cases, exponents out of range) fall back to
+ * {@link Double#parseDouble(String)}.
+ */
+public class DoubleParser {
+	private static final int MIN_EXPONENT = -342;
+
+	private static final int MAX_EXPONENT = 308;
+
+	// the powers of ten that are exact doubles
+	private static final double[] EXACT_POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+			1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// the high and low 64 bits of the 128-bit mantissa, rounded down, of each
+	// power of ten from MIN_EXPONENT
+	private static final long[] POWERS_HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+	private static final long[] POWERS_LOW = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+	static {
+		for (int q = MIN_EXPONENT; q <= MAX_EXPONENT; q++) {
+			BigInteger mantissa;
+			if (q >= 0) {
+				mantissa = BigInteger.TEN.pow(q);
+				int shift = mantissa.bitLength() - 128;
+				mantissa = shift > 0 ? mantissa.shiftRight(shift) : mantissa.shiftLeft(-shift);
+			} else {
+				BigInteger divisor = BigInteger.TEN.pow(-q);
+				mantissa = BigInteger.ONE.shiftLeft(127 + divisor.bitLength()).divide(divisor);
+			}
+			POWERS_HIGH[q - MIN_EXPONENT] = mantissa.shiftRight(64).longValue();
+			POWERS_LOW[q - MIN_EXPONENT] = mantissa.longValue();
+		}
+	}
+
+	private DoubleParser() {
+	}
+
+	/**
+	 * Parses {@code bytes[start, end)}: an optional sign, digits with an
+	 * optional decimal point and an optional exponent, or {@code NaN} or
+	 * {@code Infinity}; no white space.
+	 *
+	 * @throws NumberFormatException
+	 *             if the bytes are not such a number
+	 */
+	public static double parse(byte[] bytes, int start, int end) {
+		int i = start;
+		boolean isNegative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			isNegative = bytes[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int numDigits = 0;
+		int exponent = 0;
+		boolean hasDigits = false;
+		boolean isTruncated = false;
+		for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+			hasDigits = true;
+			if (mantissa == 0 && bytes[i] == '0') {
+				continue;
+			}
+			if (numDigits < 19) {
+				mantissa = mantissa * 10 + (bytes[i] - '0');
+				numDigits++;
+			} else {
+				isTruncated |= bytes[i] != '0';
+				exponent++;
+			}
+		}
+		if (i < end && bytes[i] == '.') {
+			for (i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+				hasDigits = true;
+				if (mantissa == 0 && bytes[i] == '0') {
+					exponent--;
+				} else if (numDigits < 19) {
+					mantissa = mantissa * 10 + (bytes[i] - '0');
+					numDigits++;
+					exponent--;
+				} else {
+					isTruncated |= bytes[i] != '0';
+				}
+			}
+		}
+		if (!hasDigits) {
+			if (matches(bytes, i, end, "NaN")) {
+				return Double.NaN;
+			}
+			if (matches(bytes, i, end, "Infinity")) {
+				return isNegative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			}
+			throw numberFormatException(bytes, start, end);
+		}
+		if (i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+			i++;
+			boolean isNegativeExponent = false;
+			if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+				isNegativeExponent = bytes[i] == '-';
+				i++;
+			}
+			int explicitExponent = 0;
+			int exponentStart = i;
+			for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+				// beyond any double either way; keeps the int from overflowing
+				explicitExponent = Math.min(100000, explicitExponent * 10 + (bytes[i] - '0'));
+			}
+			if (i == exponentStart) {
+				throw numberFormatException(bytes, start, end);
+			}
+			exponent += isNegativeExponent ? -explicitExponent : explicitExponent;
+		}
+		if (i != end) {
+			throw numberFormatException(bytes, start, end);
+		}
+
+		if (mantissa == 0) {
+			return isNegative ? -0.0 : 0.0;
+		}
+		if (!isTruncated) {
+			// 19 digits may not fit a signed long; the mantissa is unsigned
+			if (Long.compareUnsigned(mantissa, 1L << 53) < 0 && exponent >= -22 && exponent <= 22) {
+				double result = exponent >= 0 ? mantissa * EXACT_POWERS[exponent] : mantissa
+						/ EXACT_POWERS[-exponent];
+				return isNegative ? -result : result;
+			}
+			double result = eiselLemire(mantissa, exponent, isNegative);
+			if (!Double.isNaN(result)) {
+				return result;
+			}
+		}
+		return Double.parseDouble(new String(bytes, start, end - start,
+				StandardCharsets.ISO_8859_1));
+	}
+
+	private static boolean matches(byte[] bytes, int start, int end, String word) {
+		if (end - start != word.length()) {
+			return false;
+		}
+		for (int k = 0; k < word.length(); k++) {
+			if (bytes[start + k] != word.charAt(k)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static NumberFormatException numberFormatException(byte[] bytes, int start, int end) {
+		return new NumberFormatException("For input string: \""
+				+ new String(bytes, start, end - start, StandardCharsets.ISO_8859_1) + "\"");
+	}
+
+	/**
+	 * Returns mantissa * 10^exponent correctly rounded, or NaN if the 128-bit
+	 * approximation cannot tell how to round.
+	 */
+	private static double eiselLemire(long mantissa, int exponent, boolean isNegative) {
+		if (exponent < MIN_EXPONENT || exponent > MAX_EXPONENT) {
+			return Double.NaN;
+		}
+		int numLeadingZeros = Long.numberOfLeadingZeros(mantissa);
+		long w = mantissa << numLeadingZeros;
+		// floor(exponent * log2(10)) + 64, biased
+		long binaryExponent = ((217706L * exponent) >> 16) + 64 + 1023 - numLeadingZeros;
+
+		long powerHigh = POWERS_HIGH[exponent - MIN_EXPONENT];
+		long high = unsignedMultiplyHigh(w, powerHigh);
+		long low = w * powerHigh;
+		if ((high & 0x1FF) == 0x1FF && Long.compareUnsigned(low + w, w) < 0) {
+			// the truncated product may be off; add the next 64 bits of the power
+			long powerLow = POWERS_LOW[exponent - MIN_EXPONENT];
+			long nextHigh = unsignedMultiplyHigh(w, powerLow);
+			long nextLow = w * powerLow;
+			long mergedHigh = high;
+			long mergedLow = low + nextHigh;
+			if (Long.compareUnsigned(mergedLow, low) < 0) {
+				mergedHigh++;
+			}
+			if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow + 1 == 0
+					&& Long.compareUnsigned(nextLow + w, w) < 0) {
+				return Double.NaN;
+			}
+			high = mergedHigh;
+			low = mergedLow;
+		}
+
+		// keep 54 bits
+		long upperBit = high >>> 63;
+		long result = high >>> (upperBit + 9);
+		binaryExponent -= 1 ^ upperBit;
+		if (low == 0 && (high & 0x1FF) == 0 && (result & 3) == 1) {
+			// may be exactly halfway between two doubles
+			return Double.NaN;
+		}
+		// round to 53 bits
+		result += result & 1;
+		result >>>= 1;
+		if ((result >>> 53) > 0) {
+			result >>>= 1;
+			binaryExponent++;
+		}
+		if (binaryExponent <= 0 || binaryExponent >= 0x7FF) {
+			// subnormal or infinite
+			return Double.NaN;
+		}
+		long bits = (binaryExponent << 52) | (result & 0x000FFFFFFFFFFFFFL);
+		if (isNegative) {
+			bits |= 0x8000000000000000L;
+		}
+		return Double.longBitsToDouble(bits);
+	}
+
+	private static long unsignedMultiplyHigh(long x, long y) {
+		return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+	}
+}
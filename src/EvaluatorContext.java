@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * The one-time, per data set state of a fitness evaluator (label encodings,
+ * centroids, indexes, ...). A context is prepared once per run and shared
+ * read-only by all the workers; each particle then gets a cheap evaluator for
+ * its own feature selection result from {@link #newEvaluator(List)}.
+ */
+public abstract class EvaluatorContext {
+	private static final Logger log = Logger.getLogger(EvaluatorContext.class.getName());
+
+	/** The evaluator used if none is given on the command line. */
+	public static final String DEFAULT_EVALUATOR = "rocchio";
+
+	protected final FeatureMatrix data;
+
+	/** @param data the data set, or null if it is not in this process */
+	protected EvaluatorContext(FeatureMatrix data) {
+		this.data = data;
+	}
+
+	public FeatureMatrix getData() {
+		return data;
+	}
+
+	public abstract String getName();
+
+	/** Creates the evaluator of one feature selection result. */
+	public abstract AbstractFeatureSelectionEvaluator newEvaluator(
+			List<Integer> featureSelectionResult);
+
+	/**
+	 * Counts, for each feature selection result, the instances its evaluator
+	 * classifies correctly. This one evaluates the results one after another;
+	 * a context that can classify under several masks in one pass over the
+	 * instances overrides it.
+	 */
+	public int[] countCorrectlyClassified(
+			List<? extends List<Integer>> featureSelectionResults, List<Integer> instanceIndices) {
+		int[] result = new int[featureSelectionResults.size()];
+		for (int m = 0; m < result.length; m++) {
+			result[m] = newEvaluator(featureSelectionResults.get(m)).countCorrectlyClassified(
+					instanceIndices);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the fitness of each feature selection result on all the
+	 * instances, from a single {@link #countCorrectlyClassified(List, List)}.
+	 */
+	public List<Double> calcFitness(List<? extends List<Integer>> featureSelectionResults,
+			double alpha, double beta) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		List<AbstractFeatureSelectionEvaluator> evaluators = new ArrayList<>();
+		for (List<Integer> featureSelectionResult : featureSelectionResults) {
+			evaluators.add(newEvaluator(featureSelectionResult));
+		}
+		if (evaluators.isEmpty()) {
+			return new ArrayList<>();
+		}
+		int numInstances = evaluators.get(0).getNumInstances();
+		int[] numCorrect = countCorrectlyClassified(featureSelectionResults, MathUtil
+				.range(numInstances));
+		List<Double> result = new ArrayList<>(evaluators.size());
+		for (int m = 0; m < numCorrect.length; m++) {
+			result.add(evaluators.get(m).fitness(alpha, beta, ((double) numCorrect[m])
+					/ numInstances));
+		}
+		stopwatch.stop();
+		log.info(getName() + " batch of " + result.size() + " evaluated. " + stopwatch);
+		MetricsRegistry.get().histogram("fitness." + getName() + ".batch.nanos").record(
+				stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		return result;
+	}
+
+	/**
+	 * Prepares the context of {@code knn} or {@code knn:K}, the only evaluator
+	 * that runs over shards of the data set, over the given shards.
+	 */
+	public static ShardedKNN.Context prepareSharded(String evaluatorSpec, List<KnnShard> shards) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		Integer numK = parseKnnK(evaluatorSpec);
+		if (numK == null) {
+			throw new IllegalArgumentException("Not an evaluator over shards: " + evaluatorSpec);
+		}
+		ShardedKNN.Context result = new ShardedKNN.Context(shards, numK);
+		stopwatch.stop();
+		log.info("evaluator context " + result.getName() + " over " + shards.size()
+				+ " shards prepared. " + stopwatch);
+		return result;
+	}
+
+	/**
+	 * Prepares the context of {@code knn} or {@code knn:K} over the partial
+	 * Gram matrices of the data set, cached within {@code maxCacheBytes}
+	 * bytes; any other evaluator, or knn if not a single matrix fits, is
+	 * prepared as by {@link #prepare(String, FeatureMatrix)}.
+	 */
+	public static EvaluatorContext prepareBlockGram(String evaluatorSpec, FeatureMatrix data,
+			long maxCacheBytes) {
+		Integer numK = parseKnnK(evaluatorSpec);
+		if (numK == null) {
+			log.warning("only knn uses a Gram matrix cache; " + evaluatorSpec + " does not");
+			return prepare(evaluatorSpec, data);
+		}
+		if (!BlockGramCache.canCache(data.getNumRows(), maxCacheBytes)) {
+			log.warning("a Gram matrix of " + data.getNumRows() + " instances does not fit in "
+					+ maxCacheBytes + " bytes; knn runs without the cache");
+			return prepare(evaluatorSpec, data);
+		}
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		BlockGramKNN.Context result = new BlockGramKNN.Context(data, numK, maxCacheBytes);
+		stopwatch.stop();
+		log.info("evaluator context " + result.getName() + " with a Gram matrix cache of "
+				+ maxCacheBytes + " bytes prepared. " + stopwatch);
+		return result;
+	}
+
+	/**
+	 * Prepares the context of {@code knn} or {@code knn:K} over the candidate
+	 * neighbors of a file written by {@link KnnCandidates}; any other
+	 * evaluator is prepared as by {@link #prepare(String, FeatureMatrix)}.
+	 */
+	public static EvaluatorContext prepareCandidates(String evaluatorSpec, FeatureMatrix data,
+			String candidatesFilePath) throws IOException {
+		Integer numK = parseKnnK(evaluatorSpec);
+		if (numK == null) {
+			log.warning("only knn uses candidate neighbors; " + evaluatorSpec + " does not");
+			return prepare(evaluatorSpec, data);
+		}
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		CandidateKNN.Context result = new CandidateKNN.Context(data, numK, KnnCandidates.open(
+				candidatesFilePath, data));
+		stopwatch.stop();
+		log.info("evaluator context " + result.getName() + " from " + candidatesFilePath
+				+ " prepared. " + stopwatch);
+		return result;
+	}
+
+	/**
+	 * Prepares the context of an evaluator given by its name: {@code rocchio},
+	 * {@code knn} (K=5), or {@code knn:K}.
+	 */
+	public static EvaluatorContext prepare(String evaluatorSpec, FeatureMatrix data) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		Integer numK = parseKnnK(evaluatorSpec);
+		EvaluatorContext result;
+		if (numK != null) {
+			result = new KNN.Context(data, numK);
+		} else if (evaluatorSpec.equalsIgnoreCase("rocchio")) {
+			result = new Rocchio.Context(data);
+		} else {
+			throw new IllegalArgumentException("Unknown evaluator: " + evaluatorSpec);
+		}
+		stopwatch.stop();
+		log.info("evaluator context " + result.getName() + " prepared. " + stopwatch);
+		MetricsRegistry.get().histogram("evaluator." + result.getName() + ".prepare.nanos")
+				.record(stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		return result;
+	}
+
+	/**
+	 * The K of {@code knn} (K=5) or {@code knn:K}, or null if the spec names
+	 * another evaluator.
+	 */
+	private static Integer parseKnnK(String evaluatorSpec) {
+		String[] nameAndArgument = evaluatorSpec.split(":", 2);
+		if (!nameAndArgument[0].equalsIgnoreCase("knn")) {
+			return null;
+		}
+		return nameAndArgument.length == 2 ? Integer.parseInt(nameAndArgument[1]) : KNN.DEFAULT_K;
+	}
+}
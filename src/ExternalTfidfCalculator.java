@@ -0,0 +1,755 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Computes the tf-idf vector space model of {@link TfidfCalculator} for
+ * corpora larger than the heap, within a memory budget, in three passes:
+ * <ol>
+ * <li>The input is tokenized in line-aligned chunks, and (term, document,
+ * count) postings are collected until the budget is used up; they are then
+ * sorted by term and spilled to a run file.
+ * <li>The runs are merged by term. A term's number of postings is its document
+ * frequency, so its postings are weighted as soon as the term is reached, and
+ * (document, term id, tf-idf) entries are spilled to run files sorted by
+ * document whenever the budget is used up.
+ * <li>These runs are merged by document, and the rows are normalized and
+ * written as they come.
+ * </ol>
+ * Neither merge opens more than a fixed number of runs at a time: runs beyond
+ * that are first merged in passes, in groups of consecutive runs, into runs of
+ * the same kind.
+ * <p>
+ * Besides the budget, the heap holds the vocabulary and the length of each
+ * document. Term ids, and so columns, are in the lexicographic order of the
+ * terms instead of the order they are first seen.
+ */
+public class ExternalTfidfCalculator {
+	private static final Logger log = Logger.getLogger(ExternalTfidfCalculator.class.getName());
+
+	public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+
+	/** The runs a merge reads at a time, each with its own file and buffer. */
+	public static final int DEFAULT_MAX_FAN_IN = 64;
+
+	private static final int RUN_BUFFER_SIZE = 1 << 16;
+
+	// estimated heap bytes of a posting, of a term besides its characters, and
+	// of a weighted posting
+	private static final int POSTING_BYTES = 12;
+
+	private static final int TERM_BYTES = 64;
+
+	private static final int WEIGHTED_POSTING_BYTES = 20;
+
+	private final long memoryBudget;
+
+	private final File tempDir;
+
+	private final int maxFanIn;
+
+	private final List<File> tempFiles = new ArrayList<>();
+
+	// the terms in id order, and the numbers of documents they appear in
+	private TermDictionary dictionary;
+
+	private int[] numAppearance;
+
+	public ExternalTfidfCalculator(long memoryBudget, File tempDir) {
+		this(memoryBudget, tempDir, DEFAULT_MAX_FAN_IN);
+	}
+
+	/** @param maxFanIn the runs a merge reads at a time, at least 2 */
+	public ExternalTfidfCalculator(long memoryBudget, File tempDir, int maxFanIn) {
+		Preconditions.checkArgument(memoryBudget > 0, "Invalid memory budget: %s", memoryBudget);
+		Preconditions.checkArgument(maxFanIn >= 2, "Invalid fan-in: %s", maxFanIn);
+		this.memoryBudget = memoryBudget;
+		this.tempDir = tempDir;
+		this.maxFanIn = maxFanIn;
+	}
+
+	/**
+	 * Writes the vector space model file and returns the model, for vectors of
+	 * other documents with the same columns.
+	 */
+	public TfidfModel calculate(String inputFilePath, String outputFilePath,
+			boolean isNormalizeVector, TfidfRowWriter.Format format) throws IOException {
+		try {
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			File classesFile = newTempFile("classes");
+			PostingSpiller postings;
+			try (FileChannel channel = FileChannel.open(new File(inputFilePath).toPath(),
+					StandardOpenOption.READ);
+					DataOutputStream classesOut = newOutput(classesFile)) {
+				postings = new PostingSpiller(classesOut);
+				// the chunk being tokenized is outside the budget, so keep it small
+				for (LineChunks.Chunk chunk : LineChunks.split(channel, 1, Math.max(1 << 20,
+						memoryBudget / 8))) {
+					postings.tokenize(chunk.read(channel));
+				}
+				postings.spill();
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			log.info(String.format("%d documents tokenized into %d runs in %d ms",
+					postings.numDocs, postings.runs.size(),
+					stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+
+			stopwatch.reset().start();
+			dictionary = new TermDictionary();
+			numAppearance = new int[1024];
+			List<File> weightedRuns = weight(postings.runs, postings.docLengths,
+					postings.numDocs);
+			log.info(String.format("%d terms weighted into %d runs in %d ms", dictionary.size(),
+					weightedRuns.size(), stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+
+			stopwatch.reset().start();
+			writeRows(weightedRuns, classesFile, postings.numDocs, dictionary.getTerms(),
+					isNormalizeVector, format, outputFilePath);
+			log.info(String.format("%d rows written in %d ms", postings.numDocs,
+					stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+			return new TfidfModel(dictionary, numAppearance, postings.numDocs, isNormalizeVector);
+		} finally {
+			for (File file : tempFiles) {
+				file.delete();
+			}
+			tempFiles.clear();
+		}
+	}
+
+	/**
+	 * Merges the runs of postings by term, assigns the term ids and weights the
+	 * postings; returns the runs of weighted postings.
+	 */
+	private List<File> weight(List<File> runs, int[] docLengths, int numDocs) throws IOException {
+		while (runs.size() > maxFanIn) {
+			List<File> merged = new ArrayList<>();
+			for (int from = 0; from < runs.size(); from += maxFanIn) {
+				List<File> group = runs.subList(from, Math.min(runs.size(), from + maxFanIn));
+				merged.add(group.size() == 1 ? group.get(0) : mergeTermRuns(group));
+			}
+			log.info(runs.size() + " runs of postings merged into " + merged.size());
+			runs = merged;
+		}
+		PriorityQueue<TermRunReader> queue = openTermRuns(runs);
+		WeightedPostingSpiller weighted = new WeightedPostingSpiller();
+		List<TermRunReader> group = new ArrayList<>();
+		while (!queue.isEmpty()) {
+			// the runs of a term are polled in run order, so in document order
+			group.clear();
+			group.add(queue.poll());
+			String term = group.get(0).term;
+			while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+				group.add(queue.poll());
+			}
+			int termId = dictionary.intern(term);
+			if (termId == numAppearance.length) {
+				numAppearance = Arrays.copyOf(numAppearance, termId * 2);
+			}
+			for (TermRunReader reader : group) {
+				numAppearance[termId] += reader.numPostings;
+			}
+			double invDocFreq = Math.log10(1.0 * numDocs / numAppearance[termId]);
+			for (TermRunReader reader : group) {
+				for (int k = 0; k < reader.numPostings; k++) {
+					int doc = reader.in.readInt();
+					int count = reader.in.readInt();
+					weighted.add(doc, termId, (1.0 * count / docLengths[doc]) * invDocFreq);
+				}
+				if (reader.next()) {
+					queue.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+		}
+		weighted.spill();
+		return weighted.runs;
+	}
+
+	/** Opens the runs of postings, ordered by their current term, then by run. */
+	private static PriorityQueue<TermRunReader> openTermRuns(List<File> runs)
+			throws IOException {
+		PriorityQueue<TermRunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+				new Comparator<TermRunReader>() {
+
+					@Override
+					public int compare(TermRunReader a, TermRunReader b) {
+						int result = a.term.compareTo(b.term);
+						return result != 0 ? result : Integer.compare(a.runIndex, b.runIndex);
+					}
+				});
+		for (int i = 0; i < runs.size(); i++) {
+			TermRunReader reader = new TermRunReader(runs.get(i), i);
+			if (reader.next()) {
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Merges consecutive runs of postings into one, whose postings of a term
+	 * are those of the runs in run order, and so in document order; deletes
+	 * the merged runs.
+	 */
+	private File mergeTermRuns(List<File> runs) throws IOException {
+		PriorityQueue<TermRunReader> queue = openTermRuns(runs);
+		File run = newTempFile("terms");
+		int numTerms = 0;
+		List<TermRunReader> group = new ArrayList<>();
+		try (DataOutputStream out = newOutput(run)) {
+			// the number of terms, written once known
+			out.writeInt(0);
+			while (!queue.isEmpty()) {
+				group.clear();
+				group.add(queue.poll());
+				String term = group.get(0).term;
+				int numPostings = group.get(0).numPostings;
+				while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+					group.add(queue.poll());
+					numPostings += group.get(group.size() - 1).numPostings;
+				}
+				out.writeUTF(term);
+				out.writeInt(numPostings);
+				for (TermRunReader reader : group) {
+					for (int k = 0; k < reader.numPostings; k++) {
+						out.writeInt(reader.in.readInt());
+						out.writeInt(reader.in.readInt());
+					}
+					if (reader.next()) {
+						queue.add(reader);
+					} else {
+						reader.close();
+					}
+				}
+				numTerms++;
+			}
+		}
+		writeCount(run, numTerms);
+		for (File merged : runs) {
+			merged.delete();
+		}
+		return run;
+	}
+
+	/** Opens the runs of weighted postings, ordered by their current document, then by run. */
+	private static PriorityQueue<DocRunReader> openDocRuns(List<File> runs) throws IOException {
+		PriorityQueue<DocRunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+				new Comparator<DocRunReader>() {
+
+					@Override
+					public int compare(DocRunReader a, DocRunReader b) {
+						int result = Integer.compare(a.doc, b.doc);
+						return result != 0 ? result : Integer.compare(a.runIndex, b.runIndex);
+					}
+				});
+		for (int i = 0; i < runs.size(); i++) {
+			DocRunReader reader = new DocRunReader(runs.get(i), i);
+			if (reader.next()) {
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Merges consecutive runs of weighted postings into one, whose entries of a
+	 * document are those of the runs in run order, and so in term id order;
+	 * deletes the merged runs.
+	 */
+	private File mergeDocRuns(List<File> runs) throws IOException {
+		PriorityQueue<DocRunReader> queue = openDocRuns(runs);
+		File run = newTempFile("docs");
+		int numDocs = 0;
+		List<DocRunReader> group = new ArrayList<>();
+		try (DataOutputStream out = newOutput(run)) {
+			// the number of documents, written once known
+			out.writeInt(0);
+			while (!queue.isEmpty()) {
+				group.clear();
+				group.add(queue.poll());
+				int doc = group.get(0).doc;
+				int numEntries = group.get(0).numEntries;
+				while (!queue.isEmpty() && queue.peek().doc == doc) {
+					group.add(queue.poll());
+					numEntries += group.get(group.size() - 1).numEntries;
+				}
+				// the term ids of all the runs precede their values
+				double[] values = new double[numEntries];
+				out.writeInt(doc);
+				out.writeInt(numEntries);
+				int length = 0;
+				for (DocRunReader reader : group) {
+					for (int k = 0; k < reader.numEntries; k++) {
+						out.writeInt(reader.in.readInt());
+					}
+					for (int k = 0; k < reader.numEntries; k++) {
+						values[length++] = reader.in.readDouble();
+					}
+					if (reader.next()) {
+						queue.add(reader);
+					} else {
+						reader.close();
+					}
+				}
+				for (double value : values) {
+					out.writeDouble(value);
+				}
+				numDocs++;
+			}
+		}
+		writeCount(run, numDocs);
+		for (File merged : runs) {
+			merged.delete();
+		}
+		return run;
+	}
+
+	/** Overwrites the count at the start of a run. */
+	private static void writeCount(File run, int count) throws IOException {
+		try (FileChannel channel = FileChannel.open(run.toPath(), StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, count);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
+			}
+		}
+	}
+
+	/** Merges the runs of weighted postings by document and writes the rows. */
+	private void writeRows(List<File> runs, File classesFile, int numDocs, List<String> terms,
+			boolean isNormalizeVector, TfidfRowWriter.Format format, String outputFilePath)
+			throws IOException {
+		while (runs.size() > maxFanIn) {
+			List<File> merged = new ArrayList<>();
+			for (int from = 0; from < runs.size(); from += maxFanIn) {
+				List<File> group = runs.subList(from, Math.min(runs.size(), from + maxFanIn));
+				merged.add(group.size() == 1 ? group.get(0) : mergeDocRuns(group));
+			}
+			log.info(runs.size() + " runs of weighted postings merged into " + merged.size());
+			runs = merged;
+		}
+		PriorityQueue<DocRunReader> queue = openDocRuns(runs);
+		int[] ids = new int[1024];
+		double[] tfidf = new double[1024];
+		try (DataInputStream classesIn = newInput(classesFile);
+				TfidfRowWriter out = TfidfRowWriter.open(format, outputFilePath, terms)) {
+			for (int doc = 0; doc < numDocs; doc++) {
+				String className = classesIn.readUTF();
+				// term ids grow with the run index, so polling in run order sorts them
+				int length = 0;
+				while (!queue.isEmpty() && queue.peek().doc == doc) {
+					DocRunReader reader = queue.poll();
+					if (ids.length < length + reader.numEntries) {
+						ids = Arrays.copyOf(ids, (length + reader.numEntries) * 2);
+						tfidf = Arrays.copyOf(tfidf, ids.length);
+					}
+					for (int k = 0; k < reader.numEntries; k++) {
+						ids[length + k] = reader.in.readInt();
+					}
+					for (int k = 0; k < reader.numEntries; k++) {
+						tfidf[length + k] = reader.in.readDouble();
+					}
+					length += reader.numEntries;
+					if (reader.next()) {
+						queue.add(reader);
+					} else {
+						reader.close();
+					}
+				}
+
+				if (isNormalizeVector) {
+					TfidfCalculator.normalizeVector(tfidf, length);
+				}
+
+				out.writeRow(className, ids, tfidf, length);
+			}
+		}
+	}
+
+	private File newTempFile(String prefix) throws IOException {
+		File file = File.createTempFile("tfidf-" + prefix, ".bin", tempDir);
+		tempFiles.add(file);
+		return file;
+	}
+
+	private static DataOutputStream newOutput(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+				RUN_BUFFER_SIZE));
+	}
+
+	private static DataInputStream newInput(File file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+				RUN_BUFFER_SIZE));
+	}
+
+	/**
+	 * Collects the postings of documents and spills them sorted by term. A run
+	 * is the number of terms, then per term the term, its number of postings
+	 * and the (document, count) postings in document order.
+	 */
+	private class PostingSpiller extends DocumentTokenizer {
+		private final DataOutputStream classesOut;
+
+		private final List<File> runs = new ArrayList<>();
+
+		// the length of each document
+		private int[] docLengths = new int[1024];
+
+		private int numDocs = 0;
+
+		// the terms of the current run and their ids
+		private final HashMap<String, Integer> idsByTerm = new HashMap<>();
+
+		private final ArrayList<String> terms = new ArrayList<>();
+
+		// postings of the current run
+		private int[] postingTermIds = new int[1024];
+
+		private int[] postingDocs = new int[1024];
+
+		private int[] postingCounts = new int[1024];
+
+		private int numPostings = 0;
+
+		private long numBytes = 0;
+
+		// the count of each term id in the current document, all zero in between
+		private int[] counts = new int[1024];
+
+		// the distinct term ids of the current document
+		private int[] distinctTermIds = new int[64];
+
+		private int numDistinct = 0;
+
+		private int wc = 0;
+
+		PostingSpiller(DataOutputStream classesOut) {
+			this.classesOut = classesOut;
+		}
+
+		@Override
+		protected void startDocument(String className) {
+			try {
+				classesOut.writeUTF(className);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			numDistinct = 0;
+			wc = 0;
+		}
+
+		@Override
+		protected void addTerm(String term) {
+			Integer id = idsByTerm.get(term);
+			if (id == null) {
+				id = terms.size();
+				idsByTerm.put(term, id);
+				terms.add(term);
+				numBytes += TERM_BYTES + 2 * term.length();
+				if (id == counts.length) {
+					counts = Arrays.copyOf(counts, id * 2);
+				}
+			}
+			if (counts[id]++ == 0) {
+				if (numDistinct == distinctTermIds.length) {
+					distinctTermIds = Arrays.copyOf(distinctTermIds, numDistinct * 2);
+				}
+				distinctTermIds[numDistinct++] = id;
+			}
+			wc++;
+		}
+
+		@Override
+		protected void endDocument() {
+			if (docLengths.length == numDocs) {
+				docLengths = Arrays.copyOf(docLengths, numDocs * 2);
+			}
+			docLengths[numDocs] = wc;
+			if (postingTermIds.length < numPostings + numDistinct) {
+				int capacity = (numPostings + numDistinct) * 2;
+				postingTermIds = Arrays.copyOf(postingTermIds, capacity);
+				postingDocs = Arrays.copyOf(postingDocs, capacity);
+				postingCounts = Arrays.copyOf(postingCounts, capacity);
+			}
+			for (int k = 0; k < numDistinct; k++) {
+				int id = distinctTermIds[k];
+				postingTermIds[numPostings] = id;
+				postingDocs[numPostings] = numDocs;
+				postingCounts[numPostings] = counts[id];
+				numPostings++;
+				counts[id] = 0;
+			}
+			numBytes += (long) POSTING_BYTES * numDistinct;
+			numDocs++;
+			if (numBytes >= memoryBudget) {
+				try {
+					spill();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+
+		void spill() throws IOException {
+			if (numPostings == 0) {
+				return;
+			}
+			String[] sortedTerms = terms.toArray(new String[terms.size()]);
+			Arrays.sort(sortedTerms);
+			int[] ranks = new int[sortedTerms.length];
+			for (int rank = 0; rank < sortedTerms.length; rank++) {
+				ranks[idsByTerm.get(sortedTerms[rank])] = rank;
+			}
+			// postings were added in document order, which the index keeps
+			long[] keys = new long[numPostings];
+			for (int i = 0; i < numPostings; i++) {
+				keys[i] = ((long) ranks[postingTermIds[i]] << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			File run = newTempFile("terms");
+			try (DataOutputStream out = newOutput(run)) {
+				out.writeInt(sortedTerms.length);
+				int start = 0;
+				while (start < numPostings) {
+					int rank = (int) (keys[start] >>> 32);
+					int end = start + 1;
+					while (end < numPostings && (int) (keys[end] >>> 32) == rank) {
+						end++;
+					}
+					out.writeUTF(sortedTerms[rank]);
+					out.writeInt(end - start);
+					for (int k = start; k < end; k++) {
+						int i = (int) keys[k];
+						out.writeInt(postingDocs[i]);
+						out.writeInt(postingCounts[i]);
+					}
+					start = end;
+				}
+			}
+			runs.add(run);
+
+			idsByTerm.clear();
+			terms.clear();
+			counts = new int[1024];
+			numPostings = 0;
+			numBytes = 0;
+		}
+	}
+
+	/**
+	 * Collects weighted postings and spills them sorted by document. A run is
+	 * the number of documents, then per document the document, its number of
+	 * entries, their term ids and their tf-idf values.
+	 */
+	private class WeightedPostingSpiller {
+		private final int capacity = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8,
+				memoryBudget / WEIGHTED_POSTING_BYTES));
+
+		private final List<File> runs = new ArrayList<>();
+
+		private long[] keys = new long[1024];
+
+		private int[] termIds = new int[1024];
+
+		private double[] values = new double[1024];
+
+		private int size = 0;
+
+		void add(int doc, int termId, double value) throws IOException {
+			if (size == keys.length) {
+				int newCapacity = (int) Math.min(capacity, size * 2L);
+				keys = Arrays.copyOf(keys, newCapacity);
+				termIds = Arrays.copyOf(termIds, newCapacity);
+				values = Arrays.copyOf(values, newCapacity);
+			}
+			// the index keeps the term ids of a document in ascending order
+			keys[size] = ((long) doc << 32) | size;
+			termIds[size] = termId;
+			values[size] = value;
+			size++;
+			if (size == capacity) {
+				spill();
+			}
+		}
+
+		void spill() throws IOException {
+			if (size == 0) {
+				return;
+			}
+			Arrays.sort(keys, 0, size);
+			int numDocs = 0;
+			for (int k = 0; k < size; k++) {
+				if (k == 0 || (keys[k] >>> 32) != (keys[k - 1] >>> 32)) {
+					numDocs++;
+				}
+			}
+			File run = newTempFile("docs");
+			try (DataOutputStream out = newOutput(run)) {
+				out.writeInt(numDocs);
+				int start = 0;
+				while (start < size) {
+					int doc = (int) (keys[start] >>> 32);
+					int end = start + 1;
+					while (end < size && (int) (keys[end] >>> 32) == doc) {
+						end++;
+					}
+					out.writeInt(doc);
+					out.writeInt(end - start);
+					for (int k = start; k < end; k++) {
+						out.writeInt(termIds[(int) keys[k]]);
+					}
+					for (int k = start; k < end; k++) {
+						out.writeDouble(values[(int) keys[k]]);
+					}
+					start = end;
+				}
+			}
+			runs.add(run);
+			size = 0;
+		}
+	}
+
+	private static class TermRunReader {
+		final DataInputStream in;
+
+		final int runIndex;
+
+		int numRemainingTerms;
+
+		String term;
+
+		int numPostings;
+
+		TermRunReader(File run, int runIndex) throws IOException {
+			this.in = newInput(run);
+			this.runIndex = runIndex;
+			this.numRemainingTerms = in.readInt();
+		}
+
+		/** Reads the next term, once the postings of the current one are read. */
+		boolean next() throws IOException {
+			if (numRemainingTerms == 0) {
+				return false;
+			}
+			numRemainingTerms--;
+			term = in.readUTF();
+			numPostings = in.readInt();
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static class DocRunReader {
+		final DataInputStream in;
+
+		final int runIndex;
+
+		int numRemainingDocs;
+
+		int doc;
+
+		int numEntries;
+
+		DocRunReader(File run, int runIndex) throws IOException {
+			this.in = newInput(run);
+			this.runIndex = runIndex;
+			this.numRemainingDocs = in.readInt();
+		}
+
+		/** Reads the next document, once the entries of the current one are read. */
+		boolean next() throws IOException {
+			if (numRemainingDocs == 0) {
+				return false;
+			}
+			numRemainingDocs--;
+			doc = in.readInt();
+			numEntries = in.readInt();
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String modelFilePath = null;
+		boolean isNormalizeVector = false;
+		TfidfRowWriter.Format format = TfidfRowWriter.Format.CSV;
+		long memoryBudget = DEFAULT_MEMORY_BUDGET;
+		File tempDir = null;
+		boolean isValid = args.length >= 2;
+		for (int i = 2; isValid && i < args.length; i++) {
+			if (args[i].equals("-n")) {
+				isNormalizeVector = true;
+			} else if (args[i].equals("-f") && i + 1 < args.length) {
+				format = TfidfRowWriter.Format.parse(args[++i]);
+			} else if (args[i].equals("-memory") && i + 1 < args.length) {
+				memoryBudget = Long.parseLong(args[++i]) << 20;
+			} else if (args[i].equals("-tmp") && i + 1 < args.length) {
+				tempDir = new File(args[++i]);
+			} else if (args[i].equals("-model") && i + 1 < args.length) {
+				modelFilePath = args[++i];
+			} else {
+				isValid = false;
+			}
+		}
+		if (!isValid) {
+			System.err.printf("usage: %s inputFilePath, outputFilePath [-n] [-f format]"
+					+ " [-memory MB] [-tmp dir] [-model modelFilePath]\n",
+					ExternalTfidfCalculator.class.getName());
+			System.err.printf("options:\n");
+			System.err
+					.printf("\t-n: normalize vectors to unit-vectors (i.e. the length is 1.0).\n");
+			System.err.printf("\t-f <csv|sparse|binary>: output format (default: csv).\n");
+			System.err.printf("\t-memory <MB>: memory budget of the postings (default: %d).\n",
+					DEFAULT_MEMORY_BUDGET >> 20);
+			System.err.printf("\t-tmp <dir>: directory of the run files (default: java.io.tmpdir).\n");
+			System.err.printf("\t-model <file>: save the model, to transform other documents"
+					+ " with TfidfModel.\n");
+			System.exit(1);
+		}
+		String inputFilePath = args[0];
+		String outputFilePath = args[1];
+		if (isNormalizeVector) {
+			outputFilePath += "_normalized";
+		}
+		System.out.printf("inputFilePath=%s, outputFilePath=%s, isNormalizeVector=%s, format=%s\n",
+				inputFilePath, outputFilePath, isNormalizeVector, format);
+		TfidfModel model = new ExternalTfidfCalculator(memoryBudget, tempDir).calculate(
+				inputFilePath, outputFilePath, isNormalizeVector, format);
+		if (modelFilePath != null) {
+			model.save(modelFilePath);
+			System.out.println("model saved to " + modelFilePath);
+		}
+	}
+}
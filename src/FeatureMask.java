@@ -0,0 +1,76 @@
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The features selected by a mask, both as their ascending indices and as one
+ * weight per feature, 1.0 if it is selected and 0.0 if not. Scalar kernels
+ * visit only the indices; SIMD kernels multiply whole vectors of features by
+ * the weights instead of gathering the selected ones.
+ */
+public final class FeatureMask {
+	private final int[] indices;
+
+	private final double[] weights;
+
+	/** Takes over the ascending indices of the selected features. */
+	public FeatureMask(int numFeatures, int[] indices) {
+		this.indices = indices;
+		this.weights = new double[numFeatures];
+		for (int k = 0; k < indices.length; k++) {
+			Preconditions.checkArgument(indices[k] >= (k == 0 ? 0 : indices[k - 1] + 1)
+					&& indices[k] < numFeatures, "Bad feature index: %s", indices[k]);
+			weights[indices[k]] = 1.0;
+		}
+	}
+
+	/** The features whose bit is 1 in a feature selection result. */
+	public static FeatureMask of(List<Integer> featureSelectionResult) {
+		int numSelected = 0;
+		for (int bit : featureSelectionResult) {
+			if (bit == 1) {
+				numSelected++;
+			}
+		}
+		int[] indices = new int[numSelected];
+		int j = 0;
+		for (int i = 0; i < featureSelectionResult.size(); i++) {
+			if (featureSelectionResult.get(i) == 1) {
+				indices[j++] = i;
+			}
+		}
+		return new FeatureMask(featureSelectionResult.size(), indices);
+	}
+
+	/** All of the features. */
+	public static FeatureMask all(int numFeatures) {
+		int[] indices = new int[numFeatures];
+		for (int i = 0; i < numFeatures; i++) {
+			indices[i] = i;
+		}
+		return new FeatureMask(numFeatures, indices);
+	}
+
+	public int getNumFeatures() {
+		return weights.length;
+	}
+
+	public int getNumSelected() {
+		return indices.length;
+	}
+
+	/** The fraction of the features that are selected. */
+	public double getDensity() {
+		return weights.length == 0 ? 0.0 : ((double) indices.length) / weights.length;
+	}
+
+	/** Returns the array itself, not a copy; callers must not modify it. */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/** Returns the array itself, not a copy; callers must not modify it. */
+	public double[] getWeights() {
+		return weights;
+	}
+}
@@ -0,0 +1,529 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A read-only data set stored as primitive rows, with class names encoded as
+ * integer labels. It is built once per run and shared by all workers.
+ * <p>
+ * Rows are doubles unless converted with {@link #withPrecision(Precision)} to
+ * floats, or to 16- or 8-bit integers with one float scale per feature (a
+ * value is its integer times the scale of its feature). The evaluators go
+ * through {@code squaredEuclideanDistance} and
+ * {@link #dotProduct(int, int, FeatureMask)}, which call the kernel of the
+ * storage: {@link DistanceKernels} for doubles, the {@link MathUtil} ones
+ * otherwise, which work in float, summed in double per block of features.
+ * <p>
+ * The values are on the heap unless converted with
+ * {@link #withStorage(Storage)}, or loaded, to {@link OffHeapRows}: the same
+ * rows in direct buffers, which the garbage collector does not scan, read by
+ * the same methods with buffer kernels. Such a matrix holds its memory until
+ * it is {@linkplain #close() closed} and no read is under way; closing a heap
+ * one does nothing.
+ */
+public class FeatureMatrix implements Closeable {
+	/** How the feature values are stored. */
+	public enum Precision {
+		DOUBLE(8), FLOAT(4), INT16(2), INT8(1);
+
+		private final int numBytes;
+
+		private Precision(int numBytes) {
+			this.numBytes = numBytes;
+		}
+
+		/** The number of bytes of a stored value. */
+		public int getNumBytes() {
+			return numBytes;
+		}
+
+		/** Parses a precision name, in any case: double, float, int16 or int8. */
+		public static Precision parse(String name) {
+			return valueOf(name.toUpperCase(Locale.ROOT));
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/** Where the feature values are stored. */
+	public enum Storage {
+		HEAP, OFF_HEAP;
+
+		/** Parses a storage name, in any case: heap or off-heap. */
+		public static Storage parse(String name) {
+			return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+		}
+
+		@Override
+		public String toString() {
+			return name().toLowerCase(Locale.ROOT).replace('_', '-');
+		}
+	}
+
+	private final Precision precision;
+
+	// the values off the heap, in the precision, or null if they are on the heap
+	private final OffHeapRows offHeapRows;
+
+	// the heap rows of the storage of the precision; the others are null
+	private final double[][] rows;
+
+	private final float[][] floatRows;
+
+	private final short[][] shortRows;
+
+	private final byte[][] byteRows;
+
+	// the scale of each feature of integer rows, and its square
+	private final float[] scales;
+
+	private final float[] squaredScales;
+
+	// the squared scales of int8 rows in fixed point, for the integer kernels
+	private final int[] squaredScaleWeights;
+
+	private final double squaredScaleUnit;
+
+	private final int[] labels;
+
+	private final List<String> classNames;
+
+	private final int numColumns;
+
+	public FeatureMatrix(List<DataPoint> dataSet) {
+		this(classNamesOf(dataSet), toRows(dataSet));
+	}
+
+	/**
+	 * Takes over the rows, which all have the same length, without copying
+	 * them; {@code rowClassNames} has the class name of each row.
+	 */
+	public FeatureMatrix(List<String> rowClassNames, double[][] rows) {
+		Preconditions.checkArgument(rows.length > 0, "Empty data set.");
+		Preconditions.checkArgument(rowClassNames.size() == rows.length,
+				"%s class names for %s rows", rowClassNames.size(), rows.length);
+		this.precision = Precision.DOUBLE;
+		this.numColumns = rows[0].length;
+		for (int i = 0; i < rows.length; i++) {
+			Preconditions.checkArgument(rows[i].length == numColumns,
+					"Instance %s has %s features; expected %s", i, rows[i].length, numColumns);
+		}
+		this.offHeapRows = null;
+		this.rows = rows;
+		this.floatRows = null;
+		this.shortRows = null;
+		this.byteRows = null;
+		this.scales = null;
+		this.squaredScales = null;
+		this.squaredScaleWeights = null;
+		this.squaredScaleUnit = 0.0;
+		this.labels = new int[rows.length];
+		this.classNames = encodeLabels(rowClassNames, labels);
+	}
+
+	/**
+	 * Takes over off-heap rows of doubles, which it closes when closed;
+	 * {@code rowClassNames} has the class name of each row.
+	 */
+	public FeatureMatrix(List<String> rowClassNames, OffHeapRows rows) {
+		Preconditions.checkArgument(rows.getNumRows() > 0, "Empty data set.");
+		Preconditions.checkArgument(rowClassNames.size() == rows.getNumRows(),
+				"%s class names for %s rows", rowClassNames.size(), rows.getNumRows());
+		Preconditions.checkArgument(rows.getRowBytes() % Precision.DOUBLE.getNumBytes() == 0,
+				"Rows of %s bytes are not doubles", rows.getRowBytes());
+		this.precision = Precision.DOUBLE;
+		this.numColumns = rows.getRowBytes() / Precision.DOUBLE.getNumBytes();
+		this.offHeapRows = rows;
+		this.rows = null;
+		this.floatRows = null;
+		this.shortRows = null;
+		this.byteRows = null;
+		this.scales = null;
+		this.squaredScales = null;
+		this.squaredScaleWeights = null;
+		this.squaredScaleUnit = 0.0;
+		this.labels = new int[rows.getNumRows()];
+		this.classNames = encodeLabels(rowClassNames, labels);
+	}
+
+	/**
+	 * The values of the data in another precision and storage, with the same
+	 * labels; converted one row at a time, so that converting off the heap
+	 * takes no more heap than a row.
+	 */
+	private FeatureMatrix(FeatureMatrix data, Precision precision, Storage storage) {
+		this.precision = precision;
+		this.numColumns = data.numColumns;
+		this.labels = data.labels;
+		this.classNames = data.classNames;
+		int numRows = data.getNumRows();
+		float[] scales = null;
+		float[] squaredScales = null;
+		int maxValue = precision == Precision.INT16 ? Short.MAX_VALUE : Byte.MAX_VALUE;
+		if (precision == Precision.INT16 || precision == Precision.INT8) {
+			double[] maxAbsValues = new double[numColumns];
+			for (int i = 0; i < numRows; i++) {
+				for (int j = 0; j < numColumns; j++) {
+					maxAbsValues[j] = Math.max(maxAbsValues[j], Math.abs(data.get(i, j)));
+				}
+			}
+			scales = new float[numColumns];
+			squaredScales = new float[numColumns];
+			for (int j = 0; j < numColumns; j++) {
+				Preconditions.checkArgument(!Double.isInfinite(maxAbsValues[j])
+						&& !Double.isNaN(maxAbsValues[j]),
+						"Feature %s has a value that is not finite", j);
+				scales[j] = (float) (maxAbsValues[j] / maxValue);
+				squaredScales[j] = scales[j] * scales[j];
+			}
+		}
+		int[] squaredScaleWeights = null;
+		double squaredScaleUnit = 0.0;
+		if (precision == Precision.INT8) {
+			// the largest squared scale is 2^30 units: a product of values times a weight
+			// takes 44 bits, so that a block of them adds up exactly in a long
+			float maxSquaredScale = 0.0f;
+			for (float squaredScale : squaredScales) {
+				maxSquaredScale = Math.max(maxSquaredScale, squaredScale);
+			}
+			squaredScaleUnit = maxSquaredScale == 0.0f ? 1.0 : maxSquaredScale / (double) (1 << 30);
+			squaredScaleWeights = new int[numColumns];
+			for (int j = 0; j < numColumns; j++) {
+				squaredScaleWeights[j] = (int) Math.round(squaredScales[j] / squaredScaleUnit);
+			}
+		}
+		OffHeapRows offHeapRows = null;
+		if (storage == Storage.OFF_HEAP) {
+			long rowBytes = (long) numColumns * precision.getNumBytes();
+			Preconditions.checkArgument(rowBytes <= Integer.MAX_VALUE,
+					"Rows of %s bytes do not fit a buffer", rowBytes);
+			offHeapRows = new OffHeapRows((int) rowBytes);
+		}
+		boolean isHeap = offHeapRows == null;
+		double[][] rows = null;
+		float[][] floatRows = null;
+		short[][] shortRows = null;
+		byte[][] byteRows = null;
+		switch (precision) {
+		case DOUBLE:
+			rows = isHeap ? new double[numRows][] : null;
+			for (int i = 0; i < numRows; i++) {
+				double[] row = data.getRow(i);
+				if (isHeap) {
+					rows[i] = row;
+				} else {
+					offHeapRows.add(row);
+				}
+			}
+			break;
+		case FLOAT:
+			floatRows = isHeap ? new float[numRows][] : null;
+			// a new row for each heap row; off the heap, one row is reused
+			float[] floatRow = new float[numColumns];
+			for (int i = 0; i < numRows; i++) {
+				if (isHeap && i > 0) {
+					floatRow = new float[numColumns];
+				}
+				for (int j = 0; j < numColumns; j++) {
+					floatRow[j] = (float) data.get(i, j);
+				}
+				if (isHeap) {
+					floatRows[i] = floatRow;
+				} else {
+					offHeapRows.add(floatRow);
+				}
+			}
+			break;
+		case INT16:
+		case INT8:
+			boolean isShort = precision == Precision.INT16;
+			if (isHeap) {
+				shortRows = isShort ? new short[numRows][] : null;
+				byteRows = isShort ? null : new byte[numRows][];
+			}
+			short[] shortRow = isShort ? new short[numColumns] : null;
+			byte[] byteRow = isShort ? null : new byte[numColumns];
+			for (int i = 0; i < numRows; i++) {
+				if (isHeap && i > 0) {
+					shortRow = isShort ? new short[numColumns] : null;
+					byteRow = isShort ? null : new byte[numColumns];
+				}
+				for (int j = 0; j < numColumns; j++) {
+					// an all-zero feature has scale 0 and stays 0
+					long value = scales[j] == 0.0f ? 0 : Math.max(-maxValue, Math.min(maxValue,
+							Math.round(data.get(i, j) / scales[j])));
+					if (isShort) {
+						shortRow[j] = (short) value;
+					} else {
+						byteRow[j] = (byte) value;
+					}
+				}
+				if (isHeap && isShort) {
+					shortRows[i] = shortRow;
+				} else if (isHeap) {
+					byteRows[i] = byteRow;
+				} else if (isShort) {
+					offHeapRows.add(shortRow);
+				} else {
+					offHeapRows.add(byteRow);
+				}
+			}
+			break;
+		default:
+			throw new AssertionError(precision);
+		}
+		this.offHeapRows = offHeapRows;
+		this.rows = rows;
+		this.floatRows = floatRows;
+		this.shortRows = shortRows;
+		this.byteRows = byteRows;
+		this.scales = scales;
+		this.squaredScales = squaredScales;
+		this.squaredScaleWeights = squaredScaleWeights;
+		this.squaredScaleUnit = squaredScaleUnit;
+	}
+
+	/**
+	 * Sets the label of each row, numbering the class names in order of
+	 * appearance, and returns the class names by label.
+	 */
+	private static List<String> encodeLabels(List<String> rowClassNames, int[] labels) {
+		List<String> classNames = new ArrayList<>();
+		Map<String, Integer> labelsByClassName = new HashMap<>();
+		for (int i = 0; i < labels.length; i++) {
+			String className = rowClassNames.get(i);
+			Integer label = labelsByClassName.get(className);
+			if (label == null) {
+				label = classNames.size();
+				labelsByClassName.put(className, label);
+				classNames.add(className);
+			}
+			labels[i] = label;
+		}
+		return Collections.unmodifiableList(classNames);
+	}
+
+	private static List<String> classNamesOf(List<DataPoint> dataSet) {
+		List<String> result = new ArrayList<>(dataSet.size());
+		for (DataPoint point : dataSet) {
+			result.add(point.getClassName());
+		}
+		return result;
+	}
+
+	private static double[][] toRows(List<DataPoint> dataSet) {
+		double[][] result = new double[dataSet.size()][];
+		for (int i = 0; i < result.length; i++) {
+			List<Double> featureValues = dataSet.get(i).getFeatureValues();
+			double[] row = new double[featureValues.size()];
+			for (int j = 0; j < row.length; j++) {
+				row[j] = featureValues.get(j);
+			}
+			result[i] = row;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the data stored in the given precision, in the same storage:
+	 * this matrix if it is already stored so, otherwise a copy that shares the
+	 * labels.
+	 */
+	public FeatureMatrix withPrecision(Precision precision) {
+		return precision == this.precision ? this : new FeatureMatrix(this, precision,
+				getStorage());
+	}
+
+	/**
+	 * Returns the data stored in the given storage, in the same precision:
+	 * this matrix if it is already stored so, otherwise a copy that shares the
+	 * labels, which the caller closes.
+	 */
+	public FeatureMatrix withStorage(Storage storage) {
+		return storage == getStorage() ? this : new FeatureMatrix(this, precision, storage);
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	public Storage getStorage() {
+		return offHeapRows == null ? Storage.HEAP : Storage.OFF_HEAP;
+	}
+
+	/** The number of bytes of the stored feature values. */
+	public long getNumValueBytes() {
+		return (long) labels.length * numColumns * precision.getNumBytes();
+	}
+
+	public int getNumRows() {
+		return labels.length;
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	public double get(int row, int column) {
+		if (offHeapRows != null) {
+			ByteBuffer buffer = offHeapRows.buffer(row);
+			int offset = offHeapRows.offset(row);
+			switch (precision) {
+			case FLOAT:
+				return buffer.getFloat(offset + column * 4);
+			case INT16:
+				return buffer.getShort(offset + column * 2) * scales[column];
+			case INT8:
+				return buffer.get(offset + column) * scales[column];
+			default:
+				return buffer.getDouble(offset + column * 8);
+			}
+		}
+		switch (precision) {
+		case FLOAT:
+			return floatRows[row][column];
+		case INT16:
+			return shortRows[row][column] * scales[column];
+		case INT8:
+			return byteRows[row][column] * scales[column];
+		default:
+			return rows[row][column];
+		}
+	}
+
+	/**
+	 * Returns the row itself, not a copy, if the values are stored as doubles
+	 * on the heap; callers must not modify it. Other storage is converted to a
+	 * new array.
+	 */
+	public double[] getRow(int row) {
+		if (precision == Precision.DOUBLE && offHeapRows == null) {
+			return rows[row];
+		}
+		double[] result = new double[numColumns];
+		for (int j = 0; j < numColumns; j++) {
+			result[j] = get(row, j);
+		}
+		return result;
+	}
+
+	/**
+	 * Squared Euclidean distance between a row stored as doubles and a point,
+	 * only over the features of the mask.
+	 */
+	public double squaredEuclideanDistance(int row, double[] point, FeatureMask mask) {
+		Preconditions.checkState(precision == Precision.DOUBLE, "Rows are stored as %s",
+				precision);
+		if (offHeapRows != null) {
+			return DistanceKernels.get().squaredEuclideanDistance(offHeapRows.buffer(row),
+					offHeapRows.offset(row), point, mask);
+		}
+		return DistanceKernels.get().squaredEuclideanDistance(rows[row], point, mask);
+	}
+
+	/**
+	 * Squared Euclidean distance between a row stored with less precision than
+	 * double and a point of floats, only over the features of the mask.
+	 */
+	public double squaredEuclideanDistance(int row, float[] point, FeatureMask mask) {
+		Preconditions.checkState(precision != Precision.DOUBLE, "Rows are stored as %s",
+				precision);
+		int[] featureIndices = mask.getIndices();
+		if (offHeapRows != null) {
+			return MathUtil.calculateSquaredEuclideanDistance(offHeapRows.buffer(row),
+					offHeapRows.offset(row), precision, scales, point, featureIndices);
+		}
+		switch (precision) {
+		case FLOAT:
+			return MathUtil.calculateSquaredEuclideanDistance(floatRows[row], point,
+					featureIndices);
+		case INT16:
+			return MathUtil.calculateSquaredEuclideanDistance(shortRows[row], scales, point,
+					featureIndices);
+		default:
+			return MathUtil.calculateSquaredEuclideanDistance(byteRows[row], scales, point,
+					featureIndices);
+		}
+	}
+
+	/** Dot product of two rows, only over the features of the mask. */
+	public double dotProduct(int row1, int row2, FeatureMask mask) {
+		if (offHeapRows != null) {
+			ByteBuffer buffer1 = offHeapRows.buffer(row1);
+			int offset1 = offHeapRows.offset(row1);
+			ByteBuffer buffer2 = offHeapRows.buffer(row2);
+			int offset2 = offHeapRows.offset(row2);
+			if (precision == Precision.DOUBLE) {
+				return DistanceKernels.get().dotProduct(buffer1, offset1, buffer2, offset2, mask);
+			}
+			if (precision == Precision.INT8) {
+				return MathUtil.dotProduct(buffer1, offset1, buffer2, offset2, squaredScaleWeights,
+						squaredScaleUnit, mask.getIndices());
+			}
+			return MathUtil.dotProduct(buffer1, offset1, buffer2, offset2, precision,
+					squaredScales, mask.getIndices());
+		}
+		int[] featureIndices = mask.getIndices();
+		switch (precision) {
+		case FLOAT:
+			return MathUtil.dotProduct(floatRows[row1], floatRows[row2], featureIndices);
+		case INT16:
+			return MathUtil.dotProduct(shortRows[row1], shortRows[row2], squaredScales,
+					featureIndices);
+		case INT8:
+			return MathUtil.dotProduct(byteRows[row1], byteRows[row2], squaredScaleWeights,
+					squaredScaleUnit, featureIndices);
+		default:
+			return DistanceKernels.get().dotProduct(rows[row1], rows[row2], mask);
+		}
+	}
+
+	/**
+	 * Dot product of a point and a row stored as doubles, only over the
+	 * features of the mask; the same as {@link #dotProduct(int, int, FeatureMask)}
+	 * if the point is the first row.
+	 */
+	public double dotProduct(double[] point, int row, FeatureMask mask) {
+		Preconditions.checkState(precision == Precision.DOUBLE, "Rows are stored as %s",
+				precision);
+		if (offHeapRows != null) {
+			return DistanceKernels.get().dotProduct(point, offHeapRows.buffer(row), offHeapRows
+					.offset(row), mask);
+		}
+		return DistanceKernels.get().dotProduct(point, rows[row], mask);
+	}
+
+	/** Drops the off-heap values; the matrix must not be read afterwards. */
+	@Override
+	public void close() {
+		if (offHeapRows != null) {
+			offHeapRows.close();
+		}
+	}
+
+	public int getLabel(int row) {
+		return labels[row];
+	}
+
+	public String getClassName(int row) {
+		return classNames.get(labels[row]);
+	}
+
+	public int getNumClasses() {
+		return classNames.size();
+	}
+
+	public List<String> getClassNames() {
+		return classNames;
+	}
+}
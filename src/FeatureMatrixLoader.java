@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Loads the dense CSV file written by {@link TfidfCalculator} (a header line,
+ * then "class,v1,v2,..." per row) into a {@link FeatureMatrix}.
+ * <p>
+ * The body is split into line-aligned byte ranges ({@link LineChunks}) that are
+ * parsed in parallel straight into the primitive rows, with
+ * {@link DoubleParser}; no string is made per line or value, and class names
+ * are only decoded when they change from one row to the next. Blank lines are
+ * skipped. A row with a different number of columns than the header, or a
+ * value that is not a number, fails the load with its line number. The rows
+ * end up on the heap or in {@link OffHeapRows}.
+ */
+public class FeatureMatrixLoader {
+	// the size of the chunks read and parsed at a time
+	private static final long CHUNK_SIZE = 8L << 20;
+
+	private FeatureMatrixLoader() {
+	}
+
+	public static FeatureMatrix load(String inputFilePath) throws IOException {
+		return load(inputFilePath, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static FeatureMatrix load(String inputFilePath, int parallelism) throws IOException {
+		return load(inputFilePath, parallelism, FeatureMatrix.Storage.HEAP);
+	}
+
+	/**
+	 * Loads the rows into the given storage. Off the heap, each chunk is
+	 * copied into {@link OffHeapRows} as soon as it is parsed, and at most
+	 * twice as many chunks as threads are parsed at a time, so the heap only
+	 * holds those chunks.
+	 */
+	public static FeatureMatrix load(String inputFilePath, int parallelism,
+			FeatureMatrix.Storage storage) throws IOException {
+		return load(inputFilePath, parallelism, storage, 0, 1);
+	}
+
+	/**
+	 * Loads only the rows of a shard: rows {@code shard}, {@code shard +
+	 * numShards}, {@code shard + 2 * numShards}, ... of the file, in order, as
+	 * a {@link KnnShardServer} holds them; the others are parsed and dropped.
+	 */
+	public static FeatureMatrix load(final String inputFilePath, int parallelism,
+			FeatureMatrix.Storage storage, int shard, int numShards) throws IOException {
+		Preconditions.checkArgument(shard >= 0 && shard < numShards, "Invalid shard %s of %s",
+				shard, numShards);
+		final int numFeatures = ColumnProjector.readHeader(inputFilePath).size() - 1;
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		OffHeapRows offHeapRows = null;
+		try (final FileChannel channel = FileChannel.open(Paths.get(inputFilePath),
+				StandardOpenOption.READ)) {
+			long headerEnd = LineChunks.nextLineStart(channel, 0);
+			List<String> classNames = new ArrayList<>();
+			List<double[]> rows = new ArrayList<>();
+			if (storage == FeatureMatrix.Storage.OFF_HEAP) {
+				offHeapRows = new OffHeapRows(numFeatures * FeatureMatrix.Precision.DOUBLE
+						.getNumBytes());
+			}
+			Deque<Future<ChunkRows>> parts = new ArrayDeque<>();
+			// the index in the file of the next row
+			long rowIndex = 0;
+			Iterator<LineChunks.Chunk> chunks = LineChunks.split(channel, headerEnd,
+					parallelism * 4, CHUNK_SIZE).iterator();
+			while (chunks.hasNext() || !parts.isEmpty()) {
+				while (chunks.hasNext() && parts.size() < parallelism * 2) {
+					final LineChunks.Chunk chunk = chunks.next();
+					parts.add(pool.submit(new Callable<ChunkRows>() {
+
+						@Override
+						public ChunkRows call() throws IOException {
+							return new ChunkRows(chunk.read(channel), chunk.start, numFeatures);
+						}
+					}));
+				}
+				ChunkRows chunk;
+				try {
+					chunk = parts.remove().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof MalformedRowException) {
+						MalformedRowException cause = (MalformedRowException) e.getCause();
+						throw new IOException(String.format("%s:%d: %s", inputFilePath,
+								lineNumberAt(channel, cause.position), cause.getMessage()), cause);
+					}
+					Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+					throw Throwables.propagate(e.getCause());
+				}
+				for (int i = 0; i < chunk.rows.size(); i++, rowIndex++) {
+					if (rowIndex % numShards != shard) {
+						continue;
+					}
+					classNames.add(chunk.classNames.get(i));
+					if (offHeapRows == null) {
+						rows.add(chunk.rows.get(i));
+					} else {
+						offHeapRows.add(chunk.rows.get(i));
+					}
+				}
+			}
+			FeatureMatrix result = offHeapRows == null ? new FeatureMatrix(classNames, rows
+					.toArray(new double[rows.size()][])) : new FeatureMatrix(classNames,
+					offHeapRows);
+			offHeapRows = null;
+			return result;
+		} finally {
+			pool.shutdownNow();
+			if (offHeapRows != null) {
+				offHeapRows.close();
+			}
+		}
+	}
+
+	/** The 1-based number of the line holding the byte at the position. */
+	private static long lineNumberAt(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		long lineNumber = 1;
+		for (long start = 0; start < position;) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), position - start));
+			int numRead = channel.read(buffer, start);
+			if (numRead < 0) {
+				break;
+			}
+			for (int i = 0; i < numRead; i++) {
+				if (buffer.get(i) == '\n') {
+					lineNumber++;
+				}
+			}
+			start += numRead;
+		}
+		return lineNumber;
+	}
+
+	/** A malformed row, at a byte position of the file. */
+	private static class MalformedRowException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final long position;
+
+		MalformedRowException(long position, String message) {
+			super(message);
+			this.position = position;
+		}
+	}
+
+	/** The rows of one chunk. */
+	private static class ChunkRows {
+		final List<String> classNames = new ArrayList<>();
+
+		final List<double[]> rows = new ArrayList<>();
+
+		// one instance of each class name
+		private final Map<String, String> knownClassNames = new HashMap<>();
+
+		private String lastClassName = null;
+
+		private byte[] lastClassNameBytes = null;
+
+		ChunkRows(byte[] bytes, long offset, int numFeatures) {
+			int pos = 0;
+			while (pos < bytes.length) {
+				int lineEnd = pos;
+				while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+					lineEnd++;
+				}
+				int end = lineEnd;
+				if (end > pos && bytes[end - 1] == '\r') {
+					end--;
+				}
+				if (end > pos) {
+					parseRow(bytes, pos, end, offset, numFeatures);
+				}
+				pos = lineEnd + 1;
+			}
+		}
+
+		private void parseRow(byte[] bytes, int start, int end, long offset, int numFeatures) {
+			int fieldEnd = start;
+			while (fieldEnd < end && bytes[fieldEnd] != ',') {
+				fieldEnd++;
+			}
+			classNames.add(className(bytes, start, fieldEnd));
+			double[] values = new double[numFeatures];
+			for (int j = 0; j < numFeatures; j++) {
+				if (fieldEnd == end) {
+					throw new MalformedRowException(offset + start, String.format(
+							"%d columns instead of %d", j + 1, numFeatures + 1));
+				}
+				int fieldStart = fieldEnd + 1;
+				fieldEnd = fieldStart;
+				while (fieldEnd < end && bytes[fieldEnd] != ',') {
+					fieldEnd++;
+				}
+				try {
+					values[j] = DoubleParser.parse(bytes, fieldStart, fieldEnd);
+				} catch (NumberFormatException e) {
+					throw new MalformedRowException(offset + start, String.format(
+							"column %d: %s", j + 1, e.getMessage()));
+				}
+			}
+			if (fieldEnd != end) {
+				int numColumns = numFeatures + 1;
+				for (int i = fieldEnd; i < end; i++) {
+					if (bytes[i] == ',') {
+						numColumns++;
+					}
+				}
+				throw new MalformedRowException(offset + start, String.format(
+						"%d columns instead of %d", numColumns, numFeatures + 1));
+			}
+			rows.add(values);
+		}
+
+		private String className(byte[] bytes, int start, int end) {
+			// rows of a class usually come together
+			if (lastClassName != null && end - start == lastClassNameBytes.length) {
+				int i = 0;
+				while (i < lastClassNameBytes.length && bytes[start + i] == lastClassNameBytes[i]) {
+					i++;
+				}
+				if (i == lastClassNameBytes.length) {
+					return lastClassName;
+				}
+			}
+			String className = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+			String known = knownClassNames.get(className);
+			if (known == null) {
+				knownClassNames.put(className, className);
+				known = className;
+			}
+			lastClassName = known;
+			lastClassNameBytes = Arrays.copyOfRange(bytes, start, end);
+			return known;
+		}
+	}
+}
@@ -0,0 +1,410 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Ranks the terms of a corpus (in the format read by {@link TfidfCalculator})
+ * by how much their presence in a document tells about its class, to pre-select
+ * features before {@link BPSOSearch} without an external tool.
+ * <p>
+ * One pass over the corpus, in parallel line-aligned chunks merged by a
+ * fork-join reduction, counts the documents of each class and, per term, the
+ * documents of each class that contain it. The measures are computed from
+ * these counts:
+ * <ul>
+ * <li>{@code ig}: information gain, the mutual information in bits between the
+ * presence of the term and the class (as Weka's InfoGainAttributeEval on binary
+ * presence).
+ * <li>{@code mi}: the largest pointwise mutual information in bits between the
+ * presence of the term and a class, log P(t, c) / (P(t) P(c)).
+ * <li>{@code chi2}: the chi-square statistic of the presence by class
+ * contingency table.
+ * </ul>
+ * The ranking file has the Weka ranking layout read by
+ * {@link MutualInfoResultExtractor}: per line the score, the 1-based position
+ * of the term's column in the tf-idf CSV file (the class is column 1) and the
+ * term.
+ */
+public class FeatureRanker {
+	public enum Measure {
+		IG, MI, CHI2;
+
+		public static Measure parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	private static final double LOG_2 = Math.log(2.0);
+
+	private final TermDictionary terms;
+
+	private final TermDictionary classes;
+
+	// the numbers of documents of each class that contain each term, by term id
+	// and class id; rows may be shorter than the number of classes
+	private final int[][] numAppearance;
+
+	// the numbers of documents of each class
+	private final int[] classSizes;
+
+	private final int numDocs;
+
+	private FeatureRanker(Counts counts) {
+		this.terms = counts.terms;
+		this.classes = counts.classes;
+		this.numAppearance = Arrays.copyOf(counts.numAppearance, terms.size());
+		this.classSizes = Arrays.copyOf(counts.classSizes, classes.size());
+		this.numDocs = counts.numDocs;
+	}
+
+	/** Counts term presence by class in the corpus, with the given parallelism. */
+	public static FeatureRanker count(String corpusFilePath, int parallelism) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try (FileChannel channel = FileChannel.open(Paths.get(corpusFilePath),
+				StandardOpenOption.READ)) {
+			List<LineChunks.Chunk> chunks = LineChunks.split(channel, parallelism * 4);
+			return new FeatureRanker(chunks.isEmpty() ? new Counts() : pool.invoke(new CountTask(
+					channel, chunks, 0, chunks.size())));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public int getNumTerms() {
+		return terms.size();
+	}
+
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	public List<String> getTerms() {
+		return terms.getTerms();
+	}
+
+	/** The number of documents of the class that contain the term. */
+	int getNumAppearance(int termId, int classId) {
+		int[] row = numAppearance[termId];
+		return classId < row.length ? row[classId] : 0;
+	}
+
+	public double score(String term, Measure measure) {
+		int termId = terms.getId(term);
+		Preconditions.checkArgument(termId >= 0, "Unknown term: %s", term);
+		return score(termId, measure);
+	}
+
+	double score(int termId, Measure measure) {
+		int numWithTerm = 0;
+		for (int classId = 0; classId < classSizes.length; classId++) {
+			numWithTerm += getNumAppearance(termId, classId);
+		}
+		int numWithoutTerm = numDocs - numWithTerm;
+		double result = measure == Measure.MI ? Double.NEGATIVE_INFINITY : 0.0;
+		for (int classId = 0; classId < classSizes.length; classId++) {
+			int with = getNumAppearance(termId, classId);
+			int without = classSizes[classId] - with;
+			switch (measure) {
+			case IG:
+				result += informationTerm(with, numWithTerm, classSizes[classId])
+						+ informationTerm(without, numWithoutTerm, classSizes[classId]);
+				break;
+			case MI:
+				if (with > 0) {
+					result = Math.max(result, log2(1.0 * with * numDocs / numWithTerm
+							/ classSizes[classId]));
+				}
+				break;
+			case CHI2:
+				result += chiSquareTerm(with, numWithTerm, classSizes[classId])
+						+ chiSquareTerm(without, numWithoutTerm, classSizes[classId]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown measure: " + measure);
+			}
+		}
+		return result;
+	}
+
+	/** P(e, c) log P(e, c) / (P(e) P(c)) of a cell of the contingency table. */
+	private double informationTerm(int count, int rowTotal, int columnTotal) {
+		if (count == 0) {
+			return 0.0;
+		}
+		return 1.0 * count / numDocs * log2(1.0 * count * numDocs / rowTotal / columnTotal);
+	}
+
+	/** (O - E)^2 / E of a cell of the contingency table. */
+	private double chiSquareTerm(int count, int rowTotal, int columnTotal) {
+		double expected = 1.0 * rowTotal * columnTotal / numDocs;
+		if (expected == 0.0) {
+			return 0.0;
+		}
+		return (count - expected) * (count - expected) / expected;
+	}
+
+	private static double log2(double x) {
+		return Math.log(x) / LOG_2;
+	}
+
+	/**
+	 * Returns the ids of the {@code topN} best terms by descending score; ties
+	 * are broken by term id.
+	 */
+	public List<Integer> rank(final Measure measure, int topN) {
+		final double[] scores = new double[terms.size()];
+		List<Integer> termIds = new ArrayList<>(scores.length);
+		for (int termId = 0; termId < scores.length; termId++) {
+			scores[termId] = score(termId, measure);
+			termIds.add(termId);
+		}
+		Collections.sort(termIds, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				int result = Double.compare(scores[b], scores[a]);
+				return result != 0 ? result : Integer.compare(a, b);
+			}
+		});
+		return new ArrayList<>(termIds.subList(0, Math.min(topN, termIds.size())));
+	}
+
+	/**
+	 * Returns the indices in {@code featureNames} of the {@code topN} best terms
+	 * that are among them, by descending score.
+	 */
+	public List<Integer> rankFeatures(Measure measure, int topN, List<String> featureNames) {
+		HashMap<String, Integer> featureIndices = new HashMap<>();
+		for (int i = 0; i < featureNames.size(); i++) {
+			featureIndices.put(featureNames.get(i), i);
+		}
+		List<Integer> result = new ArrayList<>();
+		for (int termId : rank(measure, terms.size())) {
+			if (result.size() == topN) {
+				break;
+			}
+			Integer index = featureIndices.get(terms.getTerm(termId));
+			if (index != null) {
+				result.add(index);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the {@code topN} best terms that are columns of the tf-idf CSV
+	 * file, in the ranking format read by {@link MutualInfoResultExtractor};
+	 * returns the number of lines written.
+	 */
+	public int writeRanking(Measure measure, int topN, String tfidfFilePath,
+			String rankingFilePath) throws IOException {
+		List<String> header = ColumnProjector.readHeader(tfidfFilePath);
+		// the first item is "class_unique"
+		return writeRanking(measure, topN, header.subList(1, header.size()), rankingFilePath);
+	}
+
+	/**
+	 * Writes the {@code topN} best terms that are among the features of a
+	 * tf-idf file, given without the class, in the ranking format.
+	 */
+	public int writeRanking(Measure measure, int topN, List<String> featureNames,
+			String rankingFilePath) throws IOException {
+		List<Integer> featureIndices = rankFeatures(measure, topN, featureNames);
+		try (PrintWriter out = new PrintWriter(rankingFilePath)) {
+			for (int index : featureIndices) {
+				String term = featureNames.get(index);
+				// the class is column 1
+				out.printf(" %.6f %6d %s\n", score(term, measure), index + 2, term);
+			}
+		}
+		return featureIndices.size();
+	}
+
+	/**
+	 * Reads a ranking file and returns the feature indices (the column
+	 * positions after the class, from 0) of its terms, in ranking order.
+	 */
+	public static List<Integer> readRanking(String rankingFilePath) throws IOException {
+		List<Integer> result = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(rankingFilePath))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					result.add(Integer.parseInt(line.trim().split("\\s+")[1]) - 2);
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Presence counts merged over a range of chunks. */
+	private static class Counts extends DocumentTokenizer {
+		private TermDictionary terms = new TermDictionary();
+
+		private TermDictionary classes = new TermDictionary();
+
+		private int[][] numAppearance = new int[1024][];
+
+		private int[] classSizes = new int[8];
+
+		private int numDocs = 0;
+
+		// the last document (plus one) each term was counted for
+		private int[] lastDocs = new int[1024];
+
+		private int classId;
+
+		@Override
+		protected void startDocument(String className) {
+			classId = classes.intern(className);
+			if (classId == classSizes.length) {
+				classSizes = Arrays.copyOf(classSizes, classId * 2);
+			}
+			classSizes[classId]++;
+			numDocs++;
+		}
+
+		@Override
+		protected void addTerm(String term) {
+			int id = terms.intern(term);
+			if (id == lastDocs.length) {
+				lastDocs = Arrays.copyOf(lastDocs, id * 2);
+				numAppearance = Arrays.copyOf(numAppearance, id * 2);
+			}
+			if (lastDocs[id] != numDocs) {
+				lastDocs[id] = numDocs;
+				add(id, classId, 1);
+			}
+		}
+
+		@Override
+		protected void endDocument() {
+		}
+
+		private void add(int termId, int classId, int count) {
+			int[] row = numAppearance[termId];
+			if (row == null) {
+				row = numAppearance[termId] = new int[Math.max(classId + 1, classes.size())];
+			} else if (classId >= row.length) {
+				row = numAppearance[termId] = Arrays.copyOf(row, classes.size());
+			}
+			row[classId] += count;
+		}
+
+		/** Adds the counts of another range of chunks. */
+		Counts merge(Counts other) {
+			int[] classIds = new int[other.classes.size()];
+			for (int id = 0; id < classIds.length; id++) {
+				classIds[id] = classes.intern(other.classes.getTerm(id));
+				if (classIds[id] >= classSizes.length) {
+					classSizes = Arrays.copyOf(classSizes, classIds[id] * 2 + 1);
+				}
+				classSizes[classIds[id]] += other.classSizes[id];
+			}
+			for (int id = 0; id < other.terms.size(); id++) {
+				int termId = terms.intern(other.terms.getTerm(id));
+				if (termId >= numAppearance.length) {
+					numAppearance = Arrays.copyOf(numAppearance, termId * 2 + 1);
+				}
+				int[] row = other.numAppearance[id];
+				for (int otherClassId = 0; otherClassId < row.length; otherClassId++) {
+					if (row[otherClassId] > 0) {
+						add(termId, classIds[otherClassId], row[otherClassId]);
+					}
+				}
+			}
+			numDocs += other.numDocs;
+			lastDocs = null;
+			return this;
+		}
+	}
+
+	private static class CountTask extends RecursiveTask<Counts> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+
+		private final List<LineChunks.Chunk> chunks;
+
+		private final int from;
+
+		private final int to;
+
+		CountTask(FileChannel channel, List<LineChunks.Chunk> chunks, int from, int to) {
+			this.channel = channel;
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Counts compute() {
+			if (to - from == 1) {
+				Counts counts = new Counts();
+				try {
+					counts.tokenize(chunks.get(from).read(channel));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return counts;
+			}
+			int mid = (from + to) >>> 1;
+			CountTask right = new CountTask(channel, chunks, mid, to);
+			right.fork();
+			Counts left = new CountTask(channel, chunks, from, mid).compute();
+			return left.merge(right.join());
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Measure measure = Measure.IG;
+		int topN = 1000;
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		boolean isValid = args.length >= 3 && args.length % 2 == 1;
+		for (int i = 3; isValid && i < args.length; i += 2) {
+			switch (args[i]) {
+			case "-measure":
+				measure = Measure.parse(args[i + 1]);
+				break;
+			case "-top":
+				topN = Integer.parseInt(args[i + 1]);
+				break;
+			case "-threads":
+				parallelism = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				isValid = false;
+			}
+		}
+		if (!isValid) {
+			System.err.printf("usage: %s corpusFilePath tfidfFilePath rankingFilePath [options]\n",
+					FeatureRanker.class.getName());
+			System.err.printf("options:\n");
+			System.err.printf("\t-measure <ig|mi|chi2>: ranking measure (default: ig).\n");
+			System.err.printf("\t-top <n>: number of terms kept (default: 1000).\n");
+			System.err.printf("\t-threads <n>: number of threads (default: number of cores).\n");
+			System.exit(1);
+		}
+		FeatureRanker ranker = count(args[0], parallelism);
+		int numWritten = ranker.writeRanking(measure, topN, args[1], args[2]);
+		System.out.printf("%d documents, %d terms; %d ranked by %s written to %s\n",
+				ranker.getNumDocs(), ranker.getNumTerms(), numWritten, measure, args[2]);
+	}
+}
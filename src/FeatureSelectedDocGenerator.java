@@ -1,7 +1,6 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import com.google.common.base.Preconditions;
@@ -9,7 +8,6 @@ import com.google.common.base.Preconditions;
 public class FeatureSelectedDocGenerator {
 	public FeatureSelectedDocGenerator(String inputFilePath, String outputFilePath, String selectedFeaturesFilePath){
 		BufferedReader in = null;
-		PrintWriter out = null;
 
 		ArrayList<Integer> selectedFeatures = new ArrayList<Integer>();
 
@@ -36,38 +34,19 @@ public class FeatureSelectedDocGenerator {
 		}
 		
 		try {
-			in = new BufferedReader(new FileReader(inputFilePath));
-			out = new PrintWriter(outputFilePath);
-			StringBuilder sb = null;	
-			String line = null;
-			while ((line = in.readLine()) != null) {
-				String[] terms = line.split(",");
-				Preconditions.checkState(terms.length == selectedFeatures.size() + 1);
-				sb = new StringBuilder();
-				sb.append(terms[0]);				
-				for(int i = 0; i < selectedFeatures.size(); i++){
-					if(selectedFeatures.get(i) == 1){
-						sb.append(",");
-						sb.append(terms[i+1]);	
-					}
+			Preconditions.checkState(ColumnProjector.readHeader(inputFilePath).size() ==
+					selectedFeatures.size() + 1);
+			// the selected features are the columns i + 1 whose bit i is set
+			ArrayList<Integer> selectedColumns = new ArrayList<Integer>();
+			for(int i = 0; i < selectedFeatures.size(); i++){
+				if(selectedFeatures.get(i) == 1){
+					selectedColumns.add(i + 1);
 				}
-				out.println(sb.toString());
 			}
+			new ColumnProjector(selectedColumns, false).project(inputFilePath, outputFilePath);
 		} catch (IOException x) {
 			x.printStackTrace();
 			System.err.format("IOException: %s%n", x);
-		} finally {
-			try {
-				if (in != null) {
-					in.close();
-				}
-				if(out != null){
-					out.flush();
-					out.close();
-				}
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
 		}
 	}
 
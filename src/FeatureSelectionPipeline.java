@@ -0,0 +1,329 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Runs the documented workflow, {@link TfidfCalculator},
+ * {@link FeatureRanker} and {@link MutualInfoResultExtractor},
+ * {@link BPSOSearch}, then {@link FeatureSelectedDocGenerator}, in one process.
+ * The stages hand the vectors over in memory as sparse {@link TfidfVectors};
+ * only the selected features are ever made dense, for the search.
+ * <p>
+ * With a work directory, each stage also persists its output there, so that a
+ * later run can resume from any stage:
+ * <ul>
+ * <li>{@code tfidf}: {@value #TFIDF_FILE_NAME}, the unnormalized vectors.
+ * <li>{@code rank}: {@value #RANKING_FILE_NAME}, the ranking read by
+ * {@link MutualInfoResultExtractor}.
+ * <li>{@code select}: {@value #SELECTED_FILE_NAME}, the unnormalized vectors of
+ * the ranked features.
+ * <li>{@code search}: {@value #GBEST_FILE_NAME}, the gbest position read by
+ * {@link FeatureSelectedDocGenerator}, also copied to the {@code -o} file if
+ * one is given.
+ * <li>{@code project}: the output file, the unnormalized vectors of the
+ * features of the gbest position.
+ * </ul>
+ * Vectors are persisted in the binary format of {@link TfidfRowWriter}.
+ */
+public class FeatureSelectionPipeline {
+	private static final Logger log = Logger.getLogger(FeatureSelectionPipeline.class.getName());
+
+	public static final String TFIDF_FILE_NAME = "tfidf.bin";
+
+	public static final String RANKING_FILE_NAME = "ranking.txt";
+
+	public static final String SELECTED_FILE_NAME = "selected.bin";
+
+	public static final String GBEST_FILE_NAME = "gbest-position.txt";
+
+	public enum Stage {
+		TFIDF, RANK, SELECT, SEARCH, PROJECT;
+
+		public static Stage parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	private final String corpusFilePath;
+
+	private final int numIterations;
+
+	private final int numParticles;
+
+	private final Options options;
+
+	private final Map<Stage, Long> stageNanos = new EnumMap<>(Stage.class);
+
+	public FeatureSelectionPipeline(String corpusFilePath, int numIterations, int numParticles,
+			Options options) {
+		Preconditions.checkArgument(options.from == Stage.TFIDF || options.workDir != null,
+				"Resuming from %s needs the work directory of an earlier run.", options.from);
+		this.corpusFilePath = corpusFilePath;
+		this.numIterations = numIterations;
+		this.numParticles = numParticles;
+		this.options = options;
+	}
+
+	/** The time each stage run took, in stage order. */
+	public Map<Stage, Long> getStageNanos() {
+		return Collections.unmodifiableMap(stageNanos);
+	}
+
+	private String getWorkFilePath(String fileName) {
+		return options.workDir == null ? null : new File(options.workDir, fileName).getPath();
+	}
+
+	private boolean runs(Stage stage) {
+		return options.from.compareTo(stage) <= 0;
+	}
+
+	/**
+	 * Runs the stages from {@link Options#from} and writes the vectors of the
+	 * selected features to the output file; returns them.
+	 */
+	public TfidfVectors run(String outputFilePath) throws IOException {
+		if (options.workDir != null) {
+			options.workDir.mkdirs();
+		}
+
+		// tf-idf, needed by the ranking and the selection
+		TfidfVectors tfidf = null;
+		if (runs(Stage.TFIDF)) {
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			tfidf = new TfidfCalculator(options.parallelism).vectorize(corpusFilePath, false);
+			persist(tfidf, TFIDF_FILE_NAME);
+			endStage(Stage.TFIDF, stopwatch, tfidf.getNumRows() + " documents, "
+					+ tfidf.getNumFeatures() + " terms");
+		} else if (runs(Stage.SELECT)) {
+			tfidf = load(TFIDF_FILE_NAME);
+		}
+
+		List<Integer> ranking = null;
+		if (runs(Stage.RANK)) {
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			FeatureRanker ranker = FeatureRanker.count(corpusFilePath, options.parallelism);
+			ranking = ranker.rankFeatures(options.measure, options.topN, tfidf.getFeatureNames());
+			if (options.workDir != null) {
+				ranker.writeRanking(options.measure, options.topN, tfidf.getFeatureNames(),
+						getWorkFilePath(RANKING_FILE_NAME));
+			}
+			endStage(Stage.RANK, stopwatch, ranking.size() + " terms ranked by "
+					+ options.measure);
+		} else if (runs(Stage.SELECT)) {
+			ranking = FeatureRanker.readRanking(getWorkFilePath(RANKING_FILE_NAME));
+		}
+
+		TfidfVectors selected;
+		if (runs(Stage.SELECT)) {
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			// keep the column order of the tf-idf vectors, as MutualInfoResultExtractor
+			List<Integer> featureIndices = new ArrayList<>(ranking);
+			Collections.sort(featureIndices);
+			selected = tfidf.project(featureIndices, false);
+			tfidf = null;
+			persist(selected, SELECTED_FILE_NAME);
+			endStage(Stage.SELECT, stopwatch, selected.getNumFeatures() + " features selected");
+		} else {
+			selected = load(SELECTED_FILE_NAME);
+		}
+
+		List<Integer> gbest;
+		if (runs(Stage.SEARCH)) {
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			BPSOSearch.Options searchOptions = options.searchOptions;
+			// -o is a copy; the search checkpoints where a resumed run reads
+			String gbestCopyFilePath = searchOptions.gbestOutputFilePath;
+			if (options.workDir != null) {
+				searchOptions.gbestOutputFilePath = getWorkFilePath(GBEST_FILE_NAME);
+			}
+			try {
+				gbest = new BPSOSearch(numIterations, numParticles, selected
+						.toFeatureMatrix(options.isNormalizeVector), searchOptions).search();
+			} finally {
+				searchOptions.gbestOutputFilePath = gbestCopyFilePath;
+			}
+			if (options.workDir != null && gbestCopyFilePath != null) {
+				Files.copy(Paths.get(getWorkFilePath(GBEST_FILE_NAME)), Paths.get(
+						gbestCopyFilePath), StandardCopyOption.REPLACE_EXISTING);
+			}
+			endStage(Stage.SEARCH, stopwatch, "gbest found");
+		} else {
+			gbest = readGbest(getWorkFilePath(GBEST_FILE_NAME));
+		}
+		Preconditions.checkState(gbest.size() == selected.getNumFeatures(),
+				"The gbest position has %s bits for %s features", gbest.size(),
+				selected.getNumFeatures());
+
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		List<Integer> featureIndices = new ArrayList<>();
+		for (int i = 0; i < gbest.size(); i++) {
+			if (gbest.get(i) == 1) {
+				featureIndices.add(i);
+			}
+		}
+		TfidfVectors result = selected.project(featureIndices, false);
+		result.write(outputFilePath, options.format);
+		endStage(Stage.PROJECT, stopwatch, result.getNumFeatures() + " features written to "
+				+ outputFilePath);
+		return result;
+	}
+
+	private void endStage(Stage stage, Stopwatch stopwatch, String summary) {
+		stopwatch.stop();
+		long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+		stageNanos.put(stage, nanos);
+		MetricsRegistry.get().histogram("pipeline." + stage.name().toLowerCase() + ".nanos")
+				.record(nanos);
+		log.info("stage " + stage + " done: " + summary + ". " + stopwatch);
+	}
+
+	private void persist(TfidfVectors vectors, String fileName) throws IOException {
+		if (options.workDir != null) {
+			vectors.write(getWorkFilePath(fileName), TfidfRowWriter.Format.BINARY);
+		}
+	}
+
+	private TfidfVectors load(String fileName) throws IOException {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		TfidfVectors result = TfidfVectors.read(getWorkFilePath(fileName),
+				TfidfRowWriter.Format.BINARY);
+		log.info(getWorkFilePath(fileName) + " loaded: " + result.getNumRows() + " rows, "
+				+ result.getNumFeatures() + " features. " + stopwatch);
+		return result;
+	}
+
+	/** Reads a gbest position written by {@link BPSOSearch}. */
+	private static List<Integer> readGbest(String gbestFilePath) throws IOException {
+		List<Integer> result = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(gbestFilePath))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				for (String bit : line.split(",")) {
+					if (!bit.trim().isEmpty()) {
+						result.add(Integer.parseInt(bit.trim()));
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Options options = args.length >= 4 ? Options.parse(args, 4) : null;
+		if (options == null) {
+			printUsage();
+			System.exit(1);
+		}
+		String corpusFilePath = args[0];
+		String outputFilePath = args[1];
+		int numIterations = Integer.parseInt(args[2]);
+		int numParticles = Integer.parseInt(args[3]);
+		log.info("corpusFilePath: " + corpusFilePath + ", outputFilePath: " + outputFilePath
+				+ ", numIterations: " + numIterations + ", numParticles: " + numParticles + ", "
+				+ options);
+		FeatureSelectionPipeline pipeline = new FeatureSelectionPipeline(corpusFilePath,
+				numIterations, numParticles, options);
+		pipeline.run(outputFilePath);
+		for (Map.Entry<Stage, Long> entry : pipeline.getStageNanos().entrySet()) {
+			System.out.printf("STAGE %s: %.3f s\n", entry.getKey(), entry.getValue() / 1e9);
+		}
+		if (options.searchOptions.metricsOutputFilePath != null) {
+			MetricsRegistry.get().writeJson(options.searchOptions.metricsOutputFilePath);
+		}
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("FeatureSelectionPipeline <corpusFilePath> <outputFilePath>"
+				+ " <numIterations> <numParticles> [options]");
+		System.err.println("options:");
+		System.err.println("\t-work <dir>: persist the output of each stage in dir.");
+		System.err.println("\t-from <tfidf|rank|select|search|project>: resume from the stage,"
+				+ " with the outputs of the earlier ones in the work directory.");
+		System.err.println("\t-measure <ig|mi|chi2>: ranking measure (default: ig).");
+		System.err.println("\t-top <n>: number of ranked terms searched (default: 1000).");
+		System.err.println("\t-n: normalize the vectors of the ranked terms for the search.");
+		System.err.println("\t-threads <n>: number of threads of the tf-idf and ranking stages"
+				+ " (default: number of cores).");
+		System.err.println("\t-f <csv|sparse|binary>: output format (default: csv).");
+		System.err.println("\tand the options of BPSOSearch, e.g. -evaluator knn:5.");
+	}
+
+	/** Optional settings of a pipeline run; the defaults run every stage. */
+	public static class Options {
+		File workDir = null;
+		Stage from = Stage.TFIDF;
+		FeatureRanker.Measure measure = FeatureRanker.Measure.IG;
+		int topN = 1000;
+		boolean isNormalizeVector = false;
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		TfidfRowWriter.Format format = TfidfRowWriter.Format.CSV;
+		BPSOSearch.Options searchOptions = new BPSOSearch.Options();
+
+		/**
+		 * Parses the options starting from {@code args[offset]}; the ones not of
+		 * the pipeline are parsed as {@link BPSOSearch.Options}. Returns
+		 * {@code null} if an option is unknown or has no value.
+		 */
+		public static Options parse(String[] args, int offset) {
+			Options options = new Options();
+			List<String> searchArgs = new ArrayList<>();
+			for (int i = offset; i < args.length; i++) {
+				if (args[i].equals("-n")) {
+					options.isNormalizeVector = true;
+					continue;
+				}
+				if (i + 1 == args.length) {
+					return null;
+				}
+				String value = args[++i];
+				switch (args[i - 1]) {
+				case "-work":
+					options.workDir = new File(value);
+					break;
+				case "-from":
+					options.from = Stage.parse(value);
+					break;
+				case "-measure":
+					options.measure = FeatureRanker.Measure.parse(value);
+					break;
+				case "-top":
+					options.topN = Integer.parseInt(value);
+					break;
+				case "-threads":
+					options.parallelism = Integer.parseInt(value);
+					break;
+				case "-f":
+					options.format = TfidfRowWriter.Format.parse(value);
+					break;
+				default:
+					searchArgs.add(args[i - 1]);
+					searchArgs.add(value);
+				}
+			}
+			options.searchOptions = BPSOSearch.Options.parse(searchArgs.toArray(new String[0]), 0);
+			return options.searchOptions == null ? null : options;
+		}
+
+		@Override
+		public String toString() {
+			return "workDir: " + workDir + ", from: " + from + ", measure: " + measure + ", topN: "
+					+ topN + ", isNormalizeVector: " + isNormalizeVector + ", parallelism: "
+					+ parallelism + ", format: " + format + ", " + searchOptions;
+		}
+	}
+}
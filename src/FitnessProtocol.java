@@ -0,0 +1,103 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wire format between {@link RemoteFitnessEvaluator} (the coordinator) and
+ * {@link FitnessWorker}s, over one TCP connection per worker, in
+ * {@link DataOutput} encoding:
+ * <ol>
+ * <li>the coordinator sends {@link #MAGIC} and {@link #VERSION};</li>
+ * <li>the worker answers with {@link #MAGIC}, {@link #VERSION}, the number of
+ * features of its data set and the name of its evaluator;</li>
+ * <li>then, any number of times, the coordinator sends a batch: the number of
+ * masks, and per mask the fitness to beat (for racing) and the mask itself as
+ * {@code ceil(numFeatures / 64)} longs, feature j being bit {@code j % 64} of
+ * long {@code j / 64};</li>
+ * <li>the worker answers {@link #STATUS_OK} and the fitness of each mask, in
+ * order, or {@link #STATUS_ERROR} and a message if an evaluation failed;</li>
+ * <li>a batch of 0 masks ends the connection.</li>
+ * </ol>
+ */
+final class FitnessProtocol {
+	static final int MAGIC = 0x50534f46;
+
+	static final int VERSION = 1;
+
+	static final byte STATUS_OK = 0;
+
+	static final byte STATUS_ERROR = 1;
+
+	private FitnessProtocol() {
+	}
+
+	static int numWords(int numFeatures) {
+		return (numFeatures + 63) / 64;
+	}
+
+	/** Writes a position of 0s and 1s as bits. */
+	static void writeMask(DataOutput out, List<Integer> position) throws IOException {
+		long[] words = new long[numWords(position.size())];
+		for (int j = 0; j < position.size(); j++) {
+			if (position.get(j) == 1) {
+				words[j >> 6] |= 1L << j;
+			}
+		}
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	/** Writes a mask as the bits of its position. */
+	static void writeMask(DataOutput out, FeatureMask mask) throws IOException {
+		long[] words = new long[numWords(mask.getNumFeatures())];
+		for (int j : mask.getIndices()) {
+			words[j >> 6] |= 1L << j;
+		}
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	/** Reads a position of 0s and 1s written by {@link #writeMask(DataOutput, List)}. */
+	static ArrayList<Integer> readMask(DataInput in, int numFeatures) throws IOException {
+		ArrayList<Integer> position = new ArrayList<>(numFeatures);
+		for (int w = 0; w < numWords(numFeatures); w++) {
+			long word = in.readLong();
+			for (int j = w << 6; j < Math.min(numFeatures, (w + 1) << 6); j++) {
+				position.add((int) (word >>> j) & 1);
+			}
+		}
+		return position;
+	}
+
+	/** Reads the magic number and version, failing if they are not ours. */
+	static void checkHeader(DataInput in) throws IOException {
+		checkHeader(in, MAGIC);
+	}
+
+	/**
+	 * Reads a magic number and the version, failing if they are not the given
+	 * ones; other protocols over the same encoding, such as the one of
+	 * {@link KnnShardServer}, have their own magic number.
+	 */
+	static void checkHeader(DataInput in, int expectedMagic) throws IOException {
+		int magic = in.readInt();
+		int version = in.readInt();
+		if (magic != expectedMagic || version != VERSION) {
+			throw new IOException(String.format("Not a peer of the protocol (magic %x,"
+					+ " version %d; expected %x, %d)", magic, version, expectedMagic, VERSION));
+		}
+	}
+
+	static void writeHeader(DataOutput out) throws IOException {
+		writeHeader(out, MAGIC);
+	}
+
+	static void writeHeader(DataOutput out, int magic) throws IOException {
+		out.writeInt(magic);
+		out.writeInt(VERSION);
+	}
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A worker process that loads a data set once and calculates the fitness of
+ * the positions a {@link RemoteFitnessEvaluator} sends it, over
+ * {@link FitnessProtocol}. Each connection is served by its own thread; the
+ * positions of a batch are evaluated in parallel on one pool per worker, and
+ * split into subtasks as {@link BPSOSearch} does unless {@code -split false}.
+ */
+public class FitnessWorker implements Closeable {
+	private static final Logger log = Logger.getLogger(FitnessWorker.class.getName());
+
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+	private final FeatureMatrix data;
+
+	private final EvaluatorContext evaluatorContext;
+
+	// null if every position is evaluated on the whole data set
+	private final RacingFitnessEvaluator racingEvaluator;
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService pool;
+
+	// null if each position is evaluated on its thread of the pool
+	private final ForkJoinPool evaluationPool;
+
+	// whether the positions of a batch are evaluated together
+	private final boolean batchEvaluations;
+
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Listens on the port (0 for any free one) and evaluates with the
+	 * evaluator, precision, storage and racing of the options; the worker
+	 * closes the data set when it is closed.
+	 */
+	public FitnessWorker(int port, FeatureMatrix data, BPSOSearch.Options options)
+			throws IOException {
+		this.data = data.withPrecision(options.precision).withStorage(options.storage);
+		if (this.data != data) {
+			data.close();
+		}
+		this.evaluatorContext = BPSOSearch.prepareEvaluatorContext(options, this.data);
+		this.racingEvaluator = options.racingDelta > 0.0 ? new RacingFitnessEvaluator(this.data,
+				BPSOSearch.RACING_INITIAL_FRACTION, options.racingDelta) : null;
+		this.pool = new InstrumentedThreadPoolExecutor("worker", POOL_SIZE,
+				new ThreadFactoryBuilder().setNameFormat("fitness-worker-%s").build(),
+				MetricsRegistry.get());
+		this.evaluationPool = options.splitEvaluations ? BPSOSearch.newEvaluationPool() : null;
+		this.batchEvaluations = options.batchEvaluations && racingEvaluator == null;
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(port));
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Accepts and serves connections until the worker is closed. */
+	public void serve() {
+		log.info("fitness worker listening on port " + getPort() + " ("
+				+ evaluatorContext.getName() + ", " + data.getNumRows() + "x"
+				+ data.getNumColumns() + ")");
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					log.warning("accept failed: " + e);
+				}
+				continue;
+			}
+			connections.add(socket);
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						serveConnection(socket);
+					} catch (EOFException | SocketException e) {
+						log.info("connection from " + socket.getRemoteSocketAddress() + " closed: "
+								+ e);
+					} catch (IOException e) {
+						log.warning("connection from " + socket.getRemoteSocketAddress()
+								+ " failed: " + e);
+					} finally {
+						connections.remove(socket);
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// already closed
+						}
+					}
+				}
+			}, "fitness-connection-" + socket.getPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/** Serves batches of one coordinator until it sends an empty one. */
+	private void serveConnection(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket
+				.getOutputStream()));
+		FitnessProtocol.checkHeader(in);
+		FitnessProtocol.writeHeader(out);
+		out.writeInt(data.getNumColumns());
+		out.writeUTF(evaluatorContext.getName());
+		out.flush();
+		log.info("serving " + socket.getRemoteSocketAddress());
+		int batch = 0;
+		for (int numMasks = in.readInt(); numMasks > 0; numMasks = in.readInt(), batch++) {
+			final List<ArrayList<Integer>> masks = new ArrayList<>(numMasks);
+			List<Callable<Double>> tasks = new ArrayList<>(numMasks);
+			for (int m = 0; m < numMasks; m++) {
+				double fitnessToBeat = in.readDouble();
+				masks.add(FitnessProtocol.readMask(in, data.getNumColumns()));
+				tasks.add(new BPSOSearch.CalcFitnessTask(evaluatorContext, masks.get(m), "remote-"
+						+ socket.getPort() + "-" + batch + "-" + m, racingEvaluator,
+						fitnessToBeat, evaluationPool));
+			}
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			double[] results = new double[numMasks];
+			String error = null;
+			try {
+				if (batchEvaluations) {
+					// on the pool, which close() waits for before closing the data
+					List<Double> fitnesses = pool.submit(new Callable<List<Double>>() {
+
+						@Override
+						public List<Double> call() {
+							return BPSOSearch.calcFitnessInBatch(evaluatorContext, masks,
+									evaluationPool);
+						}
+					}).get();
+					for (int m = 0; m < numMasks; m++) {
+						results[m] = fitnesses.get(m);
+					}
+				} else {
+					List<Future<Double>> futures = pool.invokeAll(tasks);
+					for (int m = 0; m < numMasks; m++) {
+						results[m] = futures.get(m).get();
+					}
+				}
+			} catch (RuntimeException e) {
+				log.severe("evaluation failed: " + Throwables.getStackTraceAsString(e));
+				error = String.valueOf(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				log.severe("evaluation failed: " + Throwables.getStackTraceAsString(e.getCause()));
+				error = String.valueOf(e.getCause());
+			}
+			if (error == null) {
+				out.writeByte(FitnessProtocol.STATUS_OK);
+				for (double result : results) {
+					out.writeDouble(result);
+				}
+			} else {
+				out.writeByte(FitnessProtocol.STATUS_ERROR);
+				out.writeUTF(error);
+			}
+			out.flush();
+			log.info("batch " + batch + " of " + numMasks + " from "
+					+ socket.getRemoteSocketAddress() + " done. " + stopwatch);
+			MetricsRegistry.get().counter("worker.masks").add(numMasks);
+		}
+	}
+
+	/** Stops listening, drops the open connections and closes the data set. */
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warning("cannot close the server socket: " + e);
+		}
+		for (Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		pool.shutdownNow();
+		if (evaluationPool != null) {
+			evaluationPool.shutdownNow();
+		}
+		try {
+			if (pool.awaitTermination(1, TimeUnit.MINUTES) && (evaluationPool == null
+					|| evaluationPool.awaitTermination(1, TimeUnit.MINUTES))) {
+				data.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			printUsage();
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		BPSOSearch.Options options = BPSOSearch.Options.parse(args, 2);
+		if (options == null) {
+			printUsage();
+			return;
+		}
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		FeatureMatrix data = FeatureMatrixLoader.load(args[1], POOL_SIZE, options.storage);
+		log.info("dataset read. " + stopwatch);
+		MetricsRegistry.get().registerMBean();
+		new FitnessWorker(port, data, options).serve();
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("FitnessWorker <port> <filePath> [options]");
+		System.err.println("options: those of BPSOSearch that concern the evaluation"
+				+ " (-evaluator, -racing, -precision, -storage, -split, -batch, -gramCache,"
+				+ " -candidates); the coordinator runs BPSOSearch with -workers host:port,...");
+	}
+}
@@ -0,0 +1,333 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * A corpus that grows by batches of documents without recomputing what it
+ * already holds. The directory has two files:
+ * <ul>
+ * <li>{@code counts}: the raw term counts, appended per batch; per document
+ * the class name, the number of terms, the number of distinct terms, their
+ * ids and their counts.
+ * <li>{@code state}: the int {@link #MAGIC}, the valid length of the counts
+ * file and the {@link TfidfModel}, i.e. the vocabulary, the document
+ * frequencies and the number of documents, replaced atomically after a batch.
+ * </ul>
+ * New terms get the next ids, so the columns of earlier documents never move.
+ * An append costs time proportional to the batch (plus rewriting the
+ * vocabulary); tf-idf values, which depend on the idf of the whole corpus, are
+ * only computed when the rows are read with {@link #export}. A batch that fails
+ * half way is cut off the counts file by the next append.
+ */
+public class IncrementalTfidfStore {
+	private static final Logger log = Logger.getLogger(IncrementalTfidfStore.class.getName());
+
+	public static final int MAGIC = 0x54465331; // "TFS1"
+
+	private static final String STATE_FILE_NAME = "state";
+
+	private static final String COUNTS_FILE_NAME = "counts";
+
+	// the bytes of new documents counted before their vectors are appended
+	private static final long APPEND_CHUNK_SIZE = 1L << 20;
+
+	private final File dir;
+
+	private final boolean isNormalizeVector;
+
+	private final TermDictionary dictionary;
+
+	// the numbers of documents each term appears in, by term id
+	private int[] numAppearance;
+
+	private int numDocs;
+
+	// the length of the counts file up to the last complete batch
+	private long countsLength;
+
+	private IncrementalTfidfStore(File dir, TfidfModel model, long countsLength) {
+		this.dir = dir;
+		this.isNormalizeVector = model.isNormalizeVector();
+		this.dictionary = new TermDictionary();
+		for (String term : model.getTerms()) {
+			dictionary.intern(term);
+		}
+		this.numAppearance = new int[Math.max(1024, dictionary.size())];
+		for (int id = 0; id < dictionary.size(); id++) {
+			numAppearance[id] = model.getNumAppearance(id);
+		}
+		this.numDocs = model.getNumDocs();
+		this.countsLength = countsLength;
+	}
+
+	public static boolean exists(File dir) {
+		return new File(dir, STATE_FILE_NAME).exists();
+	}
+
+	/** Creates an empty store in the directory. */
+	public static IncrementalTfidfStore create(File dir, boolean isNormalizeVector)
+			throws IOException {
+		Preconditions.checkState(!exists(dir), "%s already holds a store", dir);
+		dir.mkdirs();
+		IncrementalTfidfStore store = new IncrementalTfidfStore(dir, new TfidfModel(
+				new TermDictionary(), new int[0], 0, isNormalizeVector), 0L);
+		new FileOutputStream(store.getCountsFile()).close();
+		store.writeState();
+		return store;
+	}
+
+	public static IncrementalTfidfStore open(File dir) throws IOException {
+		File stateFile = new File(dir, STATE_FILE_NAME);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(stateFile), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a tf-idf store: " + stateFile);
+			}
+			long countsLength = in.readLong();
+			return new IncrementalTfidfStore(dir, TfidfModel.read(in, stateFile.getPath()),
+					countsLength);
+		}
+	}
+
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	/** The model of the documents appended so far. */
+	public TfidfModel getModel() {
+		TermDictionary copy = new TermDictionary();
+		for (String term : dictionary.getTerms()) {
+			copy.intern(term);
+		}
+		return new TfidfModel(copy, numAppearance, numDocs, isNormalizeVector);
+	}
+
+	private File getCountsFile() {
+		return new File(dir, COUNTS_FILE_NAME);
+	}
+
+	/**
+	 * Appends the documents of a file in the format read by
+	 * {@link TfidfCalculator}; returns the number of documents appended.
+	 */
+	public int append(String batchFilePath) throws IOException {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		File countsFile = getCountsFile();
+		// drop what a failed append may have left
+		try (FileChannel channel = FileChannel.open(countsFile.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(countsLength);
+		}
+		long countsLengthBefore = countsLength;
+		int numDocsBefore = numDocs;
+		int[] numAppearanceBefore = numAppearance.clone();
+		int numTermsBefore = dictionary.size();
+		try (FileChannel channel = FileChannel.open(new File(batchFilePath).toPath(),
+				StandardOpenOption.READ);
+				FileOutputStream fileOut = new FileOutputStream(countsFile, true)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+			Appender appender = new Appender(out);
+			for (LineChunks.Chunk chunk : LineChunks.split(channel, 1, APPEND_CHUNK_SIZE)) {
+				appender.tokenize(chunk.read(channel));
+			}
+			out.flush();
+			fileOut.getFD().sync();
+			countsLength = fileOut.getChannel().position();
+			writeState();
+		} catch (IOException | UncheckedIOException e) {
+			// the state on disk is still that of the last batch
+			countsLength = countsLengthBefore;
+			numDocs = numDocsBefore;
+			numAppearance = numAppearanceBefore;
+			dictionary.truncate(numTermsBefore);
+			throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause()
+					: (IOException) e;
+		}
+		log.info(String.format("%d documents appended in %d ms; %d documents, %d terms",
+				numDocs - numDocsBefore, stopwatch.elapsed(TimeUnit.MILLISECONDS), numDocs,
+				dictionary.size()));
+		return numDocs - numDocsBefore;
+	}
+
+	/** Replaces the state file atomically. */
+	private void writeState() throws IOException {
+		File stateFile = new File(dir, STATE_FILE_NAME);
+		File tempFile = new File(dir, STATE_FILE_NAME + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeLong(countsLength);
+			getModel().write(out);
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes the tf-idf vectors of all the documents, with the idf of the whole
+	 * store, in the format read by {@link TfidfCalculator}.
+	 */
+	public void export(String outputFilePath, TfidfRowWriter.Format format) throws IOException {
+		double[] invDocFreq = new double[dictionary.size()];
+		for (int id = 0; id < invDocFreq.length; id++) {
+			invDocFreq[id] = Math.log10(1.0 * numDocs / numAppearance[id]);
+		}
+		int[] ids = new int[64];
+		double[] tfidf = new double[64];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(getCountsFile()), 1 << 16));
+				TfidfRowWriter out = TfidfRowWriter.open(format, outputFilePath,
+						dictionary.getTerms())) {
+			for (int i = 0; i < numDocs; i++) {
+				String className = in.readUTF();
+				int wc = in.readInt();
+				int length = in.readInt();
+				if (ids.length < length) {
+					ids = new int[length];
+					tfidf = new double[length];
+				}
+				for (int k = 0; k < length; k++) {
+					ids[k] = in.readInt();
+				}
+				for (int k = 0; k < length; k++) {
+					tfidf[k] = (1.0 * in.readInt() / wc) * invDocFreq[ids[k]];
+				}
+
+				if (isNormalizeVector) {
+					TfidfCalculator.normalizeVector(tfidf, length);
+				}
+
+				out.writeRow(className, ids, tfidf, length);
+			}
+		}
+	}
+
+	private class Appender extends DocumentTokenizer {
+		private final DataOutputStream out;
+
+		// the count of each term id in the current document, all zero in between
+		private int[] counts = new int[Math.max(1024, dictionary.size())];
+
+		// the distinct term ids of the current document
+		private int[] distinctTermIds = new int[64];
+
+		private int numDistinct;
+
+		private int wc;
+
+		Appender(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		protected void startDocument(String className) {
+			try {
+				out.writeUTF(className);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			numDistinct = 0;
+			wc = 0;
+		}
+
+		@Override
+		protected void addTerm(String term) {
+			int id = dictionary.intern(term);
+			if (id >= counts.length) {
+				counts = Arrays.copyOf(counts, id * 2);
+			}
+			if (id >= numAppearance.length) {
+				numAppearance = Arrays.copyOf(numAppearance, id * 2);
+			}
+			if (counts[id]++ == 0) {
+				if (numDistinct == distinctTermIds.length) {
+					distinctTermIds = Arrays.copyOf(distinctTermIds, numDistinct * 2);
+				}
+				distinctTermIds[numDistinct++] = id;
+			}
+			wc++;
+		}
+
+		@Override
+		protected void endDocument() {
+			Arrays.sort(distinctTermIds, 0, numDistinct);
+			try {
+				out.writeInt(wc);
+				out.writeInt(numDistinct);
+				for (int k = 0; k < numDistinct; k++) {
+					out.writeInt(distinctTermIds[k]);
+				}
+				for (int k = 0; k < numDistinct; k++) {
+					int id = distinctTermIds[k];
+					out.writeInt(counts[id]);
+					counts[id] = 0;
+					numAppearance[id]++;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			numDocs++;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean isValid = args.length >= 3
+				&& (args[1].equals("append") || args[1].equals("export"));
+		boolean isNormalizeVector = false;
+		TfidfRowWriter.Format format = TfidfRowWriter.Format.CSV;
+		String modelFilePath = null;
+		for (int i = 3; isValid && i < args.length; i++) {
+			if (args[i].equals("-n") && args[1].equals("append")) {
+				isNormalizeVector = true;
+			} else if (args[i].equals("-f") && i + 1 < args.length) {
+				format = TfidfRowWriter.Format.parse(args[++i]);
+			} else if (args[i].equals("-model") && i + 1 < args.length) {
+				modelFilePath = args[++i];
+			} else {
+				isValid = false;
+			}
+		}
+		if (!isValid) {
+			System.err.printf("usage: %s storeDir append batchFilePath [-n]\n",
+					IncrementalTfidfStore.class.getName());
+			System.err.printf("       %s storeDir export outputFilePath [-f format]"
+					+ " [-model modelFilePath]\n", IncrementalTfidfStore.class.getName());
+			System.err.printf("options:\n");
+			System.err.printf("\t-n: normalize vectors to unit-vectors, when the store is"
+					+ " created by the first append.\n");
+			System.err.printf("\t-f <csv|sparse|binary>: output format (default: csv).\n");
+			System.err.printf("\t-model <file>: also save the model, to transform other"
+					+ " documents with TfidfModel.\n");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		IncrementalTfidfStore store = exists(dir) ? open(dir) : create(dir, isNormalizeVector);
+		if (args[1].equals("append")) {
+			int numAppended = store.append(args[2]);
+			System.out.printf("%d documents appended, %d in the store\n", numAppended,
+					store.getNumDocs());
+		} else {
+			store.export(args[2], format);
+		}
+		if (modelFilePath != null) {
+			store.getModel().save(modelFilePath);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A fork-join pool that reports to a {@link MetricsRegistry}, under metric
+ * names starting with the pool name, its size, active and running workers,
+ * queued tasks, steals, and the CPU time of its workers. A fork-join pool has
+ * no hook around its tasks, so the utilization is the CPU time of the
+ * workers rather than the time they hold a task: a worker that waits for
+ * another one's subtask does not count as busy.
+ */
+public class InstrumentedForkJoinPool extends ForkJoinPool {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final long startNanos = System.nanoTime();
+
+	private final Set<Long> workerIds;
+
+	// the CPU time of the workers that have ended
+	private final LongAdder endedCpuNanos;
+
+	public InstrumentedForkJoinPool(String name, int parallelism, MetricsRegistry metrics) {
+		this(name, parallelism, metrics, ConcurrentHashMap.<Long> newKeySet(), new LongAdder());
+	}
+
+	private InstrumentedForkJoinPool(final String name, int parallelism,
+			MetricsRegistry metrics, final Set<Long> workerIds, final LongAdder endedCpuNanos) {
+		super(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+
+					@Override
+					protected void onTermination(Throwable exception) {
+						if (THREADS.isThreadCpuTimeSupported()) {
+							endedCpuNanos.add(THREADS.getCurrentThreadCpuTime());
+						}
+						workerIds.remove(getId());
+						super.onTermination(exception);
+					}
+				};
+				thread.setName(name + "-worker-" + thread.getPoolIndex());
+				workerIds.add(thread.getId());
+				return thread;
+			}
+		}, null, false);
+		this.workerIds = workerIds;
+		this.endedCpuNanos = endedCpuNanos;
+		metrics.gauge(name + ".size", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return getParallelism();
+			}
+		});
+		metrics.gauge(name + ".active", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return getActiveThreadCount();
+			}
+		});
+		metrics.gauge(name + ".running", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return getRunningThreadCount();
+			}
+		});
+		metrics.gauge(name + ".queue.current", new Supplier<Long>() {
+
+			@Override
+			public Long get() {
+				return getQueuedTaskCount() + getQueuedSubmissionCount();
+			}
+		});
+		metrics.gauge(name + ".steals", new Supplier<Long>() {
+
+			@Override
+			public Long get() {
+				return getStealCount();
+			}
+		});
+		metrics.gauge(name + ".cpu.nanos", new Supplier<Long>() {
+
+			@Override
+			public Long get() {
+				return getCpuNanos();
+			}
+		});
+		metrics.gauge(name + ".utilization", new Supplier<Double>() {
+
+			@Override
+			public Double get() {
+				long capacityNanos = (System.nanoTime() - startNanos) * getParallelism();
+				return capacityNanos == 0 ? 0.0 : ((double) getCpuNanos()) / capacityNanos;
+			}
+		});
+	}
+
+	/** The CPU time of the workers so far, or 0 if the JVM does not measure it. */
+	public long getCpuNanos() {
+		if (!THREADS.isThreadCpuTimeSupported()) {
+			return 0L;
+		}
+		long result = endedCpuNanos.sum();
+		for (long id : workerIds) {
+			// -1 if it has just ended
+			result += Math.max(0L, THREADS.getThreadCpuTime(id));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A fixed-size thread pool that reports its queue depth, busy and idle time to
+ * a {@link MetricsRegistry}, under metric names starting with the pool name.
+ */
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+	private final long startNanos = System.nanoTime();
+
+	private final LongAdder busyNanos;
+
+	private final LatencyHistogram queueDepth;
+
+	private final LatencyHistogram taskNanos;
+
+	private final ThreadLocal<Long> taskStartNanos = new ThreadLocal<>();
+
+	public InstrumentedThreadPoolExecutor(final String name, final int poolSize,
+			ThreadFactory threadFactory, MetricsRegistry metrics) {
+		super(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				threadFactory);
+		this.busyNanos = metrics.counter(name + ".busy.nanos");
+		this.queueDepth = metrics.histogram(name + ".queue.depth");
+		this.taskNanos = metrics.histogram(name + ".task.nanos");
+		metrics.gauge(name + ".size", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return poolSize;
+			}
+		});
+		metrics.gauge(name + ".queue.current", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return getQueue().size();
+			}
+		});
+		metrics.gauge(name + ".active", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return getActiveCount();
+			}
+		});
+		metrics.gauge(name + ".idle.nanos", new Supplier<Long>() {
+
+			@Override
+			public Long get() {
+				return getIdleNanos();
+			}
+		});
+		metrics.gauge(name + ".utilization", new Supplier<Double>() {
+
+			@Override
+			public Double get() {
+				long capacityNanos = (System.nanoTime() - startNanos) * getCorePoolSize();
+				return capacityNanos == 0 ? 0.0 : ((double) busyNanos.sum()) / capacityNanos;
+			}
+		});
+	}
+
+	/** Total time the workers spent without a task since the pool was created. */
+	public long getIdleNanos() {
+		return (System.nanoTime() - startNanos) * getCorePoolSize() - busyNanos.sum();
+	}
+
+	@Override
+	protected void beforeExecute(Thread t, Runnable r) {
+		super.beforeExecute(t, r);
+		queueDepth.record(getQueue().size());
+		taskStartNanos.set(System.nanoTime());
+	}
+
+	@Override
+	protected void afterExecute(Runnable r, Throwable t) {
+		long elapsedNanos = System.nanoTime() - taskStartNanos.get();
+		busyNanos.add(elapsedNanos);
+		taskNanos.record(elapsedNanos);
+		super.afterExecute(r, t);
+	}
+}
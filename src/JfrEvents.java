@@ -0,0 +1,93 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of the feature selection pipeline. They are
+ * only committed while a recording is running (e.g. started with
+ * {@code jcmd <pid> JFR.start}); otherwise {@code shouldCommit()} is false and
+ * the fields are never filled.
+ */
+public final class JfrEvents {
+	private JfrEvents() {
+	}
+
+	@Name("cs298.FitnessTask")
+	@Label("Fitness Task")
+	@Category({ "CS298", "BPSO" })
+	@Description("Fitness evaluation of one particle position")
+	public static class FitnessTask extends Event {
+		@Label("Task Name")
+		public String taskName;
+
+		@Label("Evaluator")
+		public String evaluator;
+
+		@Label("Selected Features")
+		public int numSelectedFeatures;
+
+		@Label("Fitness")
+		public double fitness;
+	}
+
+	@Name("cs298.Iteration")
+	@Label("BPSO Iteration")
+	@Category({ "CS298", "BPSO" })
+	public static class Iteration extends Event {
+		@Label("Iteration")
+		public int iteration;
+
+		@Label("Particles")
+		public int numParticles;
+
+		@Label("Gbest Fitness")
+		public double gbestFitness;
+
+		@Label("Gbest Selected Features")
+		public int gbestNumSelectedFeatures;
+	}
+
+	@Name("cs298.KdTreeBuild")
+	@Label("KdTree Build")
+	@Category({ "CS298", "KdTree" })
+	public static class KdTreeBuild extends Event {
+		@Label("Instances")
+		public int numInstances;
+
+		@Label("Dimension")
+		public int dimension;
+	}
+
+	@Name("cs298.KdTreeQuery")
+	@Label("KdTree Query")
+	@Category({ "CS298", "KdTree" })
+	@Description("A nearest (K = 1) or K-nearest neighbors query")
+	public static class KdTreeQuery extends Event {
+		@Label("K")
+		public int numK;
+
+		@Label("Visited Nodes")
+		public int numVisitedNodes;
+	}
+
+	@Name("cs298.DataLoad")
+	@Label("Data Set Load")
+	@Category({ "CS298", "IO" })
+	public static class DataLoad extends Event {
+		@Label("Path")
+		public String path;
+
+		@Label("Rows")
+		public int numRows;
+
+		@Label("Columns")
+		public int numColumns;
+
+		@Label("Size")
+		@DataAmount
+		public long numBytes;
+	}
+}
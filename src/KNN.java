@@ -13,70 +13,42 @@ import com.google.common.base.Stopwatch;
 public class KNN extends AbstractFeatureSelectionEvaluator {
 	private static final Logger log = Logger.getLogger(KNN.class.getName());
 
+	public static final int DEFAULT_K = 5;
+
 	private final Stopwatch stopwatch = Stopwatch.createUnstarted();
 
-	private final int numK;
+	protected final int numK;
 
-	public KNN(int numK, ArrayList<Integer> featureSelectionResult, ArrayList<DataPoint> dataSet) {
-		super(featureSelectionResult, dataSet);
+	public KNN(int numK, List<Integer> featureSelectionResult, FeatureMatrix data) {
+		super(featureSelectionResult, data);
+		Preconditions.checkArgument(numK > 0 && numK < data.getNumRows(), "Invalid K: %s", numK);
 		this.numK = numK;
 	}
 
-	private ArrayList<ArrayList<Double>> createDistanceMatrix(int numSampleInstances) {
-		stopwatch.reset();
-		ArrayList<ArrayList<Double>> distanceMatrix = new ArrayList<ArrayList<Double>>();
-
-		// Get sample instances; those indexes are sorted.
-		List<Integer> sampleIndices = MathUtil.randomlyPickNumbers(0, numInstances,
-				numSampleInstances);
-
-		for (int i = 0; i < numSampleInstances; i++) {
-			stopwatch.start();
-			int sampleInstanceIndex = sampleIndices.get(i);
-			// pick a sample instance
-			DataPoint sampleDataPoint = this.selectedDataSet.get(sampleInstanceIndex);
-			// the distance between a sample instance to every other instances.
-			ArrayList<Double> distances = new ArrayList<>(numInstances);
-			for (int j = 0; j < numInstances; j++) {
-				if (j < i) {
-					distances.add(distanceMatrix.get(j).get(i));
-				} else if (j == i) {
-					distances.add(0.0);
-				} else {
-					distances.add(MathUtil.calculateCosineSimilarity(
-							sampleDataPoint.getFeatureValues(),
-							this.selectedDataSet.get(j).getFeatureValues(),
-							true /* already normalized */));
-				}
-			}
-			Preconditions.checkState(distances.size() == numInstances, "Invaild distances size: "
-					+ distances.size());
-			distanceMatrix.add(distances);
-			stopwatch.stop();
-			log.fine("filled distance for data point " + i + "/" + numSampleInstances
-					+ " (to points) " + stopwatch);
-		}
-		log.info("createDistanceMatrix done." + stopwatch);
-		return distanceMatrix;
+	/** A KNN of instances that are not in this process; see {@link ShardedKNN}. */
+	protected KNN(int numK, List<Integer> featureSelectionResult, int numInstances,
+			int numFeatures) {
+		super(featureSelectionResult, numInstances, numFeatures);
+		Preconditions.checkArgument(numK > 0 && numK < numInstances, "Invalid K: %s", numK);
+		this.numK = numK;
 	}
 
-	private static String findDominantClass(List<DataPoint> points, List<Double> distances) {
-		Preconditions.checkArgument(points.size() == distances.size());
+	static int findDominantClass(List<Integer> labels, List<Double> distances) {
+		Preconditions.checkArgument(labels.size() == distances.size());
 		// Use distance of each data point as tie-breaker.
-		HashMap<String, Double> classNameWeights = new HashMap<>();
-		// Count each class name.
-		for (int i = 0; i < points.size(); i++) {
-			DataPoint point = points.get(i);
+		HashMap<Integer, Double> labelWeights = new HashMap<>();
+		// Count each class label.
+		for (int i = 0; i < labels.size(); i++) {
+			int label = labels.get(i);
 			double distance = distances.get(i);
 
-			String className = point.getClassName();
-			if (classNameWeights.containsKey(className)) {
-				classNameWeights.put(className, classNameWeights.get(className) + 1 / distance);
+			if (labelWeights.containsKey(label)) {
+				labelWeights.put(label, labelWeights.get(label) + 1 / distance);
 			} else {
-				classNameWeights.put(className, 1 / distance);
+				labelWeights.put(label, 1 / distance);
 			}
 		}
-		return Collections.max(classNameWeights.entrySet(), new HashMapComparator()).getKey();
+		return Collections.max(labelWeights.entrySet(), new HashMapComparator()).getKey();
 	}
 
 	private double calcAccuracy(int numSampleInstances) {
@@ -85,33 +57,11 @@ public class KNN extends AbstractFeatureSelectionEvaluator {
 		}
 		Preconditions.checkArgument(numSampleInstances <= numInstances,
 				"Invalid number of samples: %s of out %s", numSampleInstances, numInstances);
-		int numCorrectClassification = 0;
-		// Calculate the distance matrix of numSampleInstances rows by
-		// numInstance columns.
-		ArrayList<ArrayList<Double>> distanceMatrix = createDistanceMatrix(numSampleInstances);
-
-		Preconditions.checkArgument(distanceMatrix.size() == numSampleInstances);
-		Preconditions.checkArgument(distanceMatrix.get(0).size() == numInstances);
 		stopwatch.reset().start();
-		ArrayList<IndexedValue<Double>> distancesWithIndex = null;
-		for (int i = 0; i < numSampleInstances; i++) {
-			// find the top k nearest neighbor of the i-th sample instance
-			distancesWithIndex = makeIndexedValue(distanceMatrix.get(i));
-			Collections.sort(distancesWithIndex, new DistanceComparator());
-			// Pick first K data points; those data points have shortest
-			// distances. Note that we should exclude the testing point itself!
-			List<DataPoint> nearestPoints = new ArrayList<>();
-			List<Double> distancesOfNearestPoints = new ArrayList<>();
-			for (int j = 0; j < numK; j++) {
-				nearestPoints.add(selectedDataSet.get(distancesWithIndex.get(j + 1).getIndex()));
-				distancesOfNearestPoints.add(distancesWithIndex.get(j + 1).getValue());
-			}
-			String dominantClass = findDominantClass(nearestPoints, distancesOfNearestPoints);
-			// check whether the classified class is the same as the true class
-			if (selectedDataSet.get(i).getClassName().equals(dominantClass)) {
-				numCorrectClassification++;
-			}
-		}
+		// Get sample instances; those indexes are sorted.
+		List<Integer> sampleIndices = MathUtil.randomlyPickNumbers(0, numInstances,
+				numSampleInstances);
+		int numCorrectClassification = countCorrectlyClassified(sampleIndices);
 		stopwatch.stop();
 		double accuracy = ((double) numCorrectClassification) / numSampleInstances;
 		log.info("accuracy = " + accuracy + ", using KNN verified on " + numSampleInstances
@@ -119,6 +69,41 @@ public class KNN extends AbstractFeatureSelectionEvaluator {
 		return accuracy;
 	}
 
+	@Override
+	public int countCorrectlyClassified(List<Integer> instanceIndices) {
+		int numCorrectClassification = countCorrectlyClassifiedInSubtasks(instanceIndices,
+				((long) numInstances - 1) * numSelectedFeatures);
+		recordKernelCalls(((long) instanceIndices.size()) * (numInstances - 1));
+		return numCorrectClassification;
+	}
+
+	/**
+	 * Classifies an instance by its K nearest neighbors among all the other
+	 * instances.
+	 */
+	@Override
+	public int classify(int instanceIndex) {
+		ArrayList<IndexedValue<Double>> distancesWithIndex = new ArrayList<>(numInstances - 1);
+		for (int j = 0; j < numInstances; j++) {
+			if (j != instanceIndex) {
+				IndexedValue<Double> iv = new IndexedValue<>();
+				iv.setIndex(j);
+				// cosine distance; the rows are already normalized
+				iv.setValue(1.0 - data.dotProduct(instanceIndex, j, selectedFeatures));
+				distancesWithIndex.add(iv);
+			}
+		}
+		Collections.sort(distancesWithIndex, new DistanceComparator());
+		// Pick first K data points; those data points have shortest distances.
+		List<Integer> labelsOfNearestPoints = new ArrayList<>();
+		List<Double> distancesOfNearestPoints = new ArrayList<>();
+		for (int j = 0; j < numK; j++) {
+			labelsOfNearestPoints.add(data.getLabel(distancesWithIndex.get(j).getIndex()));
+			distancesOfNearestPoints.add(distancesWithIndex.get(j).getValue());
+		}
+		return findDominantClass(labelsOfNearestPoints, distancesOfNearestPoints);
+	}
+
 	@Override
 	public double calcFitness(double alpha, double beta, int samplingFolders) {
 		int numSamples = -1;
@@ -126,25 +111,12 @@ public class KNN extends AbstractFeatureSelectionEvaluator {
 			numSamples = numInstances / samplingFolders;
 		}
 		double accuracy = calcAccuracy(numSamples);
-		double result = alpha * accuracy + beta
-				* (((double) (numFeatures - numSelectedFeatures)) / numFeatures);
+		double result = fitness(alpha, beta, accuracy);
 		log.info("KNN::calcFitness: accuracy=" + accuracy + ", numSelectedFeatures="
 				+ numSelectedFeatures + ", fitness=" + result);
 		return result;
 	}
 
-	private static ArrayList<IndexedValue<Double>> makeIndexedValue(ArrayList<Double> list) {
-		ArrayList<IndexedValue<Double>> indexedDoubles = new ArrayList<>();
-		IndexedValue<Double> iv = null;
-		for (int i = 0; i < list.size(); i++) {
-			iv = new IndexedValue<>();
-			iv.setIndex(i);
-			iv.setValue(list.get(i));
-			indexedDoubles.add(iv);
-		}
-		return indexedDoubles;
-	}
-
 	private static class DistanceComparator implements Comparator<IndexedValue<Double>> {
 
 		@Override
@@ -154,13 +126,32 @@ public class KNN extends AbstractFeatureSelectionEvaluator {
 
 	}
 
-	private static class HashMapComparator implements Comparator<Map.Entry<String, Double>> {
+	private static class HashMapComparator implements Comparator<Map.Entry<Integer, Double>> {
 
 		@Override
-		public int compare(Entry<String, Double> o1, Entry<String, Double> o2) {
+		public int compare(Entry<Integer, Double> o1, Entry<Integer, Double> o2) {
 			return Double.compare(o1.getValue(), o2.getValue());
 		}
 
 	}
 
+	/** KNN needs no preprocessing besides the shared primitive data set. */
+	public static class Context extends EvaluatorContext {
+		private final int numK;
+
+		public Context(FeatureMatrix data, int numK) {
+			super(data);
+			this.numK = numK;
+		}
+
+		@Override
+		public String getName() {
+			return "knn:" + numK;
+		}
+
+		@Override
+		public KNN newEvaluator(List<Integer> featureSelectionResult) {
+			return new KNN(numK, featureSelectionResult, data);
+		}
+	}
 }
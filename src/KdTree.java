@@ -1,8 +1,16 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Stack;
 import java.util.logging.Logger;
 
 import com.google.common.base.Preconditions;
 
+/**
+ * A KD-tree over the rows of a {@link FeatureMatrix}, which it reads through
+ * the same accessors as the evaluators, so that it can be built over rows
+ * stored off the heap. A node holds a row index, not the values of the row.
+ */
 public class KdTree {
 	private static final Logger log = Logger.getLogger(KdTree.class.getName());
 
@@ -10,28 +18,59 @@ public class KdTree {
 		LEFT, RIGHT
 	};
 
+	private final FeatureMatrix data;
+
+	private final FeatureMask allFeatures;
+
 	private final Node rootNode;
 
 	private final int numNodes;
 
-	private KdTree(Node rootNode, int numNodes) {
+	private KdTree(FeatureMatrix data, Node rootNode, int numNodes) {
+		this.data = data;
+		this.allFeatures = FeatureMask.all(data.getNumColumns());
 		this.rootNode = rootNode;
 		this.numNodes = numNodes;
 	}
 
+	public static KdTree build(FeatureMatrix data, boolean useIncrementalSplitFeatureIndex) {
+		JfrEvents.KdTreeBuild event = new JfrEvents.KdTreeBuild();
+		event.begin();
+		int[] rows = new int[data.getNumRows()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = i;
+		}
+		KdTree tree = new KdTree(data, build(data, rows, null, useIncrementalSplitFeatureIndex ? 0
+				: -1), rows.length);
+		event.end();
+		if (event.shouldCommit()) {
+			event.numInstances = rows.length;
+			event.dimension = data.getNumColumns();
+			event.commit();
+		}
+		return tree;
+	}
+
+	public static KdTree build(FeatureMatrix data) {
+		return build(data, false);
+	}
+
+	/** Builds a tree over the instances of the data set, copied to a {@link FeatureMatrix}. */
 	public static KdTree build(DataSet dataSet, boolean useIncrementalSplitFeatureIndex) {
-		return new KdTree(build(dataSet, null, useIncrementalSplitFeatureIndex ? 0 : -1),
-				dataSet.getSize());
+		List<DataPoint> instances = new ArrayList<>();
+		for (int i = 0; i < dataSet.getSize(); i++) {
+			instances.add(dataSet.getMutateInstance(i));
+		}
+		return build(new FeatureMatrix(instances), useIncrementalSplitFeatureIndex);
 	}
 
 	public static KdTree build(DataSet dataSet) {
 		return build(dataSet, false);
 	}
 
-	private static Node build(DataSet dataSet, Range range, int splitFeatureIndex) {
-		Preconditions.checkNotNull(dataSet);
-		log.fine("Building KdTree from data set: " + dataSet.getSize());
-		int numInstances = dataSet.getSize();
+	private static Node build(FeatureMatrix data, int[] rows, Range range, int splitFeatureIndex) {
+		log.fine("Building KdTree from rows: " + rows.length);
+		int numInstances = rows.length;
 		if (numInstances == 0) {
 			return null;
 		}
@@ -39,48 +78,47 @@ public class KdTree {
 		// Select a dimension (i.e. feature index) and an instance to split.
 		if (splitFeatureIndex < 0) {
 			// No splitFeatureIndex is assigned, so we select the split feature by ourselves.
-			splitFeatureIndex = selectSplitFeature(dataSet);
+			splitFeatureIndex = selectSplitFeature(data, rows);
 		}
 		log.fine("selected split dimension: " + splitFeatureIndex);
-		IndexedValue<Double> splitFeatureValueAndInstanceIndex = MathUtil.median(dataSet
-				.getSingleFeatureValues(splitFeatureIndex));
+		IndexedValue<Double> splitFeatureValueAndInstanceIndex = MathUtil.median(getColumn(data,
+				rows, splitFeatureIndex));
 		log.fine("selected split value, and instance#: " + splitFeatureValueAndInstanceIndex);
 		double splitFeatureValue = splitFeatureValueAndInstanceIndex.getValue();
 		int splitInstanceIndex = splitFeatureValueAndInstanceIndex.getIndex();
-		DataPoint splitDataPoint = dataSet.getMutateInstance(splitInstanceIndex);
 
-		// Split data-set (except the instance selected above as the split
-		// point) to 2 sub-data-set.
-		DataSet dataSetForLeftSubTree = new DataSet(dataSet.getDimension());
-		DataSet dataSetForRightSubTree = new DataSet(dataSet.getDimension());
+		// Split the rows (except the instance selected above as the split
+		// point) to 2 sub-sets.
+		int[] rowsForLeftSubTree = new int[numInstances - 1];
+		int[] rowsForRightSubTree = new int[numInstances - 1];
+		int numLeft = 0;
+		int numRight = 0;
 		for (int i = 0; i < numInstances; i++) {
 			if (i != splitInstanceIndex) {
-				DataPoint instance = dataSet.getInstance(i);
-				if (instance.getFeatureValues().get(splitFeatureIndex) < splitFeatureValue) {
-					dataSetForLeftSubTree.addInstance(instance);
+				if (data.get(rows[i], splitFeatureIndex) < splitFeatureValue) {
+					rowsForLeftSubTree[numLeft++] = rows[i];
 				} else {
-					dataSetForRightSubTree.addInstance(instance);
+					rowsForRightSubTree[numRight++] = rows[i];
 				}
 			}
 		}
 
 		// Build the tree recursively.
-		int nextSplitFeatureIndex = (splitFeatureIndex + 1) % dataSet.getDimension();
-		Node node = new Node();
-		node.setRange(range);
-		node.setDataPoint(splitDataPoint);
-		node.setSplitFeatureIndex(splitFeatureIndex);
-		node.setLeftChild(build(dataSetForLeftSubTree, Range.LEFT, nextSplitFeatureIndex));
-		node.setRightChild(build(dataSetForRightSubTree, Range.RIGHT, nextSplitFeatureIndex));
+		int nextSplitFeatureIndex = (splitFeatureIndex + 1) % data.getNumColumns();
+		Node node = new Node(data, rows[splitInstanceIndex], splitFeatureIndex, range);
+		node.setLeftChild(build(data, Arrays.copyOf(rowsForLeftSubTree, numLeft), Range.LEFT,
+				nextSplitFeatureIndex));
+		node.setRightChild(build(data, Arrays.copyOf(rowsForRightSubTree, numRight),
+				Range.RIGHT, nextSplitFeatureIndex));
 
 		return node;
 	}
 
-	private static int selectSplitFeature(DataSet dataSet) {
+	private static int selectSplitFeature(FeatureMatrix data, int[] rows) {
 		int splitFeatureIndex = -1;
 		double maxVariance = -1.0;
-		for (int i = 0; i < dataSet.getDimension(); i++) {
-			double variance = MathUtil.variance(dataSet.getSingleFeatureValues(i));
+		for (int i = 0; i < data.getNumColumns(); i++) {
+			double variance = MathUtil.variance(getColumn(data, rows, i));
 			if (variance > maxVariance) {
 				maxVariance = variance;
 				splitFeatureIndex = i;
@@ -89,6 +127,56 @@ public class KdTree {
 		return splitFeatureIndex;
 	}
 
+	private static List<Double> getColumn(FeatureMatrix data, int[] rows, int column) {
+		List<Double> values = new ArrayList<>(rows.length);
+		for (int row : rows) {
+			values.add(data.get(row, column));
+		}
+		return values;
+	}
+
+	/** The values of the search point, and as floats if the rows are not doubles. */
+	private final class SearchPoint {
+		final double[] values;
+
+		final float[] floatValues;
+
+		SearchPoint(DataPoint point) {
+			Preconditions.checkArgument(point.getFeatureValues().size() == data.getNumColumns(),
+					"Point of %s features for %s", point.getFeatureValues().size(), data
+							.getNumColumns());
+			this.values = point.getFeatureValueArray();
+			if (data.getPrecision() == FeatureMatrix.Precision.DOUBLE) {
+				this.floatValues = null;
+			} else {
+				this.floatValues = new float[values.length];
+				for (int j = 0; j < values.length; j++) {
+					floatValues[j] = (float) values[j];
+				}
+			}
+		}
+
+		double get(int column) {
+			return values[column];
+		}
+
+		double distanceTo(Node node) {
+			double squaredDistance = floatValues == null ? data.squaredEuclideanDistance(
+					node.row, values, allFeatures) : data.squaredEuclideanDistance(node.row,
+					floatValues, allFeatures);
+			return Math.sqrt(squaredDistance);
+		}
+
+		boolean equalsRowOf(Node node) {
+			for (int j = 0; j < values.length; j++) {
+				if (data.get(node.row, j) != values[j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * Search the point in a (sub) KD-tree from root to leaf; early return if a
 	 * node in the search path with exactly same data point in the search path.
@@ -103,17 +191,16 @@ public class KdTree {
 	 *         otherwise it returns {@code null}.
 	 */
 	private static Node followTreeToLeafOrEarlyReturn(final Node rootNode,
-			final Stack<Node> searchPath, final DataPoint searchPoint) {
+			final Stack<Node> searchPath, final SearchPoint searchPoint) {
 		Node node = rootNode;
 		while (node != null) {
 			log.fine("push: " + node);
 			searchPath.push(node);
 			int splitFeatureIndex = node.getSplitFeatureIndex();
-			if (node.getDataPoint().equalsIgnoringClassName(searchPoint)) {
+			if (searchPoint.equalsRowOf(node)) {
 				log.fine("found the node with exactly same data point: " + node);
 				return node;
-			} else if (searchPoint.getFeatureValues().get(splitFeatureIndex) < node.getDataPoint()
-					.getFeatureValues().get(splitFeatureIndex)) {
+			} else if (searchPoint.get(splitFeatureIndex) < node.getSplitFeatureValue()) {
 				node = node.getLeftChild();
 			} else {
 				node = node.getRightChild();
@@ -125,7 +212,7 @@ public class KdTree {
 	/**
 	 * Search the point in a (sub) KD-tree from root to leaf. Note that it is
 	 * different from
-	 * {@link KdTree#followTreeToLeafOrEarlyReturn(Node, Stack, DataPoint)};
+	 * {@link KdTree#followTreeToLeafOrEarlyReturn(Node, Stack, SearchPoint)};
 	 * this method will not early return even if a node in the tree with the
 	 * exact same data has been found -- instead, the search will not end until
 	 * a leaf node was reached.
@@ -138,14 +225,13 @@ public class KdTree {
 	 *            a data point to be searched
 	 */
 	private static void followTreeToLeaf(final Node rootNode, final Stack<Node> searchPath,
-			final DataPoint searchPoint) {
+			final SearchPoint searchPoint) {
 		Node node = rootNode;
 		while (node != null) {
 			log.fine("push: " + node);
 			searchPath.push(node);
 			int splitFeatureIndex = node.getSplitFeatureIndex();
-			if (searchPoint.getFeatureValues().get(splitFeatureIndex) < node.getDataPoint()
-					.getFeatureValues().get(splitFeatureIndex)) {
+			if (searchPoint.get(splitFeatureIndex) < node.getSplitFeatureValue()) {
 				node = node.getLeftChild();
 			} else {
 				node = node.getRightChild();
@@ -154,7 +240,19 @@ public class KdTree {
 	}
 
 	public DataPoint findNearestNode(final DataPoint searchPoint) {
-		log.fine("findNearestNode: " + searchPoint);
+		JfrEvents.KdTreeQuery event = new JfrEvents.KdTreeQuery();
+		event.begin();
+		DataPoint result = findNearestNode(new SearchPoint(searchPoint), event);
+		event.end();
+		if (event.shouldCommit()) {
+			event.numK = 1;
+			event.commit();
+		}
+		return result;
+	}
+
+	private DataPoint findNearestNode(final SearchPoint searchPoint,
+			JfrEvents.KdTreeQuery event) {
 		Stack<Node> searchPath = new Stack<>();
 		Node nodeWithExactlySameData = followTreeToLeafOrEarlyReturn(rootNode, searchPath,
 				searchPoint);
@@ -171,15 +269,14 @@ public class KdTree {
 		while (!searchPath.empty()) {
 			// Try previous split point in the search path.
 			Node node = searchPath.pop();
+			event.numVisitedNodes++;
 			log.fine("pop: " + node);
 			// Need to search another half-space of the split node?
 			int splitFeatureIndex = node.getSplitFeatureIndex();
-			boolean searchAnotherHalfSpace = minDistance > Math.abs(searchPoint.getFeatureValues()
-					.get(splitFeatureIndex)
-					- node.getDataPoint().getFeatureValues().get(splitFeatureIndex));
+			boolean searchAnotherHalfSpace = minDistance > Math.abs(searchPoint
+					.get(splitFeatureIndex) - node.getSplitFeatureValue());
 
-			distance = MathUtil.calculateEuclideanDistance(node.getDataPoint().getFeatureValues(),
-					searchPoint.getFeatureValues());
+			distance = searchPoint.distanceTo(node);
 			if (distance < minDistance) {
 				minDistance = distance;
 				nearestNode = node;
@@ -187,9 +284,8 @@ public class KdTree {
 
 			if (searchAnotherHalfSpace) {
 				Node splitDataNodeInAnotherHalf = null;
-				Range rangeAlreadySearched = (searchPoint.getFeatureValues().get(splitFeatureIndex) < node
-						.getDataPoint().getFeatureValues().get(splitFeatureIndex)) ? Range.LEFT
-						: Range.RIGHT;
+				Range rangeAlreadySearched = (searchPoint.get(splitFeatureIndex) < node
+						.getSplitFeatureValue()) ? Range.LEFT : Range.RIGHT;
 				if (rangeAlreadySearched == Range.LEFT) {
 					// Go on searching on right-half space since left-half space
 					// has been searched.
@@ -219,7 +315,20 @@ public class KdTree {
 	}
 
 	public DataPointSet findKNearestNodes(final DataPoint searchPoint, final int numK) {
-		log.fine("findKNearestNodes: " + searchPoint + ", K=" + numK);
+		JfrEvents.KdTreeQuery event = new JfrEvents.KdTreeQuery();
+		event.begin();
+		DataPointSet result = findKNearestNodes(new SearchPoint(searchPoint), numK, event);
+		event.end();
+		if (event.shouldCommit()) {
+			event.numK = numK;
+			event.commit();
+		}
+		return result;
+	}
+
+	private DataPointSet findKNearestNodes(final SearchPoint searchPoint, final int numK,
+			JfrEvents.KdTreeQuery event) {
+		log.fine("findKNearestNodes: K=" + numK);
 		Preconditions.checkArgument(numK <= numNodes);
 		DataPointSet kNearestDataPoints = new DataPointSet(numK);
 
@@ -233,23 +342,21 @@ public class KdTree {
 		while (!searchPath.empty()) {
 			// Try previous split point in the search path.
 			Node node = searchPath.pop();
+			event.numVisitedNodes++;
 			// Need to search another half-space of the split node?
 			int splitFeatureIndex = node.getSplitFeatureIndex();
 			boolean searchAnotherHalfSpace = (!kNearestDataPoints.isFull())
-					|| (minDistance > Math.abs(searchPoint.getFeatureValues()
-							.get(splitFeatureIndex)
-							- node.getDataPoint().getFeatureValues().get(splitFeatureIndex)));
+					|| (minDistance > Math.abs(searchPoint.get(splitFeatureIndex)
+							- node.getSplitFeatureValue()));
 
-			distance = MathUtil.calculateEuclideanDistance(node.getDataPoint().getFeatureValues(),
-					searchPoint.getFeatureValues());
+			distance = searchPoint.distanceTo(node);
 			kNearestDataPoints.add(node.getDataPoint(), distance);
 			minDistance = kNearestDataPoints.getMaxDistance();
 
 			if (searchAnotherHalfSpace) {
 				Node splitDataNodeInAnotherHalf = null;
-				Range rangeAlreadySearched = (searchPoint.getFeatureValues().get(splitFeatureIndex) < node
-						.getDataPoint().getFeatureValues().get(splitFeatureIndex)) ? Range.LEFT
-						: Range.RIGHT;
+				Range rangeAlreadySearched = (searchPoint.get(splitFeatureIndex) < node
+						.getSplitFeatureValue()) ? Range.LEFT : Range.RIGHT;
 				if (rangeAlreadySearched == Range.LEFT) {
 					// Go on searching on right-half space since left-half space
 					// has been searched.
@@ -278,33 +385,47 @@ public class KdTree {
 	}
 
 	public static class Node {
-		private DataPoint dataPoint;
-		private int splitFeatureIndex;
+		private final FeatureMatrix data;
+		private final int row;
+		private final int splitFeatureIndex;
+		private final Range range;
 		private Node leftChild;
 		private Node rightChild;
-		private Range range;
 
-		public DataPoint getDataPoint() {
-			return dataPoint;
+		private Node(FeatureMatrix data, int row, int splitFeatureIndex, Range range) {
+			this.data = data;
+			this.row = row;
+			this.splitFeatureIndex = splitFeatureIndex;
+			this.range = range;
 		}
 
-		public void setDataPoint(DataPoint dataPoint) {
-			this.dataPoint = dataPoint;
+		/** The row of the data the node splits at. */
+		public int getRow() {
+			return row;
+		}
+
+		/** A copy of the row, with its class name. */
+		public DataPoint getDataPoint() {
+			List<Double> values = new ArrayList<>(data.getNumColumns());
+			for (int j = 0; j < data.getNumColumns(); j++) {
+				values.add(data.get(row, j));
+			}
+			return new DataPoint(data.getClassName(row), values);
 		}
 
 		public int getSplitFeatureIndex() {
 			return splitFeatureIndex;
 		}
 
-		public void setSplitFeatureIndex(int splitFeatureIndex) {
-			this.splitFeatureIndex = splitFeatureIndex;
+		double getSplitFeatureValue() {
+			return data.get(row, splitFeatureIndex);
 		}
 
 		public Node getLeftChild() {
 			return leftChild;
 		}
 
-		public void setLeftChild(Node leftChild) {
+		private void setLeftChild(Node leftChild) {
 			this.leftChild = leftChild;
 		}
 
@@ -312,7 +433,7 @@ public class KdTree {
 			return rightChild;
 		}
 
-		public void setRightChild(Node rightChild) {
+		private void setRightChild(Node rightChild) {
 			this.rightChild = rightChild;
 		}
 
@@ -320,13 +441,9 @@ public class KdTree {
 			return range;
 		}
 
-		public void setRange(Range range) {
-			this.range = range;
-		}
-
 		@Override
 		public String toString() {
-			return "Node [dataPoint=" + dataPoint + ", splitFeatureIndex=" + splitFeatureIndex
+			return "Node [row=" + row + ", splitFeatureIndex=" + splitFeatureIndex
 					+ ", hasLeftChild=" + (leftChild != null) + ", hasRightChild="
 					+ (rightChild != null) + ", range=" + range + "]";
 		}
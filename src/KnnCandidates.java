@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The M nearest neighbors of every instance of a data set under all the
+ * features, computed once and memory-mapped from a file, so that the OS pages
+ * them in and shares them between processes on the same data set.
+ * <p>
+ * The file holds the int {@link #MAGIC}, the number of instances, M and the
+ * number of features, the checksums of the labels and of the values of the
+ * data set, as longs, then the indices of the candidates of each instance,
+ * nearest first (ties by lower index), as ints, then their cosine distances
+ * as floats. It is written under a temporary name and renamed once complete,
+ * so that a build that fails leaves no file behind.
+ */
+public class KnnCandidates {
+	private static final Logger log = Logger.getLogger(KnnCandidates.class.getName());
+
+	public static final int MAGIC = 0x4b4e4e43; // "KNNC"
+
+	private static final int HEADER_BYTES = 32;
+
+	private final int numInstances;
+
+	private final int numCandidates;
+
+	private final IntBuffer indices;
+
+	private final FloatBuffer distances;
+
+	private KnnCandidates(MappedByteBuffer buffer) {
+		this.numInstances = buffer.getInt(4);
+		this.numCandidates = buffer.getInt(8);
+		long numEntries = ((long) numInstances) * numCandidates;
+		buffer.position(HEADER_BYTES);
+		this.indices = buffer.slice().asIntBuffer();
+		buffer.position((int) (HEADER_BYTES + numEntries * 4));
+		this.distances = buffer.slice().asFloatBuffer();
+	}
+
+	/**
+	 * Maps a file written by {@link #build(FeatureMatrix, int, String, int)}
+	 * from the data set. The checksum of the values is only compared if the
+	 * data set holds them as double or float, since integers round them.
+	 *
+	 * @throws IOException
+	 *             if the file is not a whole candidate file, or was built from
+	 *             another data set
+	 */
+	public static KnnCandidates open(String filePath, FeatureMatrix data) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath))) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+					.size());
+			if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+				throw new IOException("Not a candidate file: " + filePath);
+			}
+			long numBytes = HEADER_BYTES + ((long) buffer.getInt(4)) * buffer.getInt(8) * 8;
+			if (buffer.capacity() != numBytes) {
+				throw new IOException("Truncated candidate file: " + filePath + " has "
+						+ buffer.capacity() + " bytes, not " + numBytes);
+			}
+			boolean isValueChecked = data.getPrecision() == FeatureMatrix.Precision.DOUBLE
+					|| data.getPrecision() == FeatureMatrix.Precision.FLOAT;
+			if (buffer.getInt(4) != data.getNumRows() || buffer.getInt(12) != data.getNumColumns()
+					|| buffer.getLong(16) != labelChecksum(data) || isValueChecked && buffer
+							.getLong(24) != valueChecksum(data)) {
+				throw new IOException("Candidate file " + filePath + " of " + buffer.getInt(4)
+						+ " x " + buffer.getInt(12) + " was built from another data set than this "
+						+ data.getNumRows() + " x " + data.getNumColumns());
+			}
+			return new KnnCandidates(buffer);
+		}
+	}
+
+	/** The CRC-32 of the labels of the rows. */
+	private static long labelChecksum(FeatureMatrix data) {
+		CRC32 crc = new CRC32();
+		ByteBuffer label = ByteBuffer.allocate(4);
+		for (int i = 0; i < data.getNumRows(); i++) {
+			label.putInt(0, data.getLabel(i));
+			label.clear();
+			crc.update(label);
+		}
+		return crc.getValue();
+	}
+
+	/** The CRC-32 of the values rounded to float, the same as doubles or floats. */
+	private static long valueChecksum(FeatureMatrix data) {
+		CRC32 crc = new CRC32();
+		ByteBuffer row = ByteBuffer.allocate(data.getNumColumns() * 4);
+		for (int i = 0; i < data.getNumRows(); i++) {
+			for (int j = 0; j < data.getNumColumns(); j++) {
+				row.putFloat(j * 4, (float) data.get(i, j));
+			}
+			row.clear();
+			crc.update(row);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the {@code numCandidates} nearest neighbors of every instance
+	 * under all the features to the file, finding those of slices of the
+	 * instances on {@code parallelism} threads, and maps it. The file is
+	 * replaced only once it is complete.
+	 */
+	public static KnnCandidates build(final FeatureMatrix data, final int numCandidates,
+			String filePath, int parallelism) throws IOException {
+		final int numInstances = data.getNumRows();
+		Preconditions.checkArgument(numCandidates > 0 && numCandidates < numInstances,
+				"Invalid number of candidates: %s", numCandidates);
+		long numBytes = HEADER_BYTES + ((long) numInstances) * numCandidates * 8;
+		Preconditions.checkArgument(numBytes <= Integer.MAX_VALUE,
+				"Too many candidates for one file: %s x %s", numInstances, numCandidates);
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		Path path = Paths.get(filePath);
+		Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		boolean isWritten = false;
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, numBytes);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, numInstances);
+			buffer.putInt(8, numCandidates);
+			buffer.putInt(12, data.getNumColumns());
+			buffer.putLong(16, labelChecksum(data));
+			buffer.putLong(24, valueChecksum(data));
+			KnnCandidates written = new KnnCandidates(buffer);
+			final IntBuffer indices = written.indices;
+			final FloatBuffer distances = written.distances;
+			final FeatureMask all = FeatureMask.all(data.getNumColumns());
+			int numSlices = Math.max(1, Math.min(parallelism, numInstances));
+			List<Callable<Void>> slices = new ArrayList<>(numSlices);
+			for (int t = 0; t < numSlices; t++) {
+				final int from = (int) ((long) numInstances * t / numSlices);
+				final int to = (int) ((long) numInstances * (t + 1) / numSlices);
+				slices.add(new Callable<Void>() {
+
+					@Override
+					public Void call() {
+						// views of their own; the slices write disjoint ranges
+						IntBuffer sliceIndices = indices.duplicate();
+						FloatBuffer sliceDistances = distances.duplicate();
+						int[] nearest = new int[numCandidates];
+						double[] nearestDistances = new double[numCandidates];
+						for (int i = from; i < to; i++) {
+							findNearest(data, i, all, nearest, nearestDistances);
+							for (int k = 0; k < numCandidates; k++) {
+								sliceIndices.put(i * numCandidates + k, nearest[k]);
+								sliceDistances.put(i * numCandidates + k,
+										(float) nearestDistances[k]);
+							}
+						}
+						return null;
+					}
+				});
+			}
+			ExecutorService threads = Executors.newFixedThreadPool(numSlices,
+					new ThreadFactoryBuilder().setNameFormat("knn-candidates-%s").build());
+			try {
+				for (Future<Void> slice : threads.invokeAll(slices)) {
+					slice.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			} finally {
+				threads.shutdownNow();
+			}
+			buffer.force();
+			isWritten = true;
+		} finally {
+			if (!isWritten) {
+				Files.deleteIfExists(tempPath);
+			}
+		}
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		long numPairs = ((long) numInstances) * (numInstances - 1);
+		AbstractFeatureSelectionEvaluator.recordKernelCalls(numPairs, numPairs
+				* data.getNumColumns());
+		log.info(numCandidates + " candidates of " + numInstances + " instances written to "
+				+ filePath + ". " + stopwatch);
+		return open(filePath, data);
+	}
+
+	/**
+	 * Fills {@code nearest} with the nearest instances to {@code instance}
+	 * under the mask, ties by lower index, and {@code nearestDistances} with
+	 * their cosine distances.
+	 */
+	private static void findNearest(FeatureMatrix data, int instance, FeatureMask mask,
+			int[] nearest, double[] nearestDistances) {
+		int size = 0;
+		for (int j = 0; j < data.getNumRows(); j++) {
+			if (j == instance) {
+				continue;
+			}
+			// cosine distance; the rows are already normalized
+			double distance = 1.0 - data.dotProduct(instance, j, mask);
+			if (size == nearest.length && Double.compare(distance,
+					nearestDistances[size - 1]) >= 0) {
+				continue;
+			}
+			int k = size == nearest.length ? size - 1 : size++;
+			for (; k > 0 && Double.compare(nearestDistances[k - 1], distance) > 0; k--) {
+				nearest[k] = nearest[k - 1];
+				nearestDistances[k] = nearestDistances[k - 1];
+			}
+			nearest[k] = j;
+			nearestDistances[k] = distance;
+		}
+	}
+
+	public int getNumInstances() {
+		return numInstances;
+	}
+
+	/** M, the number of candidates of each instance. */
+	public int getNumCandidates() {
+		return numCandidates;
+	}
+
+	/** The index of the {@code k}-th nearest instance to {@code instance}. */
+	public int getCandidate(int instance, int k) {
+		return indices.get(instance * numCandidates + k);
+	}
+
+	/** The distance of the {@code k}-th nearest instance under all the features. */
+	public float getDistance(int instance, int k) {
+		return distances.get(instance * numCandidates + k);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length % 2 != 0) {
+			printUsage();
+			return;
+		}
+		int numCandidates = 100;
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		for (int i = 2; i < args.length; i += 2) {
+			switch (args[i]) {
+			case "-m":
+				numCandidates = Integer.parseInt(args[i + 1]);
+				break;
+			case "-threads":
+				parallelism = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				printUsage();
+				return;
+			}
+		}
+		FeatureMatrix data = FeatureMatrixLoader.load(args[0], parallelism);
+		try {
+			build(data, numCandidates, args[1], parallelism);
+		} finally {
+			data.close();
+		}
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("KnnCandidates <data.csv> <candidates file> [-m <n>] [-threads <n>]");
+		System.err.println("\t-m <n>: the candidates of each instance (default: 100).");
+		System.err.println("\t-threads <n>: the threads (default: one per CPU).");
+	}
+}
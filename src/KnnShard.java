@@ -0,0 +1,51 @@
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * A partition of the instances of a data set for {@link ShardedKNN}: shard
+ * {@code s} of {@code S} holds instances {@code s}, {@code s + S},
+ * {@code s + 2S}, ... of the whole data set, which are its instances
+ * {@code 0, 1, 2, ...}. A shard is either in the process
+ * ({@link LocalKnnShard}) or served by a {@link KnnShardServer}
+ * ({@link RemoteKnnShard}); it may be called by several threads at once.
+ */
+public interface KnnShard extends Closeable {
+	/** The nearest instances of a shard to a query, nearest first. */
+	class Neighbors {
+		/** The instances of the shard, by their index in the shard. */
+		public final int[] indices;
+
+		/** The cosine distance of each instance to the query. */
+		public final double[] distances;
+
+		public Neighbors(int[] indices, double[] distances) {
+			this.indices = indices;
+			this.distances = distances;
+		}
+	}
+
+	int getNumFeatures();
+
+	/** The class name of each instance of the shard, in order. */
+	List<String> getClassNames();
+
+	/**
+	 * Returns the given instances of the shard; only the values of the
+	 * features of the mask are set, the others are 0.
+	 */
+	double[][] getRows(int[] indices, FeatureMask mask);
+
+	/**
+	 * Returns, for each query, the {@code numK} instances of the shard (or all
+	 * of them if there are fewer) that are nearest by cosine distance over the
+	 * features of the mask, except the instance of the shard at the same
+	 * index of {@code excludedIndices} (-1 for none). Ties go to the instance
+	 * of lower index. Only the values of the queries for the features of the
+	 * mask are read.
+	 */
+	Neighbors[] findNearest(double[][] queries, int[] excludedIndices, FeatureMask mask,
+			int numK);
+
+	@Override
+	void close();
+}
@@ -0,0 +1,351 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A process that holds one shard of a data set, every {@code numShards}-th
+ * row from row {@code shard}, and answers the {@link RemoteKnnShard}s of
+ * {@link ShardedKNN}. The queries of a request are split among the threads
+ * of one pool per server.
+ * <p>
+ * The protocol uses the encoding of {@link FitnessProtocol}, with its own
+ * {@link #MAGIC}:
+ * <ol>
+ * <li>the client sends {@link #MAGIC} and the version;</li>
+ * <li>the server answers with {@link #MAGIC}, the version, the number of
+ * features, its shard and number of shards, its number of instances, its
+ * class names (their number, then each) and the class of each instance, as an
+ * index into those names;</li>
+ * <li>then, any number of times, the client sends a request: {@link #GET_ROWS},
+ * a mask, a number of instances and their indices, answered with
+ * {@link FitnessProtocol#STATUS_OK} and the values of the features of the mask
+ * of each instance; or {@link #FIND_NEAREST}, a mask, K, a number of queries
+ * and, per query, the index of the instance to exclude and the values of the
+ * features of the mask, answered with {@link FitnessProtocol#STATUS_OK} and,
+ * per query, the number of neighbors and the index and distance of each;
+ * either is answered with {@link FitnessProtocol#STATUS_ERROR} and a message
+ * if it fails;</li>
+ * <li>{@link #END} ends the connection.</li>
+ * </ol>
+ */
+public class KnnShardServer implements Closeable {
+	private static final Logger log = Logger.getLogger(KnnShardServer.class.getName());
+
+	static final int MAGIC = 0x50534f4b;
+
+	static final byte END = 0;
+
+	static final byte GET_ROWS = 1;
+
+	static final byte FIND_NEAREST = 2;
+
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+	private final LocalKnnShard shard;
+
+	private final int shardIndex;
+
+	private final int numShards;
+
+	private final int numFeatures;
+
+	// the class names of the shard, and the index of the one of each instance
+	private final List<String> classNames = new ArrayList<>();
+
+	private final int[] classIndices;
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService pool;
+
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Listens on the port (0 for any free one) and serves the rows of the
+	 * shard, stored as doubles, which the server closes when it is closed.
+	 */
+	public KnnShardServer(int port, FeatureMatrix rows, int shardIndex, int numShards)
+			throws IOException {
+		this.shard = new LocalKnnShard(rows);
+		this.shardIndex = shardIndex;
+		this.numShards = numShards;
+		this.numFeatures = rows.getNumColumns();
+		List<String> instanceClassNames = shard.getClassNames();
+		this.classIndices = new int[instanceClassNames.size()];
+		Map<String, Integer> indicesByClassName = new HashMap<>();
+		for (int i = 0; i < classIndices.length; i++) {
+			Integer index = indicesByClassName.get(instanceClassNames.get(i));
+			if (index == null) {
+				index = classNames.size();
+				indicesByClassName.put(instanceClassNames.get(i), index);
+				classNames.add(instanceClassNames.get(i));
+			}
+			classIndices[i] = index;
+		}
+		this.pool = new InstrumentedThreadPoolExecutor("shard", POOL_SIZE,
+				new ThreadFactoryBuilder().setNameFormat("knn-shard-server-%s").build(),
+				MetricsRegistry.get());
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(port));
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/** Writes the values of the row at the indices. */
+	static void writeValues(DataOutput out, double[] row, int[] indices) throws IOException {
+		for (int j : indices) {
+			out.writeDouble(row[j]);
+		}
+	}
+
+	/** Reads the values of a row at the indices; the other values are 0. */
+	static double[] readValues(DataInput in, int numFeatures, int[] indices) throws IOException {
+		double[] row = new double[numFeatures];
+		for (int j : indices) {
+			row[j] = in.readDouble();
+		}
+		return row;
+	}
+
+	/** Accepts and serves connections until the server is closed. */
+	public void serve() {
+		log.info("knn shard " + shardIndex + " of " + numShards + " listening on port "
+				+ getPort() + " (" + classIndices.length + "x" + numFeatures + ")");
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					log.warning("accept failed: " + e);
+				}
+				continue;
+			}
+			connections.add(socket);
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						serveConnection(socket);
+					} catch (EOFException | SocketException e) {
+						log.info("connection from " + socket.getRemoteSocketAddress() + " closed: "
+								+ e);
+					} catch (IOException e) {
+						log.warning("connection from " + socket.getRemoteSocketAddress()
+								+ " failed: " + e);
+					} finally {
+						connections.remove(socket);
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// already closed
+						}
+					}
+				}
+			}, "knn-shard-connection-" + socket.getPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/** Serves the requests of one client until it sends {@link #END}. */
+	private void serveConnection(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket
+				.getOutputStream()));
+		FitnessProtocol.checkHeader(in, MAGIC);
+		FitnessProtocol.writeHeader(out, MAGIC);
+		out.writeInt(numFeatures);
+		out.writeInt(shardIndex);
+		out.writeInt(numShards);
+		out.writeInt(classIndices.length);
+		out.writeInt(classNames.size());
+		for (String className : classNames) {
+			out.writeUTF(className);
+		}
+		for (int classIndex : classIndices) {
+			out.writeInt(classIndex);
+		}
+		out.flush();
+		log.info("serving " + socket.getRemoteSocketAddress());
+		for (byte type = in.readByte(); type != END; type = in.readByte()) {
+			FeatureMask mask = FeatureMask.of(FitnessProtocol.readMask(in, numFeatures));
+			int[] featureIndices = mask.getIndices();
+			switch (type) {
+			case GET_ROWS:
+				int[] indices = new int[in.readInt()];
+				for (int q = 0; q < indices.length; q++) {
+					indices[q] = in.readInt();
+				}
+				double[][] rows;
+				try {
+					rows = shard.getRows(indices, mask);
+				} catch (RuntimeException e) {
+					writeError(out, e);
+					break;
+				}
+				out.writeByte(FitnessProtocol.STATUS_OK);
+				for (double[] row : rows) {
+					writeValues(out, row, featureIndices);
+				}
+				break;
+			case FIND_NEAREST:
+				int numK = in.readInt();
+				double[][] queries = new double[in.readInt()][];
+				int[] excludedIndices = new int[queries.length];
+				for (int q = 0; q < queries.length; q++) {
+					excludedIndices[q] = in.readInt();
+					queries[q] = readValues(in, numFeatures, featureIndices);
+				}
+				KnnShard.Neighbors[] result;
+				try {
+					result = findNearest(queries, excludedIndices, mask, numK);
+				} catch (RuntimeException e) {
+					writeError(out, e);
+					break;
+				}
+				out.writeByte(FitnessProtocol.STATUS_OK);
+				for (KnnShard.Neighbors neighbors : result) {
+					out.writeInt(neighbors.indices.length);
+					for (int k = 0; k < neighbors.indices.length; k++) {
+						out.writeInt(neighbors.indices[k]);
+						out.writeDouble(neighbors.distances[k]);
+					}
+				}
+				break;
+			default:
+				throw new IOException("Unknown request: " + type);
+			}
+			out.flush();
+		}
+	}
+
+	private static void writeError(DataOutput out, RuntimeException e) throws IOException {
+		log.severe("request failed: " + Throwables.getStackTraceAsString(e));
+		out.writeByte(FitnessProtocol.STATUS_ERROR);
+		out.writeUTF(String.valueOf(e));
+	}
+
+	/** Finds the neighbors of slices of the queries in parallel. */
+	private KnnShard.Neighbors[] findNearest(final double[][] queries,
+			final int[] excludedIndices, final FeatureMask mask, final int numK) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		int numSlices = Math.max(1, Math.min(POOL_SIZE, queries.length));
+		List<Callable<KnnShard.Neighbors[]>> slices = new ArrayList<>(numSlices);
+		for (int t = 0; t < numSlices; t++) {
+			final int from = (int) ((long) queries.length * t / numSlices);
+			final int to = (int) ((long) queries.length * (t + 1) / numSlices);
+			slices.add(new Callable<KnnShard.Neighbors[]>() {
+
+				@Override
+				public KnnShard.Neighbors[] call() {
+					return shard.findNearest(Arrays.copyOfRange(queries, from, to), Arrays
+							.copyOfRange(excludedIndices, from, to), mask, numK);
+				}
+			});
+		}
+		KnnShard.Neighbors[] result = new KnnShard.Neighbors[queries.length];
+		try {
+			int q = 0;
+			for (Future<KnnShard.Neighbors[]> slice : pool.invokeAll(slices)) {
+				for (KnnShard.Neighbors neighbors : slice.get()) {
+					result[q++] = neighbors;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+		MetricsRegistry.get().counter("knn.shard.server.queries").add(queries.length);
+		MetricsRegistry.get().histogram("knn.shard.server.nanos").record(
+				stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		return result;
+	}
+
+	/** Stops listening, drops the open connections and closes the rows. */
+	@Override
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warning("cannot close the server socket: " + e);
+		}
+		for (Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		pool.shutdownNow();
+		try {
+			if (pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				shard.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			printUsage();
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		int shardIndex = Integer.parseInt(args[2]);
+		int numShards = Integer.parseInt(args[3]);
+		BPSOSearch.Options options = BPSOSearch.Options.parse(args, 4);
+		if (options == null) {
+			printUsage();
+			return;
+		}
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		FeatureMatrix rows = FeatureMatrixLoader.load(args[1], POOL_SIZE, options.storage,
+				shardIndex, numShards);
+		log.info("shard read. " + stopwatch);
+		MetricsRegistry.get().registerMBean();
+		new KnnShardServer(port, rows, shardIndex, numShards).serve();
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("KnnShardServer <port> <filePath> <shard> <numShards> [-storage"
+				+ " heap|off-heap]");
+		System.err.println("shards are numbered from 0; the coordinator runs BPSOSearch with"
+				+ " -evaluator knn[:K] -shards host:port,..., listing the shards in order");
+	}
+}
@@ -0,0 +1,102 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A lock-free histogram of non-negative long values (typically nanoseconds)
+ * with HDR-style log-linear buckets: every power of two is divided into
+ * {@value #NUM_SUB_BUCKETS} sub-buckets, so any recorded value is reported
+ * with a relative error of at most 1/{@value #NUM_SUB_BUCKETS}.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+
+	static final int NUM_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// values below 2 * NUM_SUB_BUCKETS have a bucket of their own
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * NUM_SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	public void record(long value) {
+		Preconditions.checkArgument(value >= 0, "Negative value: %s", value);
+		counts.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+		}
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMin() {
+		return count.get() == 0 ? 0 : min.get();
+	}
+
+	public long getMax() {
+		return count.get() == 0 ? 0 : max.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0.0 : ((double) sum.get()) / n;
+	}
+
+	/**
+	 * Returns the value at the given percentile (0 to 100); the value is the
+	 * upper bound of the bucket holding it, capped by the maximum.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0);
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long cumulative = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			cumulative += counts.get(i);
+			if (cumulative >= rank) {
+				return Math.max(getMin(), Math.min(bucketUpperBound(i), getMax()));
+			}
+		}
+		return getMax();
+	}
+
+	static int bucketIndex(long value) {
+		if (value < 2 * NUM_SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (shift + 1) * NUM_SUB_BUCKETS + (int) ((value >>> shift) - NUM_SUB_BUCKETS);
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index < 2 * NUM_SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / NUM_SUB_BUCKETS - 1;
+		long subBucket = index % NUM_SUB_BUCKETS + NUM_SUB_BUCKETS;
+		long upperBound = ((subBucket + 1) << shift) - 1;
+		// the very last bucket overflows
+		return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+	}
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Splits a file into byte ranges that start at the beginning of a line and end
+ * just after a line feed (or at the end of the file), so that the ranges can
+ * be read and parsed in parallel.
+ */
+public class LineChunks {
+	/** Chunks are read into a byte array, so they must fit into one. */
+	public static final long MAX_CHUNK_SIZE = 64L << 20;
+
+	private static final int SCAN_BUFFER_SIZE = 8192;
+
+	/** A byte range [start, end) of a file. */
+	public static class Chunk {
+		public final int index;
+
+		public final long start;
+
+		public final long end;
+
+		Chunk(int index, long start, long end) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int size() {
+			return (int) (end - start);
+		}
+
+		/** Reads the bytes of the chunk. */
+		public byte[] read(FileChannel channel) throws IOException {
+			byte[] bytes = new byte[size()];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of file at " + (start + buffer.position()));
+				}
+			}
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return "Chunk " + index + " [" + start + ", " + end + ")";
+		}
+	}
+
+	/**
+	 * Splits the file into at least {@code minNumChunks} chunks (unless the file
+	 * has fewer lines) of at most about {@link #MAX_CHUNK_SIZE} bytes each.
+	 */
+	public static List<Chunk> split(FileChannel channel, int minNumChunks) throws IOException {
+		return split(channel, minNumChunks, MAX_CHUNK_SIZE);
+	}
+
+	/**
+	 * Splits the file into at least {@code minNumChunks} chunks (unless the file
+	 * has fewer lines) of at most about {@code maxChunkSize} bytes each; a chunk
+	 * is only longer if a line is.
+	 */
+	public static List<Chunk> split(FileChannel channel, int minNumChunks, long maxChunkSize)
+			throws IOException {
+		return split(channel, 0, minNumChunks, maxChunkSize);
+	}
+
+	/**
+	 * Splits the file from {@code start}, which must be the start of a line,
+	 * e.g. to leave out a header line.
+	 */
+	public static List<Chunk> split(FileChannel channel, long start, int minNumChunks,
+			long maxChunkSize) throws IOException {
+		Preconditions.checkArgument(minNumChunks > 0 && maxChunkSize > 0);
+		long fileSize = channel.size();
+		long targetSize = Math.max(1, Math.min(Math.min(MAX_CHUNK_SIZE, maxChunkSize),
+				(fileSize - start + minNumChunks - 1) / minNumChunks));
+		List<Chunk> chunks = new ArrayList<>();
+		while (start < fileSize) {
+			long end = Math.min(fileSize, start + targetSize);
+			if (end < fileSize) {
+				end = nextLineStart(channel, end - 1);
+			}
+			Preconditions.checkState(end - start <= Integer.MAX_VALUE,
+					"A line starting before %s is too long", end);
+			chunks.add(new Chunk(chunks.size(), start, end));
+			start = end;
+		}
+		return chunks;
+	}
+
+	/**
+	 * The position just after the first line feed at or after {@code position},
+	 * or the file size if there is none.
+	 */
+	public static long nextLineStart(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		while (true) {
+			buffer.clear();
+			int numRead = channel.read(buffer, position);
+			if (numRead < 0) {
+				return channel.size();
+			}
+			for (int i = 0; i < numRead; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += numRead;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link KnnShard} over rows of a data set in this process: every
+ * {@code numShards}-th row from row {@code shard}, without copying them. The
+ * rows must be stored as doubles, so that the distances to a query are those
+ * between the rows.
+ */
+public class LocalKnnShard implements KnnShard {
+	private final FeatureMatrix data;
+
+	private final int shard;
+
+	private final int numShards;
+
+	private final int numInstances;
+
+	/** A shard holding all the rows of the data set, which the shard closes. */
+	public LocalKnnShard(FeatureMatrix data) {
+		this(data, 0, 1);
+	}
+
+	private LocalKnnShard(FeatureMatrix data, int shard, int numShards) {
+		Preconditions.checkArgument(data.getPrecision() == FeatureMatrix.Precision.DOUBLE,
+				"Rows are stored as %s", data.getPrecision());
+		Preconditions.checkArgument(numShards <= data.getNumRows(),
+				"%s shards for %s instances", numShards, data.getNumRows());
+		this.data = data;
+		this.shard = shard;
+		this.numShards = numShards;
+		this.numInstances = (data.getNumRows() - shard + numShards - 1) / numShards;
+	}
+
+	/**
+	 * Splits the data set into shards that share its rows; closing them does
+	 * not close the data set.
+	 */
+	public static List<KnnShard> partition(FeatureMatrix data, int numShards) {
+		Preconditions.checkArgument(numShards > 0, "Invalid number of shards: %s", numShards);
+		List<KnnShard> result = new ArrayList<>(numShards);
+		for (int s = 0; s < numShards; s++) {
+			result.add(new LocalKnnShard(data, s, numShards) {
+
+				@Override
+				public void close() {
+					// the data set is shared
+				}
+			});
+		}
+		return result;
+	}
+
+	private int row(int index) {
+		return shard + index * numShards;
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return data.getNumColumns();
+	}
+
+	@Override
+	public List<String> getClassNames() {
+		return new AbstractList<String>() {
+
+			@Override
+			public String get(int index) {
+				return data.getClassName(row(index));
+			}
+
+			@Override
+			public int size() {
+				return numInstances;
+			}
+		};
+	}
+
+	@Override
+	public double[][] getRows(int[] indices, FeatureMask mask) {
+		double[][] result = new double[indices.length][];
+		for (int q = 0; q < indices.length; q++) {
+			double[] row = new double[data.getNumColumns()];
+			for (int j : mask.getIndices()) {
+				row[j] = data.get(row(indices[q]), j);
+			}
+			result[q] = row;
+		}
+		return result;
+	}
+
+	@Override
+	public Neighbors[] findNearest(double[][] queries, int[] excludedIndices, FeatureMask mask,
+			int numK) {
+		Preconditions.checkArgument(queries.length == excludedIndices.length);
+		Neighbors[] result = new Neighbors[queries.length];
+		for (int q = 0; q < queries.length; q++) {
+			int excludedIndex = excludedIndices[q];
+			int numNeighbors = Math.min(numK, excludedIndex >= 0 && excludedIndex < numInstances
+					? numInstances - 1 : numInstances);
+			int[] indices = new int[numNeighbors];
+			double[] distances = new double[numNeighbors];
+			int size = 0;
+			for (int index = 0; index < numInstances; index++) {
+				if (index == excludedIndex) {
+					continue;
+				}
+				// cosine distance; the rows are already normalized
+				double distance = 1.0 - data.dotProduct(queries[q], row(index), mask);
+				if (size == numNeighbors && (size == 0 || Double.compare(distance,
+						distances[size - 1]) >= 0)) {
+					continue;
+				}
+				// insertion after the neighbors as near, which have lower indices
+				int k = size == numNeighbors ? size - 1 : size++;
+				for (; k > 0 && Double.compare(distances[k - 1], distance) > 0; k--) {
+					indices[k] = indices[k - 1];
+					distances[k] = distances[k - 1];
+				}
+				indices[k] = index;
+				distances[k] = distance;
+			}
+			result[q] = new Neighbors(indices, distances);
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		data.close();
+	}
+}
@@ -1,4 +1,5 @@
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
@@ -13,6 +14,12 @@ import com.google.common.collect.Lists;
 import com.google.common.math.DoubleMath;
 
 public final class MathUtil {
+	/**
+	 * The number of features the float kernels sum in float before adding to
+	 * the double sum, which bounds the float rounding error.
+	 */
+	static final int FLOAT_BLOCK_SIZE = 64;
+
 	private MathUtil() {
 	}
 
@@ -53,7 +60,8 @@ public final class MathUtil {
 		int dimension = instance1.size();
 		double sum = 0.0;
 		for (int i = 0; i < dimension; i++) {
-			sum += Math.pow(instance1.get(i) - instance2.get(i), 2);
+			double diff = instance1.get(i) - instance2.get(i);
+			sum += diff * diff;
 		}
 		return Math.sqrt(sum);
 	}
@@ -72,6 +80,318 @@ public final class MathUtil {
 		return 1.0 - sum / (vectorLength(instance1) * vectorLength(instance2));
 	}
 
+	/**
+	 * Squared Euclidean distance between two instances, only over the given
+	 * feature indices.
+	 */
+	public static double calculateSquaredEuclideanDistance(double[] instance1,
+			double[] instance2, int[] featureIndices) {
+		double sum = 0.0;
+		for (int i : featureIndices) {
+			double diff = instance1[i] - instance2[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Cosine distance (1 - cosine similarity) between two instances, only over
+	 * the given feature indices.
+	 */
+	public static double calculateCosineSimilarity(double[] instance1, double[] instance2,
+			int[] featureIndices, boolean alreadyNormalized) {
+		double sum = 0.0;
+		for (int i : featureIndices) {
+			sum += instance1[i] * instance2[i];
+		}
+		if (alreadyNormalized) {
+			return 1.0 - sum;
+		}
+		double length1 = 0.0;
+		double length2 = 0.0;
+		for (int i : featureIndices) {
+			length1 += instance1[i] * instance1[i];
+			length2 += instance2[i] * instance2[i];
+		}
+		return 1.0 - sum / Math.sqrt(length1 * length2);
+	}
+
+	/**
+	 * Squared Euclidean distance between an instance and a point of floats,
+	 * only over the given feature indices. Blocks of {@link #FLOAT_BLOCK_SIZE}
+	 * features are summed in float, which needs no conversion, and the block
+	 * sums in double.
+	 */
+	public static double calculateSquaredEuclideanDistance(float[] instance, float[] point,
+			int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				float diff = instance[i] - point[i];
+				blockSum += diff * diff;
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Squared Euclidean distance between an instance of 16-bit integers, each
+	 * the value of its feature divided by the scale of the feature, and a point
+	 * of floats, only over the given feature indices; summed as the float one.
+	 */
+	public static double calculateSquaredEuclideanDistance(short[] instance, float[] scales,
+			float[] point, int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				float diff = (float) instance[i] * scales[i] - point[i];
+				blockSum += diff * diff;
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Squared Euclidean distance between an instance of 8-bit integers, each
+	 * the value of its feature divided by the scale of the feature, and a point
+	 * of floats, only over the given feature indices; summed as the float one.
+	 */
+	public static double calculateSquaredEuclideanDistance(byte[] instance, float[] scales,
+			float[] point, int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				float diff = (float) instance[i] * scales[i] - point[i];
+				blockSum += diff * diff;
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/** Dot product of two instances, only over the given feature indices. */
+	public static double dotProduct(double[] instance1, double[] instance2, int[] featureIndices) {
+		double sum = 0.0;
+		for (int i : featureIndices) {
+			sum += instance1[i] * instance2[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two instances of floats, only over the given feature
+	 * indices; summed in float per block and in double across blocks.
+	 */
+	public static double dotProduct(float[] instance1, float[] instance2, int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				blockSum += instance1[i] * instance2[i];
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two instances of 16-bit integers with the same feature
+	 * scales, only over the given feature indices; each product of values is
+	 * weighted by the squared scale of its feature.
+	 */
+	public static double dotProduct(short[] instance1, short[] instance2, float[] squaredScales,
+			int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				blockSum += (float) instance1[i] * (float) instance2[i] * squaredScales[i];
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two instances of 8-bit integers with the same feature
+	 * scales, only over the given feature indices. Each integer product is
+	 * exact in an int and weighted by the squared scale of its feature in
+	 * units of {@code squaredScaleUnit}, so that a block is summed exactly in a
+	 * long, and the block sums in double.
+	 */
+	public static double dotProduct(byte[] instance1, byte[] instance2, int[] squaredScaleWeights,
+			double squaredScaleUnit, int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			long blockSum = 0L;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				blockSum += (long) (instance1[i] * instance2[i]) * squaredScaleWeights[i];
+			}
+			sum += blockSum;
+		}
+		return sum * squaredScaleUnit;
+	}
+
+	/**
+	 * Squared Euclidean distance between an instance of doubles in a buffer,
+	 * from the byte {@code offset}, and a point, only over the given feature
+	 * indices.
+	 */
+	public static double calculateSquaredEuclideanDistance(ByteBuffer instance, int offset,
+			double[] point, int[] featureIndices) {
+		double sum = 0.0;
+		for (int i : featureIndices) {
+			double diff = instance.getDouble(offset + (i << 3)) - point[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Squared Euclidean distance between an instance in a buffer, from the byte
+	 * {@code offset}, stored as floats or as integers with the given feature
+	 * scales, and a point of floats, only over the given feature indices;
+	 * summed as the array ones.
+	 */
+	public static double calculateSquaredEuclideanDistance(ByteBuffer instance, int offset,
+			FeatureMatrix.Precision precision, float[] scales, float[] point,
+			int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			switch (precision) {
+			case FLOAT:
+				for (; k < blockEnd; k++) {
+					int i = featureIndices[k];
+					float diff = instance.getFloat(offset + (i << 2)) - point[i];
+					blockSum += diff * diff;
+				}
+				break;
+			case INT16:
+				for (; k < blockEnd; k++) {
+					int i = featureIndices[k];
+					float diff = (float) instance.getShort(offset + (i << 1)) * scales[i]
+							- point[i];
+					blockSum += diff * diff;
+				}
+				break;
+			case INT8:
+				for (; k < blockEnd; k++) {
+					int i = featureIndices[k];
+					float diff = (float) instance.get(offset + i) * scales[i] - point[i];
+					blockSum += diff * diff;
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Not a float kernel: " + precision);
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two instances of doubles in buffers, from the byte
+	 * offsets, only over the given feature indices.
+	 */
+	public static double dotProduct(ByteBuffer instance1, int offset1, ByteBuffer instance2,
+			int offset2, int[] featureIndices) {
+		double sum = 0.0;
+		for (int i : featureIndices) {
+			sum += instance1.getDouble(offset1 + (i << 3))
+					* instance2.getDouble(offset2 + (i << 3));
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of an instance and an instance of doubles in a buffer, from
+	 * the byte offset, only over the given feature indices.
+	 */
+	public static double dotProduct(double[] instance1, ByteBuffer instance2, int offset2,
+			int[] featureIndices) {
+		double sum = 0.0;
+		for (int i : featureIndices) {
+			sum += instance1[i] * instance2.getDouble(offset2 + (i << 3));
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two instances in buffers, from the byte offsets, stored
+	 * as floats or as 16-bit integers with the same feature scales, only over
+	 * the given feature indices; summed as the array ones.
+	 */
+	public static double dotProduct(ByteBuffer instance1, int offset1, ByteBuffer instance2,
+			int offset2, FeatureMatrix.Precision precision, float[] squaredScales,
+			int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			float blockSum = 0.0f;
+			switch (precision) {
+			case FLOAT:
+				for (; k < blockEnd; k++) {
+					int i = featureIndices[k];
+					blockSum += instance1.getFloat(offset1 + (i << 2))
+							* instance2.getFloat(offset2 + (i << 2));
+				}
+				break;
+			case INT16:
+				for (; k < blockEnd; k++) {
+					int i = featureIndices[k];
+					blockSum += (float) instance1.getShort(offset1 + (i << 1))
+							* (float) instance2.getShort(offset2 + (i << 1))
+							* squaredScales[i];
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Not a float kernel: " + precision);
+			}
+			sum += blockSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two instances of 8-bit integers in buffers, from the byte
+	 * offsets, with the same feature scales, only over the given feature
+	 * indices; summed as the array one.
+	 */
+	public static double dotProduct(ByteBuffer instance1, int offset1, ByteBuffer instance2,
+			int offset2, int[] squaredScaleWeights, double squaredScaleUnit, int[] featureIndices) {
+		double sum = 0.0;
+		for (int k = 0; k < featureIndices.length;) {
+			int blockEnd = Math.min(featureIndices.length, k + FLOAT_BLOCK_SIZE);
+			long blockSum = 0L;
+			for (; k < blockEnd; k++) {
+				int i = featureIndices[k];
+				blockSum += (long) (instance1.get(offset1 + i) * instance2.get(offset2 + i))
+						* squaredScaleWeights[i];
+			}
+			sum += blockSum;
+		}
+		return sum * squaredScaleUnit;
+	}
+
 	private static double vectorLength(List<Double> instance) {
 		double length = 0.0;
 		for (double value : instance) {
@@ -94,6 +414,15 @@ public final class MathUtil {
 		return result;
 	}
 
+	/** Returns the list of 0, 1, ..., n - 1. */
+	public static List<Integer> range(int n) {
+		List<Integer> list = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+
 	public static List<Integer> randomlyPickNumbers(int start, int length, int n) {
 		List<Integer> list = new ArrayList<>(length);
 		for (int i = 0; i < length; i++) {
@@ -0,0 +1,222 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A process-wide registry of counters, gauges and latency histograms. Metrics
+ * are created on first use by name; by convention latency histograms are named
+ * with a {@code .nanos} suffix. The registry can be exposed over JMX as one
+ * MBean and dumped as JSON.
+ */
+public class MetricsRegistry {
+	private static final Logger log = Logger.getLogger(MetricsRegistry.class.getName());
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+	private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	/** The registry shared by the whole process. */
+	public static MetricsRegistry get() {
+		return DEFAULT;
+	}
+
+	public LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new LatencyHistogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/** Registers (or replaces) a gauge whose value is read on demand. */
+	public void gauge(String name, Supplier<? extends Number> gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * A flat, sorted view of all metrics, e.g. {@code fitness.rocchio.nanos.p99}
+	 * for a histogram percentile.
+	 */
+	public SortedMap<String, Number> snapshot() {
+		SortedMap<String, Number> result = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		for (Map.Entry<String, Supplier<? extends Number>> entry : gauges.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			String name = entry.getKey();
+			LatencyHistogram histogram = entry.getValue();
+			result.put(name + ".count", histogram.getCount());
+			result.put(name + ".min", histogram.getMin());
+			result.put(name + ".mean", histogram.getMean());
+			result.put(name + ".max", histogram.getMax());
+			for (double percentile : PERCENTILES) {
+				result.put(name + ".p" + formatPercentile(percentile),
+						histogram.getValueAtPercentile(percentile));
+			}
+		}
+		return result;
+	}
+
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String
+				.valueOf(percentile).replace(".", "_");
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"counters\": {");
+		appendEntries(sb, new TreeMap<String, Object>(counters));
+		sb.append("},\n  \"gauges\": {");
+		SortedMap<String, Object> gaugeValues = new TreeMap<>();
+		for (Map.Entry<String, Supplier<? extends Number>> entry : gauges.entrySet()) {
+			gaugeValues.put(entry.getKey(), entry.getValue().get());
+		}
+		appendEntries(sb, gaugeValues);
+		sb.append("},\n  \"histograms\": {");
+		String separator = "";
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			sb.append(separator).append("\n    \"").append(entry.getKey()).append("\": {");
+			sb.append("\"count\": ").append(histogram.getCount());
+			sb.append(", \"min\": ").append(histogram.getMin());
+			sb.append(", \"mean\": ").append(histogram.getMean());
+			sb.append(", \"max\": ").append(histogram.getMax());
+			for (double percentile : PERCENTILES) {
+				sb.append(", \"p").append(formatPercentile(percentile)).append("\": ")
+						.append(histogram.getValueAtPercentile(percentile));
+			}
+			sb.append("}");
+			separator = ",";
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	private static void appendEntries(StringBuilder sb, SortedMap<String, Object> entries) {
+		String separator = "";
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			sb.append(separator).append("\n    \"").append(entry.getKey()).append("\": ")
+					.append(entry.getValue());
+			separator = ",";
+		}
+		if (!entries.isEmpty()) {
+			sb.append("\n  ");
+		}
+	}
+
+	public void writeJson(String outputFilePath) {
+		try (PrintWriter out = new PrintWriter(outputFilePath)) {
+			out.print(toJson());
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			return;
+		}
+		log.info("metrics written to " + outputFilePath);
+	}
+
+	/**
+	 * Registers this registry as the MBean {@code CS298:type=Metrics} on the
+	 * platform MBean server; every snapshot entry is a read-only attribute.
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("CS298:type=Metrics");
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(), name);
+			}
+		} catch (JMException e) {
+			log.warning("cannot register metrics MBean: " + e);
+		}
+	}
+
+	private class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value.doubleValue();
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("Metrics are read-only.");
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Number> snapshot = snapshot();
+			AttributeList result = new AttributeList();
+			for (String attribute : attributes) {
+				if (snapshot.containsKey(attribute)) {
+					result.add(new Attribute(attribute, snapshot.get(attribute).doubleValue()));
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (String name : snapshot().keySet()) {
+				attributes.add(new MBeanAttributeInfo(name, "double", name, true, false, false));
+			}
+			return new MBeanInfo(MetricsRegistry.class.getName(), "CS298 metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null,
+					null);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Rows of a fixed number of bytes in direct (off-heap) buffers, in the native
+ * byte order, row after row; the garbage collector neither copies nor scans
+ * them. Rows are appended one at a time, before the rows are shared, and
+ * never change afterwards.
+ * <p>
+ * A buffer holds the rows of up to {@value #CHUNK_BYTES} bytes, and at least
+ * one row, so that a row never spans two buffers and a buffer index is an int.
+ * {@link #close()} drops the buffers, and a row looked up afterwards fails
+ * with an {@link IllegalStateException}; the memory is freed when the
+ * collector finds the buffers unreachable, so a reader that still holds one
+ * reads on safely. Direct memory is limited by
+ * {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size.
+ */
+public class OffHeapRows implements Closeable {
+	// the bytes of the rows of a buffer, unless a single row is longer
+	private static final int CHUNK_BYTES = 16 << 20;
+
+	private final int rowBytes;
+
+	private final int rowsPerChunk;
+
+	// volatile, so that the evaluator threads see the buffers dropped by close()
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+	private int numRows = 0;
+
+	private volatile boolean isClosed = false;
+
+	public OffHeapRows(int rowBytes) {
+		this(rowBytes, CHUNK_BYTES);
+	}
+
+	OffHeapRows(int rowBytes, int chunkBytes) {
+		Preconditions.checkArgument(rowBytes > 0, "Empty rows");
+		this.rowBytes = rowBytes;
+		this.rowsPerChunk = Math.max(1, chunkBytes / rowBytes);
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getRowBytes() {
+		return rowBytes;
+	}
+
+	/** The bytes allocated, including the unused end of the last buffer. */
+	public long getNumAllocatedBytes() {
+		long result = 0;
+		for (ByteBuffer chunk : chunks) {
+			result += chunk.capacity();
+		}
+		return result;
+	}
+
+	/**
+	 * The buffer holding the row, starting at {@link #offset(int)}; for
+	 * absolute reads only.
+	 */
+	public ByteBuffer buffer(int row) {
+		ByteBuffer[] current = chunks;
+		int chunkIndex = row / rowsPerChunk;
+		if (chunkIndex >= current.length) {
+			Preconditions.checkState(!isClosed, "Rows are closed");
+			throw new IndexOutOfBoundsException("Row " + row + " of " + numRows);
+		}
+		return current[chunkIndex];
+	}
+
+	/** The position of the first byte of the row in its {@link #buffer(int)}. */
+	public int offset(int row) {
+		return (row % rowsPerChunk) * rowBytes;
+	}
+
+	public void add(double[] values) {
+		Preconditions.checkArgument(values.length * 8 == rowBytes);
+		ByteBuffer target = appendRow();
+		target.asDoubleBuffer().put(values);
+	}
+
+	public void add(float[] values) {
+		Preconditions.checkArgument(values.length * 4 == rowBytes);
+		ByteBuffer target = appendRow();
+		target.asFloatBuffer().put(values);
+	}
+
+	public void add(short[] values) {
+		Preconditions.checkArgument(values.length * 2 == rowBytes);
+		ByteBuffer target = appendRow();
+		target.asShortBuffer().put(values);
+	}
+
+	public void add(byte[] values) {
+		Preconditions.checkArgument(values.length == rowBytes);
+		ByteBuffer target = appendRow();
+		target.put(values);
+	}
+
+	/** Returns a buffer positioned at a new row, in the native order. */
+	private ByteBuffer appendRow() {
+		Preconditions.checkState(!isClosed, "Rows are closed");
+		int chunkIndex = numRows / rowsPerChunk;
+		if (chunkIndex == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunkIndex + 1);
+			chunks[chunkIndex] = ByteBuffer.allocateDirect(rowsPerChunk * rowBytes).order(
+					ByteOrder.nativeOrder());
+		}
+		// a duplicate is big-endian whatever the order of its buffer
+		ByteBuffer target = chunks[chunkIndex].duplicate().order(ByteOrder.nativeOrder());
+		target.position(offset(numRows));
+		numRows++;
+		return target;
+	}
+
+	/**
+	 * Drops the buffers, which are freed once no reader holds one; any row
+	 * looked up afterwards fails.
+	 */
+	@Override
+	public synchronized void close() {
+		isClosed = true;
+		chunks = new ByteBuffer[0];
+	}
+}
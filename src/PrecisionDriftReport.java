@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Reports how far the evaluators drift from double precision when the data set
+ * is stored with less ({@link FeatureMatrix.Precision}).
+ * <p>
+ * For each evaluator and precision, the same random masks are evaluated on the
+ * same sample of instances. A row of the report has the bytes of the stored
+ * values relative to double, the mean accuracy, the mean and largest absolute
+ * accuracy difference to double over the masks, the fraction of predictions
+ * that differ from double, and the classification time per mask relative to
+ * double.
+ */
+public class PrecisionDriftReport {
+	private static final Logger log = Logger.getLogger(PrecisionDriftReport.class.getName());
+
+	private static final String[] REPORT_COLUMNS = { "evaluator", "precision", "valueBytes",
+			"bytesRatio", "meanAccuracy", "meanAccuracyDrift", "maxAccuracyDrift", "disagreement",
+			"millisPerMask", "speedup" };
+
+	private final FeatureMatrix data;
+
+	private List<String> evaluators = Arrays.asList("rocchio", "knn:" + KNN.DEFAULT_K);
+
+	private int numMasks = 10;
+
+	private double maskDensity = 0.5;
+
+	private int numSamples = 500;
+
+	private long seed = 298L;
+
+	public PrecisionDriftReport(FeatureMatrix data) {
+		this.data = data.withPrecision(FeatureMatrix.Precision.DOUBLE);
+	}
+
+	/** Returns one row per evaluator and precision, keyed by the report columns. */
+	public List<Map<String, String>> run() {
+		Random random = new Random(seed);
+		List<List<Integer>> masks = new ArrayList<>(numMasks);
+		for (int m = 0; m < numMasks; m++) {
+			List<Integer> mask = new ArrayList<>(data.getNumColumns());
+			for (int j = 0; j < data.getNumColumns(); j++) {
+				mask.add(random.nextDouble() < maskDensity ? 1 : 0);
+			}
+			masks.add(mask);
+		}
+		List<Integer> sampleIndices = new ArrayList<>(MathUtil.range(data.getNumRows()));
+		if (numSamples < sampleIndices.size()) {
+			Collections.shuffle(sampleIndices, random);
+			sampleIndices = sampleIndices.subList(0, numSamples);
+		}
+
+		List<Map<String, String>> results = new ArrayList<>();
+		for (String evaluator : evaluators) {
+			Map<FeatureMatrix.Precision, Predictions> predictions = new EnumMap<>(
+					FeatureMatrix.Precision.class);
+			for (FeatureMatrix.Precision precision : FeatureMatrix.Precision.values()) {
+				predictions.put(precision, predict(evaluator, data.withPrecision(precision),
+						masks, sampleIndices));
+			}
+			Predictions baseline = predictions.get(FeatureMatrix.Precision.DOUBLE);
+			for (FeatureMatrix.Precision precision : FeatureMatrix.Precision.values()) {
+				Predictions current = predictions.get(precision);
+				double sumAccuracy = 0.0;
+				double sumDrift = 0.0;
+				double maxDrift = 0.0;
+				long numDisagreements = 0;
+				for (int m = 0; m < masks.size(); m++) {
+					double accuracy = current.accuracy(m, data, sampleIndices);
+					double drift = Math.abs(accuracy - baseline.accuracy(m, data, sampleIndices));
+					sumAccuracy += accuracy;
+					sumDrift += drift;
+					maxDrift = Math.max(maxDrift, drift);
+					for (int s = 0; s < sampleIndices.size(); s++) {
+						if (current.labels[m][s] != baseline.labels[m][s]) {
+							numDisagreements++;
+						}
+					}
+				}
+				Map<String, String> result = new LinkedHashMap<>();
+				result.put("evaluator", evaluator);
+				result.put("precision", precision.toString());
+				result.put("valueBytes", String.valueOf(current.numValueBytes));
+				result.put("bytesRatio", format((double) current.numValueBytes
+						/ baseline.numValueBytes));
+				result.put("meanAccuracy", format(sumAccuracy / masks.size()));
+				result.put("meanAccuracyDrift", format(sumDrift / masks.size()));
+				result.put("maxAccuracyDrift", format(maxDrift));
+				result.put("disagreement", format((double) numDisagreements
+						/ ((long) masks.size() * sampleIndices.size())));
+				result.put("millisPerMask", format(current.nanos / 1e6 / masks.size()));
+				result.put("speedup", format((double) baseline.nanos / current.nanos));
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
+	private static String format(double value) {
+		return String.format("%.6f", value);
+	}
+
+	/** Classifies the sample instances under every mask, on data of one precision. */
+	private static Predictions predict(String evaluator, FeatureMatrix data,
+			List<List<Integer>> masks, List<Integer> sampleIndices) {
+		EvaluatorContext context = EvaluatorContext.prepare(evaluator, data);
+		Predictions result = new Predictions(masks.size(), sampleIndices.size(),
+				data.getNumValueBytes());
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		for (int m = 0; m < masks.size(); m++) {
+			AbstractFeatureSelectionEvaluator maskEvaluator = context.newEvaluator(masks.get(m));
+			for (int s = 0; s < sampleIndices.size(); s++) {
+				result.labels[m][s] = maskEvaluator.classify(sampleIndices.get(s));
+			}
+		}
+		result.nanos = Math.max(1, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		log.info(context.getName() + " on " + data.getPrecision() + ": " + stopwatch);
+		return result;
+	}
+
+	/** The predicted labels of the sample instances, per mask. */
+	private static class Predictions {
+		final int[][] labels;
+
+		final long numValueBytes;
+
+		long nanos;
+
+		Predictions(int numMasks, int numSamples, long numValueBytes) {
+			this.labels = new int[numMasks][numSamples];
+			this.numValueBytes = numValueBytes;
+		}
+
+		double accuracy(int mask, FeatureMatrix data, List<Integer> sampleIndices) {
+			int numCorrect = 0;
+			for (int s = 0; s < sampleIndices.size(); s++) {
+				if (labels[mask][s] == data.getLabel(sampleIndices.get(s))) {
+					numCorrect++;
+				}
+			}
+			return ((double) numCorrect) / sampleIndices.size();
+		}
+	}
+
+	public void writeReport(List<Map<String, String>> results, String reportFilePath)
+			throws IOException {
+		try (PrintWriter out = new PrintWriter(reportFilePath)) {
+			out.println(Joiner.on(',').join(REPORT_COLUMNS));
+			System.out.println(Joiner.on('\t').join(REPORT_COLUMNS));
+			for (Map<String, String> result : results) {
+				List<String> values = new ArrayList<>();
+				for (String column : REPORT_COLUMNS) {
+					values.add(result.get(column));
+				}
+				out.println(Joiner.on(',').join(values));
+				System.out.println(Joiner.on('\t').join(values));
+			}
+		}
+		log.info("report written to " + reportFilePath);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length % 2 != 0) {
+			printUsage();
+			return;
+		}
+		PrecisionDriftReport report = new PrecisionDriftReport(FeatureMatrixLoader.load(args[0]));
+		for (int i = 2; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-evaluators":
+				report.evaluators = Splitter.on(',').trimResults().splitToList(value);
+				break;
+			case "-masks":
+				report.numMasks = Integer.parseInt(value);
+				break;
+			case "-density":
+				report.maskDensity = Double.parseDouble(value);
+				break;
+			case "-samples":
+				report.numSamples = Integer.parseInt(value);
+				break;
+			case "-seed":
+				report.seed = Long.parseLong(value);
+				break;
+			default:
+				printUsage();
+				return;
+			}
+		}
+		report.writeReport(report.run(), args[1]);
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage:");
+		System.err.println("PrecisionDriftReport <data.csv> <report.csv> [options]");
+		System.err.println("options:");
+		System.err.println("\t-evaluators <e1,e2,...>: the evaluators (default: rocchio,knn:5).");
+		System.err.println("\t-masks <n>: the number of random masks (default: 10).");
+		System.err.println("\t-density <d>: the fraction of features a mask selects"
+				+ " (default: 0.5).");
+		System.err.println("\t-samples <n>: the number of instances classified per mask"
+				+ " (default: 500).");
+		System.err.println("\t-seed <n>: the seed of the masks and samples (default: 298).");
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Successive-halving fitness evaluation. A particle is first scored on a small
+ * stratified subset of the instances; it is promoted to a subset twice as
+ * large only if the upper confidence bound of its fitness can still beat the
+ * fitness it competes with (i.e. its pbest), until the whole data set is used.
+ * <p>
+ * The subsets are nested prefixes of a stratified order, so a promoted
+ * particle only classifies the instances added by the next stage. Each
+ * evaluation draws its own order from a seeded generator, so that the
+ * particles are not all raced on the same instances. The bound is
+ * Hoeffding-Serfling for sampling without replacement, so it gets tight as the
+ * subset approaches the whole data set. Each of the stages before the last may
+ * reject, so each uses delta divided by their number (Bonferroni): a particle
+ * that would have beaten its pbest is wrongly rejected with probability at
+ * most delta over all the stages. A rejected particle gets its estimated
+ * fitness, which is always lower than the fitness to beat, so pbest and gbest
+ * are only ever updated with fitness measured on the full data set.
+ */
+public class RacingFitnessEvaluator {
+	private static final Logger log = Logger.getLogger(RacingFitnessEvaluator.class.getName());
+
+	// the indices of the instances of each class
+	private final List<List<Integer>> indicesByLabel;
+
+	private final int numInstances;
+
+	private final long seed;
+
+	private final int[] stageSizes;
+
+	private final double delta;
+
+	// the share of delta of each stage that may reject
+	private final double stageDelta;
+
+	private final AtomicLong numClassified = new AtomicLong();
+
+	private final AtomicLong numFullEvaluations = new AtomicLong();
+
+	private final AtomicLong numEvaluations = new AtomicLong();
+
+	/**
+	 * @param data
+	 *            the data set; only the class labels are used to stratify
+	 * @param initialFraction
+	 *            the fraction of instances used by the first stage
+	 * @param delta
+	 *            the probability, over all the stages, that the bounds reject a
+	 *            particle which would have beaten its pbest on the full data set
+	 */
+	public RacingFitnessEvaluator(FeatureMatrix data, double initialFraction, double delta) {
+		Preconditions.checkArgument(initialFraction > 0.0 && initialFraction <= 1.0,
+				"Invalid initial fraction: %s", initialFraction);
+		Preconditions.checkArgument(delta > 0.0 && delta < 1.0, "Invalid delta: %s", delta);
+		this.indicesByLabel = indicesByLabel(data);
+		this.numInstances = data.getNumRows();
+		this.seed = data.getNumRows();
+		this.stageSizes = stageSizes(data.getNumRows(), initialFraction);
+		this.delta = delta;
+		this.stageDelta = delta / Math.max(1, stageSizes.length - 1);
+		log.info("racing stages: " + Arrays.toString(stageSizes) + ", delta=" + delta
+				+ ", per stage: " + stageDelta);
+	}
+
+	/**
+	 * Calculates the fitness of the evaluator's feature selection result; stops
+	 * early as soon as it cannot beat {@code fitnessToBeat} with confidence 1 -
+	 * delta over all the stages.
+	 */
+	public double calcFitness(AbstractFeatureSelectionEvaluator evaluator, double alpha,
+			double beta, double fitnessToBeat) {
+		Preconditions.checkArgument(evaluator.getNumInstances() == numInstances);
+		long evaluation = numEvaluations.getAndIncrement();
+		List<Integer> stratifiedOrder = stratifiedOrder(indicesByLabel, numInstances, new Random(
+				seed + evaluation));
+		int numCorrect = 0;
+		int numDone = 0;
+		for (int stageSize : stageSizes) {
+			numCorrect += evaluator.countCorrectlyClassified(stratifiedOrder.subList(numDone,
+					stageSize));
+			numClassified.addAndGet(stageSize - numDone);
+			numDone = stageSize;
+			double accuracy = ((double) numCorrect) / numDone;
+			if (numDone == numInstances) {
+				numFullEvaluations.incrementAndGet();
+				return evaluator.fitness(alpha, beta, accuracy);
+			}
+			double upperAccuracy = Math.min(1.0, accuracy
+					+ serflingBound(numDone, numInstances, stageDelta));
+			if (evaluator.fitness(alpha, beta, upperAccuracy) < fitnessToBeat) {
+				log.fine("rejected after " + numDone + "/" + numInstances
+						+ " instances, estimated accuracy=" + accuracy);
+				return evaluator.fitness(alpha, beta, accuracy);
+			}
+		}
+		throw new IllegalStateException("The last stage must cover the whole data set.");
+	}
+
+	/** Fraction of the instances classified so far relative to full evaluations. */
+	public double getWorkRatio() {
+		long evaluations = numEvaluations.get();
+		return evaluations == 0 ? 1.0 : ((double) numClassified.get())
+				/ (evaluations * numInstances);
+	}
+
+	public long getNumFullEvaluations() {
+		return numFullEvaluations.get();
+	}
+
+	public long getNumEvaluations() {
+		return numEvaluations.get();
+	}
+
+	/**
+	 * One-sided Hoeffding-Serfling deviation of the mean of m samples drawn
+	 * without replacement from n values in [0, 1].
+	 */
+	static double serflingBound(int m, int n, double delta) {
+		double finitePopulationCorrection = 1.0 - ((double) (m - 1)) / n;
+		return Math.sqrt(finitePopulationCorrection * Math.log(1.0 / delta) / (2.0 * m));
+	}
+
+	/** Stage sizes doubling from the initial fraction up to the whole data set. */
+	static int[] stageSizes(int numInstances, double initialFraction) {
+		List<Integer> sizes = new ArrayList<>();
+		int size = Math.max(1, (int) Math.ceil(numInstances * initialFraction));
+		while (size < numInstances) {
+			sizes.add(size);
+			size *= 2;
+		}
+		sizes.add(numInstances);
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Orders the instance indices so that every prefix keeps roughly the class
+	 * proportions of the whole data set: instances are shuffled within their
+	 * class and then interleaved by their relative rank in the class.
+	 */
+	static List<Integer> stratifiedOrder(FeatureMatrix data, Random random) {
+		return stratifiedOrder(indicesByLabel(data), data.getNumRows(), random);
+	}
+
+	private static List<List<Integer>> indicesByLabel(FeatureMatrix data) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (int label = 0; label < data.getNumClasses(); label++) {
+			result.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < data.getNumRows(); i++) {
+			result.get(data.getLabel(i)).add(i);
+		}
+		return result;
+	}
+
+	private static List<Integer> stratifiedOrder(List<List<Integer>> indicesByLabel,
+			int numInstances, Random random) {
+		List<IndexedValue<Double>> ranked = new ArrayList<>(numInstances);
+		for (List<Integer> classIndices : indicesByLabel) {
+			List<Integer> indices = new ArrayList<>(classIndices);
+			Collections.shuffle(indices, random);
+			double offset = random.nextDouble();
+			for (int i = 0; i < indices.size(); i++) {
+				IndexedValue<Double> iv = new IndexedValue<>();
+				iv.setIndex(indices.get(i));
+				iv.setValue((i + offset) / indices.size());
+				ranked.add(iv);
+			}
+		}
+		Collections.sort(ranked, new Comparator<IndexedValue<Double>>() {
+
+			@Override
+			public int compare(IndexedValue<Double> o1, IndexedValue<Double> o2) {
+				return Double.compare(o1.getValue(), o2.getValue());
+			}
+		});
+		List<Integer> result = new ArrayList<>(ranked.size());
+		for (IndexedValue<Double> iv : ranked) {
+			result.add(iv.getIndex());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,386 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The coordinator of {@link FitnessWorker}s: calculates the fitness of a swarm
+ * by sending its positions, bit-packed, to the workers over
+ * {@link FitnessProtocol}.
+ * <p>
+ * Each worker pulls batches of positions from a shared queue, so faster
+ * workers take more of them. The size of a batch follows the latency of the
+ * worker: an exponentially weighted moving average of its time per position
+ * sizes the batch to take about {@value #TARGET_BATCH_MILLIS} ms, but at most
+ * an even share of what is left, so no worker ends up with the tail. If a
+ * worker fails or times out, its batch goes back to the queue for the others
+ * and the worker is reconnected at the next swarm; an evaluation that fails on
+ * a worker fails the whole call, since it would fail anywhere.
+ */
+public class RemoteFitnessEvaluator implements Closeable {
+	private static final Logger log = Logger.getLogger(RemoteFitnessEvaluator.class.getName());
+
+	// the time a batch should take on a worker; amortizes the round trip
+	private static final long TARGET_BATCH_MILLIS = 200;
+
+	// the weight of the latest batch in the average time per position
+	private static final double LATENCY_SMOOTHING = 0.3;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+	// the rounds in a row in which every worker fails before giving up
+	private static final int MAX_ROUNDS_WITHOUT_PROGRESS = 3;
+
+	private final int numFeatures;
+
+	private final int readTimeoutMillis;
+
+	private final List<Worker> workers = new ArrayList<>();
+
+	private final ExecutorService threads;
+
+	/**
+	 * Connects to the workers, given as {@code host:port}; those that cannot
+	 * be reached now are retried at each evaluation, and those with another
+	 * number of features are skipped for good. A worker that does not answer
+	 * a batch within {@code readTimeoutMillis} (0 for no limit) is considered
+	 * failed.
+	 *
+	 * @throws IllegalStateException
+	 *             if no worker with the same number of features can be reached
+	 */
+	public RemoteFitnessEvaluator(List<String> workerAddresses, int numFeatures,
+			int readTimeoutMillis) {
+		Preconditions.checkArgument(!workerAddresses.isEmpty(), "No workers");
+		this.numFeatures = numFeatures;
+		this.readTimeoutMillis = readTimeoutMillis;
+		for (String address : workerAddresses) {
+			workers.add(new Worker(HostAndPort.fromString(address)));
+		}
+		this.threads = Executors.newFixedThreadPool(workers.size(), new ThreadFactoryBuilder()
+				.setNameFormat("fitness-coordinator-%s").setDaemon(true).build());
+		Preconditions.checkState(connectAll() > 0, "No fitness worker is reachable: %s",
+				workerAddresses);
+	}
+
+	/** Parses a comma-separated list of {@code host:port}. */
+	public static List<String> parseAddresses(String addresses) {
+		return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(addresses);
+	}
+
+	/** Connects the workers that are not connected; returns the number connected. */
+	private int connectAll() {
+		int numConnected = 0;
+		for (Worker worker : workers) {
+			if (worker.socket == null && !worker.isIncompatible) {
+				try {
+					worker.connect();
+				} catch (IOException e) {
+					log.warning("cannot connect to worker " + worker.address + ": " + e);
+					worker.disconnect();
+				}
+			}
+			if (worker.socket != null) {
+				numConnected++;
+			}
+		}
+		return numConnected;
+	}
+
+	/**
+	 * Returns the fitness of each position, competing with the fitness to
+	 * beat at the same index.
+	 *
+	 * @throws IllegalStateException
+	 *             if all workers fail before every position is evaluated, or an
+	 *             evaluation fails on a worker
+	 */
+	public List<Double> calcFitness(List<? extends List<Integer>> positions,
+			List<Double> fitnessesToBeat) {
+		Preconditions.checkArgument(positions.size() == fitnessesToBeat.size());
+		final Schedule schedule = new Schedule(positions, fitnessesToBeat);
+		int numRoundsWithoutProgress = 0;
+		while (!schedule.isDone()) {
+			int numConnected = connectAll();
+			if (numConnected == 0 || numRoundsWithoutProgress == MAX_ROUNDS_WITHOUT_PROGRESS) {
+				throw new IllegalStateException("No fitness worker can evaluate; "
+						+ schedule.getNumPending() + " positions left");
+			}
+			schedule.numWorkers = numConnected;
+			int numDoneBefore = schedule.getNumDone();
+			List<Future<?>> rounds = new ArrayList<>();
+			for (final Worker worker : workers) {
+				if (worker.socket != null) {
+					rounds.add(threads.submit(new Callable<Void>() {
+
+						@Override
+						public Void call() throws Exception {
+							worker.run(schedule);
+							return null;
+						}
+					}));
+				}
+			}
+			// after a failure, the other workers finish their batch, which keeps
+			// their connection in step, and take no other
+			Throwable failure = null;
+			for (Future<?> round : rounds) {
+				try {
+					round.get();
+				} catch (InterruptedException e) {
+					schedule.cancel();
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(e);
+				} catch (ExecutionException e) {
+					schedule.cancel();
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+			if (failure != null) {
+				throw Throwables.propagate(failure);
+			}
+			numRoundsWithoutProgress = schedule.getNumDone() == numDoneBefore
+					? numRoundsWithoutProgress + 1 : 0;
+		}
+		List<Double> result = new ArrayList<>(positions.size());
+		for (double fitness : schedule.results) {
+			result.add(fitness);
+		}
+		return result;
+	}
+
+	/** Ends the connections; the workers keep running for other coordinators. */
+	@Override
+	public void close() {
+		for (Worker worker : workers) {
+			if (worker.socket != null) {
+				try {
+					worker.out.writeInt(0);
+					worker.out.flush();
+				} catch (IOException e) {
+					// closing anyway
+				}
+				worker.disconnect();
+			}
+		}
+		threads.shutdownNow();
+	}
+
+	/** The positions of one swarm not yet evaluated, and the results. */
+	private static class Schedule {
+		final List<? extends List<Integer>> positions;
+
+		final List<Double> fitnessesToBeat;
+
+		final double[] results;
+
+		// the indices of the positions left; guarded by this
+		final Deque<Integer> pending = new ArrayDeque<>();
+
+		int numDone = 0;
+
+		// whether the call failed, so that no batch is taken any more
+		boolean isCancelled = false;
+
+		// the workers of the current round; set before it starts
+		volatile int numWorkers = 1;
+
+		Schedule(List<? extends List<Integer>> positions, List<Double> fitnessesToBeat) {
+			this.positions = positions;
+			this.fitnessesToBeat = fitnessesToBeat;
+			this.results = new double[positions.size()];
+			for (int i = 0; i < positions.size(); i++) {
+				pending.add(i);
+			}
+		}
+
+		/**
+		 * Takes up to {@code size} positions, none if there are none left or
+		 * the schedule is cancelled.
+		 */
+		synchronized List<Integer> take(int size) {
+			List<Integer> batch = new ArrayList<>(size);
+			while (!isCancelled && batch.size() < size && !pending.isEmpty()) {
+				batch.add(pending.poll());
+			}
+			return batch;
+		}
+
+		synchronized void cancel() {
+			isCancelled = true;
+		}
+
+		synchronized int getNumPending() {
+			return pending.size();
+		}
+
+		/** Puts the positions of a failed batch back, first in line. */
+		synchronized void giveBack(List<Integer> batch) {
+			for (int k = batch.size() - 1; k >= 0; k--) {
+				pending.addFirst(batch.get(k));
+			}
+		}
+
+		synchronized void complete(List<Integer> batch, double[] batchResults) {
+			for (int k = 0; k < batch.size(); k++) {
+				results[batch.get(k)] = batchResults[k];
+			}
+			numDone += batch.size();
+		}
+
+		synchronized int getNumDone() {
+			return numDone;
+		}
+
+		synchronized boolean isDone() {
+			return numDone == results.length;
+		}
+	}
+
+	/** One worker, its connection, and its average time per position. */
+	private class Worker {
+		final HostAndPort address;
+
+		Socket socket;
+
+		DataInputStream in;
+
+		DataOutputStream out;
+
+		// 0 until a batch has been timed
+		double nanosPerPosition = 0.0;
+
+		// whether it has another number of features, and is never connected again
+		boolean isIncompatible = false;
+
+		Worker(HostAndPort address) {
+			this.address = address;
+		}
+
+		void connect() throws IOException {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(address.getHostText(), address.getPort()),
+					CONNECT_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(readTimeoutMillis);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			FitnessProtocol.writeHeader(out);
+			out.flush();
+			FitnessProtocol.checkHeader(in);
+			int workerNumFeatures = in.readInt();
+			String evaluator = in.readUTF();
+			if (workerNumFeatures != numFeatures) {
+				isIncompatible = true;
+				throw new IOException(String.format(
+						"Worker %s has %d features; expected %d", address, workerNumFeatures,
+						numFeatures));
+			}
+			log.info("connected to worker " + address + " (" + evaluator + ")");
+		}
+
+		void disconnect() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+			socket = null;
+			in = null;
+			out = null;
+		}
+
+		/**
+		 * Evaluates batches until none is left; a failed batch is given
+		 * back and ends the round of this worker.
+		 */
+		void run(Schedule schedule) {
+			while (true) {
+				List<Integer> batch = schedule.take(batchSize(schedule.getNumPending(),
+						schedule.numWorkers));
+				if (batch.isEmpty()) {
+					return;
+				}
+				Stopwatch stopwatch = Stopwatch.createStarted();
+				double[] batchResults;
+				try {
+					batchResults = evaluate(schedule, batch);
+				} catch (IOException e) {
+					log.warning("worker " + address + " failed; resubmitting " + batch.size()
+							+ " positions: " + e);
+					MetricsRegistry.get().counter("remote.resubmitted").add(batch.size());
+					schedule.giveBack(batch);
+					disconnect();
+					return;
+				}
+				long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+				double latest = (double) nanos / batch.size();
+				nanosPerPosition = nanosPerPosition == 0.0 ? latest : LATENCY_SMOOTHING * latest
+						+ (1 - LATENCY_SMOOTHING) * nanosPerPosition;
+				schedule.complete(batch, batchResults);
+				MetricsRegistry.get().histogram("remote.batch.nanos").record(nanos);
+				MetricsRegistry.get().counter("remote.positions").add(batch.size());
+			}
+		}
+
+		/**
+		 * The number of positions that take about the target time on this
+		 * worker, at most an even share of the pending ones among the
+		 * connected workers, and one until the worker has been timed.
+		 */
+		int batchSize(int numPending, int numWorkers) {
+			if (nanosPerPosition == 0.0) {
+				return 1;
+			}
+			int fairShare = (numPending + numWorkers - 1) / numWorkers;
+			long target = (long) (TimeUnit.MILLISECONDS.toNanos(TARGET_BATCH_MILLIS)
+					/ nanosPerPosition);
+			return (int) Math.max(1, Math.min(fairShare, target));
+		}
+
+		private double[] evaluate(Schedule schedule, List<Integer> batch) throws IOException {
+			out.writeInt(batch.size());
+			for (int index : batch) {
+				out.writeDouble(schedule.fitnessesToBeat.get(index));
+				FitnessProtocol.writeMask(out, schedule.positions.get(index));
+			}
+			out.flush();
+			byte status = in.readByte();
+			if (status != FitnessProtocol.STATUS_OK) {
+				throw new IllegalStateException("Evaluation failed on worker " + address + ": "
+						+ in.readUTF());
+			}
+			double[] result = new double[batch.size()];
+			for (int k = 0; k < result.length; k++) {
+				result[k] = in.readDouble();
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.net.HostAndPort;
+
+/**
+ * A {@link KnnShard} served by a {@link KnnShardServer}, over one connection
+ * that the calls take in turn. Only the values of the features of the mask
+ * travel, in either direction. A call that fails on the connection is retried
+ * once on a new one; the instances of a shard are nowhere else, so a shard
+ * that stays down fails the evaluation.
+ */
+public class RemoteKnnShard implements KnnShard {
+	private static final Logger log = Logger.getLogger(RemoteKnnShard.class.getName());
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+	private final HostAndPort address;
+
+	private final int shardIndex;
+
+	private final int numShards;
+
+	private final int readTimeoutMillis;
+
+	private int numFeatures;
+
+	private List<String> classNames;
+
+	private Socket socket;
+
+	private DataInputStream in;
+
+	private DataOutputStream out;
+
+	/**
+	 * Connects to the server of shard {@code shardIndex} of
+	 * {@code numShards}, given as {@code host:port}. A server that does not
+	 * answer a request within {@code readTimeoutMillis} (0 for no limit) is
+	 * considered failed.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the server cannot be reached
+	 * @throws IllegalStateException
+	 *             if the server holds another shard
+	 */
+	public RemoteKnnShard(String address, int shardIndex, int numShards, int readTimeoutMillis) {
+		this.address = HostAndPort.fromString(address);
+		this.shardIndex = shardIndex;
+		this.numShards = numShards;
+		this.readTimeoutMillis = readTimeoutMillis;
+		try {
+			connect();
+		} catch (IOException e) {
+			disconnect();
+			throw new UncheckedIOException("Cannot connect to shard " + address, e);
+		} catch (RuntimeException e) {
+			disconnect();
+			throw e;
+		}
+	}
+
+	/** Connects to the shards, given in order as {@code host:port}. */
+	public static List<KnnShard> connectAll(List<String> addresses, int readTimeoutMillis) {
+		List<KnnShard> result = new ArrayList<>(addresses.size());
+		try {
+			for (int s = 0; s < addresses.size(); s++) {
+				result.add(new RemoteKnnShard(addresses.get(s), s, addresses.size(),
+						readTimeoutMillis));
+			}
+		} catch (RuntimeException e) {
+			for (KnnShard shard : result) {
+				shard.close();
+			}
+			throw e;
+		}
+		return result;
+	}
+
+	private void connect() throws IOException {
+		socket = new Socket();
+		socket.connect(new InetSocketAddress(address.getHostText(), address.getPort()),
+				CONNECT_TIMEOUT_MILLIS);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(readTimeoutMillis);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		FitnessProtocol.writeHeader(out, KnnShardServer.MAGIC);
+		out.flush();
+		FitnessProtocol.checkHeader(in, KnnShardServer.MAGIC);
+		int serverNumFeatures = in.readInt();
+		int serverShardIndex = in.readInt();
+		int serverNumShards = in.readInt();
+		if (serverShardIndex != shardIndex || serverNumShards != numShards) {
+			throw new IllegalStateException(String.format(
+					"Server %s holds shard %d of %d; expected %d of %d", address,
+					serverShardIndex, serverNumShards, shardIndex, numShards));
+		}
+		int numInstances = in.readInt();
+		List<String> serverClassNames = new ArrayList<>();
+		for (int c = in.readInt(); c > 0; c--) {
+			serverClassNames.add(in.readUTF());
+		}
+		List<String> instanceClassNames = new ArrayList<>(numInstances);
+		for (int i = 0; i < numInstances; i++) {
+			instanceClassNames.add(serverClassNames.get(in.readInt()));
+		}
+		if (classNames == null) {
+			numFeatures = serverNumFeatures;
+			classNames = Collections.unmodifiableList(instanceClassNames);
+		} else if (serverNumFeatures != numFeatures || !instanceClassNames.equals(classNames)) {
+			throw new IllegalStateException("Server " + address + " holds other instances now");
+		}
+		log.info("connected to knn shard " + shardIndex + " of " + numShards + " at " + address
+				+ " (" + numInstances + " instances)");
+	}
+
+	private void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		socket = null;
+		in = null;
+		out = null;
+	}
+
+	/** A request and the reading of its answer. */
+	private interface Request<T> {
+		T send() throws IOException;
+	}
+
+	/** Sends a request, on a new connection if the first attempt fails. */
+	private synchronized <T> T call(Request<T> request) {
+		for (int attempt = 0;; attempt++) {
+			try {
+				if (socket == null) {
+					connect();
+				}
+				return request.send();
+			} catch (IOException e) {
+				disconnect();
+				if (attempt > 0) {
+					throw new UncheckedIOException("Shard " + address + " failed", e);
+				}
+				log.warning("shard " + address + " failed; reconnecting: " + e);
+				MetricsRegistry.get().counter("knn.shard.retries").add(1);
+			}
+		}
+	}
+
+	private void readStatus() throws IOException {
+		byte status = in.readByte();
+		if (status != FitnessProtocol.STATUS_OK) {
+			throw new IllegalStateException("Request failed on shard " + address + ": "
+					+ in.readUTF());
+		}
+	}
+
+	@Override
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	@Override
+	public List<String> getClassNames() {
+		return classNames;
+	}
+
+	@Override
+	public double[][] getRows(final int[] indices, final FeatureMask mask) {
+		return call(new Request<double[][]>() {
+
+			@Override
+			public double[][] send() throws IOException {
+				out.writeByte(KnnShardServer.GET_ROWS);
+				FitnessProtocol.writeMask(out, mask);
+				out.writeInt(indices.length);
+				for (int index : indices) {
+					out.writeInt(index);
+				}
+				out.flush();
+				readStatus();
+				double[][] result = new double[indices.length][];
+				for (int q = 0; q < result.length; q++) {
+					result[q] = KnnShardServer.readValues(in, numFeatures, mask.getIndices());
+				}
+				return result;
+			}
+		});
+	}
+
+	@Override
+	public Neighbors[] findNearest(final double[][] queries, final int[] excludedIndices,
+			final FeatureMask mask, final int numK) {
+		Preconditions.checkArgument(queries.length == excludedIndices.length);
+		return call(new Request<Neighbors[]>() {
+
+			@Override
+			public Neighbors[] send() throws IOException {
+				out.writeByte(KnnShardServer.FIND_NEAREST);
+				FitnessProtocol.writeMask(out, mask);
+				out.writeInt(numK);
+				out.writeInt(queries.length);
+				for (int q = 0; q < queries.length; q++) {
+					out.writeInt(excludedIndices[q]);
+					KnnShardServer.writeValues(out, queries[q], mask.getIndices());
+				}
+				out.flush();
+				readStatus();
+				Neighbors[] result = new Neighbors[queries.length];
+				for (int q = 0; q < result.length; q++) {
+					int[] indices = new int[in.readInt()];
+					double[] distances = new double[indices.length];
+					for (int k = 0; k < indices.length; k++) {
+						indices[k] = in.readInt();
+						distances[k] = in.readDouble();
+					}
+					result[q] = new Neighbors(indices, distances);
+				}
+				return result;
+			}
+		});
+	}
+
+	/** Ends the connection; the server keeps running for other clients. */
+	@Override
+	public synchronized void close() {
+		if (socket != null) {
+			try {
+				out.writeByte(KnnShardServer.END);
+				out.flush();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			disconnect();
+		}
+	}
+}
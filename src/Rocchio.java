@@ -1,7 +1,4 @@
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 import com.google.common.base.Preconditions;
@@ -9,93 +6,191 @@ import com.google.common.base.Preconditions;
 public class Rocchio extends AbstractFeatureSelectionEvaluator {
 	private static final Logger log = Logger.getLogger(Rocchio.class.getName());
 
-	public Rocchio(ArrayList<Integer> featureSelectionResult, ArrayList<DataPoint> dataSet) {
-		super(featureSelectionResult, dataSet);
+	// centroids of all classes in the original feature space, indexed by label
+	private final double[][] centroids;
+
+	// the centroids as floats if the data set is stored with less precision
+	private final float[][] floatCentroids;
+
+	public Rocchio(List<Integer> featureSelectionResult, Context context) {
+		super(featureSelectionResult, context.getData());
+		this.centroids = context.centroids;
+		this.floatCentroids = context.floatCentroids;
 	}
 
 	@Override
 	public double calcFitness(double alpha, double beta, int samplingFolders) {
 		Preconditions.checkArgument(samplingFolders == -1, "Sampling is not supported.");
 		double accuracy = calcAccuracy();
-		double result = alpha * accuracy + beta
-				* (((double) (numFeatures - numSelectedFeatures)) / numFeatures);
+		double result = fitness(alpha, beta, accuracy);
 		log.info("Rocchio::calcFitness: accuracy=" + accuracy + ", numSelectedFeatures="
 				+ numSelectedFeatures + ", fitness=" + result);
 		return result;
 	}
 
-	private static String classify(DataPoint newPoint, Map<String, DataPoint> centroidsByClass) {
-		double minDistance = 0.0;
-		String className = null;
-		for (DataPoint centroid : centroidsByClass.values()) {
-			double distance = MathUtil.calculateEuclideanDistance(newPoint.getFeatureValues(),
-					centroid.getFeatureValues());
-			if (className == null) {
-				className = centroid.getClassName();
+	@Override
+	public int countCorrectlyClassified(List<Integer> instanceIndices) {
+		int correctClassifiedCount = countCorrectlyClassifiedInSubtasks(instanceIndices,
+				((long) centroids.length) * numSelectedFeatures);
+		recordKernelCalls(((long) instanceIndices.size()) * centroids.length);
+		return correctClassifiedCount;
+	}
+
+	/**
+	 * Returns the label of the nearest centroid; the centroid of a class under
+	 * the selected features is the original centroid restricted to them.
+	 */
+	@Override
+	public int classify(int instanceIndex) {
+		double minDistance = Double.MAX_VALUE;
+		int label = -1;
+		for (int i = 0; i < centroids.length; i++) {
+			double distance = floatCentroids == null ? data.squaredEuclideanDistance(
+					instanceIndex, centroids[i], selectedFeatures) : data.squaredEuclideanDistance(
+					instanceIndex, floatCentroids[i], selectedFeatures);
+			if (label == -1 || distance < minDistance) {
 				minDistance = distance;
-			} else {
-				if (distance < minDistance) {
-					minDistance = distance;
-					className = centroid.getClassName();
-				}
+				label = i;
 			}
 		}
-		return className;
+		return label;
 	}
 
 	private double calcAccuracy() {
-		final Map<String, DataPoint> centroidsByClass = getClassCentroids();
-		int correctClassifiedCount = 0;
-		for (int i = 0; i < numInstances; i++) {
-			DataPoint point = selectedDataSet.get(i);
-			String correctClassName = point.getClassName();
-			if (correctClassName.equals(classify(point, centroidsByClass))) {
-				correctClassifiedCount++;
-			}
-		}
+		int correctClassifiedCount = countCorrectlyClassified(MathUtil.range(numInstances));
 		double accuracy = ((double) correctClassifiedCount) / numInstances;
 		log.info("accuracy = " + accuracy + ", using Rocchio verified on " + numInstances
 				+ " instances.");
 		return accuracy;
 	}
 
-	private Map<String, DataPoint> getClassCentroids() {
-		Map<String, List<DataPoint>> pointsByClass = new HashMap<>();
-		Map<String, DataPoint> centroidsByClass = new HashMap<>();
-		for (int i = 0; i < numInstances; i++) {
-			DataPoint point = selectedDataSet.get(i);
-			String className = point.getClassName();
-			if (!pointsByClass.containsKey(className)) {
-				pointsByClass.put(className, new ArrayList<DataPoint>());
+	/**
+	 * Class centroids computed once per data set, in double from the stored
+	 * values whatever their precision, and as floats for the kernels of the
+	 * narrower precisions.
+	 * <p>
+	 * Rows stored as doubles are classified under several masks in one pass:
+	 * the squared differences of a row to each centroid are computed once, and
+	 * the distance under a mask is their sum over its features, so each row is
+	 * read once per batch rather than once per mask. The distances are the
+	 * per-mask ones up to the rounding of the vector kernels.
+	 */
+	public static class Context extends EvaluatorContext {
+		private final double[][] centroids;
+
+		private final float[][] floatCentroids;
+
+		public Context(FeatureMatrix data) {
+			super(data);
+			int numFeatures = data.getNumColumns();
+			this.centroids = new double[data.getNumClasses()][numFeatures];
+			int[] numPoints = new int[data.getNumClasses()];
+			for (int i = 0; i < data.getNumRows(); i++) {
+				double[] row = data.getRow(i);
+				double[] sums = centroids[data.getLabel(i)];
+				for (int j = 0; j < numFeatures; j++) {
+					sums[j] += row[j];
+				}
+				numPoints[data.getLabel(i)]++;
+			}
+			for (int label = 0; label < centroids.length; label++) {
+				for (int j = 0; j < numFeatures; j++) {
+					centroids[label][j] /= numPoints[label];
+				}
+			}
+			if (data.getPrecision() == FeatureMatrix.Precision.DOUBLE) {
+				this.floatCentroids = null;
+			} else {
+				this.floatCentroids = new float[centroids.length][numFeatures];
+				for (int label = 0; label < centroids.length; label++) {
+					for (int j = 0; j < numFeatures; j++) {
+						floatCentroids[label][j] = (float) centroids[label][j];
+					}
+				}
 			}
-			pointsByClass.get(className).add(point);
-		}
-		for (Map.Entry<String, List<DataPoint>> entry : pointsByClass.entrySet()) {
-			String className = entry.getKey();
-			List<DataPoint> points = entry.getValue();
-			centroidsByClass.put(className, getCentroid(points, className));
 		}
-		return centroidsByClass;
-	}
 
-	private DataPoint getCentroid(List<DataPoint> points, String className) {
-		for (DataPoint point : points) {
-			Preconditions.checkArgument(className.equals(point.getClassName()));
+		@Override
+		public String getName() {
+			return "rocchio";
 		}
 
-		ArrayList<Double> featureValues = new ArrayList<>(numSelectedFeatures);
-		for (int i = 0; i < numSelectedFeatures; i++) {
-			featureValues.add(0.0);
+		@Override
+		public Rocchio newEvaluator(List<Integer> featureSelectionResult) {
+			return new Rocchio(featureSelectionResult, this);
 		}
-		for (DataPoint point : points) {
-			for (int i = 0; i < numSelectedFeatures; i++) {
-				featureValues.set(i, featureValues.get(i) + point.getFeatureValues().get(i));
+
+		/**
+		 * Classifies the instances under all the masks in one pass, split into
+		 * subtasks in a fork-join pool as an evaluator does; rows stored with
+		 * less precision are evaluated one mask after another.
+		 */
+		@Override
+		public int[] countCorrectlyClassified(
+				List<? extends List<Integer>> featureSelectionResults,
+				List<Integer> instanceIndices) {
+			if (data.getPrecision() != FeatureMatrix.Precision.DOUBLE
+					|| featureSelectionResults.size() < 2) {
+				return super.countCorrectlyClassified(featureSelectionResults, instanceIndices);
 			}
+			FeatureMask[] masks = new FeatureMask[featureSelectionResults.size()];
+			long elementsPerInstance = data.getNumColumns();
+			for (int m = 0; m < masks.length; m++) {
+				masks[m] = FeatureMask.of(featureSelectionResults.get(m));
+				elementsPerInstance += masks[m].getNumSelected();
+			}
+			elementsPerInstance *= centroids.length;
+			AbstractFeatureSelectionEvaluator.recordKernelCalls(((long) instanceIndices.size())
+					* masks.length * centroids.length, instanceIndices.size()
+					* elementsPerInstance);
+			final FeatureMask[] batchMasks = masks;
+			return AbstractFeatureSelectionEvaluator.countInSubtasks(
+					new AbstractFeatureSelectionEvaluator.RangeCounter() {
+
+						@Override
+						public int[] count(int from, int to) {
+							return countInOnePass(batchMasks, instanceIndices, from, to);
+						}
+					}, instanceIndices.size(), elementsPerInstance);
 		}
-		int numPoints = points.size();
-		for (int i = 0; i < numSelectedFeatures; i++) {
-			featureValues.set(i, featureValues.get(i) / numPoints);
+
+		/** Classifies a range of the instances under every mask, reading each row once. */
+		private int[] countInOnePass(FeatureMask[] masks, List<Integer> instanceIndices,
+				int from, int to) {
+			DistanceKernels kernels = DistanceKernels.get();
+			int numFeatures = data.getNumColumns();
+			// the squared difference of each feature of the row to each centroid
+			double[][] squaredDiffs = new double[centroids.length][numFeatures];
+			int[] result = new int[masks.length];
+			for (int k = from; k < to; k++) {
+				int index = instanceIndices.get(k);
+				double[] row = data.getRow(index);
+				for (int c = 0; c < centroids.length; c++) {
+					double[] centroid = centroids[c];
+					double[] squaredDiff = squaredDiffs[c];
+					for (int j = 0; j < numFeatures; j++) {
+						double diff = row[j] - centroid[j];
+						squaredDiff[j] = diff * diff;
+					}
+				}
+				int label = data.getLabel(index);
+				for (int m = 0; m < masks.length; m++) {
+					// the nearest centroid, the first of them on ties, as classify does
+					double minDistance = Double.MAX_VALUE;
+					int nearest = -1;
+					for (int c = 0; c < centroids.length; c++) {
+						double distance = kernels.sum(squaredDiffs[c], masks[m]);
+						if (nearest == -1 || distance < minDistance) {
+							minDistance = distance;
+							nearest = c;
+						}
+					}
+					if (nearest == label) {
+						result[m]++;
+					}
+				}
+			}
+			return result;
 		}
-		return new DataPoint(className, featureValues);
 	}
 }
@@ -0,0 +1,285 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Runs the pipeline ({@link SyntheticCorpusGenerator} corpus,
+ * {@link TfidfCalculator}, {@link BPSOSearch}) over a grid of corpus sizes and
+ * thread counts, and reports throughput, peak RSS and scaling efficiency.
+ * <p>
+ * Every grid cell runs in its own JVM so that its peak RSS is its own; the
+ * thread count is applied with {@code -XX:ActiveProcessorCount}, which all the
+ * thread pools of the project are sized from. A scale factor multiplies both
+ * the number of documents and the vocabulary size.
+ */
+public class ScalabilitySweep {
+	private static final Logger log = Logger.getLogger(ScalabilitySweep.class.getName());
+
+	private static final String RESULT_PREFIX = "RESULT ";
+
+	private static final String[] REPORT_COLUMNS = { "scale", "threads", "numDocs",
+			"vocabularySize", "tfidfMillis", "docsPerSecond", "searchMillis",
+			"evaluationsPerSecond", "peakRssKb", "tfidfEfficiency", "searchEfficiency" };
+
+	private final File workDir;
+
+	private int baseNumDocs = 1000;
+
+	private int baseVocabularySize = 2000;
+
+	private List<Integer> scales = parseInts("1,10");
+
+	private List<Integer> threadCounts = parseInts("1,2,4");
+
+	private int numIterations = 3;
+
+	private int numParticles = 8;
+
+	private String maxHeap = null;
+
+	public ScalabilitySweep(File workDir) {
+		this.workDir = workDir;
+	}
+
+	public void run(String reportFilePath) throws IOException, InterruptedException {
+		workDir.mkdirs();
+		List<Map<String, String>> results = new ArrayList<>();
+		for (int scale : scales) {
+			int numDocs = baseNumDocs * scale;
+			int vocabularySize = baseVocabularySize * scale;
+			File corpus = new File(workDir, "corpus-x" + scale + ".txt");
+			if (!corpus.exists()) {
+				new SyntheticCorpusGenerator(vocabularySize, 8, 100, 1.0, 0.3).generate(
+						corpus.getPath(), numDocs, 298L);
+			}
+			for (int threads : threadCounts) {
+				log.info("running cell: scale=" + scale + ", threads=" + threads);
+				Map<String, String> result = runCell(corpus, threads);
+				result.put("scale", String.valueOf(scale));
+				result.put("threads", String.valueOf(threads));
+				result.put("numDocs", String.valueOf(numDocs));
+				result.put("vocabularySize", String.valueOf(vocabularySize));
+				results.add(result);
+			}
+		}
+		addEfficiencies(results);
+
+		try (PrintWriter out = new PrintWriter(reportFilePath)) {
+			out.println(Joiner.on(',').join(REPORT_COLUMNS));
+			for (Map<String, String> result : results) {
+				List<String> values = new ArrayList<>();
+				for (String column : REPORT_COLUMNS) {
+					values.add(result.containsKey(column) ? result.get(column) : "");
+				}
+				out.println(Joiner.on(',').join(values));
+				System.out.println(Joiner.on('\t').join(values));
+			}
+		}
+		log.info("report written to " + reportFilePath);
+	}
+
+	/**
+	 * Efficiency of p threads is T(p0) * p0 / (T(p) * p), relative to the
+	 * smallest thread count p0 run at the same scale.
+	 */
+	private static void addEfficiencies(List<Map<String, String>> results) {
+		Map<String, Map<String, String>> baselines = new HashMap<>();
+		for (Map<String, String> result : results) {
+			Map<String, String> baseline = baselines.get(result.get("scale"));
+			if (baseline == null
+					|| Integer.parseInt(result.get("threads")) < Integer.parseInt(baseline
+							.get("threads"))) {
+				baselines.put(result.get("scale"), result);
+			}
+		}
+		for (Map<String, String> result : results) {
+			Map<String, String> baseline = baselines.get(result.get("scale"));
+			double threadRatio = Double.parseDouble(baseline.get("threads"))
+					/ Double.parseDouble(result.get("threads"));
+			result.put("tfidfEfficiency", String.format("%.3f", threadRatio
+					* Double.parseDouble(baseline.get("tfidfMillis"))
+					/ Double.parseDouble(result.get("tfidfMillis"))));
+			result.put("searchEfficiency", String.format("%.3f", threadRatio
+					* Double.parseDouble(baseline.get("searchMillis"))
+					/ Double.parseDouble(result.get("searchMillis"))));
+		}
+	}
+
+	private Map<String, String> runCell(File corpus, int threads) throws IOException,
+			InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-XX:ActiveProcessorCount=" + threads);
+		// the vector kernels of the cell, as in this JVM
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			command.add("--add-modules");
+			command.add("jdk.incubator.vector");
+		}
+		if (maxHeap != null) {
+			command.add("-Xmx" + maxHeap);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ScalabilitySweep.class.getName());
+		command.add("-cell");
+		command.add(corpus.getPath());
+		command.add(String.valueOf(numIterations));
+		command.add(String.valueOf(numParticles));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(new File(workDir, corpus.getName() + "-t" + threads + ".log"));
+		Process process = builder.start();
+		Map<String, String> result = null;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(RESULT_PREFIX)) {
+					result = new HashMap<>(Splitter.on(' ').withKeyValueSeparator('=')
+							.split(line.substring(RESULT_PREFIX.length())));
+				}
+			}
+		}
+		int exitCode = process.waitFor();
+		if (exitCode != 0 || result == null) {
+			throw new IllegalStateException("Cell failed (exit code " + exitCode + "): "
+					+ command + "; see the log in " + workDir);
+		}
+		return result;
+	}
+
+	/** Runs one grid cell in this JVM and prints its result line. */
+	private static void runCellInProcess(String corpusPath, int numIterations, int numParticles)
+			throws IOException {
+		PrintStream stdout = System.out;
+		// BPSOSearch prints every particle of every iteration.
+		System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+		String tfidfPath = corpusPath + ".csv";
+		int numDocs = 0;
+		try (BufferedReader in = Files.newBufferedReader(new File(corpusPath).toPath(),
+				StandardCharsets.UTF_8)) {
+			while (in.readLine() != null) {
+				numDocs++;
+			}
+		}
+
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		new TfidfCalculator().calculate(corpusPath, tfidfPath, true);
+		long tfidfMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+		stopwatch.reset().start();
+		new BPSOSearch(numIterations, numParticles, tfidfPath).search();
+		long searchMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+		new File(tfidfPath).delete();
+
+		System.setOut(stdout);
+		System.out.println(RESULT_PREFIX + "tfidfMillis=" + tfidfMillis + " docsPerSecond="
+				+ String.format("%.1f", numDocs * 1000.0 / Math.max(1, tfidfMillis))
+				+ " searchMillis=" + searchMillis + " evaluationsPerSecond="
+				+ String.format("%.3f", numIterations * numParticles * 1000.0
+						/ Math.max(1, searchMillis)) + " peakRssKb=" + peakRssKb());
+	}
+
+	/**
+	 * The peak resident set size of this process from /proc on Linux; elsewhere
+	 * the sum of the peak usages of the JVM memory pools.
+	 */
+	static long peakRssKb() {
+		File status = new File("/proc/self/status");
+		if (status.exists()) {
+			try {
+				for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+					if (line.startsWith("VmHWM:")) {
+						return Long.parseLong(line.replaceAll("[^0-9]", ""));
+					}
+				}
+			} catch (IOException e) {
+				log.warning("cannot read " + status + ": " + e);
+			}
+		}
+		long peakBytes = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			peakBytes += pool.getPeakUsage().getUsed();
+		}
+		return peakBytes / 1024;
+	}
+
+	private static List<Integer> parseInts(String commaSeparated) {
+		List<Integer> result = new ArrayList<>();
+		for (String value : Splitter.on(',').trimResults().split(commaSeparated)) {
+			result.add(Integer.parseInt(value));
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 4 && args[0].equals("-cell")) {
+			runCellInProcess(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+			return;
+		}
+		if (args.length < 1 || args.length % 2 == 0) {
+			System.err.printf("usage: %s workDir [options]\n", ScalabilitySweep.class.getName());
+			System.err.printf("options:\n");
+			System.err.printf("\t-docs <n>: number of documents at scale 1 (default: 1000).\n");
+			System.err.printf("\t-vocabulary <n>: vocabulary size at scale 1 (default: 2000).\n");
+			System.err.printf("\t-scales <s1,s2,...>: scale factors (default: 1,10).\n");
+			System.err.printf("\t-threads <t1,t2,...>: thread counts (default: 1,2,4).\n");
+			System.err.printf("\t-iterations <n>: BPSO iterations (default: 3).\n");
+			System.err.printf("\t-particles <n>: BPSO particles (default: 8).\n");
+			System.err.printf("\t-Xmx <size>: max heap of each cell, e.g. 8g.\n");
+			System.err.printf("\t-report <file>: CSV report (default: workDir/sweep.csv).\n");
+			return;
+		}
+		ScalabilitySweep sweep = new ScalabilitySweep(new File(args[0]));
+		String reportFilePath = new File(args[0], "sweep.csv").getPath();
+		for (int i = 1; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-docs":
+				sweep.baseNumDocs = Integer.parseInt(value);
+				break;
+			case "-vocabulary":
+				sweep.baseVocabularySize = Integer.parseInt(value);
+				break;
+			case "-scales":
+				sweep.scales = parseInts(value);
+				break;
+			case "-threads":
+				sweep.threadCounts = parseInts(value);
+				break;
+			case "-iterations":
+				sweep.numIterations = Integer.parseInt(value);
+				break;
+			case "-particles":
+				sweep.numParticles = Integer.parseInt(value);
+				break;
+			case "-Xmx":
+				sweep.maxHeap = value;
+				break;
+			case "-report":
+				reportFilePath = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+		sweep.run(reportFilePath);
+	}
+}
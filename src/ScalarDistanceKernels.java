@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+
+/** The distance kernels as plain loops, which the JIT may or may not vectorize. */
+public final class ScalarDistanceKernels extends DistanceKernels {
+
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public double dotProduct(double[] instance1, double[] instance2) {
+		double sum = 0.0;
+		for (int i = 0; i < instance1.length; i++) {
+			sum += instance1[i] * instance2[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredEuclideanDistance(double[] instance1, double[] instance2) {
+		double sum = 0.0;
+		for (int i = 0; i < instance1.length; i++) {
+			double diff = instance1[i] - instance2[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public double dotProduct(double[] instance1, double[] instance2, FeatureMask mask) {
+		return MathUtil.dotProduct(instance1, instance2, mask.getIndices());
+	}
+
+	@Override
+	public double sum(double[] instance, FeatureMask mask) {
+		double sum = 0.0;
+		for (int i : mask.getIndices()) {
+			sum += instance[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredEuclideanDistance(double[] instance1, double[] instance2,
+			FeatureMask mask) {
+		return MathUtil.calculateSquaredEuclideanDistance(instance1, instance2, mask.getIndices());
+	}
+
+	@Override
+	public double squaredEuclideanDistance(ByteBuffer instance1, int offset1,
+			double[] instance2, FeatureMask mask) {
+		return MathUtil.calculateSquaredEuclideanDistance(instance1, offset1, instance2, mask
+				.getIndices());
+	}
+
+	@Override
+	public double dotProduct(ByteBuffer instance1, int offset1, ByteBuffer instance2,
+			int offset2, FeatureMask mask) {
+		return MathUtil.dotProduct(instance1, offset1, instance2, offset2, mask.getIndices());
+	}
+
+	@Override
+	public double dotProduct(double[] instance1, ByteBuffer instance2, int offset2,
+			FeatureMask mask) {
+		return MathUtil.dotProduct(instance1, instance2, offset2, mask.getIndices());
+	}
+
+	@Override
+	public double sparseDotProduct(int[] indices, double[] values, int length, double[] dense) {
+		double sum = 0.0;
+		for (int k = 0; k < length; k++) {
+			sum += values[k] * dense[indices[k]];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,272 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link KNN} over instances partitioned into {@link KnnShard}s, none of
+ * which holds the whole data set. Queries are classified in batches:
+ * <ol>
+ * <li>the selected features of the query instances are fetched from the shards
+ * holding them;</li>
+ * <li>every shard finds the K nearest of its instances to each query
+ * (scatter);</li>
+ * <li>the K nearest of all those, by distance then by instance index, vote
+ * with {@link KNN#findDominantClass(List, List)} (gather).</li>
+ * </ol>
+ * The classes, and so the accuracy, are those of {@link KNN} on the whole data
+ * set.
+ */
+public class ShardedKNN extends KNN {
+	// the queries sent to the shards at a time, which bounds the memory of a batch
+	private static final int QUERY_BATCH_SIZE = 256;
+
+	private final Context context;
+
+	public ShardedKNN(Context context, List<Integer> featureSelectionResult) {
+		super(context.numK, featureSelectionResult, context.labels.length, context.numFeatures);
+		this.context = context;
+	}
+
+	@Override
+	public int countCorrectlyClassified(List<Integer> instanceIndices) {
+		int numCorrectClassification = 0;
+		for (int start = 0; start < instanceIndices.size(); start += QUERY_BATCH_SIZE) {
+			int[] batch = new int[Math.min(QUERY_BATCH_SIZE, instanceIndices.size() - start)];
+			for (int q = 0; q < batch.length; q++) {
+				batch[q] = instanceIndices.get(start + q);
+			}
+			int[] classes = classify(batch);
+			for (int q = 0; q < batch.length; q++) {
+				if (context.labels[batch[q]] == classes[q]) {
+					numCorrectClassification++;
+				}
+			}
+		}
+		recordKernelCalls(((long) instanceIndices.size()) * (numInstances - 1));
+		return numCorrectClassification;
+	}
+
+	@Override
+	public int classify(int instanceIndex) {
+		return classify(new int[] { instanceIndex })[0];
+	}
+
+	/** Classifies instances, each by its K nearest neighbors among all the others. */
+	private int[] classify(int[] instanceIndices) {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		final int numShards = context.shards.size();
+		final double[][] queries = fetchRows(instanceIndices);
+		List<Callable<KnnShard.Neighbors[]>> scatter = new ArrayList<>(numShards);
+		for (int s = 0; s < numShards; s++) {
+			final KnnShard shard = context.shards.get(s);
+			final int[] excludedIndices = new int[instanceIndices.length];
+			for (int q = 0; q < instanceIndices.length; q++) {
+				excludedIndices[q] = instanceIndices[q] % numShards == s ? instanceIndices[q]
+						/ numShards : -1;
+			}
+			scatter.add(new Callable<KnnShard.Neighbors[]>() {
+
+				@Override
+				public KnnShard.Neighbors[] call() {
+					return shard.findNearest(queries, excludedIndices, selectedFeatures, numK);
+				}
+			});
+		}
+		List<KnnShard.Neighbors[]> neighborsByShard = context.invokeAll(scatter);
+		int[] result = new int[instanceIndices.length];
+		for (int q = 0; q < instanceIndices.length; q++) {
+			List<IndexedValue<Double>> candidates = new ArrayList<>(numShards * numK);
+			for (int s = 0; s < numShards; s++) {
+				KnnShard.Neighbors neighbors = neighborsByShard.get(s)[q];
+				for (int k = 0; k < neighbors.indices.length; k++) {
+					IndexedValue<Double> iv = new IndexedValue<>();
+					iv.setIndex(neighbors.indices[k] * numShards + s);
+					iv.setValue(neighbors.distances[k]);
+					candidates.add(iv);
+				}
+			}
+			Collections.sort(candidates, new NeighborComparator());
+			List<Integer> labelsOfNearestPoints = new ArrayList<>();
+			List<Double> distancesOfNearestPoints = new ArrayList<>();
+			for (int k = 0; k < numK; k++) {
+				labelsOfNearestPoints.add(context.labels[candidates.get(k).getIndex()]);
+				distancesOfNearestPoints.add(candidates.get(k).getValue());
+			}
+			result[q] = findDominantClass(labelsOfNearestPoints, distancesOfNearestPoints);
+		}
+		MetricsRegistry.get().counter("knn.shard.queries").add(instanceIndices.length);
+		MetricsRegistry.get().histogram("knn.shard.batch.nanos").record(
+				stopwatch.elapsed(TimeUnit.NANOSECONDS));
+		return result;
+	}
+
+	/** The selected features of the instances, from the shards that hold them. */
+	private double[][] fetchRows(final int[] instanceIndices) {
+		final int numShards = context.shards.size();
+		List<Callable<double[][]>> gather = new ArrayList<>();
+		final List<List<Integer>> queriesByShard = new ArrayList<>();
+		for (int s = 0; s < numShards; s++) {
+			final List<Integer> queries = new ArrayList<>();
+			for (int q = 0; q < instanceIndices.length; q++) {
+				if (instanceIndices[q] % numShards == s) {
+					queries.add(q);
+				}
+			}
+			queriesByShard.add(queries);
+			final KnnShard shard = context.shards.get(s);
+			gather.add(new Callable<double[][]>() {
+
+				@Override
+				public double[][] call() {
+					int[] indices = new int[queries.size()];
+					for (int k = 0; k < indices.length; k++) {
+						indices[k] = instanceIndices[queries.get(k)] / numShards;
+					}
+					return indices.length == 0 ? new double[0][] : shard.getRows(indices,
+							selectedFeatures);
+				}
+			});
+		}
+		List<double[][]> rowsByShard = context.invokeAll(gather);
+		double[][] result = new double[instanceIndices.length][];
+		for (int s = 0; s < numShards; s++) {
+			for (int k = 0; k < queriesByShard.get(s).size(); k++) {
+				result[queriesByShard.get(s).get(k)] = rowsByShard.get(s)[k];
+			}
+		}
+		return result;
+	}
+
+	/** Nearest first, then lowest instance index first, as {@link KNN} sorts them. */
+	private static class NeighborComparator implements Comparator<IndexedValue<Double>> {
+
+		@Override
+		public int compare(IndexedValue<Double> arg0, IndexedValue<Double> arg1) {
+			int result = Double.compare(arg0.getValue(), arg1.getValue());
+			return result != 0 ? result : Integer.compare(arg0.getIndex(), arg1.getIndex());
+		}
+
+	}
+
+	/**
+	 * The shards of a data set and the labels of all its instances, which are
+	 * numbered by class name in order of appearance as in {@link FeatureMatrix}.
+	 * It calls the shards on a thread per shard, and closes them when it is
+	 * closed.
+	 */
+	public static class Context extends EvaluatorContext implements Closeable {
+		private final List<KnnShard> shards;
+
+		private final int numK;
+
+		private final int numFeatures;
+
+		// the label of each instance of the whole data set
+		private final int[] labels;
+
+		private final ExecutorService threads;
+
+		/**
+		 * @param shards
+		 *            shard {@code s} of the list holds instances {@code s},
+		 *            {@code s + shards.size()}, ... of the data set
+		 */
+		public Context(List<KnnShard> shards, int numK) {
+			super(null);
+			Preconditions.checkArgument(!shards.isEmpty(), "No shards");
+			this.shards = shards;
+			this.numK = numK;
+			this.numFeatures = shards.get(0).getNumFeatures();
+			List<List<String>> classNamesByShard = new ArrayList<>();
+			int numInstances = 0;
+			for (KnnShard shard : shards) {
+				Preconditions.checkArgument(shard.getNumFeatures() == numFeatures,
+						"Shards of %s and %s features", numFeatures, shard.getNumFeatures());
+				classNamesByShard.add(shard.getClassNames());
+				numInstances += shard.getClassNames().size();
+			}
+			int numShards = shards.size();
+			for (int s = 0; s < numShards; s++) {
+				int expected = (numInstances - s + numShards - 1) / numShards;
+				Preconditions.checkArgument(classNamesByShard.get(s).size() == expected,
+						"Shard %s has %s instances; expected %s of %s", s, classNamesByShard
+								.get(s).size(), expected, numInstances);
+			}
+			this.labels = new int[numInstances];
+			Map<String, Integer> labelsByClassName = new HashMap<>();
+			for (int i = 0; i < numInstances; i++) {
+				String className = classNamesByShard.get(i % numShards).get(i / numShards);
+				Integer label = labelsByClassName.get(className);
+				if (label == null) {
+					label = labelsByClassName.size();
+					labelsByClassName.put(className, label);
+				}
+				labels[i] = label;
+			}
+			this.threads = Executors.newFixedThreadPool(numShards, new ThreadFactoryBuilder()
+					.setNameFormat("knn-shard-%s").setDaemon(true).build());
+		}
+
+		public int getNumInstances() {
+			return labels.length;
+		}
+
+		public int getNumShards() {
+			return shards.size();
+		}
+
+		/** The label of an instance of the whole data set. */
+		public int getLabel(int instanceIndex) {
+			return labels[instanceIndex];
+		}
+
+		@Override
+		public String getName() {
+			return "knn:" + numK;
+		}
+
+		@Override
+		public ShardedKNN newEvaluator(List<Integer> featureSelectionResult) {
+			return new ShardedKNN(this, featureSelectionResult);
+		}
+
+		/** Runs a call per shard; a call that fails fails them all. */
+		private <T> List<T> invokeAll(List<Callable<T>> calls) {
+			List<T> result = new ArrayList<>(calls.size());
+			try {
+				for (Future<T> future : threads.invokeAll(calls)) {
+					result.add(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw Throwables.propagate(e.getCause());
+			}
+			return result;
+		}
+
+		@Override
+		public void close() {
+			threads.shutdownNow();
+			for (KnnShard shard : shards) {
+				shard.close();
+			}
+		}
+	}
+}
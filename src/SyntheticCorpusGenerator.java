@@ -0,0 +1,152 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Generates a class-labelled text corpus in the format read by
+ * {@link TfidfCalculator}: one document per line, the class name, a tab, and
+ * space separated terms.
+ * <p>
+ * Term ranks follow a Zipf distribution. A token is drawn from its class's own
+ * ranking with probability {@code separability} and from the ranking shared by
+ * all classes otherwise; a class's ranking is the shared one rotated by an
+ * offset, so each class has its own frequent terms. Separability 0 gives
+ * classes that cannot be told apart, 1 gives disjoint frequent vocabularies.
+ * The output only depends on the parameters and the seed.
+ */
+public class SyntheticCorpusGenerator {
+	private final int vocabularySize;
+
+	private final int numClasses;
+
+	private final int meanDocLength;
+
+	private final double separability;
+
+	// cumulative probabilities of the term ranks
+	private final double[] cumulativeProbabilities;
+
+	public SyntheticCorpusGenerator(int vocabularySize, int numClasses, int meanDocLength,
+			double zipfExponent, double separability) {
+		Preconditions.checkArgument(vocabularySize > 0 && numClasses > 0 && meanDocLength > 0);
+		Preconditions.checkArgument(zipfExponent >= 0.0, "Invalid Zipf exponent: %s",
+				zipfExponent);
+		Preconditions.checkArgument(separability >= 0.0 && separability <= 1.0,
+				"Invalid separability: %s", separability);
+		this.vocabularySize = vocabularySize;
+		this.numClasses = numClasses;
+		this.meanDocLength = meanDocLength;
+		this.separability = separability;
+		this.cumulativeProbabilities = new double[vocabularySize];
+		double sum = 0.0;
+		for (int rank = 0; rank < vocabularySize; rank++) {
+			sum += 1.0 / Math.pow(rank + 1, zipfExponent);
+			cumulativeProbabilities[rank] = sum;
+		}
+		for (int rank = 0; rank < vocabularySize; rank++) {
+			cumulativeProbabilities[rank] /= sum;
+		}
+	}
+
+	public void generate(String outputFilePath, int numDocs, long seed) throws IOException {
+		Random random = new Random(seed);
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(
+				new FileWriter(outputFilePath), 1 << 16))) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < numDocs; i++) {
+				sb.setLength(0);
+				int classIndex = random.nextInt(numClasses);
+				sb.append("class").append(classIndex).append('\t');
+				// document lengths are uniform in [mean / 2, mean * 3 / 2]
+				int docLength = Math.max(1, meanDocLength / 2 + random.nextInt(meanDocLength + 1));
+				for (int j = 0; j < docLength; j++) {
+					if (j > 0) {
+						sb.append(' ');
+					}
+					appendTerm(sb, nextTermId(random, classIndex));
+				}
+				out.println(sb);
+			}
+		}
+	}
+
+	private int nextTermId(Random random, int classIndex) {
+		int rank = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+		if (rank < 0) {
+			rank = -rank - 1;
+		}
+		rank = Math.min(rank, vocabularySize - 1);
+		if (random.nextDouble() < separability) {
+			long offset = ((long) classIndex) * vocabularySize / numClasses;
+			return (int) ((rank + offset) % vocabularySize);
+		}
+		return rank;
+	}
+
+	/** Terms are lower-case base-26 words, e.g. "a", "b", ..., "ba", "bb". */
+	private static void appendTerm(StringBuilder sb, int termId) {
+		int start = sb.length();
+		do {
+			sb.append((char) ('a' + termId % 26));
+			termId /= 26;
+		} while (termId > 0);
+		// digits were appended least significant first
+		for (int i = start, j = sb.length() - 1; i < j; i++, j--) {
+			char c = sb.charAt(i);
+			sb.setCharAt(i, sb.charAt(j));
+			sb.setCharAt(j, c);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3 || args.length % 2 == 0) {
+			System.err.printf("usage: %s outputFilePath numDocs vocabularySize [options]\n",
+					SyntheticCorpusGenerator.class.getName());
+			System.err.printf("options:\n");
+			System.err.printf("\t-classes <n>: number of classes (default: 8).\n");
+			System.err.printf("\t-length <n>: mean number of terms per document (default: 100).\n");
+			System.err.printf("\t-zipf <s>: Zipf exponent of the term ranks (default: 1.0).\n");
+			System.err.printf("\t-separability <p>: probability of a class-specific term"
+					+ " (default: 0.3).\n");
+			System.err.printf("\t-seed <n>: random seed (default: 298).\n");
+			return;
+		}
+		String outputFilePath = args[0];
+		int numDocs = Integer.parseInt(args[1]);
+		int vocabularySize = Integer.parseInt(args[2]);
+		int numClasses = 8;
+		int meanDocLength = 100;
+		double zipfExponent = 1.0;
+		double separability = 0.3;
+		long seed = 298L;
+		for (int i = 3; i < args.length; i += 2) {
+			switch (args[i]) {
+			case "-classes":
+				numClasses = Integer.parseInt(args[i + 1]);
+				break;
+			case "-length":
+				meanDocLength = Integer.parseInt(args[i + 1]);
+				break;
+			case "-zipf":
+				zipfExponent = Double.parseDouble(args[i + 1]);
+				break;
+			case "-separability":
+				separability = Double.parseDouble(args[i + 1]);
+				break;
+			case "-seed":
+				seed = Long.parseLong(args[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+		new SyntheticCorpusGenerator(vocabularySize, numClasses, meanDocLength, zipfExponent,
+				separability).generate(outputFilePath, numDocs, seed);
+		System.out.printf("%d documents written to %s\n", numDocs, outputFilePath);
+	}
+}
@@ -0,0 +1,53 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Interns terms to dense integer ids, in the order they are first seen.
+ */
+public class TermDictionary {
+	private final HashMap<String, Integer> idsByTerm = new HashMap<>();
+
+	private final ArrayList<String> terms = new ArrayList<>();
+
+	/** Returns the id of the term, assigning the next free id to a new term. */
+	public int intern(String term) {
+		Integer id = idsByTerm.get(term);
+		if (id == null) {
+			id = terms.size();
+			idsByTerm.put(term, id);
+			terms.add(term);
+		}
+		return id;
+	}
+
+	/** Returns the id of the term, or -1 if the term is unknown. */
+	public int getId(String term) {
+		Integer id = idsByTerm.get(term);
+		return id == null ? -1 : id;
+	}
+
+	public String getTerm(int id) {
+		return terms.get(id);
+	}
+
+	public int size() {
+		return terms.size();
+	}
+
+	/** Forgets the terms interned after the first {@code size}, e.g. those of a failed batch. */
+	public void truncate(int size) {
+		Preconditions.checkArgument(size >= 0 && size <= terms.size(), "Invalid size: %s", size);
+		while (terms.size() > size) {
+			idsByTerm.remove(terms.remove(terms.size() - 1));
+		}
+	}
+
+	/** The terms in id order. */
+	public List<String> getTerms() {
+		return Collections.unmodifiableList(terms);
+	}
+}
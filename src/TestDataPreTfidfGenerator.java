@@ -13,6 +13,10 @@ import java.util.HashMap;
  * <li>read the raw test file to keep only the selected features. (after step 2,
  * this test file will be used in the tfidf generator to generate the test file
  * to put into weka )
+ * </ol>
+ * The idf of such test vectors comes from the test set itself; a model saved
+ * with {@code TfidfCalculator -model} and applied by {@link TfidfModel} gives
+ * the test set the training columns and idf in one pass instead.
  */
 public class TestDataPreTfidfGenerator {
 	public TestDataPreTfidfGenerator(String inputTrainingDataFilePath, String inputTestDataFilePath, String outputFilePath){
@@ -1,194 +1,431 @@
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 
+/**
+ * Computes the tf-idf vector space model of a corpus with one document per
+ * line, the class name first and the terms separated by white space.
+ * <p>
+ * The input is split into line-aligned byte ranges ({@link LineChunks}) that
+ * are tokenized ({@link DocumentTokenizer}) in parallel, each into its own
+ * dictionary of term ids and document frequencies; a fork-join reduction then
+ * merges the dictionaries in chunk order, so term ids stay in the order terms
+ * are first seen in the file. Each document keeps the ids of its distinct
+ * terms and their counts as sparse primitive arrays, so memory and time are
+ * proportional to the number of tokens; only the dense {@code csv} output is
+ * proportional to documents times vocabulary. Rows are weighted, normalized
+ * and formatted in parallel and written in input order.
+ */
 public class TfidfCalculator {
-	// the set of terms in each document
-	private ArrayList<HashSet<String>> termSets = new ArrayList<HashSet<String>>();
-	// the number of each terms in each document
-	private ArrayList<HashMap<String, Integer>> termAndCounts = new ArrayList<HashMap<String, Integer>>();
-	// the class of each document
-	private ArrayList<String> classes = new ArrayList<String>();
-	// the total numbers of terms in each document
-	private ArrayList<Integer> termCounts = new ArrayList<Integer>();
-	// the numbers of appearance in the corpus of each term
-	private HashMap<String, Integer> numAppearance = new HashMap<String, Integer>();
-	// the data structure for idf (inverse document frequency) of each term
-	private HashMap<String, Double> invDocFreq = new HashMap<String, Double>();
-	// the data structure for tfidf (term frequency * inverse document
-	// frequency) of each document
-	private ArrayList<HashMap<String, Double>> tfidfs = new ArrayList<HashMap<String, Double>>();
-	// the term and index mapping
-	private ArrayList<String> termIndexMapping = new ArrayList<String>();
-
-	public void calculate(final String inputFilePath, final String outputFilePath,
+	// documents weighted and formatted by one task
+	private static final int ROWS_PER_TASK = 1024;
+
+	private final int parallelism;
+
+	public TfidfCalculator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public TfidfCalculator(int parallelism) {
+		Preconditions.checkArgument(parallelism > 0);
+		this.parallelism = parallelism;
+	}
+
+	public TfidfModel calculate(final String inputFilePath, final String outputFilePath,
 			final boolean isNormalizeVector) {
-		BufferedReader in = null;
-		try {
-			in = new BufferedReader(new FileReader(inputFilePath));
-			String line = null;
-			HashSet<String> termSet = null;
-			HashMap<String, Integer> termAndCount = null;
-			while ((line = in.readLine()) != null) {
-				String[] terms = line.split("\\s");
-				termSet = new HashSet<String>();
-				termAndCount = new HashMap<String, Integer>();
-				classes.add(terms[0]);
-				// get rid of the first word because it is the "class"
-				for (int i = 1; i < terms.length; i++) {
-					String term = terms[i];
-					// do corpus statistics
-					termSet.add(term);
-					// do document statistics
-					if (termAndCount.containsKey(term)) {
-						termAndCount.put(term, termAndCount.get(term) + 1);
-					} else {
-						termAndCount.put(term, 1);
-					}
-				}
-				termSets.add(termSet);
-				termAndCounts.add(termAndCount);
-				termCounts.add(terms.length - 1);
-			}
+		return calculate(inputFilePath, outputFilePath, isNormalizeVector,
+				TfidfRowWriter.Format.CSV);
+	}
+
+	/**
+	 * Writes the vector space model file and returns the model, for vectors of
+	 * other documents with the same columns; returns null if the input cannot be
+	 * read or the output written.
+	 */
+	public TfidfModel calculate(final String inputFilePath, final String outputFilePath,
+			final boolean isNormalizeVector, final TfidfRowWriter.Format format) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFilePath),
+				StandardOpenOption.READ)) {
+			Counts counts = count(pool, channel);
+			write(pool, counts, counts.getInvDocFreq(), isNormalizeVector, format, outputFilePath);
+			return new TfidfModel(counts.dictionary, counts.numAppearance, counts.getNumDocs(),
+					isNormalizeVector);
+		} catch (UncheckedIOException ex) {
+			ex.getCause().printStackTrace();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
-			try {
-				if (in != null) {
-					in.close();
-				}
-			} catch (IOException ex) {
-				ex.printStackTrace();
+			pool.shutdown();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the vector space model of the corpus in memory instead of writing
+	 * it, with the same rows and columns as the file.
+	 */
+	public TfidfVectors vectorize(final String inputFilePath, final boolean isNormalizeVector)
+			throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFilePath),
+				StandardOpenOption.READ)) {
+			Counts counts = count(pool, channel);
+			final double[] invDocFreq = counts.getInvDocFreq();
+			final List<String> terms = counts.dictionary.getTerms();
+			List<Future<TfidfVectors>> parts = new ArrayList<>();
+			for (final ChunkCounts chunk : counts.chunks) {
+				parts.add(pool.submit(new Callable<TfidfVectors>() {
+
+					@Override
+					public TfidfVectors call() throws IOException {
+						TfidfVectors part = new TfidfVectors(terms);
+						chunk.writeRows(0, chunk.numDocs, invDocFreq, isNormalizeVector, part);
+						return part;
+					}
+				}));
+			}
+			TfidfVectors result = new TfidfVectors(terms);
+			for (Future<TfidfVectors> part : parts) {
+				result.addAll(get(part));
 			}
+			return result;
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		} finally {
+			pool.shutdown();
 		}
+	}
+
+	private static Counts count(ForkJoinPool pool, FileChannel channel) throws IOException {
+		List<LineChunks.Chunk> chunks = LineChunks.split(channel, pool.getParallelism() * 4);
+		Counts counts = chunks.isEmpty() ? new Counts() : pool.invoke(new CountTask(channel,
+				chunks, 0, chunks.size()));
 
 		System.out.println("file reading finished");
+		System.out.println("numTerms: " + counts.dictionary.size());
+		System.out.println("numDoc: " + counts.getNumDocs());
+		return counts;
+	}
+
+	/**
+	 * Generates the vector space model file; blocks of rows are formatted in
+	 * parallel, and at most twice the parallelism of them are buffered.
+	 */
+	private static void write(ForkJoinPool pool, Counts counts, final double[] invDocFreq,
+			final boolean isNormalizeVector, final TfidfRowWriter.Format format,
+			String outputFilePath) throws IOException {
+		final int numTerms = counts.dictionary.size();
+		try (TfidfRowWriter out = TfidfRowWriter.open(format, outputFilePath,
+				counts.dictionary.getTerms())) {
+			ArrayDeque<Future<ByteArrayOutputStream>> pending = new ArrayDeque<>();
+			for (final ChunkCounts chunk : counts.chunks) {
+				for (int from = 0; from < chunk.numDocs; from += ROWS_PER_TASK) {
+					final int start = from;
+					final int end = Math.min(chunk.numDocs, from + ROWS_PER_TASK);
+					pending.add(pool.submit(new Callable<ByteArrayOutputStream>() {
 
-		// calculate numAppearance and wordIndexMapping
-		for (HashSet<String> ts : termSets) {
-			for (String term : ts) {
-				if (numAppearance.containsKey(term)) {
-					numAppearance.put(term, numAppearance.get(term) + 1);
-				} else {
-					numAppearance.put(term, 1);
-					termIndexMapping.add(term);
+						@Override
+						public ByteArrayOutputStream call() throws IOException {
+							ByteArrayOutputStream rows = new ByteArrayOutputStream();
+							TfidfRowWriter writer = TfidfRowWriter.create(format, rows, numTerms);
+							chunk.writeRows(start, end, invDocFreq, isNormalizeVector, writer);
+							writer.flush();
+							return rows;
+						}
+					}));
+					if (pending.size() >= 2 * pool.getParallelism()) {
+						out.writeRows(get(pending.poll()));
+					}
 				}
 			}
+			while (!pending.isEmpty()) {
+				out.writeRows(get(pending.poll()));
+			}
 		}
-		System.out.println("numAppearance: " + numAppearance);
-
-		Preconditions.checkState(termAndCounts.size() == termCounts.size());
-		Preconditions.checkState(termAndCounts.size() == classes.size());
-		int numDoc = termAndCounts.size();
+	}
 
-		// Calculate idf of each term
-		for (Map.Entry<String, Integer> entry : numAppearance.entrySet()) {
-			invDocFreq.put(entry.getKey(), Math.log10(1.0 * numDoc / entry.getValue()));
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+			throw Throwables.propagate(e.getCause());
 		}
+	}
 
-		// Calculate tfidf of each term in each document
-		HashMap<String, Double> tfidf = null;
-		for (int i = 0; i < numDoc; i++) {
-			int wc = termCounts.get(i);
-			tfidf = new HashMap<String, Double>();
-			String term = null;
-			for (Map.Entry<String, Integer> entry : termAndCounts.get(i).entrySet()) {
-				term = entry.getKey();
-				tfidf.put(term, (1.0 * entry.getValue() / wc) * invDocFreq.get(term));
-			}
-			tfidfs.add(tfidf);
+	/**
+	 * Scales the first {@code length} values to a unit vector; a zero vector is
+	 * left as is.
+	 */
+	static void normalizeVector(double[] values, int length) {
+		double sum = 0.0;
+		for (int i = 0; i < length; i++) {
+			sum += values[i] * values[i];
 		}
+		if (sum == 0.0) {
+			return;
+		}
+		double norm = Math.sqrt(sum);
+		for (int i = 0; i < length; i++) {
+			values[i] /= norm;
+		}
+	}
 
-		Preconditions.checkState(tfidfs.size() == termAndCounts.size());
-		System.out.println("numDoc: " + numDoc);
+	/** Dictionaries and document frequencies merged over a range of chunks. */
+	private static class Counts {
+		TermDictionary dictionary = new TermDictionary();
+		// the numbers of documents each term appears in, by term id
+		int[] numAppearance = new int[0];
+		// the chunks in input order
+		List<ChunkCounts> chunks = new ArrayList<>();
 
-		// generate the vector space model file
-		PrintWriter out = null;
-		try {
-			out = new PrintWriter(outputFilePath);
-			// print out terms as feature names
-			printTerms(termIndexMapping, out);
-
-			// print out the vector space model
-			for (int i = 0; i < numDoc; i++) {
-				ArrayList<Double> featureValues = new ArrayList<Double>();
-				for (int j = 0; j < termIndexMapping.size(); j++) {
-					String term = termIndexMapping.get(j);
-					HashMap<String, Double> temp = tfidfs.get(i);
-					if (temp.containsKey(term)) {
-						featureValues.add(temp.get(term).doubleValue());
-					} else {
-						featureValues.add(0.0);
-					}
+		/**
+		 * Appends the counts of the chunks that follow this one, and maps their
+		 * term ids to the ids in this dictionary.
+		 */
+		Counts merge(Counts next) {
+			int[] ids = new int[next.dictionary.size()];
+			for (int id = 0; id < ids.length; id++) {
+				ids[id] = dictionary.intern(next.dictionary.getTerm(id));
+			}
+			if (numAppearance.length < dictionary.size()) {
+				numAppearance = Arrays.copyOf(numAppearance, dictionary.size());
+			}
+			for (int id = 0; id < ids.length; id++) {
+				numAppearance[ids[id]] += next.numAppearance[id];
+			}
+			for (ChunkCounts chunk : next.chunks) {
+				for (int i = 0; i < chunk.toGlobalIds.length; i++) {
+					chunk.toGlobalIds[i] = ids[chunk.toGlobalIds[i]];
 				}
+			}
+			chunks.addAll(next.chunks);
+			return this;
+		}
 
-				if (isNormalizeVector) {
-					normalizeVector(featureValues);
-				}
+		int getNumDocs() {
+			int numDocs = 0;
+			for (ChunkCounts chunk : chunks) {
+				numDocs += chunk.numDocs;
+			}
+			return numDocs;
+		}
 
-				out.println(toTextLine(new DataPoint(classes.get(i), featureValues)));
+		/** The idf of each term id. */
+		double[] getInvDocFreq() {
+			int numDocs = getNumDocs();
+			double[] invDocFreq = new double[dictionary.size()];
+			for (int id = 0; id < invDocFreq.length; id++) {
+				invDocFreq[id] = Math.log10(1.0 * numDocs / numAppearance[id]);
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} finally {
-			out.flush();
-			out.close();
+			return invDocFreq;
 		}
 	}
 
-	private static void printTerms(List<String> termIndexMapping, PrintWriter out) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("class_unique");
-		sb.append(",");
-		for (int i = 0; i < termIndexMapping.size(); i++) {
-			sb.append(termIndexMapping.get(i));
-			sb.append(",");
+	private static class CountTask extends RecursiveTask<Counts> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+
+		private final List<LineChunks.Chunk> chunks;
+
+		private final int from;
+
+		private final int to;
+
+		CountTask(FileChannel channel, List<LineChunks.Chunk> chunks, int from, int to) {
+			this.channel = channel;
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
 		}
-		sb.setLength(sb.length() - 1);
-		out.println(sb.toString());
-	}
 
-	private static String toTextLine(DataPoint instance) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(instance.getClassName());
-		for (double value : instance.getFeatureValues()) {
-			sb.append(",");
-			sb.append(value);
+		@Override
+		protected Counts compute() {
+			if (to - from == 1) {
+				try {
+					return new ChunkCounts(chunks.get(from).read(channel)).toCounts();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			int mid = (from + to) >>> 1;
+			CountTask right = new CountTask(channel, chunks, mid, to);
+			right.fork();
+			Counts left = new CountTask(channel, chunks, from, mid).compute();
+			return left.merge(right.join());
 		}
-		return sb.toString();
 	}
 
-	private static void normalizeVector(ArrayList<Double> values) {
-		double length = 0.0;
-		for (double value : values) {
-			length += value * value;
+	/** The documents of one chunk, with term ids local to the chunk. */
+	private static class ChunkCounts extends DocumentTokenizer {
+		private TermDictionary dictionary = new TermDictionary();
+		// the class of each document
+		private final ArrayList<String> classes = new ArrayList<String>();
+		// the ids of the distinct terms in each document, in ascending order
+		private final ArrayList<int[]> termIds = new ArrayList<int[]>();
+		// the number of each term in each document, parallel to termIds
+		private final ArrayList<int[]> termAndCounts = new ArrayList<int[]>();
+		// the total numbers of terms in each document
+		private int[] termCounts = new int[64];
+		// the numbers of documents each term appears in, by term id
+		private int[] numAppearance = new int[1024];
+		private int numDocs = 0;
+		// the merged term id of each id of this chunk
+		private int[] toGlobalIds;
+
+		// the count of each term id in the current document, all zero in between
+		private int[] counts = new int[1024];
+		// the distinct term ids of the current document
+		private int[] distinctTermIds = new int[64];
+		private int numDistinct = 0;
+		private int wc = 0;
+
+		ChunkCounts(byte[] bytes) {
+			tokenize(bytes);
+		}
+
+		@Override
+		protected void startDocument(String className) {
+			classes.add(className);
+			numDistinct = 0;
+			wc = 0;
 		}
-		length = Math.sqrt(length);
-		for (int i = 0; i < values.size(); i++) {
-			values.set(i, values.get(i) / length);
+
+		@Override
+		protected void addTerm(String term) {
+			int id = dictionary.intern(term);
+			if (id == counts.length) {
+				counts = Arrays.copyOf(counts, id * 2);
+				numAppearance = Arrays.copyOf(numAppearance, id * 2);
+			}
+			if (counts[id]++ == 0) {
+				if (numDistinct == distinctTermIds.length) {
+					distinctTermIds = Arrays.copyOf(distinctTermIds, numDistinct * 2);
+				}
+				distinctTermIds[numDistinct++] = id;
+			}
+			wc++;
+		}
+
+		@Override
+		protected void endDocument() {
+			if (termCounts.length == numDocs) {
+				termCounts = Arrays.copyOf(termCounts, numDocs * 2);
+			}
+			termCounts[numDocs++] = wc;
+			Arrays.sort(distinctTermIds, 0, numDistinct);
+			int[] ids = Arrays.copyOf(distinctTermIds, numDistinct);
+			int[] termAndCount = new int[numDistinct];
+			for (int k = 0; k < numDistinct; k++) {
+				termAndCount[k] = counts[ids[k]];
+				counts[ids[k]] = 0;
+				numAppearance[ids[k]]++;
+			}
+			termIds.add(ids);
+			termAndCounts.add(termAndCount);
+		}
+
+		/** Hands the dictionary and document frequencies over to a reduction. */
+		Counts toCounts() {
+			Counts result = new Counts();
+			result.dictionary = dictionary;
+			result.numAppearance = Arrays.copyOf(numAppearance, dictionary.size());
+			result.chunks.add(this);
+			toGlobalIds = new int[dictionary.size()];
+			for (int id = 0; id < toGlobalIds.length; id++) {
+				toGlobalIds[id] = id;
+			}
+			dictionary = null;
+			numAppearance = null;
+			counts = null;
+			distinctTermIds = null;
+			return result;
+		}
+
+		/** Weights documents [from, to) with the merged term ids and writes them. */
+		void writeRows(int from, int to, double[] invDocFreq, boolean isNormalizeVector,
+				TfidfRowSink out) throws IOException {
+			long[] idAndCounts = new long[0];
+			int[] ids = new int[0];
+			double[] tfidf = new double[0];
+			for (int i = from; i < to; i++) {
+				int[] localIds = termIds.get(i);
+				int[] termAndCount = termAndCounts.get(i);
+				int length = localIds.length;
+				if (ids.length < length) {
+					idAndCounts = new long[length];
+					ids = new int[length];
+					tfidf = new double[length];
+				}
+				// merged ids are not in the order of the local ones
+				for (int k = 0; k < length; k++) {
+					idAndCounts[k] = ((long) toGlobalIds[localIds[k]] << 32) | termAndCount[k];
+				}
+				Arrays.sort(idAndCounts, 0, length);
+				int wc = termCounts[i];
+				for (int k = 0; k < length; k++) {
+					ids[k] = (int) (idAndCounts[k] >>> 32);
+					tfidf[k] = (1.0 * (int) idAndCounts[k] / wc) * invDocFreq[ids[k]];
+				}
+
+				if (isNormalizeVector) {
+					normalizeVector(tfidf, length);
+				}
+
+				out.writeRow(classes.get(i), ids, tfidf, length);
+			}
 		}
 	}
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		TfidfCalculator tc = new TfidfCalculator();
+		String modelFilePath = null;
 		boolean isNormalizeVector = false;
-		if ((args.length == 2) || (args.length == 3 && args[2].equals("-n"))) {
-			isNormalizeVector = args.length == 3;
-		} else {
-			System.err.printf("usage: %s inputFilePath, outputFilePath [-n]\n",
-					TfidfCalculator.class.getName());
+		TfidfRowWriter.Format format = TfidfRowWriter.Format.CSV;
+		boolean isValid = args.length >= 2;
+		for (int i = 2; isValid && i < args.length; i++) {
+			if (args[i].equals("-n")) {
+				isNormalizeVector = true;
+			} else if (args[i].equals("-f") && i + 1 < args.length) {
+				format = TfidfRowWriter.Format.parse(args[++i]);
+			} else if (args[i].equals("-threads") && i + 1 < args.length) {
+				tc = new TfidfCalculator(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-model") && i + 1 < args.length) {
+				modelFilePath = args[++i];
+			} else {
+				isValid = false;
+			}
+		}
+		if (!isValid) {
+			System.err.printf("usage: %s inputFilePath, outputFilePath [-n] [-f format]"
+					+ " [-threads n] [-model modelFilePath]\n", TfidfCalculator.class.getName());
 			System.err.printf("options:\n");
 			System.err
 					.printf("\t-n: normalize vectors to unit-vectors (i.e. the length is 1.0).\n");
+			System.err.printf("\t-f <csv|sparse|binary>: output format (default: csv).\n");
+			System.err.printf("\t-threads <n>: number of threads (default: number of cores).\n");
+			System.err.printf("\t-model <file>: save the model, to transform other documents"
+					+ " with TfidfModel.\n");
 			System.exit(1);
 		}
 		String inputFilePath = args[0];
@@ -196,8 +433,12 @@ public class TfidfCalculator {
 		if (isNormalizeVector) {
 			outputFilePath += "_normalized";
 		}
-		System.out.printf("inputFilePath=%s, outputFilePath=%s, isNormalizeVector=%s\n",
-				inputFilePath, outputFilePath, isNormalizeVector);
-		tc.calculate(inputFilePath, outputFilePath, isNormalizeVector);
+		System.out.printf("inputFilePath=%s, outputFilePath=%s, isNormalizeVector=%s, format=%s\n",
+				inputFilePath, outputFilePath, isNormalizeVector, format);
+		TfidfModel model = tc.calculate(inputFilePath, outputFilePath, isNormalizeVector, format);
+		if (model != null && modelFilePath != null) {
+			model.save(modelFilePath);
+			System.out.println("model saved to " + modelFilePath);
+		}
 	}
 }
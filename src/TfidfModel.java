@@ -0,0 +1,236 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The idf part of a tf-idf vector space model: the vocabulary with the term
+ * ids (the columns), the document frequency of each term, the number of
+ * documents and whether vectors are normalized. It is saved by
+ * {@link TfidfCalculator} for the training corpus and applied to other
+ * documents, e.g. the test set, with {@link #transform}, so that they get the
+ * training columns and idf instead of their own.
+ * <p>
+ * The binary file is the int {@link #MAGIC}, the normalization flag, the
+ * number of documents and of terms, then each term (modified UTF-8) and its
+ * document frequency in id order.
+ */
+public class TfidfModel {
+	public static final int MAGIC = 0x54464D31; // "TFM1"
+
+	// the bytes of documents read and transformed at a time, at least a line
+	private static final long TRANSFORM_CHUNK_SIZE = 1L << 20;
+
+	private final TermDictionary dictionary;
+
+	// the numbers of documents each term appears in, by term id
+	private final int[] numAppearance;
+
+	private final int numDocs;
+
+	private final boolean isNormalizeVector;
+
+	public TfidfModel(TermDictionary dictionary, int[] numAppearance, int numDocs,
+			boolean isNormalizeVector) {
+		Preconditions.checkArgument(numAppearance.length >= dictionary.size());
+		this.dictionary = dictionary;
+		this.numAppearance = Arrays.copyOf(numAppearance, dictionary.size());
+		this.numDocs = numDocs;
+		this.isNormalizeVector = isNormalizeVector;
+	}
+
+	public int getNumTerms() {
+		return dictionary.size();
+	}
+
+	public List<String> getTerms() {
+		return dictionary.getTerms();
+	}
+
+	/** Returns the id of the term, or -1 if it is not in the vocabulary. */
+	public int getTermId(String term) {
+		return dictionary.getId(term);
+	}
+
+	public int getNumAppearance(int termId) {
+		return numAppearance[termId];
+	}
+
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	public boolean isNormalizeVector() {
+		return isNormalizeVector;
+	}
+
+	public double getInvDocFreq(int termId) {
+		return Math.log10(1.0 * numDocs / numAppearance[termId]);
+	}
+
+	public void save(String modelFilePath) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(modelFilePath), 1 << 16))) {
+			write(out);
+		}
+	}
+
+	public static TfidfModel load(String modelFilePath) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(modelFilePath), 1 << 16))) {
+			return read(in, modelFilePath);
+		}
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeBoolean(isNormalizeVector);
+		out.writeInt(numDocs);
+		out.writeInt(dictionary.size());
+		for (int id = 0; id < dictionary.size(); id++) {
+			out.writeUTF(dictionary.getTerm(id));
+			out.writeInt(numAppearance[id]);
+		}
+	}
+
+	static TfidfModel read(DataInputStream in, String source) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a tf-idf model: " + source);
+		}
+		boolean isNormalizeVector = in.readBoolean();
+		int numDocs = in.readInt();
+		int numTerms = in.readInt();
+		TermDictionary dictionary = new TermDictionary();
+		int[] numAppearance = new int[numTerms];
+		for (int id = 0; id < numTerms; id++) {
+			Preconditions.checkState(dictionary.intern(in.readUTF()) == id, "Duplicate term in %s",
+					source);
+			numAppearance[id] = in.readInt();
+		}
+		return new TfidfModel(dictionary, numAppearance, numDocs, isNormalizeVector);
+	}
+
+	/**
+	 * Writes the tf-idf vectors of the documents in the input file, in the
+	 * format read by {@link TfidfCalculator}, with the columns and idf of this
+	 * model; one pass, in memory independent of the number of documents. Terms
+	 * not in the vocabulary are left out but count towards the document length,
+	 * so term frequencies stay those of the whole document.
+	 */
+	public void transform(String inputFilePath, String outputFilePath,
+			TfidfRowWriter.Format format) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(inputFilePath),
+				StandardOpenOption.READ);
+				TfidfRowWriter out = TfidfRowWriter.open(format, outputFilePath, getTerms())) {
+			Transformer transformer = new Transformer(out);
+			for (LineChunks.Chunk chunk : LineChunks.split(channel, 1, TRANSFORM_CHUNK_SIZE)) {
+				transformer.tokenize(chunk.read(channel));
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private class Transformer extends DocumentTokenizer {
+		private final TfidfRowWriter out;
+
+		private final double[] invDocFreq = new double[getNumTerms()];
+
+		// the count of each term id in the current document, all zero in between
+		private final int[] counts = new int[getNumTerms()];
+
+		// the distinct term ids of the current document
+		private int[] ids = new int[64];
+
+		private double[] tfidf = new double[64];
+
+		private int numDistinct;
+
+		private int wc;
+
+		private String className;
+
+		Transformer(TfidfRowWriter out) {
+			this.out = out;
+			for (int id = 0; id < invDocFreq.length; id++) {
+				invDocFreq[id] = getInvDocFreq(id);
+			}
+		}
+
+		@Override
+		protected void startDocument(String className) {
+			this.className = className;
+			numDistinct = 0;
+			wc = 0;
+		}
+
+		@Override
+		protected void addTerm(String term) {
+			wc++;
+			int id = dictionary.getId(term);
+			if (id < 0) {
+				return;
+			}
+			if (counts[id]++ == 0) {
+				if (numDistinct == ids.length) {
+					ids = Arrays.copyOf(ids, numDistinct * 2);
+					tfidf = Arrays.copyOf(tfidf, ids.length);
+				}
+				ids[numDistinct++] = id;
+			}
+		}
+
+		@Override
+		protected void endDocument() {
+			Arrays.sort(ids, 0, numDistinct);
+			for (int k = 0; k < numDistinct; k++) {
+				tfidf[k] = (1.0 * counts[ids[k]] / wc) * invDocFreq[ids[k]];
+				counts[ids[k]] = 0;
+			}
+
+			if (isNormalizeVector) {
+				TfidfCalculator.normalizeVector(tfidf, numDistinct);
+			}
+
+			try {
+				out.writeRow(className, ids, tfidf, numDistinct);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		TfidfRowWriter.Format format = TfidfRowWriter.Format.CSV;
+		boolean isValid = args.length >= 3;
+		for (int i = 3; isValid && i < args.length; i++) {
+			if (args[i].equals("-f") && i + 1 < args.length) {
+				format = TfidfRowWriter.Format.parse(args[++i]);
+			} else {
+				isValid = false;
+			}
+		}
+		if (!isValid) {
+			System.err.printf("usage: %s modelFilePath inputFilePath outputFilePath [-f format]\n",
+					TfidfModel.class.getName());
+			System.err.printf("options:\n");
+			System.err.printf("\t-f <csv|sparse|binary>: output format (default: csv).\n");
+			System.exit(1);
+		}
+		TfidfModel model = load(args[0]);
+		System.out.printf("model: numTerms=%d, numDocs=%d, isNormalizeVector=%s\n",
+				model.getNumTerms(), model.getNumDocs(), model.isNormalizeVector());
+		model.transform(args[1], args[2], format);
+	}
+}
@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/**
+ * Receives tf-idf rows given as sparse (feature index, value) pairs, e.g. a
+ * {@link TfidfRowWriter} that formats them or {@link TfidfVectors} that keeps
+ * them in memory.
+ */
+public interface TfidfRowSink {
+	/**
+	 * Takes a row given as {@code length} (index, value) pairs;
+	 * {@code featureIndices} must be in ascending order. The arrays may be
+	 * reused by the caller once this returns.
+	 */
+	void writeRow(String className, int[] featureIndices, double[] values, int length)
+			throws IOException;
+}
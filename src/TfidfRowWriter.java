@@ -0,0 +1,208 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes tf-idf rows given as sparse (feature index, value) pairs, with the
+ * feature indices in ascending order. Three formats are supported:
+ * <ul>
+ * <li>{@code csv}: the dense format read by {@link BPSOSearch}; a header line
+ * "class_unique,term1,term2,..." and one "class,v1,v2,..." line per row.
+ * <li>{@code sparse}: the same header line, and one
+ * "class index:value index:value ..." line per row, with 0-based indices and
+ * zero values left out.
+ * <li>{@code binary}: the int {@link #BINARY_MAGIC}, the number of features,
+ * the feature names (modified UTF-8), then per row the class name, the number
+ * of non-zero values, their indices (ints) and values (doubles).
+ * </ul>
+ * Rows can be formatted in parallel by writers created with
+ * {@link #create(Format, OutputStream, int)} on byte array streams, and then
+ * appended in order with {@link #writeRows(ByteArrayOutputStream)}.
+ */
+public abstract class TfidfRowWriter implements Closeable, TfidfRowSink {
+	public static final int BINARY_MAGIC = 0x54464231; // "TFB1"
+
+	public enum Format {
+		CSV, SPARSE, BINARY;
+
+		public static Format parse(String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	protected final OutputStream out;
+
+	protected final int numFeatures;
+
+	protected TfidfRowWriter(OutputStream out, int numFeatures) {
+		this.out = out;
+		this.numFeatures = numFeatures;
+	}
+
+	/** Opens the output file and writes the header. */
+	public static TfidfRowWriter open(Format format, String outputFilePath,
+			List<String> featureNames) throws IOException {
+		TfidfRowWriter writer = create(format, new BufferedOutputStream(new FileOutputStream(
+				outputFilePath), 1 << 16), featureNames.size());
+		writer.writeHeader(featureNames);
+		return writer;
+	}
+
+	/** Creates a writer of rows only, without a header. */
+	public static TfidfRowWriter create(Format format, OutputStream out, int numFeatures) {
+		switch (format) {
+		case CSV:
+			return new CsvWriter(out, numFeatures);
+		case SPARSE:
+			return new SparseWriter(out, numFeatures);
+		case BINARY:
+			return new BinaryWriter(out, numFeatures);
+		default:
+			throw new IllegalArgumentException("Unknown format: " + format);
+		}
+	}
+
+	protected abstract void writeHeader(List<String> featureNames) throws IOException;
+
+	/** Appends rows formatted by a rows-only writer of the same format. */
+	public void writeRows(ByteArrayOutputStream rows) throws IOException {
+		flush();
+		rows.writeTo(out);
+	}
+
+	public abstract void flush() throws IOException;
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	private static abstract class TextWriter extends TfidfRowWriter {
+		protected final Writer writer;
+
+		protected final StringBuilder sb = new StringBuilder();
+
+		TextWriter(OutputStream out, int numFeatures) {
+			super(out, numFeatures);
+			this.writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		protected void writeHeader(List<String> featureNames) throws IOException {
+			sb.setLength(0);
+			sb.append("class_unique");
+			for (String featureName : featureNames) {
+				sb.append(',').append(featureName);
+			}
+			sb.append('\n');
+			writer.write(sb.toString());
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writer.flush();
+		}
+	}
+
+	private static class CsvWriter extends TextWriter {
+		CsvWriter(OutputStream out, int numFeatures) {
+			super(out, numFeatures);
+		}
+
+		@Override
+		public void writeRow(String className, int[] featureIndices, double[] values, int length)
+				throws IOException {
+			sb.setLength(0);
+			sb.append(className);
+			int next = 0;
+			for (int i = 0; i < numFeatures; i++) {
+				sb.append(',');
+				if (next < length && featureIndices[next] == i) {
+					sb.append(values[next++]);
+				} else {
+					sb.append(0.0);
+				}
+			}
+			Preconditions.checkArgument(next == length, "Feature indices are not sorted.");
+			sb.append('\n');
+			writer.write(sb.toString());
+		}
+	}
+
+	private static class SparseWriter extends TextWriter {
+		SparseWriter(OutputStream out, int numFeatures) {
+			super(out, numFeatures);
+		}
+
+		@Override
+		public void writeRow(String className, int[] featureIndices, double[] values, int length)
+				throws IOException {
+			sb.setLength(0);
+			sb.append(className);
+			for (int i = 0; i < length; i++) {
+				if (values[i] != 0.0) {
+					sb.append(' ').append(featureIndices[i]).append(':').append(values[i]);
+				}
+			}
+			sb.append('\n');
+			writer.write(sb.toString());
+		}
+	}
+
+	private static class BinaryWriter extends TfidfRowWriter {
+		private final DataOutputStream dataOut;
+
+		BinaryWriter(OutputStream out, int numFeatures) {
+			super(out, numFeatures);
+			this.dataOut = new DataOutputStream(out);
+		}
+
+		@Override
+		protected void writeHeader(List<String> featureNames) throws IOException {
+			dataOut.writeInt(BINARY_MAGIC);
+			dataOut.writeInt(featureNames.size());
+			for (String featureName : featureNames) {
+				dataOut.writeUTF(featureName);
+			}
+		}
+
+		@Override
+		public void writeRow(String className, int[] featureIndices, double[] values, int length)
+				throws IOException {
+			int numNonZeros = 0;
+			for (int i = 0; i < length; i++) {
+				if (values[i] != 0.0) {
+					numNonZeros++;
+				}
+			}
+			dataOut.writeUTF(className);
+			dataOut.writeInt(numNonZeros);
+			for (int i = 0; i < length; i++) {
+				if (values[i] != 0.0) {
+					dataOut.writeInt(featureIndices[i]);
+				}
+			}
+			for (int i = 0; i < length; i++) {
+				if (values[i] != 0.0) {
+					dataOut.writeDouble(values[i]);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			dataOut.flush();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Tf-idf rows held in memory as sparse primitive arrays, so that the stages of
+ * {@link FeatureSelectionPipeline} hand them over without formatting and
+ * parsing the dense CSV file in between. Rows are added as a
+ * {@link TfidfRowSink}, and can be read back from and written to any
+ * {@link TfidfRowWriter.Format}.
+ */
+public class TfidfVectors implements TfidfRowSink {
+	private final List<String> featureNames;
+
+	private final TermDictionary featureIndices = new TermDictionary();
+
+	private final ArrayList<String> classNames = new ArrayList<>();
+
+	// the ascending feature indices of each row
+	private final ArrayList<int[]> indices = new ArrayList<>();
+
+	// the values of each row, parallel to indices
+	private final ArrayList<double[]> values = new ArrayList<>();
+
+	public TfidfVectors(List<String> featureNames) {
+		this.featureNames = Collections.unmodifiableList(new ArrayList<>(featureNames));
+		for (String featureName : featureNames) {
+			featureIndices.intern(featureName);
+		}
+	}
+
+	public int getNumRows() {
+		return classNames.size();
+	}
+
+	public int getNumFeatures() {
+		return featureNames.size();
+	}
+
+	public List<String> getFeatureNames() {
+		return featureNames;
+	}
+
+	/** Returns the index of the feature, or -1 if there is none of that name. */
+	public int getFeatureIndex(String featureName) {
+		return featureIndices.getId(featureName);
+	}
+
+	public String getClassName(int row) {
+		return classNames.get(row);
+	}
+
+	/** Returns the array itself, not a copy; callers must not modify it. */
+	public int[] getFeatureIndices(int row) {
+		return indices.get(row);
+	}
+
+	/** Returns the array itself, not a copy; callers must not modify it. */
+	public double[] getValues(int row) {
+		return values.get(row);
+	}
+
+	@Override
+	public void writeRow(String className, int[] featureIndices, double[] values, int length) {
+		for (int k = 0; k < length; k++) {
+			Preconditions.checkArgument(featureIndices[k] >= (k == 0 ? 0 : featureIndices[k - 1] + 1)
+					&& featureIndices[k] < featureNames.size(), "Bad feature indices in row %s",
+					classNames.size());
+		}
+		classNames.add(className);
+		indices.add(Arrays.copyOf(featureIndices, length));
+		this.values.add(Arrays.copyOf(values, length));
+	}
+
+	/** Appends the rows of vectors with the same features. */
+	public void addAll(TfidfVectors other) {
+		Preconditions.checkArgument(featureNames.equals(other.featureNames), "Features differ.");
+		classNames.addAll(other.classNames);
+		indices.addAll(other.indices);
+		values.addAll(other.values);
+	}
+
+	/**
+	 * Returns the rows with only the given features, which become features 0,
+	 * 1, ... in the given order.
+	 */
+	public TfidfVectors project(List<Integer> featureIndices, boolean isNormalizeVector) {
+		List<String> projectedNames = new ArrayList<>(featureIndices.size());
+		// the projected index of each feature, or -1
+		int[] projectedIndices = new int[featureNames.size()];
+		Arrays.fill(projectedIndices, -1);
+		for (int i = 0; i < featureIndices.size(); i++) {
+			int index = featureIndices.get(i);
+			Preconditions.checkArgument(projectedIndices[index] < 0, "Feature %s is selected twice",
+					index);
+			projectedIndices[index] = i;
+			projectedNames.add(featureNames.get(index));
+		}
+		TfidfVectors result = new TfidfVectors(projectedNames);
+		long[] indexAndPositions = new long[0];
+		int[] rowIndices = new int[0];
+		double[] rowValues = new double[0];
+		for (int row = 0; row < getNumRows(); row++) {
+			int[] fromIndices = indices.get(row);
+			double[] fromValues = values.get(row);
+			if (indexAndPositions.length < fromIndices.length) {
+				indexAndPositions = new long[fromIndices.length];
+				rowIndices = new int[fromIndices.length];
+				rowValues = new double[fromIndices.length];
+			}
+			int length = 0;
+			for (int k = 0; k < fromIndices.length; k++) {
+				int projectedIndex = projectedIndices[fromIndices[k]];
+				if (projectedIndex >= 0) {
+					indexAndPositions[length++] = ((long) projectedIndex << 32) | k;
+				}
+			}
+			// projected indices are not in the order of the original ones
+			Arrays.sort(indexAndPositions, 0, length);
+			for (int k = 0; k < length; k++) {
+				rowIndices[k] = (int) (indexAndPositions[k] >>> 32);
+				rowValues[k] = fromValues[(int) indexAndPositions[k]];
+			}
+
+			if (isNormalizeVector) {
+				TfidfCalculator.normalizeVector(rowValues, length);
+			}
+
+			result.writeRow(classNames.get(row), rowIndices, rowValues, length);
+		}
+		return result;
+	}
+
+	/** Returns the rows as a dense matrix, e.g. to search it with BPSO. */
+	public FeatureMatrix toFeatureMatrix(boolean isNormalizeVector) {
+		double[][] rows = new double[getNumRows()][];
+		for (int row = 0; row < rows.length; row++) {
+			rows[row] = new double[featureNames.size()];
+			int[] rowIndices = indices.get(row);
+			double[] rowValues = values.get(row);
+			for (int k = 0; k < rowIndices.length; k++) {
+				rows[row][rowIndices[k]] = rowValues[k];
+			}
+
+			if (isNormalizeVector) {
+				TfidfCalculator.normalizeVector(rows[row], rows[row].length);
+			}
+		}
+		return new FeatureMatrix(classNames, rows);
+	}
+
+	public void write(String outputFilePath, TfidfRowWriter.Format format) throws IOException {
+		try (TfidfRowWriter out = TfidfRowWriter.open(format, outputFilePath, featureNames)) {
+			for (int row = 0; row < getNumRows(); row++) {
+				int[] rowIndices = indices.get(row);
+				out.writeRow(classNames.get(row), rowIndices, values.get(row), rowIndices.length);
+			}
+		}
+	}
+
+	/** Reads a file written by {@link TfidfRowWriter} in the format. */
+	public static TfidfVectors read(String inputFilePath, TfidfRowWriter.Format format)
+			throws IOException {
+		List<String> header = ColumnProjector.readHeader(inputFilePath);
+		TfidfVectors result = new TfidfVectors(header.subList(1, header.size()));
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(inputFilePath), 1 << 16))) {
+			if (format == TfidfRowWriter.Format.BINARY) {
+				Preconditions.checkArgument(in.readInt() == TfidfRowWriter.BINARY_MAGIC,
+						"%s is not a binary tf-idf file", inputFilePath);
+				result.readBinaryRows(in);
+				return result;
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+					StandardCharsets.UTF_8), 1 << 16);
+			reader.readLine();
+			result.readTextRows(reader, format == TfidfRowWriter.Format.SPARSE, inputFilePath);
+			return result;
+		}
+	}
+
+	private void readBinaryRows(DataInputStream in) throws IOException {
+		int numFeatures = in.readInt();
+		for (int i = 0; i < numFeatures; i++) {
+			in.readUTF();
+		}
+		int[] rowIndices = new int[64];
+		double[] rowValues = new double[64];
+		while (ColumnProjector.hasNextRow(in)) {
+			String className = in.readUTF();
+			int length = in.readInt();
+			if (rowIndices.length < length) {
+				rowIndices = new int[length];
+				rowValues = new double[length];
+			}
+			for (int k = 0; k < length; k++) {
+				rowIndices[k] = in.readInt();
+			}
+			for (int k = 0; k < length; k++) {
+				rowValues[k] = in.readDouble();
+			}
+			writeRow(className, rowIndices, rowValues, length);
+		}
+	}
+
+	/** Reads dense CSV or sparse text rows; zero values are left out. */
+	private void readTextRows(BufferedReader in, boolean isSparse, String source)
+			throws IOException {
+		int[] rowIndices = new int[64];
+		double[] rowValues = new double[64];
+		String line;
+		int lineNumber = 1;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int length = 0;
+			String className;
+			if (!isSparse) {
+				String[] fields = line.split(",", -1);
+				Preconditions.checkState(fields.length == featureNames.size() + 1,
+						"Line %s of %s has %s columns instead of %s", lineNumber, source,
+						fields.length, featureNames.size() + 1);
+				className = fields[0];
+				for (int i = 1; i < fields.length; i++) {
+					double value = Double.parseDouble(fields[i]);
+					if (value != 0.0) {
+						if (length == rowIndices.length) {
+							rowIndices = Arrays.copyOf(rowIndices, length * 2);
+							rowValues = Arrays.copyOf(rowValues, length * 2);
+						}
+						rowIndices[length] = i - 1;
+						rowValues[length++] = value;
+					}
+				}
+			} else {
+				String[] fields = line.split(" ");
+				className = fields[0];
+				for (int i = 1; i < fields.length; i++) {
+					int colon = fields[i].indexOf(':');
+					Preconditions.checkState(colon > 0, "Line %s of %s: not index:value: %s",
+							lineNumber, source, fields[i]);
+					if (length == rowIndices.length) {
+						rowIndices = Arrays.copyOf(rowIndices, length * 2);
+						rowValues = Arrays.copyOf(rowValues, length * 2);
+					}
+					rowIndices[length] = Integer.parseInt(fields[i].substring(0, colon));
+					rowValues[length++] = Double.parseDouble(fields[i].substring(colon + 1));
+				}
+			}
+			writeRow(className, rowIndices, rowValues, length);
+		}
+	}
+}
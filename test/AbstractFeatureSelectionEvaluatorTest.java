@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import junit.framework.TestCase;
+
+public class AbstractFeatureSelectionEvaluatorTest extends TestCase {
+	private static final int NUM_ROWS = 400;
+
+	private static final int NUM_COLUMNS = 50;
+
+	private FeatureMatrix data;
+
+	private List<Integer> mask = new ArrayList<>();
+
+	@Override
+	protected void setUp() {
+		Random random = new Random(47L);
+		List<String> classNames = new ArrayList<>();
+		double[][] rows = new double[NUM_ROWS][NUM_COLUMNS];
+		for (int i = 0; i < NUM_ROWS; i++) {
+			int label = random.nextInt(3);
+			classNames.add("class" + label);
+			for (int j = 0; j < NUM_COLUMNS; j++) {
+				rows[i][j] = random.nextDouble() + (j % 3 == label ? 0.2 : 0.0);
+			}
+		}
+		data = new FeatureMatrix(classNames, rows);
+		for (int j = 0; j < NUM_COLUMNS; j++) {
+			mask.add(random.nextInt(2));
+		}
+	}
+
+	private int countInPool(final AbstractFeatureSelectionEvaluator evaluator,
+			final List<Integer> instanceIndices) {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			return pool.invoke(ForkJoinTask.adapt(new Callable<Integer>() {
+
+				@Override
+				public Integer call() {
+					return evaluator.countCorrectlyClassified(instanceIndices);
+				}
+			}));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testSubtasksCountAsOneTask() {
+		List<Integer> all = MathUtil.range(NUM_ROWS);
+		List<Integer> some = all.subList(17, 311);
+		List<AbstractFeatureSelectionEvaluator> evaluators = new ArrayList<>();
+		evaluators.add(new Rocchio.Context(data).newEvaluator(mask));
+		evaluators.add(new KNN.Context(data, 5).newEvaluator(mask));
+		long subtasksBefore = MetricsRegistry.get().counter("evaluation.subtasks").sum();
+		for (AbstractFeatureSelectionEvaluator evaluator : evaluators) {
+			assertEquals(evaluator.countCorrectlyClassified(all), countInPool(evaluator, all));
+			assertEquals(evaluator.countCorrectlyClassified(some), countInPool(evaluator, some));
+		}
+		// the KNN instances cost enough to be split
+		assertTrue(MetricsRegistry.get().counter("evaluation.subtasks").sum() > subtasksBefore);
+	}
+
+	private int[] countBatchInPool(final EvaluatorContext context,
+			final List<List<Integer>> masks, final List<Integer> instanceIndices) {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			return pool.invoke(ForkJoinTask.adapt(new Callable<int[]>() {
+
+				@Override
+				public int[] call() {
+					return context.countCorrectlyClassified(masks, instanceIndices);
+				}
+			}));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testBatchCountsAsEachEvaluator() {
+		Random random = new Random(48L);
+		List<List<Integer>> masks = new ArrayList<>();
+		masks.add(mask);
+		for (int m = 0; m < 6; m++) {
+			List<Integer> other = new ArrayList<>();
+			for (int j = 0; j < NUM_COLUMNS; j++) {
+				other.add(random.nextInt(2));
+			}
+			masks.add(other);
+		}
+		List<Integer> some = MathUtil.range(NUM_ROWS).subList(17, 311);
+		FeatureMatrix offHeap = data.withStorage(FeatureMatrix.Storage.OFF_HEAP);
+		try {
+			List<EvaluatorContext> contexts = new ArrayList<>();
+			contexts.add(new Rocchio.Context(data));
+			contexts.add(new Rocchio.Context(offHeap));
+			contexts.add(new KNN.Context(data, 5));
+			for (EvaluatorContext context : contexts) {
+				int[] counts = context.countCorrectlyClassified(masks, some);
+				List<Double> fitnesses = context.calcFitness(masks, 0.85, 0.15);
+				for (int m = 0; m < masks.size(); m++) {
+					AbstractFeatureSelectionEvaluator evaluator = context.newEvaluator(masks
+							.get(m));
+					assertEquals(evaluator.countCorrectlyClassified(some), counts[m]);
+					assertEquals(evaluator.calcFitness(0.85, 0.15, -1),
+							fitnesses.get(m), 1e-12);
+				}
+				assertTrue(Arrays.equals(counts, countBatchInPool(context, masks,
+						some)));
+			}
+		} finally {
+			offHeap.close();
+		}
+	}
+}
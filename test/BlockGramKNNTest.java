@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BlockGramKNNTest extends TestCase {
+	private static final int NUM_ROWS = 90;
+
+	// two whole blocks and part of a third
+	private static final int NUM_COLUMNS = 2 * BlockGramCache.BLOCK_SIZE + 22;
+
+	private FeatureMatrix data;
+
+	@Override
+	protected void setUp() {
+		data = new KnnTestData(NUM_ROWS, NUM_COLUMNS, 49L).toFeatureMatrix();
+	}
+
+	public void testClassesAsKNN() {
+		Random random = new Random(NUM_COLUMNS);
+		BlockGramKNN.Context context = new BlockGramKNN.Context(data, 5, 64L << 20);
+		KNN.Context exact = new KNN.Context(data, 5);
+		// not all the features: a repeated row would be at a distance of 0 but for
+		// rounding, which decides its 1 / distance vote
+		for (double density : new double[] { 0.0, 0.1, 0.5, 0.9 }) {
+			List<Integer> mask = KnnTestData.randomMask(random, NUM_COLUMNS, density);
+			KNN knn = exact.newEvaluator(mask);
+			// pair by pair the first time, from the cached matrices the second
+			for (int m = 0; m < 2; m++) {
+				BlockGramKNN evaluator = context.newEvaluator(mask);
+				for (int i = 0; i < NUM_ROWS; i++) {
+					assertEquals(knn.classify(i), evaluator.classify(i));
+				}
+				List<Integer> all = MathUtil.range(NUM_ROWS);
+				assertEquals(knn.countCorrectlyClassified(all), evaluator
+						.countCorrectlyClassified(all));
+			}
+		}
+	}
+
+	public void testCachesWholeBlocksAndRepeatedPatterns() {
+		Random random = new Random(NUM_COLUMNS);
+		BlockGramKNN.Context context = new BlockGramKNN.Context(data, 5, 64L << 20);
+		BlockGramCache cache = context.getCache();
+		List<Integer> mask = KnnTestData.randomMask(random, NUM_COLUMNS, 0.5);
+		context.newEvaluator(mask).classify(0);
+		assertEquals(0, cache.getNumCachedBytes());
+		context.newEvaluator(mask).classify(0);
+		assertEquals(3 * cache.getMatrixBytes(), cache.getNumCachedBytes());
+		long hits = MetricsRegistry.get().counter("knn.gram.hits").sum();
+		long misses = MetricsRegistry.get().counter("knn.gram.misses").sum();
+		// the same features in the first two blocks, others in the third
+		List<Integer> similar = new ArrayList<>(mask);
+		int j = 2 * BlockGramCache.BLOCK_SIZE;
+		similar.set(j, 1 - similar.get(j));
+		BlockGramCache.MaskBlocks blocks = cache.split(FeatureMask.of(similar));
+		assertEquals(2, blocks.getNumCachedBlocks());
+		assertEquals(FeatureMask.of(similar).getNumSelected() - FeatureMask.of(similar.subList(0,
+				j)).getNumSelected(), blocks.getUncachedFeatures().getNumSelected());
+		assertEquals(hits + 2, MetricsRegistry.get().counter("knn.gram.hits").sum());
+		assertEquals(misses + 1, MetricsRegistry.get().counter("knn.gram.misses").sum());
+		assertEquals(3 * cache.getMatrixBytes(), cache.getNumCachedBytes());
+		// whole blocks, the last one short, are cached the first time
+		List<Integer> whole = new ArrayList<>(mask);
+		for (int f = BlockGramCache.BLOCK_SIZE; f < NUM_COLUMNS; f++) {
+			whole.set(f, 1);
+		}
+		assertEquals(3, cache.split(FeatureMask.of(whole)).getNumCachedBlocks());
+		assertEquals(5 * cache.getMatrixBytes(), cache.getNumCachedBytes());
+	}
+
+	public void testEvictsBeyondItsSize() {
+		Random random = new Random(NUM_COLUMNS);
+		KNN.Context exact = new KNN.Context(data, 3);
+		BlockGramCache cache = new BlockGramKNN.Context(data, 3, 1L).getCache();
+		long matrixBytes = cache.getMatrixBytes();
+		BlockGramKNN.Context context = new BlockGramKNN.Context(data, 3, 2 * matrixBytes);
+		List<Integer> all = MathUtil.range(NUM_ROWS);
+		for (int m = 0; m < 3; m++) {
+			List<Integer> mask = KnnTestData.randomMask(random, NUM_COLUMNS, 0.7);
+			int expected = exact.newEvaluator(mask).countCorrectlyClassified(all);
+			context.newEvaluator(mask).classify(0);
+			// three matrices for room for two: some of those of its mask are evicted
+			// before it reads them
+			long evictions = MetricsRegistry.get().counter("knn.gram.evictions").sum();
+			BlockGramKNN first = context.newEvaluator(mask);
+			first.classify(0);
+			assertTrue(MetricsRegistry.get().counter("knn.gram.evictions").sum() > evictions);
+			for (int r = 0; r < 2; r++) {
+				assertEquals(expected, context.newEvaluator(mask).countCorrectlyClassified(all));
+				assertTrue(context.getCache().getNumCachedBytes() <= 2 * matrixBytes);
+			}
+			assertEquals(expected, first.countCorrectlyClassified(all));
+		}
+	}
+
+	public void testComputesNoMatrixLargerThanTheCache() {
+		Random random = new Random(NUM_COLUMNS);
+		BlockGramKNN.Context context = new BlockGramKNN.Context(data, 3, 1L);
+		List<Integer> mask = KnnTestData.randomMask(random, NUM_COLUMNS, 1.0);
+		for (int m = 0; m < 2; m++) {
+			BlockGramCache.MaskBlocks blocks = context.getCache().split(FeatureMask.of(mask));
+			assertEquals(0, blocks.getNumCachedBlocks());
+			assertEquals(NUM_COLUMNS, blocks.getUncachedFeatures().getNumSelected());
+		}
+		assertEquals(0, context.getCache().getNumCachedBytes());
+	}
+
+	public void testFallsBackToKNNIfNoMatrixFits() {
+		assertFalse(BlockGramCache.canCache(20000, Long.MAX_VALUE));
+		assertTrue(BlockGramCache.canCache(NUM_ROWS, NUM_ROWS * NUM_ROWS * 8));
+		EvaluatorContext context = EvaluatorContext.prepareBlockGram("knn:3", data, NUM_ROWS
+				* NUM_ROWS * 8 - 1);
+		assertTrue(context instanceof KNN.Context);
+		assertEquals("knn:3", context.getName());
+	}
+}
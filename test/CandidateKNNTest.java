@@ -0,0 +1,140 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CandidateKNNTest extends TestCase {
+	private static final int NUM_ROWS = 70;
+
+	private static final int NUM_COLUMNS = 30;
+
+	private File dir;
+
+	private FeatureMatrix data;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("knn-candidates").toFile();
+		data = new KnnTestData(NUM_ROWS, NUM_COLUMNS, 50L).toFeatureMatrix();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testFileHoldsTheNearestUnderAllFeatures() throws IOException {
+		String path = new File(dir, "candidates").getPath();
+		KnnCandidates.build(data, 6, path, 3);
+		KnnCandidates candidates = KnnCandidates.open(path, data);
+		assertEquals(NUM_ROWS, candidates.getNumInstances());
+		assertEquals(6, candidates.getNumCandidates());
+		FeatureMask all = FeatureMask.all(NUM_COLUMNS);
+		for (int i = 0; i < NUM_ROWS; i++) {
+			for (int k = 0; k < 6; k++) {
+				int j = candidates.getCandidate(i, k);
+				assertTrue(j != i);
+				assertEquals((float) (1.0 - data.dotProduct(i, j, all)), candidates.getDistance(i,
+						k));
+				// no other instance is nearer than the last candidate
+				if (k == 5) {
+					for (int other = 0; other < NUM_ROWS; other++) {
+						if (other != i && 1.0 - data.dotProduct(i, other, all) < candidates
+								.getDistance(i, k) - 1e-6) {
+							boolean isCandidate = false;
+							for (int c = 0; c < 6; c++) {
+								isCandidate |= candidates.getCandidate(i, c) == other;
+							}
+							assertTrue(isCandidate);
+						}
+					}
+				}
+			}
+			// a repeated row is the nearest to the row it repeats
+			if (i % 5 == 3) {
+				assertEquals(i + 1, candidates.getCandidate(i, 0));
+			}
+		}
+	}
+
+	public void testAllCandidatesClassifyAsKNN() throws IOException {
+		String path = new File(dir, "candidates").getPath();
+		KnnCandidates.build(data, NUM_ROWS - 1, path, 2);
+		CandidateKNN.Context context = new CandidateKNN.Context(data, 5, KnnCandidates.open(
+				path, data));
+		KNN.Context exact = new KNN.Context(data, 5);
+		assertEquals("knn:5:" + (NUM_ROWS - 1), context.getName());
+		Random random = new Random(NUM_COLUMNS);
+		for (double density : new double[] { 0.1, 0.5, 1.0 }) {
+			List<Integer> mask = KnnTestData.randomMask(random, NUM_COLUMNS, density);
+			CandidateKNN evaluator = context.newEvaluator(mask);
+			KNN knn = exact.newEvaluator(mask);
+			for (int i = 0; i < NUM_ROWS; i++) {
+				assertEquals(knn.classify(i), evaluator.classify(i));
+			}
+		}
+	}
+
+	public void testReplacesTheFileOnceComplete() throws IOException {
+		File file = new File(dir, "candidates");
+		KnnCandidates.build(data, 10, file.getPath(), 2);
+		assertEquals(6, KnnCandidates.build(data, 6, file.getPath(), 2).getNumCandidates());
+		assertEquals(6, KnnCandidates.open(file.getPath(), data).getNumCandidates());
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	public void testRejectsAnotherDataSetAndTruncatedFiles() throws IOException {
+		String path = new File(dir, "candidates").getPath();
+		KnnCandidates.build(data, 6, path, 1);
+		// the same shape and labels, with other values
+		FeatureMatrix other = new KnnTestData(NUM_ROWS, NUM_COLUMNS, 51L).toFeatureMatrix();
+		try {
+			KnnCandidates.open(path, other);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		// the values are only checked as floats
+		KnnCandidates.open(path, data.withPrecision(FeatureMatrix.Precision.FLOAT));
+		try {
+			KnnCandidates.open(path, new KnnTestData(NUM_ROWS, NUM_COLUMNS + 1, 50L)
+					.toFeatureMatrix());
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		byte[] bytes = Files.readAllBytes(new File(path).toPath());
+		Files.write(new File(path).toPath(), Arrays.copyOf(bytes, bytes.length - 4));
+		try {
+			KnnCandidates.open(path, data);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testReportsAgreementWithKNN() throws IOException {
+		String path = new File(dir, "candidates").getPath();
+		KnnCandidates.build(data, 10, path, 1);
+		CandidateAgreementReport report = new CandidateAgreementReport(data, KnnCandidates
+				.open(path, data));
+		List<Map<String, String>> results = report.run();
+		// a row per mask, then the means
+		assertEquals(11, results.size());
+		assertEquals("mean", results.get(10).get("mask"));
+		for (Map<String, String> result : results) {
+			double agreement = Double.parseDouble(result.get("agreement"));
+			assertTrue(agreement >= 0.0 && agreement <= 1.0);
+			assertTrue(Double.parseDouble(result.get("accuracyDrift")) <= 1.0 - agreement
+					+ 1e-9);
+		}
+	}
+}
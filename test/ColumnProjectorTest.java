@@ -0,0 +1,134 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ColumnProjectorTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("column-projector").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private String write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+
+	private List<String> project(String input, boolean isNormalizeVector, Integer... columns)
+			throws IOException {
+		File output = new File(dir, "output");
+		new ColumnProjector(Arrays.asList(columns), isNormalizeVector, 2).project(input,
+				output.getPath());
+		return Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+	}
+
+	public void testCopiesSelectedColumns() throws IOException {
+		String input = write("input.csv", "class_unique,a,b,c\nc1,0.5,0.25,1.0E-4\r\nc2,0.0,3,0.0");
+		assertEquals(Arrays.asList("class_unique,a,c", "c1,0.5,1.0E-4", "c2,0.0,0.0"), project(
+				input, false, 1, 3));
+		assertEquals(Arrays.asList("class_unique", "c1", "c2"), project(input, false));
+	}
+
+	public void testNormalizesSelectedColumns() throws IOException {
+		String input = write("input.csv", "class_unique,a,b,c\nc1,3.0,9,4.0\nc2,0.0,1,0.0\n");
+		assertEquals(Arrays.asList("class_unique,a,c", "c1,0.6,0.8", "c2,0.0,0.0"), project(input,
+				true, 1, 3));
+	}
+
+	public void testMatchesLineByLineProjection() throws IOException {
+		String corpus = new File(dir, "corpus.txt").getPath();
+		new SyntheticCorpusGenerator(300, 3, 20, 1.0, 0.3).generate(corpus, 500, 1L);
+		String input = new File(dir, "input.csv").getPath();
+		new TfidfCalculator(1).calculate(corpus, input, false);
+		List<String> lines = Files.readAllLines(new File(input).toPath(), StandardCharsets.UTF_8);
+		Integer[] columns = { 2, 3, 5, 8, 13, 21, 34, 55, 89 };
+
+		List<String> projected = project(input, false, columns);
+		assertEquals(lines.size(), projected.size());
+		for (int i = 0; i < lines.size(); i++) {
+			String[] fields = lines.get(i).split(",");
+			StringBuilder sb = new StringBuilder(fields[0]);
+			for (int column : columns) {
+				sb.append(',').append(fields[column]);
+			}
+			assertEquals(sb.toString(), projected.get(i));
+		}
+	}
+
+	public void testProjectsBinaryFiles() throws IOException {
+		String input = new File(dir, "input.bin").getPath();
+		try (TfidfRowWriter out = TfidfRowWriter.open(TfidfRowWriter.Format.BINARY, input, Arrays
+				.asList("a", "b", "c"))) {
+			out.writeRow("c1", new int[] { 0, 2 }, new double[] { 3.0, 4.0 }, 2);
+			out.writeRow("c2", new int[] { 1 }, new double[] { 1.0 }, 1);
+		}
+		String output = new File(dir, "output.bin").getPath();
+		new ColumnProjector(Arrays.asList(1, 3), true, 1).project(input, output);
+		assertEquals(Arrays.asList("class_unique", "a", "c"), ColumnProjector.readHeader(output));
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(output))) {
+			assertEquals(TfidfRowWriter.BINARY_MAGIC, in.readInt());
+			assertEquals(2, in.readInt());
+			in.readUTF();
+			in.readUTF();
+			// c1: 0:0.6 1:0.8
+			assertEquals("c1", in.readUTF());
+			assertEquals(2, in.readInt());
+			assertEquals(0, in.readInt());
+			assertEquals(1, in.readInt());
+			assertEquals(0.6, in.readDouble(), 1e-15);
+			assertEquals(0.8, in.readDouble(), 1e-15);
+			// c2 has no selected feature
+			assertEquals("c2", in.readUTF());
+			assertEquals(0, in.readInt());
+			assertEquals(-1, in.read());
+		}
+	}
+
+	public void testFailsOnBinaryFilesCutWithinARow() throws IOException {
+		String input = new File(dir, "input.bin").getPath();
+		try (TfidfRowWriter out = TfidfRowWriter.open(TfidfRowWriter.Format.BINARY, input, Arrays
+				.asList("a", "b"))) {
+			out.writeRow("c1", new int[] { 0, 1 }, new double[] { 3.0, 4.0 }, 2);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(input, "rw")) {
+			file.setLength(file.length() - 4);
+		}
+		try {
+			new ColumnProjector(Arrays.asList(1), false, 1).project(input, new File(dir,
+					"output.bin").getPath());
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	public void testFailsOnRaggedLines() throws IOException {
+		String input = write("input.csv", "class_unique,a,b\nc1,1.0,2.0\nc2,1.0\n");
+		try {
+			project(input, false, 1);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("c2,1.0"));
+		}
+	}
+}
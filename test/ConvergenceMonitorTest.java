@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+
+public class ConvergenceMonitorTest extends TestCase {
+
+	private final List<Integer> gbest = Lists.newArrayList(1, 0, 1, 0);
+
+	private final List<List<Integer>> positions = new ArrayList<>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		positions.add(Lists.newArrayList(1, 0, 1, 0));
+		positions.add(Lists.newArrayList(0, 1, 1, 0));
+	}
+
+	public void testDiversity() {
+		// 0 bits differ for the first particle, 2 bits for the second one.
+		assertEquals(0.25, ConvergenceMonitor.diversity(positions, gbest));
+	}
+
+	public void testStagnation() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(2, -1.0, 0L);
+		monitor.start();
+		assertEquals(ConvergenceMonitor.StopReason.NONE, monitor.update(0.5, positions, gbest, 0L));
+		assertEquals(ConvergenceMonitor.StopReason.NONE, monitor.update(0.6, positions, gbest, 0L));
+		assertEquals(ConvergenceMonitor.StopReason.NONE, monitor.update(0.6, positions, gbest, 0L));
+		assertEquals(ConvergenceMonitor.StopReason.STAGNATION,
+				monitor.update(0.6, positions, gbest, 0L));
+	}
+
+	public void testLowDiversity() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(0, 0.3, 0L);
+		monitor.start();
+		assertEquals(ConvergenceMonitor.StopReason.LOW_DIVERSITY,
+				monitor.update(0.5, positions, gbest, 0L));
+	}
+
+	public void testDeadline() {
+		ConvergenceMonitor monitor = new ConvergenceMonitor(0, -1.0, 1000L);
+		monitor.start();
+		assertEquals(ConvergenceMonitor.StopReason.NONE, monitor.update(0.5, positions, gbest, 10L));
+		// The next iteration is predicted to overrun the budget.
+		assertEquals(ConvergenceMonitor.StopReason.DEADLINE,
+				monitor.update(0.6, positions, gbest, 2000L));
+	}
+
+	public void testDisabledNeverStops() {
+		ConvergenceMonitor monitor = ConvergenceMonitor.disabled();
+		monitor.start();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(ConvergenceMonitor.StopReason.NONE,
+					monitor.update(0.5, positions, gbest, 1000000L));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DistanceKernelsTest extends TestCase {
+	private final Random random = new Random(298L);
+
+	private final DistanceKernels scalar = DistanceKernels.forName("scalar");
+
+	private double[] randomVector(int dimension, double density) {
+		double[] result = new double[dimension];
+		for (int i = 0; i < dimension; i++) {
+			if (random.nextDouble() < density) {
+				result[i] = random.nextGaussian();
+			}
+		}
+		return result;
+	}
+
+	private FeatureMask randomMask(int dimension, double density) {
+		int[] indices = new int[dimension];
+		int numSelected = 0;
+		for (int i = 0; i < dimension; i++) {
+			if (random.nextDouble() < density) {
+				indices[numSelected++] = i;
+			}
+		}
+		return new FeatureMask(dimension, Arrays.copyOf(indices, numSelected));
+	}
+
+	public void testVectorKernelsAreLoaded() {
+		// the tests run with --add-modules jdk.incubator.vector
+		assertTrue(DistanceKernels.get().getName(), DistanceKernels.get().getName().startsWith(
+				"vector"));
+		assertEquals("scalar", scalar.getName());
+	}
+
+	public void testKernelsAgree() {
+		DistanceKernels kernels = DistanceKernels.forName("vector");
+		// lengths around the vector sizes, and masks on both sides of the
+		// density where the vector kernels stop visiting indices
+		for (int dimension : new int[] { 0, 1, 3, 7, 8, 9, 17, 100, 1001 }) {
+			double[] instance1 = randomVector(dimension, 0.5);
+			double[] instance2 = randomVector(dimension, 0.5);
+			assertEquals(scalar.dotProduct(instance1, instance2), kernels.dotProduct(instance1,
+					instance2), 1e-9);
+			assertEquals(scalar.squaredEuclideanDistance(instance1, instance2), kernels
+					.squaredEuclideanDistance(instance1, instance2), 1e-9);
+			for (double density : new double[] { 0.0, 0.05, 0.5, 1.0 }) {
+				FeatureMask mask = randomMask(dimension, density);
+				double expected = 0.0;
+				for (int i : mask.getIndices()) {
+					expected += instance1[i] * instance2[i];
+				}
+				assertEquals(expected, scalar.dotProduct(instance1, instance2, mask));
+				assertEquals(expected, kernels.dotProduct(instance1, instance2, mask), 1e-9);
+				double expectedSum = 0.0;
+				for (int i : mask.getIndices()) {
+					expectedSum += instance1[i];
+				}
+				assertEquals(expectedSum, scalar.sum(instance1, mask));
+				assertEquals(expectedSum, kernels.sum(instance1, mask), 1e-9);
+				assertEquals(scalar.squaredEuclideanDistance(instance1, instance2, mask), kernels
+						.squaredEuclideanDistance(instance1, instance2, mask), 1e-9);
+			}
+			FeatureMask sparse = randomMask(dimension, 0.3);
+			int[] indices = sparse.getIndices();
+			double[] values = randomVector(indices.length, 1.0);
+			double expected = 0.0;
+			for (int k = 0; k < indices.length; k++) {
+				expected += values[k] * instance2[indices[k]];
+			}
+			assertEquals(expected, scalar.sparseDotProduct(indices, values, indices.length,
+					instance2));
+			assertEquals(expected, kernels.sparseDotProduct(indices, values, indices.length,
+					instance2), 1e-9);
+		}
+	}
+
+	public void testMaskChecksIndices() {
+		try {
+			new FeatureMask(3, new int[] { 1, 1 });
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		FeatureMask mask = FeatureMask.of(Arrays.asList(0, 1, 1, 0));
+		assertTrue(Arrays.equals(new int[] { 1, 2 }, mask.getIndices()));
+		assertTrue(Arrays.equals(new double[] { 0.0, 1.0, 1.0, 0.0 }, mask
+				.getWeights()));
+		assertEquals(0.5, mask.getDensity());
+	}
+}
@@ -0,0 +1,63 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DoubleParserTest extends TestCase {
+	private static double parse(String s) {
+		// surrounded by other bytes, which must not be read
+		byte[] bytes = ("x" + s + ",").getBytes(StandardCharsets.ISO_8859_1);
+		return DoubleParser.parse(bytes, 1, bytes.length - 1);
+	}
+
+	private static void assertParsesLikeJdk(String s) {
+		assertEquals(s, Double.doubleToRawLongBits(Double.parseDouble(s)), Double
+				.doubleToRawLongBits(parse(s)));
+	}
+
+	public void testEdgeCases() {
+		for (String s : new String[] { "0", "-0", "0.0", "-0.0", "1", "1.", ".5", "-.5", "+2",
+				"1e10", "1E-10", "1e+5", "0.1", "0.3", "4.35", "2.5E-5", "9007199254740993",
+				"7.2057594037927933E16", "123456789012345678901234567890",
+				"0.000000000000000000000000000001234", "2.2250738585072014E-308",
+				"2.2250738585072011E-308", "4.9E-324", "1.7976931348623157E308", "1e309",
+				"1e-400", "NaN", "Infinity", "-Infinity" }) {
+			assertParsesLikeJdk(s);
+		}
+	}
+
+	public void testRandomDoubles() {
+		Random random = new Random(298L);
+		for (int i = 0; i < 200000; i++) {
+			double value;
+			switch (i % 3) {
+			case 0:
+				value = Double.longBitsToDouble(random.nextLong());
+				break;
+			case 1:
+				value = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+				break;
+			default:
+				// tf-idf like values
+				value = (1.0 + random.nextInt(20)) / (1 + random.nextInt(500))
+						* Math.log10(1.0 * (1 + random.nextInt(10000)) / (1 + random.nextInt(100)));
+			}
+			String s = Double.toString(value);
+			assertParsesLikeJdk(s);
+			// with more digits than a double keeps
+			assertParsesLikeJdk(s.replace("E", random.nextInt(100000) + "E"));
+		}
+	}
+
+	public void testRejectsMalformedNumbers() {
+		for (String s : new String[] { "", "-", ".", "e5", "1e", "1e+", "abc", "1.2.3", "1,0",
+				" 1", "1 ", "1e5x", "0x10", "nan", "1d" }) {
+			try {
+				parse(s);
+				fail(s);
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FeatureMatrixLoaderTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("feature-matrix-loader").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private String write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+
+	public void testLoadsRows() throws IOException {
+		String input = write("input.csv", "class_unique,a,b\nc1,0.5,1.0E-4\r\n\nc2,0.0,3\nc1,-2,7");
+		FeatureMatrix matrix = FeatureMatrixLoader.load(input, 2);
+		assertEquals(3, matrix.getNumRows());
+		assertEquals(2, matrix.getNumColumns());
+		assertEquals(Arrays.asList("c1", "c2"), matrix.getClassNames());
+		assertTrue(Arrays.equals(new double[] { 0.5, 1.0E-4 }, matrix.getRow(0)));
+		assertTrue(Arrays.equals(new double[] { 0.0, 3.0 }, matrix.getRow(1)));
+		assertTrue(Arrays.equals(new double[] { -2.0, 7.0 }, matrix.getRow(2)));
+		assertEquals(0, matrix.getLabel(2));
+	}
+
+	public void testLoadsRowsOffHeap() throws IOException {
+		String input = write("input.csv", "class_unique,a,b\nc1,0.5,1.0E-4\nc2,0.0,3\nc1,-2,7\n");
+		FeatureMatrix heap = FeatureMatrixLoader.load(input, 2);
+		try (FeatureMatrix offHeap = FeatureMatrixLoader.load(input, 2,
+				FeatureMatrix.Storage.OFF_HEAP)) {
+			assertEquals(FeatureMatrix.Storage.OFF_HEAP, offHeap.getStorage());
+			assertEquals(heap.getClassNames(), offHeap.getClassNames());
+			for (int i = 0; i < heap.getNumRows(); i++) {
+				assertEquals(heap.getLabel(i), offHeap.getLabel(i));
+				assertTrue(Arrays.equals(heap.getRow(i), offHeap.getRow(i)));
+			}
+		}
+	}
+
+	public void testLoadsEveryNthRowOfAShard() throws IOException {
+		String input = write("input.csv", "class_unique,a\nc1,1\nc2,2\nc3,3\nc1,4\nc2,5\n");
+		for (FeatureMatrix.Storage storage : FeatureMatrix.Storage.values()) {
+			try (FeatureMatrix shard = FeatureMatrixLoader.load(input, 2, storage, 1, 2)) {
+				assertEquals(2, shard.getNumRows());
+				assertEquals(Arrays.asList("c2", "c1"), shard.getClassNames());
+				assertEquals(2.0, shard.get(0, 0));
+				assertEquals(4.0, shard.get(1, 0));
+			}
+		}
+	}
+
+	public void testMatchesTfidfCalculatorOutput() throws IOException {
+		String corpus = new File(dir, "corpus.txt").getPath();
+		new SyntheticCorpusGenerator(300, 3, 20, 1.0, 0.3).generate(corpus, 1000, 1L);
+		String csv = new File(dir, "corpus.csv").getPath();
+		new TfidfCalculator(1).calculate(corpus, csv, true);
+
+		FeatureMatrix matrix = FeatureMatrixLoader.load(csv, 3);
+		TfidfVectors vectors = TfidfVectors.read(csv, TfidfRowWriter.Format.CSV);
+		assertEquals(vectors.getNumRows(), matrix.getNumRows());
+		for (int i = 0; i < matrix.getNumRows(); i++) {
+			assertEquals(vectors.getClassName(i), matrix.getClassName(i));
+			double[] expected = new double[vectors.getNumFeatures()];
+			for (int k = 0; k < vectors.getFeatureIndices(i).length; k++) {
+				expected[vectors.getFeatureIndices(i)[k]] = vectors.getValues(i)[k];
+			}
+			assertTrue(Arrays.equals(expected, matrix.getRow(i)));
+		}
+	}
+
+	public void testFailsOnMalformedRows() throws IOException {
+		assertFailsAt(write("short.csv", "class_unique,a,b\nc1,1,2\nc2,1\n"), ":3: 2 columns");
+		assertFailsAt(write("long.csv", "class_unique,a,b\nc1,1,2\n\nc2,1,2,3,4\n"),
+				":4: 5 columns");
+		assertFailsAt(write("number.csv", "class_unique,a,b\nc1,1,2\nc2,1,x2\n"),
+				":3: column 2: For input string: \"x2\"");
+	}
+
+	private static void assertFailsAt(String input, String message) {
+		try {
+			FeatureMatrixLoader.load(input, 2);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+}
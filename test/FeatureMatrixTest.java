@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FeatureMatrixTest extends TestCase {
+	private static final int NUM_ROWS = 60;
+
+	private static final int NUM_COLUMNS = 40;
+
+	private FeatureMatrix data;
+
+	@Override
+	protected void setUp() {
+		Random random = new Random(298L);
+		List<String> classNames = new ArrayList<>();
+		double[][] rows = new double[NUM_ROWS][NUM_COLUMNS];
+		for (int i = 0; i < NUM_ROWS; i++) {
+			int label = i % 3;
+			classNames.add("class" + label);
+			for (int j = 0; j < NUM_COLUMNS; j++) {
+				// feature 0 is all zero; the others lean towards the class
+				if (j > 0 && random.nextDouble() < 0.5) {
+					rows[i][j] = random.nextDouble() + (j % 3 == label ? 1.0 : 0.0);
+				}
+			}
+			TfidfCalculator.normalizeVector(rows[i], NUM_COLUMNS);
+		}
+		data = new FeatureMatrix(classNames, rows);
+	}
+
+	public void testQuantizationError() {
+		assertSame(data, data.withPrecision(FeatureMatrix.Precision.DOUBLE));
+		for (FeatureMatrix.Precision precision : FeatureMatrix.Precision.values()) {
+			FeatureMatrix stored = data.withPrecision(precision);
+			assertEquals(precision, stored.getPrecision());
+			assertEquals((long) NUM_ROWS * NUM_COLUMNS * precision.getNumBytes(),
+					stored.getNumValueBytes());
+			assertEquals(data.getClassNames(), stored.getClassNames());
+			for (int i = 0; i < NUM_ROWS; i++) {
+				assertEquals(data.getLabel(i), stored.getLabel(i));
+				double[] row = stored.getRow(i);
+				for (int j = 0; j < NUM_COLUMNS; j++) {
+					double maxAbs = 0.0;
+					for (int k = 0; k < NUM_ROWS; k++) {
+						maxAbs = Math.max(maxAbs, Math.abs(data.get(k, j)));
+					}
+					// half a step of the feature scale, or float rounding
+					double tolerance = precision == FeatureMatrix.Precision.INT8 ? maxAbs / 254
+							: precision == FeatureMatrix.Precision.INT16 ? maxAbs / 65534 : Math
+									.ulp((float) data.get(i, j));
+					assertEquals(data.get(i, j), row[j], tolerance * 1.0001);
+					assertEquals(row[j], stored.get(i, j));
+				}
+			}
+			assertEquals(0.0, stored.get(0, 0));
+		}
+	}
+
+	public void testKernelsMatchDecodedRows() {
+		FeatureMask mask = FeatureMask.all(NUM_COLUMNS);
+		int[] featureIndices = mask.getIndices();
+		double[] point = data.getRow(1);
+		float[] floatPoint = new float[NUM_COLUMNS];
+		for (int j = 0; j < NUM_COLUMNS; j++) {
+			floatPoint[j] = (float) point[j];
+		}
+		for (FeatureMatrix.Precision precision : FeatureMatrix.Precision.values()) {
+			FeatureMatrix stored = data.withPrecision(precision);
+			for (int i = 0; i < NUM_ROWS; i++) {
+				double[] row = stored.getRow(i);
+				if (precision == FeatureMatrix.Precision.DOUBLE) {
+					// the SIMD kernels sum in another order
+					assertEquals(MathUtil.calculateSquaredEuclideanDistance(row, point,
+							featureIndices), stored.squaredEuclideanDistance(i, point, mask), 1e-12);
+				} else {
+					// float rounding of the point and of the block sums
+					assertEquals(MathUtil.calculateSquaredEuclideanDistance(row, point,
+							featureIndices), stored.squaredEuclideanDistance(i, floatPoint, mask),
+							1e-6);
+				}
+				assertEquals(MathUtil.dotProduct(row, stored.getRow(2), featureIndices), stored
+						.dotProduct(i, 2, mask), 1e-6);
+			}
+		}
+		try {
+			data.squaredEuclideanDistance(0, floatPoint, mask);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testEvaluatorsDriftLittle() {
+		List<Integer> mask = new ArrayList<>(Arrays.asList(new Integer[NUM_COLUMNS]));
+		for (int j = 0; j < NUM_COLUMNS; j++) {
+			mask.set(j, j % 2);
+		}
+		for (String evaluator : Arrays.asList("rocchio", "knn:3")) {
+			AbstractFeatureSelectionEvaluator expected = EvaluatorContext.prepare(evaluator, data)
+					.newEvaluator(mask);
+			for (FeatureMatrix.Precision precision : FeatureMatrix.Precision.values()) {
+				AbstractFeatureSelectionEvaluator actual = EvaluatorContext.prepare(evaluator,
+						data.withPrecision(precision)).newEvaluator(mask);
+				int numDisagreements = 0;
+				for (int i = 0; i < NUM_ROWS; i++) {
+					if (expected.classify(i) != actual.classify(i)) {
+						numDisagreements++;
+					}
+				}
+				assertTrue(evaluator + " " + precision + ": " + numDisagreements,
+						numDisagreements <= (precision == FeatureMatrix.Precision.INT8 ? 3 : 0));
+			}
+		}
+	}
+
+	public void testOffHeapStorageMatchesHeap() {
+		assertSame(data, data.withStorage(FeatureMatrix.Storage.HEAP));
+		FeatureMask mask = new FeatureMask(NUM_COLUMNS, new int[] { 1, 2, 3, 5, 8, 13, 21, 34 });
+		double[] point = data.getRow(1);
+		float[] floatPoint = new float[NUM_COLUMNS];
+		for (int j = 0; j < NUM_COLUMNS; j++) {
+			floatPoint[j] = (float) point[j];
+		}
+		for (FeatureMatrix.Precision precision : FeatureMatrix.Precision.values()) {
+			FeatureMatrix heap = data.withPrecision(precision);
+			try (FeatureMatrix offHeap = heap.withStorage(FeatureMatrix.Storage.OFF_HEAP);
+					FeatureMatrix converted = data.withStorage(FeatureMatrix.Storage.OFF_HEAP)
+							.withPrecision(precision)) {
+				assertEquals(FeatureMatrix.Storage.OFF_HEAP, offHeap.getStorage());
+				assertEquals(FeatureMatrix.Storage.OFF_HEAP, converted.getStorage());
+				assertEquals(precision, offHeap.getPrecision());
+				for (int i = 0; i < NUM_ROWS; i++) {
+					assertTrue(Arrays.equals(heap.getRow(i), offHeap.getRow(i)));
+					assertTrue(Arrays.equals(heap.getRow(i), converted.getRow(i)));
+					assertEquals(heap.getLabel(i), offHeap.getLabel(i));
+					if (precision == FeatureMatrix.Precision.DOUBLE) {
+						assertEquals(heap.squaredEuclideanDistance(i, point, mask), offHeap
+								.squaredEuclideanDistance(i, point, mask));
+					} else {
+						assertEquals(heap.squaredEuclideanDistance(i, floatPoint, mask), offHeap
+								.squaredEuclideanDistance(i, floatPoint, mask));
+					}
+					assertEquals(heap.dotProduct(i, 2, mask), offHeap.dotProduct(i, 2, mask));
+					assertEquals(heap.dotProduct(i, 2, FeatureMask.all(NUM_COLUMNS)), offHeap
+							.dotProduct(i, 2, FeatureMask.all(NUM_COLUMNS)));
+				}
+				List<Integer> selection = new ArrayList<>(Collections.nCopies(NUM_COLUMNS, 1));
+				for (String evaluator : Arrays.asList("rocchio", "knn:3")) {
+					AbstractFeatureSelectionEvaluator expected = EvaluatorContext.prepare(
+							evaluator, heap).newEvaluator(selection);
+					AbstractFeatureSelectionEvaluator actual = EvaluatorContext.prepare(
+							evaluator, offHeap).newEvaluator(selection);
+					for (int i = 0; i < NUM_ROWS; i++) {
+						assertEquals(expected.classify(i), actual.classify(i));
+					}
+				}
+			}
+		}
+	}
+
+	public void testOffHeapRowsSpanBuffers() {
+		// one row per buffer
+		OffHeapRows rows = new OffHeapRows(24, 40);
+		rows.add(new double[] { 1.0, 2.0, 3.0 });
+		rows.add(new double[] { 4.0, 5.0, 6.0 });
+		rows.add(new double[] { 7.0, 8.0, 9.0 });
+		assertEquals(3 * 24, rows.getNumAllocatedBytes());
+		assertNotSame(rows.buffer(0), rows.buffer(1));
+		assertEquals(0, rows.offset(2));
+		FeatureMatrix matrix = new FeatureMatrix(Arrays.asList("a", "b", "a"), rows);
+		assertEquals(3, matrix.getNumColumns());
+		assertEquals(8.0, matrix.get(2, 1));
+		matrix.close();
+		assertEquals(0, rows.getNumAllocatedBytes());
+		try {
+			matrix.get(2, 1);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			rows.add(new double[3]);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
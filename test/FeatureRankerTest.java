@@ -0,0 +1,76 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FeatureRankerTest extends TestCase {
+	private static final String CORPUS = "c1\ta b\nc1\ta a\nc2\tb\nc2\tc\n";
+
+	private File dir;
+
+	private String corpusFilePath;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("ranker").toFile();
+		corpusFilePath = new File(dir, "corpus.txt").getPath();
+		Files.write(new File(corpusFilePath).toPath(), CORPUS.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testScores() throws IOException {
+		FeatureRanker ranker = FeatureRanker.count(corpusFilePath, 1);
+		assertEquals(4, ranker.getNumDocs());
+		// a is in exactly the c1 documents
+		assertEquals(1.0, ranker.score("a", FeatureRanker.Measure.IG), 1e-12);
+		assertEquals(1.0, ranker.score("a", FeatureRanker.Measure.MI), 1e-12);
+		assertEquals(4.0, ranker.score("a", FeatureRanker.Measure.CHI2), 1e-12);
+		// b is in one document of each class
+		assertEquals(0.0, ranker.score("b", FeatureRanker.Measure.IG), 1e-12);
+		assertEquals(0.0, ranker.score("b", FeatureRanker.Measure.MI), 1e-12);
+		assertEquals(0.0, ranker.score("b", FeatureRanker.Measure.CHI2), 1e-12);
+		// c is in one c2 document: 1 - 3/4 H(1/3, 2/3)
+		double entropy = -(Math.log(1.0 / 3) / 3 + Math.log(2.0 / 3) * 2 / 3) / Math.log(2.0);
+		assertEquals(1.0 - 0.75 * entropy, ranker.score("c", FeatureRanker.Measure.IG), 1e-12);
+		assertEquals(1.0, ranker.score("c", FeatureRanker.Measure.MI), 1e-12);
+		assertEquals(4.0 / 3, ranker.score("c", FeatureRanker.Measure.CHI2), 1e-12);
+	}
+
+	public void testParallelMatchesSerial() throws IOException {
+		String corpus = new File(dir, "synthetic.txt").getPath();
+		new SyntheticCorpusGenerator(500, 4, 20, 1.0, 0.5).generate(corpus, 300, 1L);
+		FeatureRanker serial = FeatureRanker.count(corpus, 1);
+		FeatureRanker parallel = FeatureRanker.count(corpus, 4);
+		assertEquals(serial.getTerms(), parallel.getTerms());
+		for (FeatureRanker.Measure measure : FeatureRanker.Measure.values()) {
+			assertEquals(serial.rank(measure, 50), parallel.rank(measure, 50));
+		}
+	}
+
+	public void testRankingFileColumns() throws IOException {
+		String tfidfFilePath = new File(dir, "corpus.csv").getPath();
+		new TfidfCalculator(1).calculate(corpusFilePath, tfidfFilePath, false);
+		String rankingFilePath = new File(dir, "ranking.txt").getPath();
+		FeatureRanker ranker = FeatureRanker.count(corpusFilePath, 1);
+		assertEquals(2, ranker.writeRanking(FeatureRanker.Measure.IG, 2, tfidfFilePath,
+				rankingFilePath));
+		List<String> lines = Files.readAllLines(new File(rankingFilePath).toPath(),
+				StandardCharsets.UTF_8);
+		// the header is class_unique,a,b,c; positions are 1-based
+		assertEquals(Arrays.asList("2", "a"), Arrays.asList(lines.get(0).trim().split("\\s+"))
+				.subList(1, 3));
+		assertEquals(Arrays.asList("4", "c"), Arrays.asList(lines.get(1).trim().split("\\s+"))
+				.subList(1, 3));
+	}
+}
@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FeatureSelectionPipelineTest extends TestCase {
+	private File dir;
+
+	private String corpus;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("pipeline").toFile();
+		corpus = new File(dir, "corpus.txt").getPath();
+		new SyntheticCorpusGenerator(300, 3, 20, 1.0, 0.3).generate(corpus, 200, 1L);
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private byte[] read(String path) throws IOException {
+		return Files.readAllBytes(new File(path).toPath());
+	}
+
+	public void testVectorizeMatchesCalculate() throws IOException {
+		String csv = new File(dir, "corpus.csv").getPath();
+		new TfidfCalculator(2).calculate(corpus, csv, true);
+		TfidfVectors vectors = new TfidfCalculator(2).vectorize(corpus, true);
+		String written = new File(dir, "written.csv").getPath();
+		vectors.write(written, TfidfRowWriter.Format.CSV);
+		assertTrue(Arrays.equals(read(csv), read(written)));
+
+		// and back, through each format
+		for (TfidfRowWriter.Format format : TfidfRowWriter.Format.values()) {
+			String path = new File(dir, "vectors." + format).getPath();
+			vectors.write(path, format);
+			TfidfVectors loaded = TfidfVectors.read(path, format);
+			String rewritten = new File(dir, "rewritten.csv").getPath();
+			loaded.write(rewritten, TfidfRowWriter.Format.CSV);
+			assertTrue(format.toString(), Arrays.equals(read(csv), read(rewritten)));
+		}
+	}
+
+	public void testProject() {
+		TfidfVectors vectors = new TfidfVectors(Arrays.asList("a", "b", "c"));
+		vectors.writeRow("c1", new int[] { 0, 1, 2 }, new double[] { 1.0, 3.0, 4.0 }, 3);
+		vectors.writeRow("c2", new int[] { 0 }, new double[] { 2.0 }, 1);
+		TfidfVectors projected = vectors.project(Arrays.asList(2, 1), true);
+		assertEquals(Arrays.asList("c", "b"), projected.getFeatureNames());
+		assertTrue(Arrays.equals(new int[] { 0, 1 }, projected.getFeatureIndices(0)));
+		assertTrue(Arrays.equals(new double[] { 0.8, 0.6 }, projected.getValues(0)));
+		assertEquals(0, projected.getFeatureIndices(1).length);
+
+		FeatureMatrix matrix = projected.toFeatureMatrix(false);
+		assertEquals(2, matrix.getNumRows());
+		assertTrue(Arrays.equals(new double[] { 0.0, 0.0 }, matrix.getRow(1)));
+		assertEquals("c2", matrix.getClassName(1));
+	}
+
+	public void testMatchesFileWorkflowAndResumes() throws IOException {
+		File workDir = new File(dir, "work");
+		String output = new File(dir, "output.csv").getPath();
+		String gbestCopy = new File(dir, "gbest-copy.txt").getPath();
+		FeatureSelectionPipeline.Options options = FeatureSelectionPipeline.Options.parse(
+				new String[] { "-work", workDir.getPath(), "-top", "30", "-threads", "2", "-o",
+						gbestCopy }, 0);
+		new FeatureSelectionPipeline(corpus, 2, 3, options).run(output);
+		for (String fileName : Arrays.asList(FeatureSelectionPipeline.TFIDF_FILE_NAME,
+				FeatureSelectionPipeline.RANKING_FILE_NAME,
+				FeatureSelectionPipeline.SELECTED_FILE_NAME,
+				FeatureSelectionPipeline.GBEST_FILE_NAME)) {
+			assertTrue(fileName, new File(workDir, fileName).exists());
+		}
+		assertTrue(Arrays.equals(read(new File(workDir, FeatureSelectionPipeline.GBEST_FILE_NAME)
+				.getPath()), read(gbestCopy)));
+
+		// the same steps through files
+		String csv = new File(dir, "corpus.csv").getPath();
+		new TfidfCalculator(2).calculate(corpus, csv, false);
+		String ranking = new File(dir, "ranking.txt").getPath();
+		FeatureRanker.count(corpus, 2).writeRanking(FeatureRanker.Measure.IG, 30, csv, ranking);
+		assertTrue(Arrays.equals(read(ranking), read(new File(workDir,
+				FeatureSelectionPipeline.RANKING_FILE_NAME).getPath())));
+		String selected = new File(dir, "selected.csv").getPath();
+		MutualInfoResultExtractor.main(new String[] { ranking, csv, selected });
+		String expected = new File(dir, "expected.csv").getPath();
+		new FeatureSelectedDocGenerator(selected, expected, new File(workDir,
+				FeatureSelectionPipeline.GBEST_FILE_NAME).getPath());
+		assertTrue(Arrays.equals(read(expected), read(output)));
+
+		String resumed = new File(dir, "resumed.csv").getPath();
+		options = FeatureSelectionPipeline.Options.parse(new String[] { "-work",
+				workDir.getPath(), "-from", "project" }, 0);
+		FeatureSelectionPipeline pipeline = new FeatureSelectionPipeline(corpus, 2, 3, options);
+		pipeline.run(resumed);
+		assertEquals(Arrays.asList(FeatureSelectionPipeline.Stage.PROJECT), Arrays.asList(pipeline
+				.getStageNanos().keySet().toArray()));
+		assertTrue(Arrays.equals(read(expected), read(resumed)));
+	}
+
+	public void testResumeNeedsWorkDirectory() {
+		try {
+			new FeatureSelectionPipeline(corpus, 2, 3, FeatureSelectionPipeline.Options.parse(
+					new String[] { "-from", "search" }, 0));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class IncrementalTfidfStoreTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("tfidf-store").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		deleteRecursively(dir);
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	public void testBatchesMatchTheWholeCorpus() throws IOException {
+		String corpus = new File(dir, "corpus.txt").getPath();
+		new SyntheticCorpusGenerator(400, 3, 20, 1.0, 0.3).generate(corpus, 150, 1L);
+		List<String> lines = Files.readAllLines(new File(corpus).toPath(), StandardCharsets.UTF_8);
+		File first = new File(dir, "first.txt");
+		File second = new File(dir, "second.txt");
+		Files.write(first.toPath(), lines.subList(0, 100), StandardCharsets.UTF_8);
+		Files.write(second.toPath(), lines.subList(100, 150), StandardCharsets.UTF_8);
+
+		File storeDir = new File(dir, "store");
+		IncrementalTfidfStore store = IncrementalTfidfStore.create(storeDir, true);
+		assertEquals(100, store.append(first.getPath()));
+		// a reopened store carries on from its state file
+		store = IncrementalTfidfStore.open(storeDir);
+		assertEquals(50, store.append(second.getPath()));
+		assertEquals(150, store.getNumDocs());
+
+		File expected = new File(dir, "expected.csv");
+		File actual = new File(dir, "actual.csv");
+		new TfidfCalculator(1).calculate(corpus, expected.getPath(), true);
+		store.export(actual.getPath(), TfidfRowWriter.Format.CSV);
+		assertTrue(Arrays.equals(Files.readAllBytes(expected.toPath()),
+				Files.readAllBytes(actual.toPath())));
+	}
+
+	public void testAppendWhoseStateCannotBeWrittenIsRolledBack() throws IOException {
+		File batch = new File(dir, "batch.txt");
+		Files.write(batch.toPath(), "c1\ta b\nc2\tb c\n".getBytes(StandardCharsets.UTF_8));
+		File storeDir = new File(dir, "store");
+		IncrementalTfidfStore store = IncrementalTfidfStore.create(storeDir, false);
+		store.append(batch.getPath());
+		// the state is written to a temporary file first, which cannot be a directory
+		File tempStateFile = new File(storeDir, "state.tmp");
+		assertTrue(tempStateFile.mkdir());
+		File failed = new File(dir, "failed.txt");
+		Files.write(failed.toPath(), "c4\te d\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			store.append(failed.getPath());
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(tempStateFile.delete());
+		assertEquals(2, store.getNumDocs());
+		File next = new File(dir, "next.txt");
+		Files.write(next.toPath(), "c3\tc d\n".getBytes(StandardCharsets.UTF_8));
+		store.append(next.getPath());
+		assertEquals(3, store.getNumDocs());
+
+		// the rows of the failed batch are not read in place of the next one, nor
+		// its terms kept
+		File output = new File(dir, "output.sparse");
+		store.export(output.getPath(), TfidfRowWriter.Format.SPARSE);
+		String a = "0:" + (0.5 * Math.log10(3.0));
+		String b = "1:" + (0.5 * Math.log10(1.5));
+		String c = "2:" + (0.5 * Math.log10(1.5));
+		assertEquals(Arrays.asList("class_unique,a,b,c,d", "c1 " + a + " " + b, "c2 " + b + " "
+				+ c, "c3 " + c + " 3:" + (0.5 * Math.log10(3.0))), Files.readAllLines(output.toPath(),
+				StandardCharsets.UTF_8));
+		assertEquals(3, IncrementalTfidfStore.open(storeDir).getNumDocs());
+	}
+
+	public void testFailedAppendIsCutOff() throws IOException {
+		File batch = new File(dir, "batch.txt");
+		Files.write(batch.toPath(), "c1\ta b\nc2\tb c\n".getBytes(StandardCharsets.UTF_8));
+		File storeDir = new File(dir, "store");
+		IncrementalTfidfStore.create(storeDir, false).append(batch.getPath());
+		// the tail of an append that never reached the state file
+		try (FileOutputStream out = new FileOutputStream(new File(storeDir, "counts"), true)) {
+			out.write(new byte[] { 1, 2, 3 });
+		}
+		IncrementalTfidfStore store = IncrementalTfidfStore.open(storeDir);
+		store.append(batch.getPath());
+		assertEquals(4, store.getNumDocs());
+		TfidfModel model = store.getModel();
+		assertEquals(Arrays.asList("a", "b", "c"), model.getTerms());
+		assertEquals(4, model.getNumAppearance(model.getTermId("b")));
+
+		File output = new File(dir, "output.sparse");
+		store.export(output.getPath(), TfidfRowWriter.Format.SPARSE);
+		String a = "0:" + (0.5 * Math.log10(2.0));
+		String c = "2:" + (0.5 * Math.log10(2.0));
+		assertEquals(Arrays.asList("class_unique,a,b,c", "c1 " + a, "c2 " + c, "c1 " + a, "c2 "
+				+ c), Files.readAllLines(output.toPath(), StandardCharsets.UTF_8));
+	}
+}
@@ -1,15 +1,20 @@
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import com.google.common.collect.Sets;
 
 public class KdTreeTest extends TestCase {
 
+	private DataSet dataSet;
+
 	private KdTree tree;
 
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
-		DataSet dataSet = new DataSet(2);
+		dataSet = new DataSet(2);
 		dataSet.addInstance(MathUtil.makeInstance(2, 3));
 		dataSet.addInstance(MathUtil.makeInstance(5, 4));
 		dataSet.addInstance(MathUtil.makeInstance(4, 7));
@@ -86,4 +91,21 @@ public class KdTreeTest extends TestCase {
 						MathUtil.makeInstance(9, 6)),
 				tree.findKNearestNodes(MathUtil.makeInstance(9, 6), 3).getDataPoints());
 	}
+
+	public void testReadsRowsOffTheHeap() {
+		List<DataPoint> instances = new ArrayList<>();
+		for (int i = 0; i < dataSet.getSize(); i++) {
+			instances.add(dataSet.getInstance(i));
+		}
+		try (FeatureMatrix data = new FeatureMatrix(instances).withStorage(
+				FeatureMatrix.Storage.OFF_HEAP)) {
+			KdTree offHeapTree = KdTree.build(data);
+			assertEquals(tree.getRootNode().getRow(), offHeapTree.getRootNode().getRow());
+			assertEquals(MathUtil.makeInstance(8, 1), offHeapTree.findNearestNode(MathUtil
+					.makeInstance(6.99, 0.01)));
+			assertEquals(Sets.newHashSet(MathUtil.makeInstance(5, 4), MathUtil.makeInstance(7,
+					2), MathUtil.makeInstance(8, 1)), offHeapTree.findKNearestNodes(MathUtil
+					.makeInstance(6, 2), 3).getDataPoints());
+		}
+	}
 }
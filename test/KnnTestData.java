@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Normalized rows of three classes for the KNN tests, each biased towards the
+ * features of its class; every fifth row repeats the previous one, so that
+ * neighbors tie.
+ */
+public class KnnTestData {
+	final List<String> classNames = new ArrayList<>();
+
+	final double[][] rows;
+
+	KnnTestData(int numRows, int numColumns, long seed) {
+		Random random = new Random(seed);
+		rows = new double[numRows][numColumns];
+		for (int i = 0; i < numRows; i++) {
+			int label = (i * 7) % 3;
+			classNames.add("class" + label);
+			if (i % 5 == 4) {
+				rows[i] = rows[i - 1].clone();
+				continue;
+			}
+			double norm = 0.0;
+			for (int j = 0; j < numColumns; j++) {
+				rows[i][j] = random.nextDouble() + (j % 3 == label ? 0.3 : 0.0);
+				norm += rows[i][j] * rows[i][j];
+			}
+			for (int j = 0; j < numColumns; j++) {
+				rows[i][j] /= Math.sqrt(norm);
+			}
+		}
+	}
+
+	FeatureMatrix toFeatureMatrix() {
+		return new FeatureMatrix(classNames, rows);
+	}
+
+	/** A mask that selects each feature with probability {@code density}. */
+	static List<Integer> randomMask(Random random, int numColumns, double density) {
+		List<Integer> mask = new ArrayList<>();
+		for (int j = 0; j < numColumns; j++) {
+			mask.add(random.nextDouble() < density ? 1 : 0);
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,38 @@
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testBucketsAreContiguous() {
+		for (long value = 0; value < 100000; value++) {
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+			if (index > 0) {
+				assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+			}
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram
+				.bucketIndex(Long.MAX_VALUE)));
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value * 1000);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(1000, histogram.getMin());
+		assertEquals(10000000, histogram.getMax());
+		assertEquals(5000500.0, histogram.getMean(), 1e-6);
+		double maxRelativeError = 1.0 / LatencyHistogram.NUM_SUB_BUCKETS;
+		assertEquals(5000000, histogram.getValueAtPercentile(50.0), 5000000 * maxRelativeError);
+		assertEquals(9900000, histogram.getValueAtPercentile(99.0), 9900000 * maxRelativeError);
+		assertEquals(10000000, histogram.getValueAtPercentile(100.0));
+	}
+
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99.0));
+		assertEquals(0, histogram.getMin());
+		assertEquals(0.0, histogram.getMean());
+	}
+}
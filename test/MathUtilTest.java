@@ -20,6 +20,22 @@ public class MathUtilTest extends TestCase {
 		assertEquals(expectedValue, MathUtil.median(values));
 	}
 
+	public void testNarrowKernelsAtExtremes() {
+		int[] featureIndices = { 0, 1, 2 };
+		float[] ones = { 1.0f, 1.0f, 1.0f };
+		float[] point = { 0.5f, -0.25f, 0.0f };
+		byte[] bytes = { Byte.MIN_VALUE, Byte.MAX_VALUE, 0 };
+		assertEquals(128.0 * 128 + 127 * 127, MathUtil.dotProduct(bytes, bytes, new int[] { 1, 1,
+				1 }, 1.0, featureIndices));
+		assertEquals(128.5 * 128.5 + 127.25 * 127.25, MathUtil.calculateSquaredEuclideanDistance(
+				bytes, ones, point, featureIndices));
+		short[] shorts = { Short.MIN_VALUE, Short.MAX_VALUE, -1 };
+		assertEquals(32768.0 * 32768 + 32767.0 * 32767 + 1, MathUtil.dotProduct(shorts, shorts,
+				ones, featureIndices), 1e-6 * 32768 * 32768);
+		assertEquals(32768.0 * 32768, MathUtil.calculateSquaredEuclideanDistance(shorts, ones,
+				new float[] { 0.0f, 0.0f, 0.0f }, new int[] { 0 }));
+	}
+
 	public void testRandomBits() {
 		int numBits = 23;
 		BitSet bitSet = MathUtil.randomBits(numBits);
@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RacingFitnessEvaluatorTest extends TestCase {
+
+	public void testStageSizes() {
+		assertEquals("[13, 26, 52, 100]",
+				java.util.Arrays.toString(RacingFitnessEvaluator.stageSizes(100, 0.125)));
+		assertEquals("[10]", java.util.Arrays.toString(RacingFitnessEvaluator.stageSizes(10, 1.0)));
+	}
+
+	public void testSerflingBoundShrinks() {
+		assertTrue(RacingFitnessEvaluator.serflingBound(100, 100, 0.05) < 0.02);
+		assertTrue(RacingFitnessEvaluator.serflingBound(10, 100, 0.05) > RacingFitnessEvaluator
+				.serflingBound(50, 100, 0.05));
+	}
+
+	public void testStratifiedOrder() {
+		List<DataPoint> dataSet = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			DataPoint point = MathUtil.makeInstance(i, i);
+			// 80% of class "a", 20% of class "b".
+			point.setClassName(i % 5 == 0 ? "b" : "a");
+			dataSet.add(point);
+		}
+		List<Integer> order = RacingFitnessEvaluator.stratifiedOrder(new FeatureMatrix(dataSet),
+				new Random(1));
+		assertEquals(100, new HashSet<>(order).size());
+		// Each prefix keeps the class proportions.
+		int numB = 0;
+		for (int i = 0; i < 20; i++) {
+			if (dataSet.get(order.get(i)).getClassName().equals("b")) {
+				numB++;
+			}
+		}
+		assertTrue("numB=" + numB, numB >= 3 && numB <= 5);
+	}
+
+	/** Classifies correctly the instances whose index ends in a digit below a bound. */
+	private static class FixedAccuracyEvaluator extends AbstractFeatureSelectionEvaluator {
+		private final int numCorrectDigits;
+
+		List<Integer> firstInstances = null;
+
+		FixedAccuracyEvaluator(FeatureMatrix data, int numCorrectDigits) {
+			super(Collections.nCopies(data.getNumColumns(), 1), data);
+			this.numCorrectDigits = numCorrectDigits;
+		}
+
+		@Override
+		public double calcFitness(double alpha, double beta, int samplingFolders) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int countCorrectlyClassified(List<Integer> instanceIndices) {
+			if (firstInstances == null) {
+				firstInstances = new ArrayList<>(instanceIndices);
+			}
+			int result = 0;
+			for (int i : instanceIndices) {
+				result += i % 10 < numCorrectDigits ? 1 : 0;
+			}
+			return result;
+		}
+
+		@Override
+		public int classify(int instanceIndex) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static FeatureMatrix twoClasses(int numRows) {
+		List<String> classNames = new ArrayList<>();
+		double[][] rows = new double[numRows][2];
+		for (int i = 0; i < numRows; i++) {
+			classNames.add(i % 2 == 0 ? "a" : "b");
+			rows[i][i % 2] = 1.0;
+		}
+		return new FeatureMatrix(classNames, rows);
+	}
+
+	public void testRejectsAClearlyWorseParticleEarly() {
+		FeatureMatrix data = twoClasses(2000);
+		RacingFitnessEvaluator racing = new RacingFitnessEvaluator(data, 0.05, 0.05);
+		FixedAccuracyEvaluator worse = new FixedAccuracyEvaluator(data, 3);
+		double fitnessToBeat = worse.fitness(0.9, 0.1, 0.9);
+		assertTrue(racing.calcFitness(worse, 0.9, 0.1, fitnessToBeat) < fitnessToBeat);
+		assertEquals(0, racing.getNumFullEvaluations());
+		assertTrue(racing.getWorkRatio() < 0.2);
+	}
+
+	public void testPromotesAParticleCloseToTheBest() {
+		FeatureMatrix data = twoClasses(2000);
+		RacingFitnessEvaluator racing = new RacingFitnessEvaluator(data, 0.05, 0.05);
+		FixedAccuracyEvaluator close = new FixedAccuracyEvaluator(data, 9);
+		assertEquals(close.fitness(0.9, 0.1, 0.9), racing.calcFitness(close, 0.9, 0.1, close
+				.fitness(0.9, 0.1, 0.91)), 1e-12);
+		assertEquals(1, racing.getNumFullEvaluations());
+	}
+
+	public void testDrawsAnOrderPerEvaluation() {
+		FeatureMatrix data = twoClasses(200);
+		RacingFitnessEvaluator racing = new RacingFitnessEvaluator(data, 0.1, 0.05);
+		FixedAccuracyEvaluator first = new FixedAccuracyEvaluator(data, 5);
+		FixedAccuracyEvaluator second = new FixedAccuracyEvaluator(data, 5);
+		racing.calcFitness(first, 0.9, 0.1, Double.NEGATIVE_INFINITY);
+		racing.calcFitness(second, 0.9, 0.1, Double.NEGATIVE_INFINITY);
+		assertEquals(first.firstInstances.size(), second.firstInstances.size());
+		assertFalse(first.firstInstances.equals(second.firstInstances));
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RemoteFitnessEvaluatorTest extends TestCase {
+	private static final int NUM_ROWS = 60;
+
+	private static final int NUM_COLUMNS = 70;
+
+	private FeatureMatrix data;
+
+	private List<FitnessWorker> workers = new ArrayList<>();
+
+	private List<String> addresses = new ArrayList<>();
+
+	@Override
+	protected void setUp() throws IOException {
+		Random random = new Random(298L);
+		List<String> classNames = new ArrayList<>();
+		double[][] rows = new double[NUM_ROWS][NUM_COLUMNS];
+		for (int i = 0; i < NUM_ROWS; i++) {
+			int label = i % 3;
+			classNames.add("class" + label);
+			for (int j = 0; j < NUM_COLUMNS; j++) {
+				rows[i][j] = random.nextDouble() + (j % 3 == label ? 0.5 : 0.0);
+			}
+		}
+		data = new FeatureMatrix(classNames, rows);
+		for (int w = 0; w < 2; w++) {
+			final FitnessWorker worker = new FitnessWorker(0, data, new BPSOSearch.Options());
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					worker.serve();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+			workers.add(worker);
+			addresses.add("localhost:" + worker.getPort());
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		for (FitnessWorker worker : workers) {
+			worker.close();
+		}
+	}
+
+	private List<ArrayList<Integer>> randomPositions(int numPositions) {
+		Random random = new Random(numPositions);
+		List<ArrayList<Integer>> positions = new ArrayList<>();
+		for (int p = 0; p < numPositions; p++) {
+			ArrayList<Integer> position = new ArrayList<>();
+			for (int j = 0; j < NUM_COLUMNS; j++) {
+				position.add(random.nextInt(2));
+			}
+			positions.add(position);
+		}
+		return positions;
+	}
+
+	private List<Double> localFitness(List<ArrayList<Integer>> positions) throws Exception {
+		EvaluatorContext context = EvaluatorContext.prepare(EvaluatorContext.DEFAULT_EVALUATOR,
+				data);
+		List<Double> result = new ArrayList<>();
+		for (ArrayList<Integer> position : positions) {
+			result.add(new BPSOSearch.CalcFitnessTask(context, position, "local", null,
+					Double.NEGATIVE_INFINITY).call());
+		}
+		return result;
+	}
+
+	public void testMatchesLocalEvaluation() throws Exception {
+		List<ArrayList<Integer>> positions = randomPositions(12);
+		List<Double> toBeat = Collections.nCopies(positions.size(), Double.NEGATIVE_INFINITY);
+		try (RemoteFitnessEvaluator coordinator = new RemoteFitnessEvaluator(addresses,
+				NUM_COLUMNS, 0)) {
+			// the second swarm is batched by the latencies of the first
+			for (int swarm = 0; swarm < 2; swarm++) {
+				assertEquals(localFitness(positions), coordinator.calcFitness(positions, toBeat));
+			}
+		}
+	}
+
+	public void testResubmitsWhenAWorkerFails() throws Exception {
+		List<ArrayList<Integer>> positions = randomPositions(20);
+		List<Double> toBeat = Collections.nCopies(positions.size(), Double.NEGATIVE_INFINITY);
+		List<Double> expected = localFitness(positions);
+		try (RemoteFitnessEvaluator coordinator = new RemoteFitnessEvaluator(addresses,
+				NUM_COLUMNS, 0)) {
+			assertEquals(expected, coordinator.calcFitness(positions, toBeat));
+			workers.get(1).close();
+			assertEquals(expected, coordinator.calcFitness(positions, toBeat));
+			workers.get(0).close();
+			try {
+				coordinator.calcFitness(positions, toBeat);
+				fail();
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testRejectsWorkersOfAnotherDataSet() {
+		try {
+			new RemoteFitnessEvaluator(addresses, NUM_COLUMNS + 1, 0);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testSkipsWorkersOfAnotherDataSet() throws Exception {
+		double[][] rows = new double[NUM_ROWS][NUM_COLUMNS + 1];
+		List<String> classNames = new ArrayList<>();
+		for (int i = 0; i < NUM_ROWS; i++) {
+			classNames.add("class" + i % 3);
+			rows[i][i % 3] = 1.0;
+		}
+		final FitnessWorker otherWorker = new FitnessWorker(0, new FeatureMatrix(classNames,
+				rows), new BPSOSearch.Options());
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				otherWorker.serve();
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		workers.add(otherWorker);
+		List<String> mixedAddresses = new ArrayList<>(addresses);
+		mixedAddresses.add(0, "localhost:" + otherWorker.getPort());
+		List<ArrayList<Integer>> positions = randomPositions(12);
+		List<Double> toBeat = Collections.nCopies(positions.size(), Double.NEGATIVE_INFINITY);
+		try (RemoteFitnessEvaluator coordinator = new RemoteFitnessEvaluator(mixedAddresses,
+				NUM_COLUMNS, 0)) {
+			assertEquals(localFitness(positions), coordinator.calcFitness(positions, toBeat));
+		}
+	}
+
+	public void testMasksArePackedAsBits() throws IOException {
+		ArrayList<Integer> position = randomPositions(1).get(0);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		FitnessProtocol.writeMask(new DataOutputStream(bytes), position);
+		// 70 features in two longs
+		assertEquals(16, bytes.size());
+		assertEquals(position, FitnessProtocol.readMask(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())), NUM_COLUMNS));
+		assertEquals(Arrays.asList(1, 0, 1), FitnessProtocol.readMask(new DataInputStream(
+				new ByteArrayInputStream(new byte[] { 0, 0, 0, 0, 0, 0, 0, 5 })), 3));
+	}
+}
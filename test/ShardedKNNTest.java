@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ShardedKNNTest extends TestCase {
+	private static final int NUM_ROWS = 61;
+
+	private static final int NUM_COLUMNS = 40;
+
+	private KnnTestData testData;
+
+	private FeatureMatrix data;
+
+	private List<KnnShardServer> servers = new ArrayList<>();
+
+	@Override
+	protected void setUp() {
+		testData = new KnnTestData(NUM_ROWS, NUM_COLUMNS, 46L);
+		data = testData.toFeatureMatrix();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (KnnShardServer server : servers) {
+			server.close();
+		}
+	}
+
+	private List<List<Integer>> randomMasks() {
+		Random random = new Random(NUM_COLUMNS);
+		List<List<Integer>> masks = new ArrayList<>();
+		for (double density : new double[] { 0.1, 0.5, 1.0 }) {
+			masks.add(KnnTestData.randomMask(random, NUM_COLUMNS, density));
+		}
+		return masks;
+	}
+
+	private static List<Integer> allInstances() {
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < NUM_ROWS; i++) {
+			result.add(i);
+		}
+		return result;
+	}
+
+	private void assertSameClasses(FeatureMatrix data, ShardedKNN.Context context, int numK) {
+		for (List<Integer> mask : randomMasks()) {
+			KNN expected = new KNN(numK, mask, data);
+			ShardedKNN actual = context.newEvaluator(mask);
+			for (int i = 0; i < NUM_ROWS; i++) {
+				assertEquals(expected.classify(i), actual.classify(i));
+			}
+			assertEquals(expected.countCorrectlyClassified(allInstances()), actual
+					.countCorrectlyClassified(allInstances()));
+			assertEquals(expected.calcFitness(0.8, 0.2, 1), actual.calcFitness(0.8, 0.2, 1));
+		}
+	}
+
+	public void testLocalShardsMatchKnn() {
+		for (FeatureMatrix.Storage storage : FeatureMatrix.Storage.values()) {
+			try (FeatureMatrix stored = data.withStorage(storage)) {
+				for (int numShards : new int[] { 1, 2, 3, 7 }) {
+					try (ShardedKNN.Context context = new ShardedKNN.Context(LocalKnnShard
+							.partition(stored, numShards), 5)) {
+						assertEquals(NUM_ROWS, context.getNumInstances());
+						assertSameClasses(stored, context, 5);
+					}
+				}
+			}
+		}
+	}
+
+	private List<String> startServers(int numShards) throws IOException {
+		List<String> addresses = new ArrayList<>();
+		for (int s = 0; s < numShards; s++) {
+			List<String> shardClassNames = new ArrayList<>();
+			List<double[]> shardRows = new ArrayList<>();
+			for (int i = s; i < NUM_ROWS; i += numShards) {
+				shardClassNames.add(testData.classNames.get(i));
+				shardRows.add(testData.rows[i]);
+			}
+			final KnnShardServer server = new KnnShardServer(0, new FeatureMatrix(
+					shardClassNames, shardRows.toArray(new double[shardRows.size()][])), s,
+					numShards);
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					server.serve();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+			servers.add(server);
+			addresses.add("localhost:" + server.getPort());
+		}
+		return addresses;
+	}
+
+	public void testServersMatchKnn() throws IOException {
+		List<String> addresses = startServers(3);
+		try (ShardedKNN.Context context = EvaluatorContext.prepareSharded("knn:3",
+				RemoteKnnShard.connectAll(addresses, 0))) {
+			assertEquals("knn:3", context.getName());
+			assertSameClasses(data, context, 3);
+		}
+	}
+
+	public void testRejectsServersOutOfOrder() throws IOException {
+		List<String> addresses = startServers(2);
+		try {
+			new RemoteKnnShard(addresses.get(1), 0, 2, 0);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testFailsWhenAShardIsDown() throws IOException {
+		List<String> addresses = startServers(2);
+		try (ShardedKNN.Context context = new ShardedKNN.Context(RemoteKnnShard.connectAll(
+				addresses, 0), 5)) {
+			ShardedKNN knn = context.newEvaluator(randomMasks().get(1));
+			knn.classify(0);
+			servers.get(1).close();
+			try {
+				knn.classify(0);
+				fail();
+			} catch (UncheckedIOException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TfidfCalculatorTest extends TestCase {
+	private static final String CORPUS = "c1\ta b a\nc2\tb c\nc1\ta c c d\n";
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("tfidf").toFile();
+		Files.write(new File(dir, "corpus.txt").toPath(), CORPUS.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private List<String> calculate(boolean isNormalizeVector, TfidfRowWriter.Format format)
+			throws IOException {
+		File output = new File(dir, "out");
+		new TfidfCalculator(1).calculate(new File(dir, "corpus.txt").getPath(), output.getPath(),
+				isNormalizeVector, format);
+		return Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+	}
+
+	public void testCsv() throws IOException {
+		List<String> lines = calculate(false, TfidfRowWriter.Format.CSV);
+		assertEquals(Arrays.asList("class_unique,a,b,c,d"), lines.subList(0, 1));
+		assertEquals(4, lines.size());
+		double idfA = Math.log10(3.0 / 2);
+		double idfD = Math.log10(3.0);
+		assertEquals("c1," + (2.0 / 3 * idfA) + "," + (1.0 / 3 * idfA) + ",0.0,0.0", lines.get(1));
+		assertEquals("c1," + (1.0 / 4 * idfA) + ",0.0," + (2.0 / 4 * idfA) + "," + (1.0 / 4 * idfD),
+				lines.get(3));
+	}
+
+	public void testSparseMatchesCsv() throws IOException {
+		List<String> csv = calculate(true, TfidfRowWriter.Format.CSV);
+		List<String> sparse = calculate(true, TfidfRowWriter.Format.SPARSE);
+		assertEquals(csv.get(0), sparse.get(0));
+		assertEquals(csv.size(), sparse.size());
+		for (int i = 1; i < csv.size(); i++) {
+			String[] denseValues = csv.get(i).split(",");
+			String[] pairs = sparse.get(i).split(" ");
+			assertEquals(denseValues[0], pairs[0]);
+			double[] values = new double[denseValues.length - 1];
+			for (int j = 1; j < pairs.length; j++) {
+				String[] pair = pairs[j].split(":");
+				values[Integer.parseInt(pair[0])] = Double.parseDouble(pair[1]);
+			}
+			double length = 0.0;
+			for (int j = 0; j < values.length; j++) {
+				assertEquals(Double.parseDouble(denseValues[j + 1]), values[j]);
+				length += values[j] * values[j];
+			}
+			assertEquals(1.0, length, 1e-12);
+		}
+	}
+
+	public void testParallelMatchesSerial() throws IOException {
+		String corpus = new File(dir, "synthetic.txt").getPath();
+		new SyntheticCorpusGenerator(500, 4, 20, 1.0, 0.3).generate(corpus, 300, 1L);
+		for (TfidfRowWriter.Format format : TfidfRowWriter.Format.values()) {
+			File serial = new File(dir, "serial");
+			File parallel = new File(dir, "parallel");
+			new TfidfCalculator(1).calculate(corpus, serial.getPath(), true, format);
+			// 4 threads split the corpus into 16 chunks
+			new TfidfCalculator(4).calculate(corpus, parallel.getPath(), true, format);
+			assertTrue(format.toString(), Arrays.equals(Files.readAllBytes(serial.toPath()),
+					Files.readAllBytes(parallel.toPath())));
+		}
+	}
+
+	public void testWhitespace() throws IOException {
+		Files.write(new File(dir, "corpus.txt").toPath(),
+				"c1 a\t\tb \r\n\n  \nc2\fb\u000Bc\n".getBytes(StandardCharsets.UTF_8));
+		List<String> lines = calculate(false, TfidfRowWriter.Format.SPARSE);
+		assertEquals(Arrays.asList("class_unique,a,b,c", "c1 0:" + (0.5 * Math.log10(2.0)),
+				"c2 2:" + (0.5 * Math.log10(2.0))), lines);
+	}
+
+	public void testExternalMatchesInMemory() throws IOException {
+		String corpus = new File(dir, "synthetic.txt").getPath();
+		new SyntheticCorpusGenerator(500, 4, 20, 1.0, 0.3).generate(corpus, 300, 1L);
+		File inMemory = new File(dir, "in-memory");
+		File external = new File(dir, "external");
+		new TfidfCalculator(1).calculate(corpus, inMemory.getPath(), false);
+		// a budget of a few documents spills many runs in both passes
+		new ExternalTfidfCalculator(4096, dir).calculate(corpus, external.getPath(), false,
+				TfidfRowWriter.Format.CSV);
+		// the run files are gone
+		assertEquals(4, dir.listFiles().length);
+
+		List<String> expected = Files.readAllLines(inMemory.toPath(), StandardCharsets.UTF_8);
+		List<String> actual = Files.readAllLines(external.toPath(), StandardCharsets.UTF_8);
+		assertEquals(expected.size(), actual.size());
+		// columns are sorted by term in the external output
+		List<String> expectedTerms = Arrays.asList(expected.get(0).split(","));
+		List<String> actualTerms = Arrays.asList(actual.get(0).split(","));
+		assertEquals(expectedTerms.size(), actualTerms.size());
+		for (int i = 1; i < expected.size(); i++) {
+			String[] expectedValues = expected.get(i).split(",");
+			String[] actualValues = actual.get(i).split(",");
+			assertEquals(expectedValues[0], actualValues[0]);
+			for (int j = 1; j < actualValues.length; j++) {
+				assertEquals(expectedValues[expectedTerms.indexOf(actualTerms.get(j))],
+						actualValues[j]);
+			}
+		}
+	}
+
+	public void testExternalMergesInPassesOfBoundedFanIn() throws IOException {
+		String corpus = new File(dir, "synthetic.txt").getPath();
+		new SyntheticCorpusGenerator(500, 4, 20, 1.0, 0.3).generate(corpus, 300, 1L);
+		File wide = new File(dir, "wide");
+		File narrow = new File(dir, "narrow");
+		new ExternalTfidfCalculator(4096, dir).calculate(corpus, wide.getPath(), true,
+				TfidfRowWriter.Format.SPARSE);
+		// dozens of runs merged two at a time take several passes
+		new ExternalTfidfCalculator(4096, dir, 2).calculate(corpus, narrow.getPath(), true,
+				TfidfRowWriter.Format.SPARSE);
+		// the run files are gone
+		assertEquals(4, dir.listFiles().length);
+		assertEquals(Files.readAllLines(wide.toPath(), StandardCharsets.UTF_8), Files
+				.readAllLines(narrow.toPath(), StandardCharsets.UTF_8));
+	}
+}
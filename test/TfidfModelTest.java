@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TfidfModelTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("tfidf-model").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private String write(String name, String content) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+
+	public void testSaveAndLoad() throws IOException {
+		String training = write("training.txt", "c1\ta b a\nc2\tb c\nc1\ta c c d\n");
+		TfidfModel model = new TfidfCalculator(1).calculate(training, new File(dir, "training.csv")
+				.getPath(), true);
+		String modelFilePath = new File(dir, "model").getPath();
+		model.save(modelFilePath);
+
+		TfidfModel loaded = TfidfModel.load(modelFilePath);
+		assertEquals(Arrays.asList("a", "b", "c", "d"), loaded.getTerms());
+		assertEquals(3, loaded.getNumDocs());
+		assertTrue(loaded.isNormalizeVector());
+		assertEquals(2, loaded.getNumAppearance(loaded.getTermId("a")));
+		assertEquals(1, loaded.getNumAppearance(loaded.getTermId("d")));
+		assertEquals(-1, loaded.getTermId("e"));
+		assertEquals(Math.log10(3.0), loaded.getInvDocFreq(3));
+	}
+
+	public void testTransformTrainingDataReproducesIt() throws IOException {
+		String training = new File(dir, "training.txt").getPath();
+		new SyntheticCorpusGenerator(300, 3, 20, 1.0, 0.3).generate(training, 100, 1L);
+		File trainingVectors = new File(dir, "training.csv");
+		TfidfModel model = new TfidfCalculator(1).calculate(training, trainingVectors.getPath(),
+				true);
+		File transformed = new File(dir, "transformed.csv");
+		model.transform(training, transformed.getPath(), TfidfRowWriter.Format.CSV);
+		assertTrue(Arrays.equals(Files.readAllBytes(trainingVectors.toPath()),
+				Files.readAllBytes(transformed.toPath())));
+	}
+
+	public void testTransformUsesTrainingIdf() throws IOException {
+		String training = write("training.txt", "c1\ta b a\nc2\tb c\nc1\ta c c d\n");
+		TfidfModel model = new TfidfCalculator(1).calculate(training, new File(dir, "training.csv")
+				.getPath(), false);
+		// unknown terms count towards the length only
+		String test = write("test.txt", "c2\td x x a\n");
+		File output = new File(dir, "test.sparse");
+		model.transform(test, output.getPath(), TfidfRowWriter.Format.SPARSE);
+		List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("class_unique,a,b,c,d", "c2 0:" + (0.25 * Math.log10(1.5))
+				+ " 3:" + (0.25 * Math.log10(3.0))), lines);
+	}
+}